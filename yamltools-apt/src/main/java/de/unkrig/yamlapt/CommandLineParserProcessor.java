@@ -0,0 +1,571 @@
+
+/*
+ * yamltools-apt - An annotation processor that generates reflection-free command line parsers
+ *
+ * Copyright (c) 2023, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.yamlapt;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+/**
+ * For each top-level class that declares {@code @CommandLineOption} methods, generates a class
+ * "<var>ClassName</var>{@code CommandLineParser}" with a method
+ * <pre>
+ *   public static String[] parse(String[] args, <var>ClassName</var> target)
+ * </pre>
+ * which configures the <var>target</var> like {@code CommandLineOptions.parse(args, target)}, but without any
+ * reflection.
+ * <p>
+ *   The generated parser handles the common cases only: Options named after their method, with parameters of type
+ *   {@link String}, {@code int}, {@code long}, {@code double}, {@link java.io.File}, {@link java.nio.charset.Charset},
+ *   enums, arrays of these (including varargs), and option beans (classes with {@code @CommandLineOption} methods of
+ *   their own). As with the reflective parser, an array parameter consumes all remaining arguments, so it must be
+ *   the last parameter. The generated parser first checks the <em>entire</em> command line, and only then invokes the
+ *   option methods on the <var>target</var>. If the command line uses anything else (other parameter types, explicit option names, option values that start with "-", "--",
+ *   violated cardinalities or option groups, conversion errors, ...), then {@code parse()} returns {@code null}
+ *   <em>without</em> having modified the <var>target</var>, and the caller should use the reflective {@code
+ *   CommandLineOptions.parse()} instead, which also generates the proper error messages.
+ * </p>
+ */
+@SupportedAnnotationTypes(CommandLineParserProcessor.COMMAND_LINE_OPTION)
+public
+class CommandLineParserProcessor extends AbstractProcessor {
+
+    static final String         COMMAND_LINE_OPTION       = "de.unkrig.commons.util.annotation.CommandLineOption";
+    private static final String COMMAND_LINE_OPTION_GROUP = "de.unkrig.commons.util.annotation.CommandLineOptionGroup";
+
+    private final Set<String> generated = new HashSet<>();
+
+    /**
+     * One {@code @CommandLineOption} method.
+     */
+    private static
+    class Option {
+
+        final int               index;
+        final ExecutableElement method;
+        final String            name;
+
+        /**
+         * Whether the option may appear more than once.
+         */
+        boolean any;
+
+        /**
+         * Whether the option must appear at least once.
+         */
+        boolean required;
+
+        final List<TypeElement> groups = new ArrayList<>();
+
+        /**
+         * Non-{@code null} iff the generated parser cannot handle this option.
+         */
+        String unsupported;
+
+        Option(int index, ExecutableElement method, String name) {
+            this.index  = index;
+            this.method = method;
+            this.name   = name;
+        }
+    }
+
+    @Override public SourceVersion
+    getSupportedSourceVersion() { return SourceVersion.latestSupported(); }
+
+    @Override public boolean
+    process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+
+        for (TypeElement annotation : annotations) {
+            for (Element e : roundEnv.getElementsAnnotatedWith(annotation)) {
+
+                // Generate parsers only for top-level classes; nested classes are option beans.
+                Element type = e.getEnclosingElement();
+                if (type.getKind() != ElementKind.CLASS) continue;
+                if (type.getEnclosingElement().getKind() != ElementKind.PACKAGE) continue;
+
+                TypeElement typeElement = (TypeElement) type;
+                if (!this.generated.add(typeElement.getQualifiedName().toString())) continue;
+
+                try {
+                    this.generate(typeElement);
+                } catch (IOException ioe) {
+                    this.processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, ioe.toString(), typeElement);
+                }
+            }
+        }
+
+        // Let other processors see the annotations, too.
+        return false;
+    }
+
+    private void
+    generate(TypeElement type) throws IOException {
+
+        String packageName = ((PackageElement) type.getEnclosingElement()).getQualifiedName().toString();
+        String className   = type.getSimpleName() + "CommandLineParser";
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("// Generated by ").append(this.getClass().getName()).append(" - do not edit.\n");
+        sb.append("\n");
+        if (!packageName.isEmpty()) sb.append("package ").append(packageName).append(";\n\n");
+        sb.append("public final\n");
+        sb.append("class ").append(className).append(" {\n");
+        sb.append("\n");
+        sb.append("    private ").append(className).append("() {}\n");
+
+        // The top-level "parse()" method.
+        List<Option>    options = this.options(type);
+        Set<String>     thrown  = new LinkedHashSet<>();
+        for (Option o : options) {
+            for (TypeMirror t : o.method.getThrownTypes()) thrown.add(t.toString());
+        }
+        sb.append("\n");
+        sb.append("    /**\n");
+        sb.append("     * @return The non-option arguments, or {@code null} iff the reflective parser must be used instead\n");
+        sb.append("     */\n");
+        sb.append("    public static String[]\n");
+        sb.append("    parse(String[] args, ").append(type.getQualifiedName()).append(" target)");
+        if (!thrown.isEmpty()) sb.append(" throws ").append(String.join(", ", thrown));
+        sb.append(" {\n");
+        sb.append("\n");
+        sb.append("        java.util.List<Object[]> invocations = new java.util.ArrayList<>();\n");
+        sb.append("        int[]                    counts      = new int[" + options.size() + "];\n");
+        sb.append("        int                      i           = 0;\n");
+        sb.append("        try {\n");
+        Map<TypeElement, String> beanParsers = new LinkedHashMap<>();
+        this.generateOptionLoop(options, type, "return null", true, beanParsers, sb);
+        sb.append("        } catch (RuntimeException e) {\n");
+        sb.append("            return null;\n");
+        sb.append("        }\n");
+        this.generateChecks(options, "return null", sb);
+        sb.append("\n");
+        sb.append("        for (Object[] invocation : invocations) {\n");
+        sb.append("            switch ((Integer) invocation[0]) {\n");
+        for (Option o : options) {
+            if (o.unsupported != null) continue;
+            sb.append("            case ").append(o.index).append(":\n");
+            sb.append("                ").append(this.invocation(o, type, "target", "invocation")).append(";\n");
+            sb.append("                break;\n");
+        }
+        sb.append("            }\n");
+        sb.append("        }\n");
+        sb.append("\n");
+        sb.append("        return java.util.Arrays.copyOfRange(args, i, args.length);\n");
+        sb.append("    }\n");
+
+        // One "parseXyz()" method per option bean; generating one may require more.
+        Set<TypeElement> done = new HashSet<>();
+        for (boolean more = true; more;) {
+            more = false;
+            for (Map.Entry<TypeElement, String> e : new ArrayList<>(beanParsers.entrySet())) {
+                if (!done.add(e.getKey())) continue;
+                this.generateBeanParser(e.getKey(), e.getValue(), beanParsers, sb);
+                more = true;
+            }
+        }
+
+        sb.append("}\n");
+
+        try (Writer w = this.processingEnv.getFiler().createSourceFile(
+            packageName.isEmpty() ? className : packageName + "." + className,
+            type
+        ).openWriter()) {
+            w.write(sb.toString());
+        }
+    }
+
+    private void
+    generateBeanParser(TypeElement bean, String methodName, Map<TypeElement, String> beanParsers, StringBuilder sb) {
+
+        List<Option> options = this.options(bean);
+
+        sb.append("\n");
+        sb.append("    /**\n");
+        sb.append("     * @return The index of the first argument after the bean options, or -1\n");
+        sb.append("     */\n");
+        sb.append("    private static int\n");
+        sb.append("    ").append(methodName).append("(String[] args, int i, ").append(bean.getQualifiedName()).append(" target) {\n");
+        sb.append("\n");
+        sb.append("        int[] counts = new int[" + options.size() + "];\n");
+        sb.append("        try {\n");
+        this.generateOptionLoop(options, bean, "return -1", false, beanParsers, sb);
+        sb.append("        } catch (Exception e) {\n");
+        sb.append("            return -1;\n");
+        sb.append("        }\n");
+        this.generateChecks(options, "return -1", sb);
+        sb.append("\n");
+        sb.append("        return i;\n");
+        sb.append("    }\n");
+    }
+
+    /**
+     * Generates the loop that consumes the options. For the top-level class, the option method invocations are
+     * recorded (and executed later); for option beans they are executed immediately.
+     */
+    private void
+    generateOptionLoop(
+        List<Option>             options,
+        TypeElement              type,
+        String                   fail,
+        boolean                  topLevel,
+        Map<TypeElement, String> beanParsers,
+        StringBuilder            sb
+    ) {
+        sb.append("            OPTIONS:\n");
+        sb.append("            while (i < args.length) {\n");
+        sb.append("                switch (args[i]) {\n");
+        for (Option o : options) {
+            sb.append("                case \"").append(o.name).append("\":\n");
+            if (o.unsupported != null) {
+                sb.append("                    ").append(fail).append("; // ").append(o.unsupported).append("\n");
+                continue;
+            }
+            sb.append("                    {\n");
+            sb.append("                        i++;\n");
+            List<? extends VariableElement> parameters = o.method.getParameters();
+            for (int j = 0; j < parameters.size(); j++) {
+                TypeMirror t = parameters.get(j).asType();
+                String     p = "p" + j;
+                TypeElement bean = this.bean(t);
+                if (bean != null) {
+                    String beanParser = beanParsers.get(bean);
+                    if (beanParser == null) {
+                        beanParsers.put(bean, (beanParser = "parse" + bean.getSimpleName() + beanParsers.size()));
+                    }
+                    sb.append("                        ").append(bean.getQualifiedName()).append(" ").append(p).append(" = new ").append(bean.getQualifiedName()).append("();\n");
+                    sb.append("                        i = ").append(beanParser).append("(args, i, ").append(p).append(");\n");
+                    sb.append("                        if (i == -1) ").append(fail).append(";\n");
+                } else
+                if (t.getKind() == TypeKind.ARRAY) {
+
+                    // Consume all remaining arguments, like the reflective parser.
+                    TypeMirror ct = ((ArrayType) t).getComponentType();
+                    sb.append("                        ").append(t).append(" ").append(p).append(" = new ").append(ct).append("[args.length - i];\n");
+                    sb.append("                        for (int j = 0; i < args.length; j++) {\n");
+                    sb.append("                            if (args[i].length() > 1 && args[i].startsWith(\"-\")) ").append(fail).append(";\n");
+                    sb.append("                            ").append(p).append("[j] = ").append(this.conversion(ct, "args[i++]")).append(";\n");
+                    sb.append("                        }\n");
+                } else
+                {
+                    sb.append("                        if (i == args.length || args[i].length() > 1 && args[i].startsWith(\"-\")) ").append(fail).append(";\n");
+                    sb.append("                        ").append(t).append(" ").append(p).append(" = ").append(this.conversion(t, "args[i++]")).append(";\n");
+                }
+            }
+            if (topLevel) {
+                sb.append("                        invocations.add(new Object[] { ").append(o.index);
+                for (int j = 0; j < parameters.size(); j++) sb.append(", p").append(j);
+                sb.append(" });\n");
+            } else {
+                sb.append("                        ").append(this.invocation(o, type, "target", null)).append(";\n");
+            }
+            sb.append("                        counts[").append(o.index).append("]++;\n");
+            sb.append("                    }\n");
+            sb.append("                    continue;\n");
+        }
+        sb.append("                default:\n");
+        if (topLevel) {
+            sb.append("                    if (args[i].length() > 1 && args[i].startsWith(\"-\")) ").append(fail).append(";\n");
+        }
+        sb.append("                    break OPTIONS;\n");
+        sb.append("                }\n");
+        sb.append("            }\n");
+    }
+
+    /**
+     * Generates the checks for the option cardinalities and option groups.
+     */
+    private void
+    generateChecks(List<Option> options, String fail, StringBuilder sb) {
+
+        Map<TypeElement, List<Option>> groups = new LinkedHashMap<>();
+        for (Option o : options) {
+            if (!o.any)     sb.append("        if (counts[").append(o.index).append("] > 1) ").append(fail).append(";\n");
+            if (o.required) sb.append("        if (counts[").append(o.index).append("] == 0) ").append(fail).append(";\n");
+            for (TypeElement g : o.groups) groups.computeIfAbsent(g, k -> new ArrayList<>()).add(o);
+        }
+
+        for (Map.Entry<TypeElement, List<Option>> e : groups.entrySet()) {
+
+            StringBuilder sum = new StringBuilder();
+            for (Option o : e.getValue()) {
+                if (sum.length() > 0) sum.append(" + ");
+                sum.append("counts[").append(o.index).append("]");
+            }
+
+            // Group cardinality is ZERO_OR_ONE (the default), EXACTLY_ONE or ONE_OR_MORE.
+            String cardinality = this.enumValue(this.annotation(e.getKey(), COMMAND_LINE_OPTION_GROUP), "cardinality");
+            if (!"ONE_OR_MORE".equals(cardinality)) {
+                sb.append("        if (").append(sum).append(" > 1) ").append(fail).append(";\n");
+            }
+            if ("EXACTLY_ONE".equals(cardinality) || "ONE_OR_MORE".equals(cardinality)) {
+                sb.append("        if (").append(sum).append(" == 0) ").append(fail).append(";\n");
+            }
+        }
+    }
+
+    /**
+     * @param args {@code null} means "the parameters are in local variables {@code p0}, {@code p1}, ..."
+     */
+    private String
+    invocation(Option o, TypeElement type, String target, String args) {
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(
+            o.method.getModifiers().contains(Modifier.STATIC)
+            ? type.getQualifiedName().toString()
+            : target
+        ).append('.').append(o.method.getSimpleName()).append('(');
+
+        List<? extends VariableElement> parameters = o.method.getParameters();
+        for (int j = 0; j < parameters.size(); j++) {
+            if (j > 0) sb.append(", ");
+            if (args == null) {
+                sb.append("p").append(j);
+            } else {
+                sb.append("(").append(this.boxed(parameters.get(j).asType())).append(") ").append(args).append("[").append(j + 1).append("]");
+            }
+        }
+
+        return sb.append(')').toString();
+    }
+
+    /**
+     * @return The options declared by the given <var>type</var>
+     */
+    private List<Option>
+    options(TypeElement type) {
+
+        Map<String, Option> result = new LinkedHashMap<>();
+        int                 index  = 0;
+        for (ExecutableElement method : ElementFilter.methodsIn(type.getEnclosedElements())) {
+
+            AnnotationMirror clo = this.annotation(method, COMMAND_LINE_OPTION);
+            if (clo == null) continue;
+
+            Option o = new Option(index++, method, CommandLineParserProcessor.optionName(method.getSimpleName().toString()));
+
+            // Option cardinality is OPTIONAL (the default), MANDATORY, ONCE_OR_MORE or ANY.
+            String cardinality = this.enumValue(clo, "cardinality");
+            o.any      = "ANY".equals(cardinality) || "ONCE_OR_MORE".equals(cardinality);
+            o.required = "MANDATORY".equals(cardinality) || "ONCE_OR_MORE".equals(cardinality);
+
+            for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> e : clo.getElementValues().entrySet()) {
+                String elementName = e.getKey().getSimpleName().toString();
+                if ("group".equals(elementName)) {
+                    Object value = e.getValue().getValue();
+                    List<?> values = value instanceof List ? (List<?>) value : List.of(e.getValue());
+                    for (Object v : values) {
+                        Object g = ((AnnotationValue) v).getValue();
+                        if (g instanceof DeclaredType) o.groups.add((TypeElement) ((DeclaredType) g).asElement());
+                    }
+                } else
+                if (!"cardinality".equals(elementName)) {
+                    o.unsupported = "Annotation element \"" + elementName + "\"";
+                }
+            }
+
+            if (method.getModifiers().contains(Modifier.PRIVATE)) o.unsupported = "Private method";
+            List<? extends VariableElement> parameters = method.getParameters();
+            for (int j = 0; j < parameters.size(); j++) {
+                TypeMirror t = parameters.get(j).asType();
+                if (t.getKind() == TypeKind.ARRAY) {
+                    if (j < parameters.size() - 1) o.unsupported = "Array parameter before the last parameter";
+                    if (this.conversion(((ArrayType) t).getComponentType(), "") == null) {
+                        o.unsupported = "Parameter type " + t;
+                    }
+                } else
+                if (this.bean(t) == null && this.conversion(t, "") == null) {
+                    o.unsupported = "Parameter type " + t;
+                }
+            }
+
+            // Overloaded option methods are ambiguous.
+            Option prev = result.put(o.name, o);
+            if (prev != null) o.unsupported = "Ambiguous";
+        }
+
+        return new ArrayList<>(result.values());
+    }
+
+    /**
+     * @return The option bean type, or {@code null} iff the given type is not an instantiable class with
+     *         {@code @CommandLineOption} methods
+     */
+    private TypeElement
+    bean(TypeMirror t) {
+
+        if (t.getKind() != TypeKind.DECLARED) return null;
+        TypeElement te = (TypeElement) ((DeclaredType) t).asElement();
+
+        if (te.getKind() != ElementKind.CLASS) return null;
+        if (te.getModifiers().contains(Modifier.ABSTRACT)) return null;
+        if (te.getModifiers().contains(Modifier.PRIVATE)) return null;
+        if (
+            te.getEnclosingElement().getKind() != ElementKind.PACKAGE
+            && !te.getModifiers().contains(Modifier.STATIC)
+        ) return null;
+
+        boolean hasOptions = false;
+        for (ExecutableElement m : ElementFilter.methodsIn(te.getEnclosedElements())) {
+            if (this.annotation(m, COMMAND_LINE_OPTION) != null) hasOptions = true;
+        }
+        if (!hasOptions) return null;
+
+        List<ExecutableElement> constructors = ElementFilter.constructorsIn(te.getEnclosedElements());
+        for (ExecutableElement c : constructors) {
+            if (c.getParameters().isEmpty() && !c.getModifiers().contains(Modifier.PRIVATE)) return te;
+        }
+        return null;
+    }
+
+    /**
+     * @return A Java expression that converts the string <var>s</var> into the given type, or {@code null} iff
+     *         that type is not supported
+     */
+    private String
+    conversion(TypeMirror t, String s) {
+
+        switch (t.getKind()) {
+        case INT:    return "Integer.parseInt(" + s + ")";
+        case LONG:   return "Long.parseLong(" + s + ")";
+        case DOUBLE: return "Double.parseDouble(" + s + ")";
+        case DECLARED:
+            break;
+        default:
+            return null;
+        }
+
+        TypeElement te = (TypeElement) ((DeclaredType) t).asElement();
+        switch (te.getQualifiedName().toString()) {
+        case "java.lang.String":         return s;
+        case "java.lang.Integer":        return "Integer.valueOf(" + s + ")";
+        case "java.lang.Long":           return "Long.valueOf(" + s + ")";
+        case "java.lang.Double":         return "Double.valueOf(" + s + ")";
+        case "java.io.File":             return "new java.io.File(" + s + ")";
+        case "java.nio.charset.Charset": return "java.nio.charset.Charset.forName(" + s + ")";
+        }
+
+        if (te.getKind() == ElementKind.ENUM) return te.getQualifiedName() + ".valueOf(" + s + ")";
+
+        return null;
+    }
+
+    private String
+    boxed(TypeMirror t) {
+        switch (t.getKind()) {
+        case INT:    return "Integer";
+        case LONG:   return "Long";
+        case DOUBLE: return "Double";
+        default:     return t.toString();
+        }
+    }
+
+    private AnnotationMirror
+    annotation(Element e, String annotationTypeName) {
+        for (AnnotationMirror am : e.getAnnotationMirrors()) {
+            if (((TypeElement) am.getAnnotationType().asElement()).getQualifiedName().contentEquals(annotationTypeName)) {
+                return am;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The name of the enum constant that the annotation element has explicitly, or {@code null}
+     */
+    private String
+    enumValue(AnnotationMirror am, String elementName) {
+
+        if (am == null) return null;
+
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> e : am.getElementValues().entrySet()) {
+            if (e.getKey().getSimpleName().contentEquals(elementName)) {
+                Object value = e.getValue().getValue();
+                if (value instanceof VariableElement) return ((VariableElement) value).getSimpleName().toString();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Derives the option name from the method name, e.g. "{@code setInCharset}" becomes "{@code --in-charset}", and
+     * "{@code addSet}" becomes "{@code --set}".
+     */
+    static String
+    optionName(String methodName) {
+
+        String s = methodName;
+        for (String prefix : new String[] { "set", "add" }) {
+            if (
+                s.length() > prefix.length()
+                && s.startsWith(prefix)
+                && Character.isUpperCase(s.charAt(prefix.length()))
+            ) {
+                s = s.substring(prefix.length());
+                break;
+            }
+        }
+
+        StringBuilder sb = new StringBuilder("--");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (Character.isUpperCase(c)) {
+                if (i > 0) sb.append('-');
+                sb.append(Character.toLowerCase(c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,412 @@
+
+/*
+ * yamltools-benchmarks - Performance benchmarks for the yamltools
+ *
+ * Copyright (c) 2023, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.yamlbenchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.ProcessBuilder.Redirect;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import de.unkrig.commons.nullanalysis.Nullable;
+import de.unkrig.commons.util.CommandLineOptionException;
+import de.unkrig.commons.util.CommandLineOptions;
+import de.unkrig.commons.util.annotation.CommandLineOption;
+import de.unkrig.commons.util.annotation.CommandLineOption.Cardinality;
+
+/**
+ * Runs the "{@code yamlpatch}" and "{@code yamlfind}" jar-with-dependencies in fresh JVMs against generated corpora,
+ * and reports wall time, files/s, MB/s, peak RSS and GC pause time for each scenario as JSON.
+ * <h2>Usage</h2>
+ * <pre>
+ *   java -cp yamltools-benchmarks-<var>version</var>-jar-with-dependencies.jar de.unkrig.yamlbenchmarks.CliBenchmark \
+ *       --patch-jar ../yamltools-patch/target/yamltools-patch-<var>version</var>-jar-with-dependencies.jar \
+ *       --find-jar ../yamltools-find/target/yamltools-find-<var>version</var>-jar-with-dependencies.jar \
+ *       [ <var>option</var> ... ]
+ * </pre>
+ * <h2>Options</h2>
+ * <dl>
+ *   <dt>{@code --java} <var>executable</var></dt>
+ *   <dd>The JVM to benchmark (default: the running JVM)</dd>
+ *   <dt>{@code --jvm-arg} <var>arg</var></dt>
+ *   <dd>An additional argument for the benchmarked JVM, e.g. "{@code -XX:TieredStopAtLevel=1}"</dd>
+ *   <dt>{@code --runs} <var>n</var></dt>
+ *   <dd>How often to run each scenario (default 3)</dd>
+ *   <dt>{@code --scenario} <var>name</var></dt>
+ *   <dd>Run only the named scenario(s) (default: all)</dd>
+ *   <dt>{@code --work-directory} <var>dir</var></dt>
+ *   <dd>Where the corpora are generated (and kept for the next run); default "{@code target/cli-benchmark}"</dd>
+ *   <dt>{@code --output} <var>file</var></dt>
+ *   <dd>Where to write the JSON results (default: STDOUT)</dd>
+ * </dl>
+ * <p>
+ *   The peak RSS is the "VmHWM" from "{@code /proc/}<var>pid</var>{@code /status}", sampled while the process runs,
+ *   and is thus only available on Linux, and may miss the very last milliseconds of a process. The GC time is the
+ *   sum of the pauses that "{@code -Xlog:gc}" reports.
+ * </p>
+ */
+public
+class CliBenchmark {
+
+    /**
+     * A corpus of <var>fileCount</var> files, each generated by {@link Documents#wide(int)
+     * Documents.wide(documentSize)}.
+     */
+    private static final
+    class Scenario {
+
+        final String name;
+        final int    fileCount;
+        final int    documentSize;
+
+        Scenario(String name, int fileCount, int documentSize) {
+            this.name         = name;
+            this.fileCount    = fileCount;
+            this.documentSize = documentSize;
+        }
+    }
+
+    /**
+     * Notice: The "huge" file (about 2.5 MB) stays below snakeyaml-engine's default limit of 3 MiB code points per
+     * document.
+     */
+    private static final Scenario[] SCENARIOS = {
+        new Scenario("many-tiny-files",   10000, 2),
+        new Scenario("some-medium-files", 100,   1000),
+        new Scenario("one-huge-file",     1,     20000),
+    };
+
+    private static final Pattern GC_PAUSE = Pattern.compile(".*\\bPause\\b.* (\\d+(?:\\.\\d+)?)ms$");
+
+    @Nullable private File     patchJar;
+    @Nullable private File     findJar;
+    private String             java          = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+    private final List<String> jvmArgs       = new ArrayList<>();
+    private int                runs          = 3;
+    private final Set<String>  scenarioNames = new HashSet<>();
+    private File               workDirectory = new File("target/cli-benchmark");
+    @Nullable private File     output;
+
+    /**
+     * The "yamlpatch" jar-with-dependencies to benchmark.
+     */
+    @CommandLineOption(cardinality = Cardinality.MANDATORY) public void
+    setPatchJar(File jar) { this.patchJar = jar; }
+
+    /**
+     * The "yamlfind" jar-with-dependencies to benchmark.
+     */
+    @CommandLineOption(cardinality = Cardinality.MANDATORY) public void
+    setFindJar(File jar) { this.findJar = jar; }
+
+    /**
+     * The JVM to benchmark (default: the running JVM).
+     */
+    @CommandLineOption public void
+    setJava(String executable) { this.java = executable; }
+
+    /**
+     * An additional argument for the benchmarked JVM.
+     */
+    @CommandLineOption(cardinality = Cardinality.ANY) public void
+    addJvmArg(String arg) { this.jvmArgs.add(arg); }
+
+    /**
+     * How often to run each scenario (default 3).
+     */
+    @CommandLineOption public void
+    setRuns(int n) { this.runs = n; }
+
+    /**
+     * Run only the named scenario(s).
+     */
+    @CommandLineOption(cardinality = Cardinality.ANY) public void
+    addScenario(String name) { this.scenarioNames.add(name); }
+
+    /**
+     * Where the corpora are generated.
+     */
+    @CommandLineOption public void
+    setWorkDirectory(File dir) { this.workDirectory = dir; }
+
+    /**
+     * Where to write the JSON results (default: STDOUT).
+     */
+    @CommandLineOption public void
+    setOutput(File file) { this.output = file; }
+
+    public static void
+    main(String[] args) throws IOException, CommandLineOptionException, InterruptedException {
+
+        CliBenchmark cliBenchmark = new CliBenchmark();
+        args = CommandLineOptions.parse(args, cliBenchmark);
+        if (args.length > 0) throw new IllegalArgumentException("Unexpected argument \"" + args[0] + "\"");
+
+        cliBenchmark.run();
+    }
+
+    private void
+    run() throws IOException, InterruptedException {
+
+        File patchJar = this.patchJar;
+        File findJar  = this.findJar;
+        assert patchJar != null && findJar != null;
+
+        File output = this.output;
+        try (PrintWriter pw = (
+            output == null
+            ? new PrintWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8))
+            : new PrintWriter(new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8))
+        )) {
+
+            pw.println("{");
+            pw.println("  \"date\": " + CliBenchmark.quote(new Date().toString()) + ",");
+            pw.println("  \"java\": " + CliBenchmark.quote(this.java) + ",");
+            pw.println("  \"jvmArgs\": " + CliBenchmark.quote(this.jvmArgs) + ",");
+            pw.println("  \"results\": [");
+
+            boolean first = true;
+            for (Scenario scenario : CliBenchmark.SCENARIOS) {
+                if (!this.scenarioNames.isEmpty() && !this.scenarioNames.contains(scenario.name)) continue;
+
+                File scenarioDirectory = new File(this.workDirectory, scenario.name);
+                File in                = new File(scenarioDirectory, "in");
+                File out               = new File(scenarioDirectory, "out");
+                long bytes             = CliBenchmark.generateCorpus(scenario, in);
+
+                // The tools process files, not directories; the paths are relative to the scenario directory.
+                List<String> inFiles = new ArrayList<>();
+                for (int i = 0; i < scenario.fileCount; i++) inFiles.add("in/" + CliBenchmark.fileName(i));
+
+                int last = scenario.documentSize - 1;
+                List<List<String>> tools = Arrays.asList(
+                    CliBenchmark.concat(
+                        Arrays.asList(
+                            "yamlpatch", patchJar.getAbsolutePath(),
+                            "--set", "--existing", ".map.key" + last + ".name", "patched",
+                            "--sort", ".scalars"
+                        ),
+                        inFiles,
+                        Collections.singletonList("out")
+                    ),
+                    CliBenchmark.concat(
+                        Arrays.asList(
+                            "yamlfind", findJar.getAbsolutePath(),
+                            "--dump", ".map.key" + last + ".name"
+                        ),
+                        inFiles
+                    )
+                );
+
+                for (List<String> tool : tools) {
+                    if (!first) pw.println(",");
+                    first = false;
+
+                    pw.println("    {");
+                    pw.println("      \"tool\": " + CliBenchmark.quote(tool.get(0)) + ",");
+                    pw.println("      \"scenario\": " + CliBenchmark.quote(scenario.name) + ",");
+                    pw.println("      \"files\": " + scenario.fileCount + ",");
+                    pw.println("      \"bytes\": " + bytes + ",");
+                    pw.println("      \"runs\": [");
+
+                    for (int i = 0; i < this.runs; i++) {
+
+                        CliBenchmark.delete(out.toPath());
+                        Files.createDirectories(out.toPath());
+
+                        File gcLog = new File(scenarioDirectory, tool.get(0) + "-gc.log");
+                        File log   = new File(scenarioDirectory, tool.get(0) + ".log");
+
+                        List<String> command = new ArrayList<>();
+                        command.add(this.java);
+                        command.addAll(this.jvmArgs);
+                        command.add("-Xlog:gc:file=" + gcLog.getAbsolutePath());
+                        command.add("-jar");
+                        command.addAll(tool.subList(1, tool.size()));
+
+                        System.err.println(tool.get(0) + " " + scenario.name + " #" + (i + 1) + "...");
+                        long[] peakRssKb = new long[1];
+                        long   start     = System.nanoTime();
+                        int    status    = CliBenchmark.execute(command, scenarioDirectory, log, peakRssKb);
+                        double seconds   = (System.nanoTime() - start) / 1E9;
+
+                        pw.print("        { ");
+                        pw.print("\"exitStatus\": " + status);
+                        pw.print(", \"wallMillis\": " + Math.round(seconds * 1000));
+                        pw.print(", \"filesPerSecond\": " + CliBenchmark.round(scenario.fileCount / seconds));
+                        pw.print(", \"mbPerSecond\": " + CliBenchmark.round(bytes / 1E6 / seconds));
+                        pw.print(", \"peakRssKb\": " + peakRssKb[0]);
+                        pw.print(", \"gcPauseMillis\": " + CliBenchmark.round(CliBenchmark.gcPauseMillis(gcLog)));
+                        pw.println(i == this.runs - 1 ? " }" : " },");
+                    }
+
+                    pw.println("      ]");
+                    pw.print("    }");
+                }
+            }
+            pw.println();
+            pw.println("  ]");
+            pw.println("}");
+        }
+    }
+
+    /**
+     * Generates the corpus for the <var>scenario</var>, unless it exists from a previous run.
+     *
+     * @return The total size of the corpus files, in bytes
+     */
+    private static long
+    generateCorpus(Scenario scenario, File dir) throws IOException {
+
+        String document = Documents.wide(scenario.documentSize);
+        byte[] bytes    = document.getBytes(StandardCharsets.UTF_8);
+
+        File[] existing = dir.listFiles();
+        if (existing == null || existing.length != scenario.fileCount) {
+            CliBenchmark.delete(dir.toPath());
+            Files.createDirectories(dir.toPath());
+            for (int i = 0; i < scenario.fileCount; i++) {
+                Files.write(new File(dir, CliBenchmark.fileName(i)).toPath(), bytes);
+            }
+        }
+
+        return (long) bytes.length * scenario.fileCount;
+    }
+
+    /**
+     * Executes the <var>command</var>, and samples its peak RSS while it runs.
+     *
+     * @param peakRssKb Returns the peak RSS, or -1 iff that is not available
+     * @return          The exit status of the process
+     */
+    private static int
+    execute(List<String> command, File workingDirectory, File log, long[] peakRssKb) throws IOException, InterruptedException {
+
+        Process process = new ProcessBuilder(command)
+        .directory(workingDirectory)
+        .redirectErrorStream(true)
+        .redirectOutput(Redirect.to(log))
+        .start();
+
+        Path status = new File("/proc/" + process.pid() + "/status").toPath();
+
+        peakRssKb[0] = -1;
+        while (process.isAlive()) {
+            try {
+                for (String line : Files.readAllLines(status)) {
+                    if (line.startsWith("VmHWM:")) {
+                        long kb = Long.parseLong(line.substring(6).trim().split("\\s+")[0]);
+                        if (kb > peakRssKb[0]) peakRssKb[0] = kb;
+                    }
+                }
+            } catch (IOException ioe) {
+
+                // Not Linux, or the process has just terminated.
+                ;
+            }
+            Thread.sleep(5);
+        }
+
+        return process.waitFor();
+    }
+
+    private static String
+    fileName(int index) { return String.format(Locale.ROOT, "doc-%05d.yaml", index); }
+
+    @SafeVarargs private static List<String>
+    concat(List<String>... lists) {
+        List<String> result = new ArrayList<>();
+        for (List<String> list : lists) result.addAll(list);
+        return result;
+    }
+
+    private static double
+    gcPauseMillis(File gcLog) throws IOException {
+
+        if (!gcLog.exists()) return -1;
+
+        double result = 0;
+        for (String line : Files.readAllLines(gcLog.toPath(), StandardCharsets.UTF_8)) {
+            Matcher m = CliBenchmark.GC_PAUSE.matcher(line);
+            if (m.matches()) result += Double.parseDouble(m.group(1));
+        }
+        return result;
+    }
+
+    private static void
+    delete(Path path) throws IOException {
+
+        if (!Files.exists(path)) return;
+
+        try (Stream<Path> paths = Files.walk(path)) {
+            for (Path p : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) Files.delete(p);
+        }
+    }
+
+    private static String
+    round(double value) { return String.format(Locale.ROOT, "%.2f", value); }
+
+    private static String
+    quote(List<String> values) {
+        List<String> quoted = new ArrayList<>();
+        for (String value : values) quoted.add(CliBenchmark.quote(value));
+        return "[" + String.join(", ", quoted) + "]";
+    }
+
+    private static String
+    quote(String value) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else
+            if (c < ' ') {
+                sb.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+            } else
+            {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
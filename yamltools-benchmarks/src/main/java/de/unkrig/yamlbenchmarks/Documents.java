@@ -0,0 +1,137 @@
+
+/*
+ * yamltools-benchmarks - Performance benchmarks for the yamltools
+ *
+ * Copyright (c) 2023, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.yamlbenchmarks;
+
+import java.io.StringReader;
+
+import org.snakeyaml.engine.v2.nodes.Node;
+
+import de.unkrig.yamlutil.DocumentLoader;
+
+/**
+ * Generates synthetic YAML documents of a given size for the benchmarks.
+ */
+public final
+class Documents {
+
+    private Documents() {}
+
+    /**
+     * Generates a document with the following top-level entries:
+     * <dl>
+     *   <dt>{@code map:}</dt>
+     *   <dd>A map with <var>size</var> entries "{@code key0}", "{@code key1}", ..., each with a small map as value</dd>
+     *   <dt>{@code sequence:}</dt>
+     *   <dd>A sequence of <var>size</var> small maps</dd>
+     *   <dt>{@code scalars:}</dt>
+     *   <dd>A sequence of <var>size</var> scalars "{@code item0}", "{@code item1}", ..., in pseudo-random order</dd>
+     *   <dt>{@code set:}</dt>
+     *   <dd>A "{@code !!set}" with <var>size</var> members "{@code member0}", "{@code member1}", ...</dd>
+     * </dl>
+     * All the keys and values are deterministic, so the benchmarks are reproducible.
+     */
+    public static String
+    wide(int size) {
+
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("# A synthetic document with ").append(size).append(" entries per collection\n");
+
+        sb.append("map:\n");
+        for (int i = 0; i < size; i++) {
+            sb.append("  key").append(i).append(":\n");
+            sb.append("    name: name").append(i).append('\n');
+            sb.append("    value: ").append(i).append('\n');
+        }
+
+        sb.append("sequence:\n");
+        for (int i = 0; i < size; i++) {
+            sb.append("  - name: name").append(i).append('\n');
+            sb.append("    tags: [ a, b, c ]\n");
+        }
+
+        sb.append("scalars:\n");
+        for (int i = 0; i < size; i++) {
+            sb.append("  - item").append(Documents.shuffled(i, size)).append('\n');
+        }
+
+        sb.append("set: !!set\n");
+        for (int i = 0; i < size; i++) {
+            sb.append("  ? member").append(i).append('\n');
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Generates a document that is a complete binary tree of maps with the given <var>depth</var>; the leaves are
+     * scalars. Thus the document has 2^<var>depth</var> leaves.
+     */
+    public static String
+    deep(int depth) {
+        StringBuilder sb = new StringBuilder();
+        Documents.deep(depth, "", sb);
+        return sb.toString();
+    }
+
+    private static void
+    deep(int depth, String indentation, StringBuilder sb) {
+        for (String key : new String[] { "left", "right" }) {
+            sb.append(indentation).append(key).append(':');
+            if (depth <= 1) {
+                sb.append(' ').append(key).append(depth).append('\n');
+            } else {
+                sb.append('\n');
+                Documents.deep(depth - 1, indentation + "  ", sb);
+            }
+        }
+    }
+
+    /**
+     * Composes the given YAML <var>document</var> exactly like the tools do.
+     */
+    public static Node
+    compose(String document) {
+        return Documents.compose(document, new DocumentLoader());
+    }
+
+    /**
+     * Composes the given YAML <var>document</var> with the given <var>documentLoader</var>.
+     */
+    public static Node
+    compose(String document, DocumentLoader documentLoader) {
+        return documentLoader.load(new StringReader(document)).get();
+    }
+
+    /**
+     * @return A permutation of 0...<var>size</var>-1 that is stable across runs
+     */
+    private static int
+    shuffled(int i, int size) {
+        return (int) ((i * 7919L + 13) % size);
+    }
+}
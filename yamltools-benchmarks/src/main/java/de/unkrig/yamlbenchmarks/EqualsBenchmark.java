@@ -0,0 +1,100 @@
+
+/*
+ * yamltools-benchmarks - Performance benchmarks for the yamltools
+ *
+ * Copyright (c) 2023, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.yamlbenchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.snakeyaml.engine.v2.common.ScalarStyle;
+import org.snakeyaml.engine.v2.nodes.MappingNode;
+import org.snakeyaml.engine.v2.nodes.Node;
+import org.snakeyaml.engine.v2.nodes.NodeTuple;
+import org.snakeyaml.engine.v2.nodes.ScalarNode;
+import org.snakeyaml.engine.v2.nodes.Tag;
+
+import de.unkrig.yamlutil.SpecParser;
+
+/**
+ * Measures {@link SpecParser#equals(Node, Node)} on deep trees.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public
+class EqualsBenchmark {
+
+    /**
+     * The trees have 2^<var>depth</var> leaves.
+     */
+    @Param({ "4", "10", "16" }) public int depth;
+
+    private Node tree;
+    private Node equalTree;
+    private Node differentTree;
+
+    @Setup public void
+    setUp() {
+        this.tree      = Documents.compose(Documents.deep(this.depth));
+        this.equalTree = SpecParser.copy(this.tree);
+
+        // Same as "tree", except for the very last leaf, so that "equals()" must traverse the entire tree.
+        this.differentTree = SpecParser.copy(this.tree);
+        MappingNode map = (MappingNode) this.differentTree;
+        for (;;) {
+            NodeTuple last  = map.getValue().get(map.getValue().size() - 1);
+            Node      value = last.getValueNode();
+            if (value instanceof MappingNode) {
+                map = (MappingNode) value;
+                continue;
+            }
+            map.getValue().set(
+                map.getValue().size() - 1,
+                new NodeTuple(last.getKeyNode(), new ScalarNode(Tag.STR, "different", ScalarStyle.PLAIN))
+            );
+            break;
+        }
+    }
+
+    @Benchmark public boolean
+    equal() { return SpecParser.equals(this.tree, this.equalTree); }
+
+    @Benchmark public boolean
+    different() { return SpecParser.equals(this.tree, this.differentTree); }
+}
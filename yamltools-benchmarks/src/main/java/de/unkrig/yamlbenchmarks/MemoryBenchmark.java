@@ -0,0 +1,188 @@
+
+/*
+ * yamltools-benchmarks - Performance benchmarks for the yamltools
+ *
+ * Copyright (c) 2023, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.yamlbenchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.snakeyaml.engine.v2.api.LoadSettings;
+import org.snakeyaml.engine.v2.nodes.Node;
+
+import de.unkrig.commons.util.CommandLineOptionException;
+import de.unkrig.commons.util.CommandLineOptions;
+import de.unkrig.commons.util.annotation.CommandLineOption;
+import de.unkrig.commons.util.annotation.CommandLineOption.Cardinality;
+import de.unkrig.yamlutil.CompactDocument;
+import de.unkrig.yamlutil.DocumentLoader;
+import de.unkrig.yamlutil.MemoryReport;
+import de.unkrig.yamlutil.MemoryReport.Category;
+
+/**
+ * Measures the heap that composed documents of different sizes retain, and compares it with the estimate of the
+ * {@link MemoryReport}, and with the heap that the equivalent {@link CompactDocument}s retain. The results (retained bytes per MB of input) are what "{@code -Xmx}" must be sized for, and
+ * show the effect of memory optimizations.
+ * <h2>Usage</h2>
+ * <pre>
+ *   java -cp yamltools-benchmarks-<var>version</var>-jar-with-dependencies.jar de.unkrig.yamlbenchmarks.MemoryBenchmark \
+ *       [ <var>option</var> ... ]
+ * </pre>
+ * <h2>Options</h2>
+ * <dl>
+ *   <dt>{@code --size} <var>n</var></dt>
+ *   <dd>
+ *     Measure a document generated by {@link Documents#wide(int) Documents.wide(n)}; may be given more than once
+ *     (default: 100, 1000, 10000 and 20000)
+ *   </dd>
+ *   <dt>{@code --copies} <var>n</var></dt>
+ *   <dd>How many copies of each document to compose and hold at the same time, which reduces the noise (default 5)</dd>
+ *   <dt>{@code --dedup-scalars}</dt>
+ *   <dd>Compose with {@link DocumentLoader#setDeduplicateScalars(boolean) scalar deduplication}</dd>
+ *   <dt>{@code --no-marks}</dt>
+ *   <dd>Compose {@link DocumentLoader#setUseMarks(boolean) without marks}</dd>
+ * </dl>
+ * <p>
+ *   The measured value is the growth of the used heap after full GCs. Run with a heap that is large enough for the
+ *   copies, and preferably with "{@code -XX:+UseSerialGC}", whose heap usage is the most precise after
+ *   {@link System#gc()}.
+ * </p>
+ */
+public
+class MemoryBenchmark {
+
+    private final List<Integer>  sizes          = new ArrayList<>();
+    private int                  copies         = 5;
+    private final DocumentLoader documentLoader = new DocumentLoader();
+
+    /**
+     * Measure a document generated by {@link Documents#wide(int) Documents.wide(n)}.
+     */
+    @CommandLineOption(cardinality = Cardinality.ANY) public void
+    addSize(int n) { this.sizes.add(n); }
+
+    /**
+     * How many copies of each document to compose and hold at the same time.
+     */
+    @CommandLineOption public void
+    setCopies(int n) { this.copies = n; }
+
+    /**
+     * Compose with scalar deduplication.
+     */
+    @CommandLineOption public void
+    dedupScalars() { this.documentLoader.setDeduplicateScalars(true); }
+
+    /**
+     * Compose without marks.
+     */
+    @CommandLineOption public void
+    noMarks() { this.documentLoader.setUseMarks(false); }
+
+    public static void
+    main(String[] args) throws CommandLineOptionException {
+
+        MemoryBenchmark memoryBenchmark = new MemoryBenchmark();
+        args = CommandLineOptions.parse(args, memoryBenchmark);
+        if (args.length > 0) throw new IllegalArgumentException("Unexpected argument \"" + args[0] + "\"");
+
+        if (memoryBenchmark.sizes.isEmpty()) {
+            for (int size : new int[] { 100, 1000, 10000, 20000 }) memoryBenchmark.sizes.add(size);
+        }
+
+        memoryBenchmark.run();
+    }
+
+    private void
+    run() {
+
+        System.out.printf(
+            Locale.ROOT,
+            "%8s %12s %14s %14s %16s %16s %16s %16s",
+            "size", "input bytes", "measured", "estimated", "measured/in MB", "estimated/in MB",
+            "compact/in MB", "compact est./in MB"
+        );
+        for (Category c : Category.values()) {
+            if (c != Category.COMPACT_DOCUMENTS) System.out.printf(Locale.ROOT, " %16s", c + "/in MB");
+        }
+        System.out.println();
+
+        for (int size : this.sizes) {
+
+            String document   = Documents.wide(size);
+            long   inputBytes = document.getBytes(StandardCharsets.UTF_8).length;
+            double inMb       = inputBytes / (1024. * 1024.);
+
+            long   before = MemoryBenchmark.usedHeapAfterGc();
+            Node[] nodes  = new Node[this.copies];
+            for (int i = 0; i < nodes.length; i++) nodes[i] = Documents.compose(document, this.documentLoader);
+            long   after  = MemoryBenchmark.usedHeapAfterGc();
+
+            long measured = (after - before) / nodes.length;
+
+            before = MemoryBenchmark.usedHeapAfterGc();
+            CompactDocument[] compacts = new CompactDocument[this.copies];
+            for (int i = 0; i < compacts.length; i++) {
+                compacts[i] = CompactDocument.load(new StringReader(document), LoadSettings.builder().build()).get();
+            }
+            after  = MemoryBenchmark.usedHeapAfterGc();
+
+            long compactMeasured = (after - before) / compacts.length;
+
+            MemoryReport memoryReport = new MemoryReport();
+            memoryReport.add(nodes[0]);
+            long estimated = memoryReport.getTotalBytes();
+
+            System.out.printf(
+                Locale.ROOT,
+                "%8d %12d %14d %14d %16.0f %16.0f %16.0f %16.0f",
+                size, inputBytes, measured, estimated, measured / inMb, estimated / inMb,
+                compactMeasured / inMb, compacts[0].estimatedSize() / inMb
+            );
+            for (Category c : Category.values()) {
+                if (c != Category.COMPACT_DOCUMENTS) {
+                    System.out.printf(Locale.ROOT, " %16.0f", memoryReport.getBytes(c) / inMb);
+                }
+            }
+            System.out.println();
+
+            // Keep the documents reachable until after the measurements.
+            if (nodes[nodes.length - 1] == null || compacts[compacts.length - 1] == null) throw new AssertionError();
+        }
+    }
+
+    private static long
+    usedHeapAfterGc() {
+
+        MemoryMXBean memoryMxBean = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) System.gc();
+        return memoryMxBean.getHeapMemoryUsage().getUsed();
+    }
+}
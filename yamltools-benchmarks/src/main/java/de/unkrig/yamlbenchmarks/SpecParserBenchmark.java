@@ -0,0 +1,97 @@
+
+/*
+ * yamltools-benchmarks - Performance benchmarks for the yamltools
+ *
+ * Copyright (c) 2023, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.yamlbenchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.snakeyaml.engine.v2.nodes.Node;
+
+import de.unkrig.yamlutil.SpecParser;
+import de.unkrig.yamlutil.SpecParser.Spec;
+
+/**
+ * Measures {@link SpecParser#processSpec(Node, Spec, SpecParser.SpecHandler3)} for each kind of spec segment. The
+ * specs designate the <em>last</em> entry of each collection, which is the worst case for the linear searches.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public
+class SpecParserBenchmark {
+
+    @Param({ "10", "1000", "10000" }) public int size;
+
+    private Node root;
+
+    private Spec mapEntry;        // .map.key<n>.value
+    private Spec mapEntryYamlKey; // .map.("key<n>").value
+    private Spec sequenceIndex;   // .sequence[-1].name
+    private Spec sequenceElement; // .scalars.("item<n>")
+    private Spec setMember;       // .set.("member<n>")
+
+    @Setup public void
+    setUp() {
+        this.root = Documents.compose(Documents.wide(this.size));
+
+        int last = this.size - 1;
+        this.mapEntry        = SpecParser.compile(".map.key" + last + ".value");
+        this.mapEntryYamlKey = SpecParser.compile(".map.(\"key" + last + "\").value");
+        this.sequenceIndex   = SpecParser.compile(".sequence[-1].name");
+        this.sequenceElement = SpecParser.compile(".scalars.(\"item" + last + "\")");
+        this.setMember       = SpecParser.compile(".set.(\"member" + last + "\")");
+    }
+
+    @Benchmark public void
+    mapEntry(Blackhole bh) { SpecParser.processSpec(this.root, this.mapEntry, bh::consume); }
+
+    @Benchmark public void
+    mapEntryYamlKey(Blackhole bh) { SpecParser.processSpec(this.root, this.mapEntryYamlKey, bh::consume); }
+
+    @Benchmark public void
+    sequenceIndex(Blackhole bh) { SpecParser.processSpec(this.root, this.sequenceIndex, bh::consume); }
+
+    @Benchmark public void
+    sequenceElement(Blackhole bh) { SpecParser.processSpec(this.root, this.sequenceElement, bh::consume); }
+
+    @Benchmark public void
+    setMember(Blackhole bh) { SpecParser.processSpec(this.root, this.setMember, bh::consume); }
+}
@@ -0,0 +1,97 @@
+
+/*
+ * yamltools-benchmarks - Performance benchmarks for the yamltools
+ *
+ * Copyright (c) 2023, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.yamlbenchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.snakeyaml.engine.v2.nodes.Node;
+
+import de.unkrig.yamlpatch.YamlPatch;
+import de.unkrig.yamlpatch.YamlPatch.AddMode;
+import de.unkrig.yamlpatch.YamlPatch.RemoveMode;
+import de.unkrig.yamlpatch.YamlPatch.SetMode;
+import de.unkrig.yamlutil.SpecParser;
+
+/**
+ * Measures complete {@link YamlPatch#transform(java.io.Reader, OutputStream, java.nio.charset.Charset)} round
+ * trips (parse, modify, dump), with and without modifications.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public
+class TransformBenchmark {
+
+    @Param({ "10", "1000", "10000" }) public int size;
+
+    private String    document;
+    private YamlPatch identity;
+    private YamlPatch patch;
+
+    @Setup public void
+    setUp() throws IOException {
+        this.document = Documents.wide(this.size);
+
+        this.identity = new YamlPatch();
+
+        int  last  = this.size - 1;
+        Node value = SpecParser.loadYaml(new StringReader("{ name: new, value: 7 }"));
+        this.patch = new YamlPatch();
+        this.patch.addSet(".map.key" + last, value, SetMode.EXISTING, true, false);
+        this.patch.addRemove(".map.key0", RemoveMode.EXISTING, false);
+        this.patch.addAdd(".set.(\"member" + this.size + "\")", AddMode.NON_EXISTING, false);
+        this.patch.addSort(".scalars", false);
+    }
+
+    @Benchmark public void
+    identity() throws IOException {
+        this.identity.transform(new StringReader(this.document), OutputStream.nullOutputStream(), StandardCharsets.UTF_8);
+    }
+
+    @Benchmark public void
+    patch() throws IOException {
+        this.patch.transform(new StringReader(this.document), OutputStream.nullOutputStream(), StandardCharsets.UTF_8);
+    }
+}
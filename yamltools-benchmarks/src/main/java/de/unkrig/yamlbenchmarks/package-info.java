@@ -0,0 +1,47 @@
+
+/*
+ * yamltools-benchmarks - Performance benchmarks for the yamltools
+ *
+ * Copyright (c) 2023, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * <a href="https://github.com/openjdk/jmh">JMH</a> benchmarks for the yamltools.
+ * <p>
+ *   Build and run them with
+ * </p>
+ * <pre>
+ *   mvn package
+ *   java -jar target/yamltools-benchmarks-<var>version</var>-jar-with-dependencies.jar [ <var>jmh-options</var> ] [ <var>benchmark-regex</var> ]
+ * </pre>
+ * <p>
+ *   All benchmarks are parameterized with the document size, so that nonlinear behavior shows up.
+ * </p>
+ * <p>
+ *   {@link de.unkrig.yamlbenchmarks.CliBenchmark} complements these microbenchmarks with end-to-end measurements of
+ *   the command line tools.
+ * </p>
+ * <p>
+ *   {@link de.unkrig.yamlbenchmarks.MemoryBenchmark} measures the heap that composed documents retain per MB of input.
+ * </p>
+ */
+package de.unkrig.yamlbenchmarks;
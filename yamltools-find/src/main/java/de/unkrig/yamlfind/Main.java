@@ -44,17 +44,31 @@ import org.snakeyaml.engine.v2.nodes.Node;
 
 import de.unkrig.commons.file.ExceptionHandler;
 import de.unkrig.commons.file.fileprocessing.FileProcessings;
+import de.unkrig.commons.nullanalysis.Nullable;
 import de.unkrig.commons.util.CommandLineOptionException;
 import de.unkrig.commons.util.CommandLineOptions;
 import de.unkrig.commons.util.annotation.CommandLineOption;
 import de.unkrig.commons.util.annotation.CommandLineOption.Cardinality;
+import de.unkrig.yamlutil.Daemon;
+import de.unkrig.yamlutil.MemoryReport;
 import de.unkrig.yamlutil.SpecParser;
+import de.unkrig.yamlutil.Stats;
 
 public
 class Main {
 
+    /**
+     * The name of the system property that disables the generated command line parser; see {@link
+     * #parseCommandLine(String[], Main)}.
+     */
+    public static final String REFLECTIVE_PARSER = "yamltools.reflectiveCommandLineParser";
+
 	private Charset        inCharset  = StandardCharsets.UTF_8;
 	private Charset        outCharset = StandardCharsets.UTF_8;
+    private int            daemonPort = -1;
+    @Nullable private File workingDirectory;
+    private Stats          stats      = Stats.NONE;
+    private MemoryReport   memoryReport = MemoryReport.NONE;
     private final YamlFind yamlFind  = new YamlFind();
     { this.yamlFind.getDumpSettingsBuilder().setDumpComments(true); }
 
@@ -64,11 +78,50 @@ class Main {
     @CommandLineOption public static void
     help() throws IOException {
 
-        CommandLineOptions.printResource(Main.class, "main(String[]).txt", Charset.forName("UTF-8"), System.out);
+        Main.printHelp();
+
+        Daemon.exit(0);
+    }
 
-        System.exit(0);
+    private static void
+    printHelp() throws IOException {
+        CommandLineOptions.printResource(Main.class, "main(String[]).txt", Charset.forName("UTF-8"), System.out);
     }
 
+    /**
+     * Instead of processing documents, listen on the given TCP port (on the loopback interface) and execute the
+     * command lines that the client ("{@code java de.unkrig.yamlutil.Daemon} <var>port</var> <var>arg</var> ...")
+     * sends, which saves the JVM startup for each invocation.
+     * Only clients that can read the token file "{@code ~/.yamltools-daemon-}<var>port</var>" (which is readable only
+     * by the owner of the daemon) are served.
+     */
+    @CommandLineOption public void
+    setDaemon(int port) { this.daemonPort = port; }
+
+    /**
+     * When done, print the time spent reading, composing, analyzing, dumping and writing, and the numbers of
+     * documents, nodes, spec evaluations and bytes in and out, for each file and in total, to STDERR.
+     */
+    @CommandLineOption public void
+    stats() { this.yamlFind.setStats(this.stats = new Stats()); }
+
+    /**
+     * When done, print an estimate of the heap that the composed documents retained, by node type, comments, marks
+     * and scalar strings, and per MB of input, to STDERR.
+     */
+    @CommandLineOption public void
+    memoryReport() { this.yamlFind.setMemoryReport(this.memoryReport = new MemoryReport()); }
+
+    /**
+     * When done, print how each spec was evaluated, segment by segment: The number of map entries scanned, the number
+     * of node comparisons and their maximum recursion depth, the number of sequence elements visited, and the time
+     * spent, to STDERR.
+     *
+     * @main.commandLineOptionGroup Document-Processing
+     */
+    @CommandLineOption public void
+    explain() { this.yamlFind.setExplain(true); }
+
     /**
      * Input encoding charset (default UTF-8)
      * @main.commandLineOptionGroup Input-Processing
@@ -76,6 +129,65 @@ class Main {
     @CommandLineOption public void
     setInCharset(Charset inCharset) { this.inCharset = inCharset; }
 
+    /**
+     * Store scalar values (including map keys) that occur more than once in a document only once, which reduces the
+     * heap that large documents with many repeated keys take
+     * @main.commandLineOptionGroup Input-Processing
+     */
+    @CommandLineOption public void
+    dedupScalars() { this.yamlFind.getDocumentLoader().setDeduplicateScalars(true); }
+
+    /**
+     * Don't record the line and column numbers of the nodes, which reduces the heap that the documents take, and the
+     * parse work; however, syntax errors then lack line and column numbers
+     * @main.commandLineOptionGroup Input-Processing
+     */
+    @CommandLineOption public void
+    noMarks() { this.yamlFind.getDocumentLoader().setUseMarks(false); }
+
+    /**
+     * Let the specs find map entries that are inherited through merge keys, as in "{@code <<: *defaults}".
+     * @main.commandLineOptionGroup Document-Processing
+     */
+    @CommandLineOption public void
+    mergeKeys() { this.yamlFind.setResolveMergeKeys(true); }
+
+    /**
+     * Fail on documents with more than <var>n</var> code points (default 3145728)
+     * @main.commandLineOptionGroup Input-Processing
+     */
+    @CommandLineOption public void
+    setMaxCodePoints(int n) { this.yamlFind.getDocumentLoader().setMaxCodePoints(n); }
+
+    /**
+     * Fail on documents with collections nested deeper than <var>n</var> levels (default: unlimited)
+     * @main.commandLineOptionGroup Input-Processing
+     */
+    @CommandLineOption public void
+    setMaxDepth(int n) { this.yamlFind.getDocumentLoader().setMaxDepth(n); }
+
+    /**
+     * Fail on documents with more than <var>n</var> aliases of collections (default 50)
+     * @main.commandLineOptionGroup Input-Processing
+     */
+    @CommandLineOption public void
+    setMaxAliases(int n) { this.yamlFind.getDocumentLoader().setMaxAliases(n); }
+
+    /**
+     * Fail on documents with more than <var>n</var> scalars and collections (default: unlimited)
+     * @main.commandLineOptionGroup Input-Processing
+     */
+    @CommandLineOption public void
+    setMaxNodes(long n) { this.yamlFind.getDocumentLoader().setMaxNodes(n); }
+
+    /**
+     * Parse the documents into a compact, read-only representation, which takes several times less heap than the
+     * default representation, but loses all comments.
+     * @main.commandLineOptionGroup Input-Processing
+     */
+    @CommandLineOption public void
+    compact() { this.yamlFind.setCompact(true); }
+
     /**
      * Output encoding charset (default UTF-8)
      * @main.commandLineOptionGroup Output-Generation
@@ -107,7 +219,13 @@ class Main {
      * @main.commandLineOptionGroup Output-Generation
      */
     @CommandLineOption public void
-    setStripComments() { this.yamlFind.getDumpSettingsBuilder().setDumpComments(false); }
+    setStripComments() {
+        this.yamlFind.getDumpSettingsBuilder().setDumpComments(false);
+
+        // No need to parse the comments when they are not dumped.
+        this.yamlFind.getDocumentLoader().setParseComments(false);
+    }
+
     /**
      * Number of spaces for the indent in the block flow style (default 2)
      * @main.commandLineOptionGroup Output-Generation
@@ -165,17 +283,30 @@ class Main {
 
     public static Node
     yamlDocumentOrFile(String yamlDocumentOrFile) throws IOException, FileNotFoundException {
+        return Main.yamlDocumentOrFile(yamlDocumentOrFile, null);
+    }
+
+    /**
+     * @param workingDirectory Relevant iff <var>yamlDocumentOrFile</var> designates a file with a relative name;
+     *                         {@code null} means the current working directory
+     */
+    public static Node
+    yamlDocumentOrFile(String yamlDocumentOrFile, @Nullable File workingDirectory)
+    throws IOException, FileNotFoundException {
 
-        try (Reader r = Main.stringOrFileReader(yamlDocumentOrFile)) {
+        try (Reader r = Main.stringOrFileReader(yamlDocumentOrFile, workingDirectory)) {
             return SpecParser.loadYaml(r);
         }
     }
 
     private static Reader
-    stringOrFileReader(String value) throws FileNotFoundException {
+    stringOrFileReader(String value, @Nullable File workingDirectory) throws FileNotFoundException {
         return (
             value.startsWith("@")
-            ? new InputStreamReader(new FileInputStream(value.substring(1)), StandardCharsets.UTF_8)
+            ? new InputStreamReader(
+                new FileInputStream(Daemon.resolve(value.substring(1), workingDirectory)),
+                StandardCharsets.UTF_8
+            )
             : new StringReader(value)
         );
     }
@@ -238,19 +369,38 @@ class Main {
      */
     public static void
     main(String[] args) throws IOException, CommandLineOptionException {
+        Main.run(args, null);
+    }
+
+    /**
+     * Equivalent with {@link #main(String[])}, except that relative file names are resolved against the given
+     * <var>workingDirectory</var>.
+     *
+     * @param workingDirectory {@code null} means the current working directory
+     */
+    public static void
+    run(String[] args, @Nullable File workingDirectory) throws IOException, CommandLineOptionException {
 
         // Configure a "Main" object from the command line options.
         Main main = new Main();
-        args = CommandLineOptions.parse(args, main);
+        main.workingDirectory = workingDirectory;
+        args = Main.parseCommandLine(args, main);
+
+        if (main.daemonPort != -1) {
+            if (Daemon.isExecuting()) throw new IllegalArgumentException("\"--daemon\" is not allowed on a daemon");
+            Daemon.serve(main.daemonPort, Main::run);
+            return;
+        }
 
         if (args.length == 1 && args[0].startsWith("!")) {
 
             // Parse single command line argument as a JSON document, and transform it to STDOUT.
+            main.stats.beginFile("(command line)");
             main.yamlFind.process(new StringReader(args[0].substring(1)));
         } else
         {
         	List<File> files = new ArrayList<>();
-        	for (String arg : args) files.add(new File(arg));
+        	for (String arg : args) files.add(new File(Daemon.resolve(arg, workingDirectory)));
 
         	try {
 	        	FileProcessings.process(
@@ -262,5 +412,38 @@ class Main {
 	            throw (InterruptedIOException) new InterruptedIOException().initCause(ie);
 	        }
         }
+
+        main.stats.print(System.err);
+        main.memoryReport.print(System.err);
+        main.yamlFind.printExplanations(System.err);
+    }
+
+    /**
+     * Configures the <var>main</var> object from the command line options, preferably through the {@code
+     * MainCommandLineParser} that the {@code yamltools-apt} annotation processor generated at compile time, which
+     * requires no reflection. The generated parser checks the entire command line before it modifies <var>main</var>,
+     * and {@link CommandLineOptions#parse(String[], Object)} takes over exactly when the command line
+     * <ul>
+     *   <li>
+     *     contains an option that is not spelled exactly "{@code --}<var>name</var>" (e.g. "{@code -}<var>name</var>",
+     *     or an unknown option), or
+     *   </li>
+     *   <li>lacks an option argument, or has one that starts with "{@code -}", or</li>
+     *   <li>has an option argument that cannot be converted (e.g. "{@code --indent x}"), or</li>
+     *   <li>violates an option's or an option group's cardinality (e.g. "{@code --numeric --natural}"), or</li>
+     *   <li>sets the system property "{@value #REFLECTIVE_PARSER}" to {@code true} (for diagnostics).</li>
+     * </ul>
+     * <p>
+     *   Thus, for all valid command lines, both parsers configure <var>main</var> identically, and for invalid command
+     *   lines, the reflective parser reports the error.
+     * </p>
+     *
+     * @return The remaining (non-option) arguments
+     */
+    private static String[]
+    parseCommandLine(String[] args, Main main) throws IOException, CommandLineOptionException {
+
+        String[] result = Boolean.getBoolean(REFLECTIVE_PARSER) ? null : MainCommandLineParser.parse(args, main);
+        return result != null ? result : CommandLineOptions.parse(args, main);
     }
 }
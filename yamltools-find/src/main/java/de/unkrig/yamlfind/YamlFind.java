@@ -30,6 +30,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.PrintStream;
 import java.io.Reader;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
@@ -37,13 +38,10 @@ import java.util.Date;
 import java.util.Formatter;
 import java.util.List;
 
-import org.snakeyaml.engine.v2.api.Dump;
 import org.snakeyaml.engine.v2.api.DumpSettings;
 import org.snakeyaml.engine.v2.api.DumpSettingsBuilder;
-import org.snakeyaml.engine.v2.api.LoadSettings;
 import org.snakeyaml.engine.v2.api.StreamDataWriter;
 import org.snakeyaml.engine.v2.api.YamlOutputStreamWriter;
-import org.snakeyaml.engine.v2.api.lowlevel.Compose;
 import org.snakeyaml.engine.v2.nodes.Node;
 
 import de.unkrig.commons.file.contentsprocessing.ContentsProcessor;
@@ -53,8 +51,21 @@ import de.unkrig.commons.lang.AssertionUtil;
 import de.unkrig.commons.lang.protocol.Consumer;
 import de.unkrig.commons.lang.protocol.ProducerWhichThrows;
 import de.unkrig.commons.nullanalysis.Nullable;
+import de.unkrig.yamlutil.CompactDocument;
+import de.unkrig.yamlutil.DocumentDumper;
+import de.unkrig.yamlutil.DocumentLoader;
+import de.unkrig.yamlutil.Events.ComposeEvent;
+import de.unkrig.yamlutil.Events.DumpEvent;
+import de.unkrig.yamlutil.Events.FileEvent;
+import de.unkrig.yamlutil.Events.OperationEvent;
+import de.unkrig.yamlutil.MemoryReport;
+import de.unkrig.yamlutil.MergeKeyIndex;
 import de.unkrig.yamlutil.SpecParser;
+import de.unkrig.yamlutil.SpecParser.Explanation;
+import de.unkrig.yamlutil.SpecParser.Spec;
 import de.unkrig.yamlutil.SpecParser.SpecHandler3;
+import de.unkrig.yamlutil.Stats;
+import de.unkrig.yamlutil.Stats.Phase;
 
 public
 class YamlFind {
@@ -63,8 +74,51 @@ class YamlFind {
         AssertionUtil.enableAssertionsForThisClass();
     }
 
+    private final DocumentLoader       documentLoader      = new DocumentLoader();
     private final DumpSettingsBuilder  dumpSettingsBuilder = DumpSettings.builder();
-    private final List<Consumer<Node>> documentConsumers   = new ArrayList<>();
+    private final List<Operation>      documentConsumers   = new ArrayList<>();
+    private Stats                      stats               = Stats.NONE;
+    private MemoryReport               memoryReport        = MemoryReport.NONE;
+    private boolean                    explain;
+    private final List<Explanation>    explanations        = new ArrayList<>();
+    private boolean                    compact;
+    private boolean                    resolveMergeKeys;
+
+    /**
+     * The document that the operations query: Either a composed {@link Node} tree, or a {@link CompactDocument}.
+     */
+    private
+    interface Document {
+
+        void processSpec(Spec spec, SpecHandler3 specHandler3, @Nullable Explanation explanation);
+
+        long nodeCount();
+    }
+
+    /**
+     * A document consumer, plus the operation and the spec(s) that it was configured with, which are reported in the
+     * {@link OperationEvent}s.
+     */
+    private static
+    class Operation {
+
+        final String             operation;
+        final String             spec;
+        final Consumer<Document> consumer;
+
+        Operation(String operation, String spec, Consumer<Document> consumer) {
+            this.operation = operation;
+            this.spec      = spec;
+            this.consumer  = consumer;
+        }
+    }
+
+    /**
+     * @return The modifiable {@link DocumentLoader} that will take effect for the next {@link #process(Reader)}
+     *         operation
+     */
+    public DocumentLoader
+    getDocumentLoader() { return this.documentLoader; }
 
     /**
      * @return The modifiable {@link DumpSettingsBuilder} that will take effect for the next {@link #process(Reader)}
@@ -73,19 +127,76 @@ class YamlFind {
     public DumpSettingsBuilder
     getDumpSettingsBuilder() { return this.dumpSettingsBuilder; }
 
+    /**
+     * Configures where the timings and counts of all following operations are recorded; the default is {@link
+     * Stats#NONE}.
+     */
+    public void
+    setStats(Stats stats) { this.stats = stats; }
+
+    /**
+     * Configures where the estimated heap footprints of all following documents are recorded; the default is {@link
+     * MemoryReport#NONE}.
+     */
+    public void
+    setMemoryReport(MemoryReport memoryReport) { this.memoryReport = memoryReport; }
+
+    /**
+     * Whether all following operations record, for each segment of each spec, how much work its evaluation took;
+     * see {@link #printExplanations(PrintStream)}.
+     */
+    public void
+    setExplain(boolean value) { this.explain = value; }
+
+    /**
+     * Whether all following documents are parsed into {@link CompactDocument}s, which take several times less heap
+     * than {@link Node} trees, but retain no comments.
+     */
+    public void
+    setCompact(boolean value) { this.compact = value; }
+
+    /**
+     * Whether the specs of all following operations find map entries that are inherited through merge keys ("{@code
+     * <<: *defaults}"). Because {@link CompactDocument}s do not support merge keys, documents are then composed into
+     * {@link Node} trees even if {@link #setCompact(boolean)} was configured.
+     */
+    public void
+    setResolveMergeKeys(boolean value) { this.resolveMergeKeys = value; }
+
+    /**
+     * Prints what the evaluations of all specs took, segment by segment, iff {@link #setExplain(boolean)} was
+     * configured.
+     */
+    public void
+    printExplanations(PrintStream ps) {
+        if (!this.explain) return;
+
+        for (Explanation explanation : this.explanations) explanation.print(ps);
+    }
+
+    private Explanation
+    explanation(Spec spec) {
+        Explanation result = new Explanation(spec);
+        this.explanations.add(result);
+        return result;
+    }
+
     /**
      * {@link #process(Reader)} will dump the node specified by the <var>spec</var>.
      */
     public void
     addDump(String spec, Charset outCharset) {
-    	this.documentConsumers.add(root -> {
-			SpecParser.processSpec(root, spec, new SpecHandler3() {
+    	Spec        compiledSpec = SpecParser.compile(spec);
+    	Explanation explanation  = this.explanation(compiledSpec);
+    	this.addConsumer("--dump", spec, root -> {
+    		this.stats.countEvaluatedSpec();
+			root.processSpec(compiledSpec, new SpecHandler3() {
 
 				@Override public void
 				handleNode(Node node) {
 					YamlFind.this.dump(node, System.out, outCharset);
 				}
-    		});
+    		}, this.explain ? explanation : null);
     	});
     }
     
@@ -94,31 +205,112 @@ class YamlFind {
      */
     public void
     addPrintf(String format, String[] specs) {
-    	this.documentConsumers.add(root -> {
+    	Spec[]        compiledSpecs = new Spec[specs.length];
+    	Explanation[] explanations  = new Explanation[specs.length];
+    	for (int i = 0; i < specs.length; i++) {
+    		compiledSpecs[i] = SpecParser.compile(specs[i]);
+    		explanations[i]  = this.explanation(compiledSpecs[i]);
+    	}
+    	this.addConsumer("--printf", String.join(" ", specs), root -> {
     		Object[] args = new Object[specs.length];
     		for (int i = 0; i < specs.length; i++) {
     			final int ii = i;
-    			SpecParser.processSpec(root, specs[i], new SpecHandler3() {
+    			this.stats.countEvaluatedSpec();
+    			root.processSpec(compiledSpecs[i], new SpecHandler3() {
     				@Override public void handleNode(Node node) { args[ii] = SpecParser.toString(node); }
-    			});
+    			}, this.explain ? explanations[i] : null);
     		}
     		System.out.printf(format, args);
     	});
     }
 
+    private void
+    addConsumer(String operation, String spec, Consumer<Document> consumer) {
+        this.documentConsumers.add(new Operation(operation, spec, consumer));
+    }
+
     public void
     process(Reader in) throws IOException {
 
-        // Read the document from the reader.
-        LoadSettings settings = LoadSettings.builder().setAllowDuplicateKeys(true).setParseComments(true).build();
+        Stats stats    = this.stats;
+        Phase previous = stats.enter(Phase.COMPOSE);
+        try {
 
-        Node yamlDocument = new Compose(settings).composeReader(in).get();
+            ComposeEvent event = new ComposeEvent();
+            event.begin();
 
-        for (Consumer<Node> dm : YamlFind.this.documentConsumers) {
-            dm.consume(yamlDocument);
+            // Read the document from the reader.
+            Document yamlDocument = this.compact && !this.resolveMergeKeys ? this.loadCompact(in) : this.compose(in);
+
+            event.end();
+            if (event.shouldCommit()) {
+                event.nodes = yamlDocument.nodeCount();
+                event.commit();
+            }
+
+            stats.enter(null);
+            stats.countDocument(yamlDocument.nodeCount());
+
+            stats.enter(Phase.PROCESS);
+            for (Operation dm : YamlFind.this.documentConsumers) {
+
+                OperationEvent operationEvent = new OperationEvent();
+                operationEvent.begin();
+
+                dm.consumer.consume(yamlDocument);
+
+                operationEvent.end();
+                if (operationEvent.shouldCommit()) {
+                    operationEvent.operation = dm.operation;
+                    operationEvent.spec      = dm.spec;
+                    operationEvent.nodes     = yamlDocument.nodeCount();
+                    operationEvent.commit();
+                }
+            }
+        } finally {
+            stats.enter(previous);
         }
     }
 
+    private Document
+    compose(Reader in) {
+
+        Node root = this.documentLoader.load(in).get();
+        this.memoryReport.add(root);
+
+        // The operations do not modify the document, so all lookups can share the flattened maps.
+        @Nullable MergeKeyIndex mergeKeys = this.resolveMergeKeys ? new MergeKeyIndex() : null;
+
+        return new Document() {
+
+            @Override public void
+            processSpec(Spec spec, SpecHandler3 specHandler3, @Nullable Explanation explanation) {
+                SpecParser.processSpec(root, spec, specHandler3, explanation, mergeKeys);
+            }
+
+            @Override public long
+            nodeCount() { return Stats.countNodes(root); }
+        };
+    }
+
+    private Document
+    loadCompact(Reader in) {
+
+        CompactDocument document = this.documentLoader.loadCompact(in).get();
+        this.memoryReport.add(document);
+
+        return new Document() {
+
+            @Override public void
+            processSpec(Spec spec, SpecHandler3 specHandler3, @Nullable Explanation explanation) {
+                document.processSpec(spec, specHandler3, explanation);
+            }
+
+            @Override public long
+            nodeCount() { return document.nodeCount(); }
+        };
+    }
+
     /**
      * Writes the given <var>node</var> to the given {@link OutputStream}, as configured by the {@link
      * #getDumpSettingsBuilder()}
@@ -128,12 +320,17 @@ class YamlFind {
     public void
     dump(Node node, OutputStream out, Charset outCharset) {
 
-        this.dump(
-    		node,
-    		new YamlOutputStreamWriter(out, outCharset) {
-	        	@Override public void processIOException(@Nullable IOException ioe) { throw new RuntimeException(ioe); }
-	        }
-		);
+        Phase previous = this.stats.enter(Phase.DUMP);
+        try {
+            this.dump(
+        		node,
+        		new YamlOutputStreamWriter(this.stats.outputStream(out), outCharset) {
+    	        	@Override public void processIOException(@Nullable IOException ioe) { throw new RuntimeException(ioe); }
+    	        }
+    		);
+        } finally {
+            this.stats.enter(previous);
+        }
     }
 
     /**
@@ -144,8 +341,17 @@ class YamlFind {
      */
 	public void
 	dump(Node node, StreamDataWriter osw) {
-		Dump dump = new Dump(this.dumpSettingsBuilder.build());
+		DumpEvent event = new DumpEvent();
+		event.begin();
+
+		DocumentDumper dump = new DocumentDumper(this.dumpSettingsBuilder.build());
 		dump.dumpNode(node, osw);
+
+		event.end();
+		if (event.shouldCommit()) {
+		    event.nodes = Stats.countNodes(node);
+		    event.commit();
+		}
 	}
 
     public ContentsProcessor<Void>
@@ -162,7 +368,26 @@ class YamlFind {
         		long                                                              crc32,
         		ProducerWhichThrows<? extends InputStream, ? extends IOException> opener
 			) throws IOException {
-            	YamlFind.this.process(new InputStreamReader(inputStream, inCharset));
+            	Stats stats = YamlFind.this.stats;
+
+            	FileEvent event = new FileEvent();
+            	event.begin();
+
+            	stats.beginFile(path);
+            	try {
+            	    YamlFind.this.process(new InputStreamReader(
+            	        YamlFind.this.memoryReport.inputStream(stats.inputStream(inputStream)),
+            	        inCharset
+            	    ));
+            	} finally {
+            	    stats.endFile();
+            	}
+
+            	event.end();
+            	if (event.shouldCommit()) {
+            	    event.path = path;
+            	    event.commit();
+            	}
             	return null;
 			}
         };
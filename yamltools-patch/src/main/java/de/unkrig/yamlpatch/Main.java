@@ -26,6 +26,8 @@
 
 package de.unkrig.yamlpatch;
 
+import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -34,6 +36,15 @@ import java.io.Reader;
 import java.io.StringReader;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
 
 import org.snakeyaml.engine.v2.common.FlowStyle;
 import org.snakeyaml.engine.v2.nodes.Node;
@@ -41,6 +52,8 @@ import org.snakeyaml.engine.v2.nodes.Node;
 import de.unkrig.commons.file.ExceptionHandler;
 import de.unkrig.commons.file.filetransformation.FileTransformations;
 import de.unkrig.commons.file.filetransformation.FileTransformer.Mode;
+import de.unkrig.commons.lang.ExceptionUtil;
+import de.unkrig.commons.nullanalysis.Nullable;
 import de.unkrig.commons.util.CommandLineOptionException;
 import de.unkrig.commons.util.CommandLineOptions;
 import de.unkrig.commons.util.annotation.CommandLineOption;
@@ -49,14 +62,29 @@ import de.unkrig.commons.util.annotation.CommandLineOptionGroup;
 import de.unkrig.yamlpatch.YamlPatch.AddMode;
 import de.unkrig.yamlpatch.YamlPatch.RemoveMode;
 import de.unkrig.yamlpatch.YamlPatch.SetMode;
+import de.unkrig.yamlpatch.YamlPatch.SortOrder;
+import de.unkrig.yamlutil.Daemon;
+import de.unkrig.yamlutil.MemoryReport;
 import de.unkrig.yamlutil.SpecParser;
+import de.unkrig.yamlutil.Stats;
 
 public
 class Main {
 
+    /**
+     * The name of the system property that disables the generated command line parser; see {@link
+     * #parseCommandLine(String[], Main)}.
+     */
+    public static final String REFLECTIVE_PARSER = "yamltools.reflectiveCommandLineParser";
+
 	private Charset         inCharset  = StandardCharsets.UTF_8;
 	private Charset         outCharset = StandardCharsets.UTF_8;
     private boolean         keepOriginals;
+    private int             daemonPort = -1;
+    @Nullable private String script;
+    @Nullable private File  workingDirectory;
+    private Stats           stats      = Stats.NONE;
+    private MemoryReport    memoryReport = MemoryReport.NONE;
     private final YamlPatch yamlPatch  = new YamlPatch();
     { this.yamlPatch.getDumpSettingsBuilder().setDumpComments(true); }
 
@@ -66,11 +94,46 @@ class Main {
     @CommandLineOption public static void
     help() throws IOException {
 
-        CommandLineOptions.printResource(Main.class, "main(String[]).txt", Charset.forName("UTF-8"), System.out);
+        Main.printHelp();
+
+        Daemon.exit(0);
+    }
 
-        System.exit(0);
+    private static void
+    printHelp() throws IOException {
+        CommandLineOptions.printResource(Main.class, "main(String[]).txt", Charset.forName("UTF-8"), System.out);
     }
 
+    /**
+     * Instead of processing documents, listen on the given TCP port (on the loopback interface) and execute the
+     * command lines that the client ("{@code java de.unkrig.yamlutil.Daemon} <var>port</var> <var>arg</var> ...")
+     * sends, which saves the JVM startup for each invocation.
+     * Only clients that can read the token file "{@code ~/.yamltools-daemon-}<var>port</var>" (which is readable only
+     * by the owner of the daemon) are served.
+     */
+    @CommandLineOption public void
+    setDaemon(int port) { this.daemonPort = port; }
+
+    /**
+     * Execute the command lines in the given file (see "Scripts" below), instead of processing documents.
+     */
+    @CommandLineOption public void
+    setScript(String fileName) { this.script = fileName; }
+
+    /**
+     * When done, print the time spent reading, composing, modifying, dumping and writing, and the numbers of
+     * documents, nodes, spec evaluations and bytes in and out, for each file and in total, to STDERR.
+     */
+    @CommandLineOption public void
+    stats() { this.yamlPatch.setStats(this.stats = new Stats()); }
+
+    /**
+     * When done, print an estimate of the heap that the composed documents retained, by node type, comments, marks
+     * and scalar strings, and per MB of input, to STDERR.
+     */
+    @CommandLineOption public void
+    memoryReport() { this.yamlPatch.setMemoryReport(this.memoryReport = new MemoryReport()); }
+
     /**
      * For in-place transformations, keep copies of the originals
      * 
@@ -86,6 +149,60 @@ class Main {
     @CommandLineOption public void
     setInCharset(Charset inCharset) { this.inCharset = inCharset; }
 
+    /**
+     * Store scalar values (including map keys) that occur more than once in a document only once, which reduces the
+     * heap that large documents with many repeated keys take
+     * @main.commandLineOptionGroup Input-Processing
+     */
+    @CommandLineOption public void
+    dedupScalars() { this.yamlPatch.getDocumentLoader().setDeduplicateScalars(true); }
+
+    /**
+     * Don't record the line and column numbers of the nodes, which reduces the heap that the documents take, and the
+     * parse work; however, syntax errors then lack line and column numbers
+     * @main.commandLineOptionGroup Input-Processing
+     */
+    @CommandLineOption public void
+    noMarks() { this.yamlPatch.getDocumentLoader().setUseMarks(false); }
+
+    /**
+     * Let the specs find map entries that are inherited through merge keys, as in "{@code <<: *defaults}". Applies
+     * to all following transformation options; the last segment of a spec, however, always designates an entry of
+     * the map itself. Modifying through an inherited entry first copies that entry into the merging map, so that the
+     * merged map remains unchanged.
+     * @main.commandLineOptionGroup Document-Transformation
+     */
+    @CommandLineOption public void
+    mergeKeys() { this.yamlPatch.setResolveMergeKeys(true); }
+
+    /**
+     * Fail on documents with more than <var>n</var> code points (default 3145728)
+     * @main.commandLineOptionGroup Input-Processing
+     */
+    @CommandLineOption public void
+    setMaxCodePoints(int n) { this.yamlPatch.getDocumentLoader().setMaxCodePoints(n); }
+
+    /**
+     * Fail on documents with collections nested deeper than <var>n</var> levels (default: unlimited)
+     * @main.commandLineOptionGroup Input-Processing
+     */
+    @CommandLineOption public void
+    setMaxDepth(int n) { this.yamlPatch.getDocumentLoader().setMaxDepth(n); }
+
+    /**
+     * Fail on documents with more than <var>n</var> aliases of collections (default 50)
+     * @main.commandLineOptionGroup Input-Processing
+     */
+    @CommandLineOption public void
+    setMaxAliases(int n) { this.yamlPatch.getDocumentLoader().setMaxAliases(n); }
+
+    /**
+     * Fail on documents with more than <var>n</var> scalars and collections (default: unlimited)
+     * @main.commandLineOptionGroup Input-Processing
+     */
+    @CommandLineOption public void
+    setMaxNodes(long n) { this.yamlPatch.getDocumentLoader().setMaxNodes(n); }
+
     /**
      * Output encoding charset (default UTF-8)
      * @main.commandLineOptionGroup Output-Generation
@@ -117,7 +234,13 @@ class Main {
      * @main.commandLineOptionGroup Output-Generation
      */
     @CommandLineOption public void
-    setStripComments() { this.yamlPatch.getDumpSettingsBuilder().setDumpComments(false); }
+    setStripComments() {
+        this.yamlPatch.getDumpSettingsBuilder().setDumpComments(false);
+
+        // No need to parse the comments when they are not dumped.
+        this.yamlPatch.getDocumentLoader().setParseComments(false);
+    }
+
     /**
      * Number of spaces for the indent in the block flow style (default 2)
      * @main.commandLineOptionGroup Output-Generation
@@ -152,7 +275,7 @@ class Main {
     // =============================== End DumpSettingsBuider settings. ===============================
 
     /**
-     * Helper bean for {@link Main#addSet(SetOptions, String, String)}.
+     * Helper bean for {@link Main#addSet(SetOptions, String, String)} and {@link Main#addSetAll(SetOptions, String)}.
      */
     public static
     class SetOptions {
@@ -190,7 +313,90 @@ class Main {
      */
     @CommandLineOption(cardinality = Cardinality.ANY) public void
     addSet(SetOptions setOptions, String spec, String value) throws IOException {
-        this.yamlPatch.addSet(spec, Main.yamlDocumentOrFile(value), setOptions.mode, setOptions.commentOutOriginalEntry, setOptions.prependMap);
+        this.yamlPatch.addSet(spec, Main.yamlDocumentOrFile(value, this.workingDirectory), setOptions.mode, setOptions.commentOutOriginalEntry, setOptions.prependMap);
+    }
+
+    /**
+     * Add or change many map entries at once: Walks the <var>overlay</var> map and the document together, and sets
+     * each leaf value of the overlay, which is much faster than the equivalent series of "{@code --set}" options.
+     * Where the document has a map, and the overlay has a non-empty map under the same key, the overlay map is
+     * applied recursively; all other overlay values are leaf values.
+     * <dl>
+     *   <dt>--existing</dt>
+     *   <dd>Verify that the map entry of each leaf value already exists</dd>
+     *   <dt>--non-existing</dt>
+     *   <dd>Verify that the map entry of each leaf value does not exist already</dd>
+     *   <dt>--comment</dt>
+     *   <dd>Iff this changes an existing map entry, add a comment that displays the original map entry</dd>
+     *   <dt>--prepend-map</dt>
+     *   <dd>Add the new map entries at the beginning (instead of to the end) of their maps</dd>
+     * </dl>
+     *
+     * @param setOptions            [ --existing | --non-existing ] [ --comment ] [ --prepend-map ]
+     * @param overlay               ( <var>yaml-document</var> | {@code @}<var>file-name</var> )
+     * @main.commandLineOptionGroup Document-Transformation
+     */
+    @CommandLineOption(cardinality = Cardinality.ANY) public void
+    addSetAll(SetOptions setOptions, String overlay) throws IOException {
+        this.yamlPatch.addSetAll(Main.yamlDocumentOrFile(overlay, this.workingDirectory), setOptions.mode, setOptions.commentOutOriginalEntry, setOptions.prependMap);
+    }
+
+    /**
+     * Helper bean for {@link Main#addMerge(MergeOptions, String, String)}.
+     */
+    public static
+    class MergeOptions {
+
+        public String by = "name";
+
+        @CommandLineOption public void setBy(String key) { this.by = key; }
+    }
+
+    /**
+     * Merge a sequence of maps into a sequence somewhere in the document, where the maps with equal values of the
+     * "by" entry are considered the same (like the "strategic merge" of Kubernetes): Each element with the same
+     * value as an existing element is applied to that element like with "{@code --set-all}"; all other elements are
+     * appended.
+     * <dl>
+     *   <dt>--by <var>key</var></dt>
+     *   <dd>The key of the map entry that identifies the elements (default "{@code name}")</dd>
+     * </dl>
+     *
+     * @param mergeOptions          [ --by <var>key</var> ]
+     * @param elements              ( <var>yaml-document</var> | {@code @}<var>file-name</var> )
+     * @main.commandLineOptionGroup Document-Transformation
+     */
+    @CommandLineOption(cardinality = Cardinality.ANY) public void
+    addMerge(MergeOptions mergeOptions, String spec, String elements) throws IOException {
+        this.yamlPatch.addMerge(spec, mergeOptions.by, Main.yamlDocumentOrFile(elements, this.workingDirectory));
+    }
+
+    /**
+     * Apply a JSON Patch (RFC 6902), i.e. a sequence of "{@code add}", "{@code remove}", "{@code replace}", "{@code
+     * move}", "{@code copy}" and "{@code test}" operations, whose paths are JSON Pointers (RFC 6901) like "{@code
+     * /spec/containers/0/image}". The operations are applied in one pass, in order; if one of them fails (e.g. a
+     * "{@code test}"), then the command fails with an error that names that operation, and the transformed document
+     * is not written. (The operations are not atomic, so the preceding operations have already been applied to the
+     * document in memory.)
+     *
+     * @param patch                 ( <var>yaml-document</var> | {@code @}<var>file-name</var> )
+     * @main.commandLineOptionGroup Document-Transformation
+     */
+    @CommandLineOption(cardinality = Cardinality.ANY) public void
+    addJsonPatch(String patch) throws IOException {
+        this.yamlPatch.addJsonPatch(Main.yamlDocumentOrFile(patch, this.workingDirectory));
+    }
+
+    /**
+     * Apply a JSON Merge Patch (RFC 7386): The <var>patch</var> map is merged into the document recursively, where
+     * {@code null} values remove map entries, and all other values replace the respective entries.
+     *
+     * @param patch                 ( <var>yaml-document</var> | {@code @}<var>file-name</var> )
+     * @main.commandLineOptionGroup Document-Transformation
+     */
+    @CommandLineOption(cardinality = Cardinality.ANY) public void
+    addMergePatch(String patch) throws IOException {
+        this.yamlPatch.addMergePatch(Main.yamlDocumentOrFile(patch, this.workingDirectory));
     }
 
     /**
@@ -223,6 +429,33 @@ class Main {
         this.yamlPatch.addRemove(spec, removeOptions.mode, removeOptions.commentOutOriginalEntry);
     }
 
+    /**
+     * Helper bean for {@link Main#addUnique(UniqueOptions, String)}.
+     */
+    public static
+    class UniqueOptions {
+
+        public boolean commentOutDuplicates;
+
+        @CommandLineOption public void comment() { this.commentOutDuplicates = true; }
+    }
+
+    /**
+     * Remove the duplicate elements of a sequence, or the duplicate members of a set (or the entries with duplicate
+     * keys of a map); the first occurrence is kept. Takes linear time, even for very long sequences and sets.
+     * <dl>
+     *   <dt>--comment</dt>
+     *   <dd>Add a comment with the removed sequence elements resp. set members</dd>
+     * </dl>
+     *
+     * @param uniqueOptions         [ --comment ]
+     * @main.commandLineOptionGroup Document-Transformation
+     */
+    @CommandLineOption(cardinality = Cardinality.ANY) public void
+    addUnique(UniqueOptions uniqueOptions, String spec) throws IOException {
+        this.yamlPatch.addUnique(spec, uniqueOptions.commentOutDuplicates);
+    }
+
     /**
      * Insert an element into an sequence.
      * 
@@ -231,7 +464,7 @@ class Main {
      */
     @CommandLineOption(cardinality = Cardinality.ANY) public void
     addInsert(String spec, String yamlDocumentOrFile) throws IOException {
-        this.yamlPatch.addInsert(spec, Main.yamlDocumentOrFile(yamlDocumentOrFile));
+        this.yamlPatch.addInsert(spec, Main.yamlDocumentOrFile(yamlDocumentOrFile, this.workingDirectory));
     }
 
     /**
@@ -253,10 +486,16 @@ class Main {
     public static
     class SortOptions {
 
-        public boolean reverse;
+        public boolean          reverse;
+        @Nullable public String by;
+        public SortOrder        order = SortOrder.LEXICAL;
 
-        @CommandLineOption public void reverse() { this.reverse = true; }
+        @CommandLineOption public void                                  reverse()          { this.reverse = true; }
+        @CommandLineOption public void                                  setBy(String spec) { this.by      = spec; }
+        @CommandLineOption(group = NumericXorNatural.class) public void numeric()          { this.order   = SortOrder.NUMERIC; }
+        @CommandLineOption(group = NumericXorNatural.class) public void natural()          { this.order   = SortOrder.NATURAL; }
     }
+    @CommandLineOptionGroup public interface NumericXorNatural {}
 
     /**
      * Add a member to a set.
@@ -281,29 +520,58 @@ class Main {
      *
      * <dl>
      *   <dt>--reverse</dt>
+     *   <dd>
+     *     Reverse the order of the numbers, of the other scalars, and of the collections; the numbers still come first,
+     *     and the elements that lack the "{@code --by}" node still come last
+     *   </dd>
+     *   <dt>--by <var>spec</var></dt>
+     *   <dd>
+     *     Sort by the node that the <var>spec</var> designates within each sequence element resp. map value (e.g.
+     *     "{@code .metadata.name}"); elements that lack that node come last
+     *   </dd>
+     *   <dt>--numeric</dt>
+     *   <dd>
+     *     Compare scalars by their numeric values ("{@code 9}" before "{@code 10}"); the other scalars come after the
+     *     numbers, and before the collections
+     *   </dd>
+     *   <dt>--natural</dt>
+     *   <dd>Compare digit sequences within scalars by their numeric values ("{@code x9}" before "{@code x10}")</dd>
      * </dl>
      * 
-     * @param sortOptions           [ --reverse ]
+     * @param sortOptions           [ --reverse ] [ --by <var>spec</var> ] [ --numeric | --natural ]
      * @main.commandLineOptionGroup Document-Transformation
      */
     @CommandLineOption(cardinality = Cardinality.ANY) public void
     addSort(SortOptions sortOptions, String spec) throws IOException {
-    	this.yamlPatch.addSort(spec, sortOptions.reverse);
+    	this.yamlPatch.addSort(spec, sortOptions.by, sortOptions.order, sortOptions.reverse);
     }
 
     public static Node
     yamlDocumentOrFile(String yamlDocumentOrFile) throws IOException, FileNotFoundException {
+        return Main.yamlDocumentOrFile(yamlDocumentOrFile, null);
+    }
+
+    /**
+     * @param workingDirectory Relevant iff <var>yamlDocumentOrFile</var> designates a file with a relative name;
+     *                         {@code null} means the current working directory
+     */
+    public static Node
+    yamlDocumentOrFile(String yamlDocumentOrFile, @Nullable File workingDirectory)
+    throws IOException, FileNotFoundException {
 
-        try (Reader r = Main.stringOrFileReader(yamlDocumentOrFile)) {
+        try (Reader r = Main.stringOrFileReader(yamlDocumentOrFile, workingDirectory)) {
             return SpecParser.loadYaml(r);
         }
     }
 
     private static Reader
-    stringOrFileReader(String value) throws FileNotFoundException {
+    stringOrFileReader(String value, @Nullable File workingDirectory) throws FileNotFoundException {
         return (
             value.startsWith("@")
-            ? new InputStreamReader(new FileInputStream(value.substring(1)), StandardCharsets.UTF_8)
+            ? new InputStreamReader(
+                new FileInputStream(Daemon.resolve(value.substring(1), workingDirectory)),
+                StandardCharsets.UTF_8
+            )
             : new StringReader(value)
         );
     }
@@ -374,28 +642,251 @@ class Main {
      *   <dt>{@code []}</dt>
      *   <dd>The sequence element after the last existing.</dd>
      * </dl>
+     *
+     * <h2>Scripts</h2>
+     * <p>
+     *   With "{@code --script} <var>file</var>", each line of the <var>file</var> is a command line (options and file
+     *   arguments), and all of them execute in the same JVM. Within the file arguments, "{@code *}", "{@code **}",
+     *   "{@code ?}", "{@code [...]}" and "{@code {...,...}}" are expanded like in a shell. Empty lines and lines
+     *   starting with "{@code #}" are ignored; a line ending with "{@code \}" continues on the next line. Arguments
+     *   are separated by whitespace; single and double quotes work like in a shell.
+     *   "{@code --script}" cannot be combined with other options (because each line is an independent command line);
+     *   put them on the script lines instead.
+     * </p>
      */
     public static void
     main(String[] args) throws IOException, CommandLineOptionException {
+        Main.run(args, null);
+    }
+
+    /**
+     * Equivalent with {@link #main(String[])}, except that relative file names are resolved against the given
+     * <var>workingDirectory</var>.
+     *
+     * @param workingDirectory {@code null} means the current working directory
+     */
+    public static void
+    run(String[] args, @Nullable File workingDirectory) throws IOException, CommandLineOptionException {
 
         // Configure a "Main" object from the command line options.
         Main main = new Main();
-        args = CommandLineOptions.parse(args, main);
+        main.workingDirectory = workingDirectory;
+        String[] remainingArgs = Main.parseCommandLine(args, main);
+
+        if (main.daemonPort != -1) {
+            if (Daemon.isExecuting()) throw new IllegalArgumentException("\"--daemon\" is not allowed on a daemon");
+            Daemon.serve(main.daemonPort, Main::run);
+            return;
+        }
+
+        String script = main.script;
+        if (script != null) {
+            if (remainingArgs.length > 0) {
+                throw new IllegalArgumentException("No arguments allowed after \"--script\"");
+            }
+            if (args.length != 2) {
+                throw new IllegalArgumentException(
+                    "\"--script\" cannot be combined with other options; put them on the script lines instead"
+                );
+            }
+            Main.runScript(script, workingDirectory);
+            return;
+        }
+
+        main.process(remainingArgs);
+    }
+
+    /**
+     * Configures the <var>main</var> object from the command line options, preferably through the {@code
+     * MainCommandLineParser} that the {@code yamltools-apt} annotation processor generated at compile time, which
+     * requires no reflection. The generated parser checks the entire command line before it modifies <var>main</var>,
+     * and {@link CommandLineOptions#parse(String[], Object)} takes over exactly when the command line
+     * <ul>
+     *   <li>
+     *     contains an option that is not spelled exactly "{@code --}<var>name</var>" (e.g. "{@code -}<var>name</var>",
+     *     or an unknown option), or
+     *   </li>
+     *   <li>lacks an option argument, or has one that starts with "{@code -}", or</li>
+     *   <li>has an option argument that cannot be converted (e.g. "{@code --indent x}"), or</li>
+     *   <li>violates an option's or an option group's cardinality (e.g. "{@code --numeric --natural}"), or</li>
+     *   <li>sets the system property "{@value #REFLECTIVE_PARSER}" to {@code true} (for diagnostics).</li>
+     * </ul>
+     * <p>
+     *   Thus, for all valid command lines, both parsers configure <var>main</var> identically, and for invalid command
+     *   lines, the reflective parser reports the error.
+     * </p>
+     *
+     * @return The remaining (non-option) arguments
+     */
+    private static String[]
+    parseCommandLine(String[] args, Main main) throws IOException, CommandLineOptionException {
+
+        String[] result = Boolean.getBoolean(REFLECTIVE_PARSER) ? null : MainCommandLineParser.parse(args, main);
+        return result != null ? result : CommandLineOptions.parse(args, main);
+    }
+
+    private void
+    process(String[] args) throws IOException {
 
         if (args.length == 1 && args[0].startsWith("!")) {
 
             // Parse single command line argument as a JSON document, and transform it to STDOUT.
-            main.yamlPatch.transform(new StringReader(args[0].substring(1)), System.out, main.outCharset);
+            this.stats.beginFile("(command line)");
+            this.yamlPatch.transform(new StringReader(args[0].substring(1)), System.out, this.outCharset);
         } else
         {
+            for (int i = 0; i < args.length; i++) args[i] = Daemon.resolve(args[i], this.workingDirectory);
+
             FileTransformations.transform(
                 args,                                                                                // args
                 true,                                                                                // unixMode
-                main.yamlPatch.fileTransformer(main.inCharset, main.outCharset, main.keepOriginals), // fileTransformer
-                main.yamlPatch.contentsTransformer(main.inCharset, main.outCharset),                 // contentsTransformer
+                this.yamlPatch.fileTransformer(this.inCharset, this.outCharset, this.keepOriginals), // fileTransformer
+                this.yamlPatch.contentsTransformer(this.inCharset, this.outCharset),                 // contentsTransformer
                 Mode.TRANSFORM,                                                                      // mode
                 ExceptionHandler.defaultHandler()                                                    // exceptionHandler
             );
         }
+
+        this.stats.print(System.err);
+        this.memoryReport.print(System.err);
+    }
+
+    /**
+     * Executes each line of the script file as a command line. All lines share the same JVM, and thus the same
+     * caches, e.g. for compiled specs.
+     */
+    private static void
+    runScript(String fileName, @Nullable File workingDirectory) throws IOException, CommandLineOptionException {
+
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(
+            new FileInputStream(Daemon.resolve(fileName, workingDirectory)),
+            StandardCharsets.UTF_8
+        ))) {
+
+            StringBuilder line = new StringBuilder();
+            for (int lineNumber = 1;; lineNumber++) {
+                String physicalLine = br.readLine();
+                if (physicalLine == null) break;
+
+                if (physicalLine.endsWith("\\")) {
+                    line.append(physicalLine, 0, physicalLine.length() - 1).append(' ');
+                    continue;
+                }
+                line.append(physicalLine);
+
+                String l = line.toString().trim();
+                line.setLength(0);
+                if (l.isEmpty() || l.startsWith("#")) continue;
+
+                try {
+
+                    // Configure a new "Main" object from the options on the line.
+                    Main main = new Main();
+                    main.workingDirectory = workingDirectory;
+                    String[] args = Main.parseCommandLine(Main.tokenize(l), main);
+
+                    List<String> expandedArgs = new ArrayList<>();
+                    for (String arg : args) expandedArgs.addAll(Main.expandWildcards(arg, workingDirectory));
+
+                    main.process(expandedArgs.toArray(new String[expandedArgs.size()]));
+                } catch (IOException ioe) {
+                    throw ExceptionUtil.wrap(fileName + ", line " + lineNumber, ioe);
+                } catch (CommandLineOptionException cloe) {
+                    throw ExceptionUtil.wrap(fileName + ", line " + lineNumber, cloe);
+                } catch (RuntimeException re) {
+                    throw ExceptionUtil.wrap(fileName + ", line " + lineNumber, re);
+                }
+            }
+        }
+    }
+
+    /**
+     * Splits a script line into arguments, honoring single quotes, double quotes and backslashes (within double
+     * quotes and outside of quotes).
+     */
+    private static String[]
+    tokenize(String line) {
+
+        List<String>  result = new ArrayList<>();
+        StringBuilder arg    = null;
+        for (int i = 0, n = line.length(); i < n; i++) {
+            char c = line.charAt(i);
+
+            if (Character.isWhitespace(c)) {
+                if (arg != null) {
+                    result.add(arg.toString());
+                    arg = null;
+                }
+                continue;
+            }
+
+            if (arg == null) arg = new StringBuilder();
+
+            if (c == '\'') {
+                int end = line.indexOf('\'', i + 1);
+                if (end == -1) throw new IllegalArgumentException("Unterminated single quote");
+                arg.append(line, i + 1, end);
+                i = end;
+            } else
+            if (c == '"') {
+                for (i++;; i++) {
+                    if (i == n) throw new IllegalArgumentException("Unterminated double quote");
+                    c = line.charAt(i);
+                    if (c == '"') break;
+                    if (c == '\\' && i + 1 < n) c = line.charAt(++i);
+                    arg.append(c);
+                }
+            } else
+            if (c == '\\' && i + 1 < n) {
+                arg.append(line.charAt(++i));
+            } else
+            {
+                arg.append(c);
+            }
+        }
+        if (arg != null) result.add(arg.toString());
+
+        return result.toArray(new String[result.size()]);
+    }
+
+    /**
+     * @return The names of the existing files that match the <var>arg</var> (in lexicographical order), or the
+     *         <var>arg</var> itself iff it contains no wildcards or matches no files
+     */
+    private static List<String>
+    expandWildcards(String arg, @Nullable File workingDirectory) throws IOException {
+
+        int wc = Main.indexOfWildcard(arg);
+        if (wc == -1 || arg.startsWith("!")) return Collections.singletonList(arg);
+
+        // Split the arg into the directory (without wildcards) and the glob pattern.
+        int    slash   = Math.max(arg.lastIndexOf('/', wc), arg.lastIndexOf(File.separatorChar, wc));
+        String dirName = slash == -1 ? "." : slash == 0 ? arg.substring(0, 1) : arg.substring(0, slash);
+        String glob    = arg.substring(slash + 1);
+
+        Path dir = Paths.get(Daemon.resolve(dirName, workingDirectory));
+        if (!Files.isDirectory(dir)) return Collections.singletonList(arg);
+
+        PathMatcher matcher  = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        int         maxDepth = glob.contains("**") ? Integer.MAX_VALUE : glob.split("[/\\\\]").length;
+
+        List<String> result = new ArrayList<>();
+        try (Stream<Path> paths = Files.walk(dir, maxDepth)) {
+            paths
+            .filter(p -> Files.isRegularFile(p) && matcher.matches(dir.relativize(p)))
+            .forEach(p -> result.add(p.toString()));
+        }
+        if (result.isEmpty()) return Collections.singletonList(arg);
+
+        Collections.sort(result);
+        return result;
+    }
+
+    private static int
+    indexOfWildcard(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if ("*?[{".indexOf(s.charAt(i)) != -1) return i;
+        }
+        return -1;
     }
 }
@@ -32,22 +32,25 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.Reader;
 import java.nio.charset.Charset;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.Iterator;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.regex.Pattern;
 
-import org.snakeyaml.engine.v2.api.Dump;
 import org.snakeyaml.engine.v2.api.DumpSettings;
 import org.snakeyaml.engine.v2.api.DumpSettingsBuilder;
-import org.snakeyaml.engine.v2.api.LoadSettings;
 import org.snakeyaml.engine.v2.api.YamlOutputStreamWriter;
-import org.snakeyaml.engine.v2.api.lowlevel.Compose;
 import org.snakeyaml.engine.v2.comments.CommentLine;
 import org.snakeyaml.engine.v2.comments.CommentType;
+import org.snakeyaml.engine.v2.common.FlowStyle;
 import org.snakeyaml.engine.v2.common.ScalarStyle;
-import org.snakeyaml.engine.v2.nodes.AnchorNode;
 import org.snakeyaml.engine.v2.nodes.MappingNode;
 import org.snakeyaml.engine.v2.nodes.Node;
 import org.snakeyaml.engine.v2.nodes.NodeTuple;
@@ -60,13 +63,29 @@ import de.unkrig.commons.file.contentstransformation.ContentsTransformer;
 import de.unkrig.commons.file.filetransformation.FileContentsTransformer;
 import de.unkrig.commons.file.filetransformation.FileTransformer;
 import de.unkrig.commons.lang.AssertionUtil;
+import de.unkrig.commons.lang.ExceptionUtil;
 import de.unkrig.commons.lang.protocol.Transformer;
 import de.unkrig.commons.nullanalysis.Nullable;
+import de.unkrig.yamlutil.DocumentDumper;
+import de.unkrig.yamlutil.DocumentLoader;
+import de.unkrig.yamlutil.Events.ComposeEvent;
+import de.unkrig.yamlutil.Events.DumpEvent;
+import de.unkrig.yamlutil.Events.FileEvent;
+import de.unkrig.yamlutil.Events.OperationEvent;
+import de.unkrig.yamlutil.MemoryReport;
+import de.unkrig.yamlutil.MergeKeyIndex;
+import de.unkrig.yamlutil.NodeKey;
+import de.unkrig.yamlutil.NodePairSet;
+import de.unkrig.yamlutil.NodePairStack;
 import de.unkrig.yamlutil.SpecParser;
+import de.unkrig.yamlutil.SpecParser.Spec;
 import de.unkrig.yamlutil.SpecParser.SpecHandler;
 import de.unkrig.yamlutil.SpecParser.SpecHandler2;
+import de.unkrig.yamlutil.SpecParser.SpecHandler3;
 import de.unkrig.yamlutil.SpecParser.SpecMatchException;
 import de.unkrig.yamlutil.SpecParser.SpecSyntaxException;
+import de.unkrig.yamlutil.Stats;
+import de.unkrig.yamlutil.Stats.Phase;
 
 public
 class YamlPatch {
@@ -75,8 +94,57 @@ class YamlPatch {
         AssertionUtil.enableAssertionsForThisClass();
     }
 
-    private final DumpSettingsBuilder           dumpSettingsBuilder = DumpSettings.builder();
-    private final List<Transformer<Node, Node>> documentModifiers = new ArrayList<>();
+    /**
+     * The nesting depth up to which {@link #compare(Node, Node)} recurses; deeper trees are compared with an explicit
+     * stack.
+     */
+    private static final int MAX_RECURSION_DEPTH = 100;
+
+    /**
+     * The number of node comparisons after which {@link #compare(Node, Node)} starts over, keeping track of the pairs
+     * of collections that it compared, so that shared (aliased) subtrees are compared only once within that
+     * comparison. Notice that nothing is remembered across the comparisons of a sort.
+     */
+    private static final int MAX_UNTRACKED_COMPARISONS = 10000;
+
+    // Results of "compareRecursively()" other than the remaining budget.
+    private static final int LESS = -1, GREATER = -2, TOO_COMPLEX = -3;
+
+    private static final Pattern DECIMAL_NUMBER = Pattern.compile(
+        "[-+]?(?:\\.[0-9]+|[0-9]+(?:\\.[0-9]*)?)(?:[eE][-+]?[0-9]+)?"
+    );
+
+    private final DocumentLoader      documentLoader      = new DocumentLoader();
+    private final DumpSettingsBuilder dumpSettingsBuilder = DumpSettings.builder();
+    private final List<Modifier>      documentModifiers   = new ArrayList<>();
+    private Stats                     stats               = Stats.NONE;
+    private MemoryReport              memoryReport        = MemoryReport.NONE;
+    private boolean                   resolveMergeKeys;
+
+    /**
+     * A document modification, plus the operation and the spec that it was configured with, which are reported in
+     * the {@link OperationEvent}s.
+     */
+    private static
+    class Modifier {
+
+        final String                   operation;
+        final String                   spec;
+        final Transformer<Node, Node> transformer;
+
+        Modifier(String operation, String spec, Transformer<Node, Node> transformer) {
+            this.operation   = operation;
+            this.spec        = spec;
+            this.transformer = transformer;
+        }
+    }
+
+    /**
+     * @return The modifiable {@link DocumentLoader} that will take effect for the next {@link #transform(Reader,
+     *         OutputStream, Charset)} operation
+     */
+    public DocumentLoader
+    getDocumentLoader() { return this.documentLoader; }
 
     /**
      * @return The modifiable {@link DumpSettingsBuilder} that will take effect for the next {@link #transform(Reader,
@@ -86,63 +154,353 @@ class YamlPatch {
     getDumpSettingsBuilder() { return this.dumpSettingsBuilder; }
 
     /**
-     * @see #set(Node, String, Node, SetMode, boolean, boolean)
+     * Configures where the timings and counts of all following operations are recorded; the default is {@link
+     * Stats#NONE}.
+     */
+    public void
+    setStats(Stats stats) { this.stats = stats; }
+
+    /**
+     * Configures where the estimated heap footprints of all following documents are recorded; the default is {@link
+     * MemoryReport#NONE}.
+     */
+    public void
+    setMemoryReport(MemoryReport memoryReport) { this.memoryReport = memoryReport; }
+
+    /**
+     * Whether the specs of all following operations find map entries that are inherited through merge keys ("{@code
+     * <<: *defaults}"). Notice that the last segment of a spec always designates an entry of the map itself, e.g.
+     * "{@code --set .service.timeout=7}" overrides an inherited "{@code timeout}" entry.
+     * <p>
+     *   A modification never modifies a merged map (which other maps may merge as well) through an inherited entry:
+     *   E.g. "{@code --set .service.db.host=h}", where "{@code db}" is inherited, first copies the "{@code db}" entry
+     *   into the "{@code service}" map, and then modifies the copy.
+     * </p>
+     */
+    public void
+    setResolveMergeKeys(boolean value) { this.resolveMergeKeys = value; }
+
+    /**
+     * @see #set(Node, Spec, Node, SetMode, boolean, boolean, Stats, MergeKeyIndex)
      */
     public void
     addSet(String spec, Node value, SetMode mode, boolean commentOutOriginalEntry, boolean prependMap) throws IOException {
-        this.documentModifiers.add(root -> YamlPatch.set(root, spec, value, mode, commentOutOriginalEntry, prependMap));
+        Spec compiledSpec = SpecParser.compile(spec);
+        boolean resolveMergeKeys = this.resolveMergeKeys;
+        this.addModifier("--set", spec, root -> YamlPatch.set(root, compiledSpec, value, mode, commentOutOriginalEntry, prependMap, this.stats, YamlPatch.mergeKeys(resolveMergeKeys, true)));
     }
     public static enum SetMode { ANY, EXISTING, NON_EXISTING }
 
     /**
-     * @see #remove(Node, String, RemoveMode, boolean)
+     * @see #setAll(Node, MappingNode, SetMode, boolean, boolean, Stats, MergeKeyIndex)
+     */
+    public void
+    addSetAll(Node overlay, SetMode mode, boolean commentOutOriginalEntry, boolean prependMap) {
+        Node overlayMap = SpecParser.realNode(overlay);
+        if (!(overlayMap instanceof MappingNode)) {
+            throw new SpecMatchException("Overlay \"" + SpecParser.toString(overlay) + "\" is not a map");
+        }
+        boolean resolveMergeKeys = this.resolveMergeKeys;
+        this.addModifier("--set-all", "", root -> YamlPatch.setAll(root, (MappingNode) overlayMap, mode, commentOutOriginalEntry, prependMap, this.stats, YamlPatch.mergeKeys(resolveMergeKeys, true)));
+    }
+
+    /**
+     * @see #merge(Node, Spec, String, SequenceNode, Stats, MergeKeyIndex)
+     */
+    public void
+    addMerge(String spec, String by, Node elements) throws IOException {
+        Node sequence = SpecParser.realNode(elements);
+        if (!(sequence instanceof SequenceNode)) {
+            throw new SpecMatchException("Merge elements \"" + SpecParser.toString(elements) + "\" are not a sequence");
+        }
+        Spec    compiledSpec     = SpecParser.compile(spec);
+        boolean resolveMergeKeys = this.resolveMergeKeys;
+        this.addModifier("--merge", spec, root -> YamlPatch.merge(root, compiledSpec, by, (SequenceNode) sequence, this.stats, YamlPatch.mergeKeys(resolveMergeKeys, true)));
+    }
+
+    /**
+     * Applies a JSON Patch (RFC 6902), i.e. a sequence of operations like
+     * <pre>
+     * - { op: add,     path: /spec/replicas, value: 3 }
+     * - { op: remove,  path: /spec/containers/0/args/1 }
+     * - { op: replace, path: /metadata/name, value: foo }
+     * - { op: move,    from: /metadata/label, path: /metadata/labels/app }
+     * - { op: copy,    from: /spec/containers/0, path: /spec/containers/- }
+     * - { op: test,    path: /kind, value: Deployment }
+     * </pre>
+     * The JSON Pointers are compiled only once, and the entire patch is applied to each document as one modification.
+     * Iff an operation fails, then a {@link RuntimeException} is thrown, and the preceding operations have already
+     * modified the document.
+     *
+     * @throws SpecSyntaxException The <var>patch</var> is not a sequence of valid operations
+     * @see                        SpecParser#compileJsonPointer(String)
+     */
+    public void
+    addJsonPatch(Node patch) {
+
+        Node operations = SpecParser.realNode(patch);
+        if (!(operations instanceof SequenceNode)) {
+            throw new SpecSyntaxException("JSON patch \"" + SpecParser.toString(patch) + "\" is not a sequence");
+        }
+
+        List<Transformer<Node, Node>> compiledOperations = new ArrayList<>();
+        for (Node operation : ((SequenceNode) operations).getValue()) {
+            int number = compiledOperations.size() + 1;
+            try {
+                Transformer<Node, Node> compiledOperation = this.compileJsonPatchOperation(operation);
+                compiledOperations.add(root -> {
+                    try {
+                        return compiledOperation.transform(root);
+                    } catch (RuntimeException e) {
+                        throw ExceptionUtil.wrap("JSON patch operation #" + number, e);
+                    }
+                });
+            } catch (RuntimeException e) {
+                throw ExceptionUtil.wrap("JSON patch operation #" + number, e);
+            }
+        }
+
+        this.addModifier("--json-patch", "", root -> {
+            for (Transformer<Node, Node> compiledOperation : compiledOperations) root = compiledOperation.transform(root);
+            return root;
+        });
+    }
+
+    private Transformer<Node, Node>
+    compileJsonPatchOperation(Node operation) {
+
+        Node o = SpecParser.realNode(operation);
+        if (!(o instanceof MappingNode)) {
+            throw new SpecSyntaxException("Operation \"" + SpecParser.toString(operation) + "\" is not a map");
+        }
+        MappingNode map = (MappingNode) o;
+
+        String  op               = YamlPatch.stringMember(map, "op");
+        String  path             = YamlPatch.stringMember(map, "path");
+        Spec    spec             = SpecParser.compileJsonPointer(path);
+        boolean resolveMergeKeys = this.resolveMergeKeys;
+
+        switch (op) {
+
+        case "add":
+            Node addValue = YamlPatch.member(map, "value");
+            return root -> YamlPatch.jsonPatchAdd(root, spec, SpecParser.copy(addValue), this.stats, YamlPatch.mergeKeys(resolveMergeKeys, true));
+
+        case "remove":
+            if (path.isEmpty()) throw new SpecSyntaxException("Cannot remove the document");
+            return root -> YamlPatch.remove(root, spec, RemoveMode.EXISTING, false, this.stats, YamlPatch.mergeKeys(resolveMergeKeys, true));
+
+        case "replace":
+            Node replaceValue = YamlPatch.member(map, "value");
+            if (path.isEmpty()) return root -> SpecParser.copy(replaceValue);
+            return root -> YamlPatch.set(root, spec, SpecParser.copy(replaceValue), SetMode.EXISTING, false, false, this.stats, YamlPatch.mergeKeys(resolveMergeKeys, true));
+
+        case "move":
+            String from = YamlPatch.stringMember(map, "from");
+            if (path.startsWith(from + "/")) {
+                throw new SpecSyntaxException("Cannot move \"" + from + "\" into one of its children");
+            }
+            Spec moveFromSpec = SpecParser.compileJsonPointer(from);
+            if (path.equals(from)) {
+
+                // Nothing to move, but the "from" location must exist nevertheless.
+                return root -> {
+                    YamlPatch.get(root, moveFromSpec, this.stats, YamlPatch.mergeKeys(resolveMergeKeys, false));
+                    return root;
+                };
+            }
+            return root -> {
+                Node value = YamlPatch.get(root, moveFromSpec, this.stats, YamlPatch.mergeKeys(resolveMergeKeys, false));
+                root = YamlPatch.remove(root, moveFromSpec, RemoveMode.EXISTING, false, this.stats, YamlPatch.mergeKeys(resolveMergeKeys, true));
+                return YamlPatch.jsonPatchAdd(root, spec, value, this.stats, YamlPatch.mergeKeys(resolveMergeKeys, true));
+            };
+
+        case "copy":
+            Spec copyFromSpec = SpecParser.compileJsonPointer(YamlPatch.stringMember(map, "from"));
+            return root -> {
+                Node value = YamlPatch.get(root, copyFromSpec, this.stats, YamlPatch.mergeKeys(resolveMergeKeys, false));
+                return YamlPatch.jsonPatchAdd(root, spec, SpecParser.copy(value), this.stats, YamlPatch.mergeKeys(resolveMergeKeys, true));
+            };
+
+        case "test":
+            Node testValue = YamlPatch.member(map, "value");
+            return root -> {
+                Node value = YamlPatch.get(root, spec, this.stats, YamlPatch.mergeKeys(resolveMergeKeys, false));
+                if (!SpecParser.equals(value, testValue)) {
+                    throw new SpecMatchException(
+                        "Test failed: \""
+                        + SpecParser.toString(value)
+                        + "\" does not equal \""
+                        + SpecParser.toString(testValue)
+                        + "\""
+                    );
+                }
+                return root;
+            };
+
+        default:
+            throw new SpecSyntaxException("Unknown operation \"" + op + "\"");
+        }
+    }
+
+    /**
+     * Applies a JSON Merge Patch (RFC 7386): The entries of the <var>patch</var> map are merged into the document map
+     * recursively, where {@code null} values remove map entries, and all other values (scalars and sequences)
+     * replace the respective entries. A <var>patch</var> that is not a map replaces the entire document.
+     *
+     * @see #mergePatch(Node, Node)
+     */
+    public void
+    addMergePatch(Node patch) {
+        this.addModifier("--merge-patch", "", root -> YamlPatch.mergePatch(root, patch));
+    }
+
+    /**
+     * @see #remove(Node, Spec, RemoveMode, boolean, Stats, MergeKeyIndex)
      */
     public void
     addRemove(String spec, RemoveMode mode, boolean commentOutOriginalEntry) throws IOException {
-        this.documentModifiers.add(root -> YamlPatch.remove(root, spec, mode, commentOutOriginalEntry));
+        Spec compiledSpec = SpecParser.compile(spec);
+        boolean resolveMergeKeys = this.resolveMergeKeys;
+        this.addModifier("--remove", spec, root -> YamlPatch.remove(root, compiledSpec, mode, commentOutOriginalEntry, this.stats, YamlPatch.mergeKeys(resolveMergeKeys, true)));
     }
     public static enum RemoveMode { ANY, EXISTING }
 
     /**
-     * @see #insert(Node, String, Node)
+     * @see #unique(Node, Spec, boolean, Stats, MergeKeyIndex)
+     */
+    public void
+    addUnique(String spec, boolean commentOutDuplicates) throws IOException {
+        Spec compiledSpec = SpecParser.compile(spec);
+        boolean resolveMergeKeys = this.resolveMergeKeys;
+        this.addModifier("--unique", spec, root -> YamlPatch.unique(root, compiledSpec, commentOutDuplicates, this.stats, YamlPatch.mergeKeys(resolveMergeKeys, true)));
+    }
+
+    /**
+     * @see #insert(Node, Spec, Node, Stats, MergeKeyIndex)
      */
     public void
     addInsert(String spec, Node sequenceElement) throws IOException {
-        this.documentModifiers.add(root -> YamlPatch.insert(root, spec, sequenceElement));
+        Spec compiledSpec = SpecParser.compile(spec);
+        boolean resolveMergeKeys = this.resolveMergeKeys;
+        this.addModifier("--insert", spec, root -> YamlPatch.insert(root, compiledSpec, sequenceElement, this.stats, YamlPatch.mergeKeys(resolveMergeKeys, true)));
     }
 
     /**
-     * @see #add(Node, String, AddMode, boolean)
+     * @see #add(Node, Spec, AddMode, boolean, Stats, MergeKeyIndex)
      */
     public void
     addAdd(String spec, AddMode mode, boolean prependSet) throws IOException {
-        this.documentModifiers.add(root -> YamlPatch.add(root, spec, mode, prependSet));
+        Spec compiledSpec = SpecParser.compile(spec);
+        boolean resolveMergeKeys = this.resolveMergeKeys;
+        this.addModifier("--add", spec, root -> YamlPatch.add(root, compiledSpec, mode, prependSet, this.stats, YamlPatch.mergeKeys(resolveMergeKeys, true)));
     }
     public static enum AddMode { ANY, NON_EXISTING }
 
     
     /**
-     * @see #sort(Node, String, boolean)
+     * @see #sort(Node, Spec, Spec, SortOrder, boolean, Stats, MergeKeyIndex)
      */
     public void
     addSort(String spec, boolean reverse) throws IOException {
-    	this.documentModifiers.add(root -> YamlPatch.sort(root, spec, reverse));
+    	this.addSort(spec, null, SortOrder.LEXICAL, reverse);
+    }
+
+    /**
+     * @param by {@code null} means to sort by the sequence elements resp. the map keys themselves
+     * @see      #sort(Node, Spec, Spec, SortOrder, boolean, Stats, MergeKeyIndex)
+     */
+    public void
+    addSort(String spec, @Nullable String by, SortOrder order, boolean reverse) throws IOException {
+    	Spec    compiledSpec     = SpecParser.compile(spec);
+    	Spec    compiledBy       = by == null ? null : SpecParser.compile(by);
+    	boolean resolveMergeKeys = this.resolveMergeKeys;
+    	this.addModifier("--sort", spec, root -> YamlPatch.sort(root, compiledSpec, compiledBy, order, reverse, this.stats, YamlPatch.mergeKeys(resolveMergeKeys, true)));
+    }
+
+    /**
+     * How scalar sort keys compare: {@code LEXICAL} by their string values, {@code NUMERIC} by their numeric values
+     * (non-numeric scalars come after all numbers, and before all collections), {@code NATURAL} like {@code LEXICAL}, except that embedded
+     * digit sequences compare by their numeric values ("{@code x9}" before "{@code x10}").
+     */
+    public static enum SortOrder { LEXICAL, NUMERIC, NATURAL }
+
+    /**
+     * @param modify Whether the spec designates a node to modify, so that the inherited entries that it goes through
+     *               must first be copied into the merging maps
+     * @return       A fresh {@link MergeKeyIndex} for each modification, because the preceding modifications may have
+     *               changed the merged maps; it is cheap until the first lookup
+     * @see          MergeKeyIndex#setCopyInheritedEntries(boolean)
+     */
+    @Nullable private static MergeKeyIndex
+    mergeKeys(boolean resolveMergeKeys, boolean modify) {
+        return resolveMergeKeys ? new MergeKeyIndex().setCopyInheritedEntries(modify) : null;
+    }
+
+    private void
+    addModifier(String operation, String spec, Transformer<Node, Node> transformer) {
+        this.documentModifiers.add(new Modifier(operation, spec, transformer));
     }
 
     public void
     transform(Reader in, OutputStream out, Charset outCharset) throws IOException {
 
-        // Read the document from the reader.
-        LoadSettings settings = LoadSettings.builder().setAllowDuplicateKeys(true).setParseComments(true).build();
+        Stats stats    = this.stats;
+        Phase previous = stats.enter(Phase.COMPOSE);
+        try {
+
+            ComposeEvent event = new ComposeEvent();
+            event.begin();
+
+            // Read the document from the reader.
+            Node yamlDocument = this.documentLoader.load(in).get();
+
+            event.end();
+            if (event.shouldCommit()) {
+                event.nodes = Stats.countNodes(yamlDocument);
+                event.commit();
+            }
+
+            stats.enter(null);
+            stats.countDocument(yamlDocument);
+            this.memoryReport.add(yamlDocument);
 
-        Node yamlDocument = new Compose(settings).composeReader(in).get();
+            stats.enter(Phase.PROCESS);
+            yamlDocument = this.modify(yamlDocument);
 
-        for (Transformer<Node, Node> dm : YamlPatch.this.documentModifiers) {
-            yamlDocument = dm.transform(yamlDocument);
+            // Write the document to the output stream.
+            stats.enter(Phase.DUMP);
+            this.dump(yamlDocument, stats.outputStream(out), outCharset);
+        } finally {
+            stats.enter(previous);
         }
+    }
+
+    /**
+     * Applies all the configured modifications to the given <var>document</var>, in the order in which they were
+     * added.
+     *
+     * @return The modified document, which may or may not be the same object as <var>document</var>
+     */
+    public Node
+    modify(Node document) {
+
+        for (Modifier dm : this.documentModifiers) {
+            OperationEvent event = new OperationEvent();
+            event.begin();
+
+            document = dm.transformer.transform(document);
 
-        // Write the document to the output stream.
-        this.dump(yamlDocument, out, outCharset);
+            event.end();
+            if (event.shouldCommit()) {
+                event.operation = dm.operation;
+                event.spec      = dm.spec;
+                event.nodes     = Stats.countNodes(document);
+                event.commit();
+            }
+        }
+
+        return document;
     }
 
     /**
@@ -154,7 +512,10 @@ class YamlPatch {
     public void
     dump(Node node, OutputStream out, Charset outCharset) {
 
-        Dump dump = new Dump(this.dumpSettingsBuilder.build());
+        DumpEvent event = new DumpEvent();
+        event.begin();
+
+        DocumentDumper dump = new DocumentDumper(this.dumpSettingsBuilder.build());
 
         dump.dumpNode(node, new YamlOutputStreamWriter(out, outCharset) {
    
@@ -163,6 +524,12 @@ class YamlPatch {
                 throw new RuntimeException(ioe);
             }
         });
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.nodes = Stats.countNodes(node);
+            event.commit();
+        }
     }
 
     public ContentsTransformer
@@ -172,9 +539,28 @@ class YamlPatch {
             
             @Override public void
             transform(String path, InputStream is, OutputStream os) throws IOException {
-                InputStreamReader r = new InputStreamReader(is, inCharset);
-                
-                YamlPatch.this.transform(r, os, outCharset);
+                Stats stats = YamlPatch.this.stats;
+
+                FileEvent event = new FileEvent();
+                event.begin();
+
+                stats.beginFile(path);
+                try {
+                    InputStreamReader r = new InputStreamReader(
+                        YamlPatch.this.memoryReport.inputStream(stats.inputStream(is)),
+                        inCharset
+                    );
+
+                    YamlPatch.this.transform(r, os, outCharset);
+                } finally {
+                    stats.endFile();
+                }
+
+                event.end();
+                if (event.shouldCommit()) {
+                    event.path = path;
+                    event.commit();
+                }
             }
         };
     }
@@ -198,11 +584,22 @@ class YamlPatch {
      *                                range
      * @throws SpecMatchException     <var>mode</var> is {@code NON_EXISTING}, and the specified sequence index does
      *                                not equal the sequence size
-     * @throws SpecMatchException     See {@link #processSpec(Node, String, SpecHandler)}
-     * @throws SpecSyntaxException    See {@link #processSpec(Node, String, SpecHandler)}
+     * @throws SpecMatchException     See {@link SpecParser#processSpec(Node, Spec, SpecHandler)}
+     * @throws SpecSyntaxException    See {@link SpecParser#processSpec(Node, Spec, SpecHandler)}
      */
     private static Node
-    set(Node root, String spec, Node value, SetMode mode, boolean commentOutOriginalEntry, boolean prependMap) {
+    set(
+        Node                    root,
+        Spec                    spec,
+        Node                    value,
+        SetMode                 mode,
+        boolean                 commentOutOriginalEntry,
+        boolean                 prependMap,
+        Stats                   stats,
+        @Nullable MergeKeyIndex mergeKeys
+    ) {
+
+        stats.countEvaluatedSpec();
 
         SpecParser.processSpec(root, spec, new SpecHandler() {
 
@@ -247,11 +644,461 @@ class YamlPatch {
                     }
                 }
             }
-        });
+        }, mergeKeys);
         
         return root;
     }
 
+    /**
+     * Sets all leaf values of the <var>overlay</var> in the document, as if each were set with {@link #set(Node, Spec,
+     * Node, SetMode, boolean, boolean, Stats, MergeKeyIndex)}, but walks the overlay and the document together in one
+     * traversal, instead of navigating from the root for each value. Where the document has a map, and the overlay
+     * has a non-empty map under the same key, the overlay map is applied to the document map; all other overlay
+     * values (scalars, sequences, and maps without a map counterpart in the document) are leaf values. Scalars that
+     * are set to an equal value (with the same tag) are left alone, so that their comments are retained.
+     * <p>
+     *   Iff <var>mergeKeys</var> is not {@code null}, then an overlay map also applies to a map that the document map
+     *   inherits through a merge key: The inherited entry is first copied into the document map, like {@link
+     *   #set(Node, Spec, Node, SetMode, boolean, boolean, Stats, MergeKeyIndex)} does for the intermediate segments
+     *   of its spec. Leaf values, however, are always set as entries of the document map itself.
+     * </p>
+     *
+     * @param mode                    Is checked for each leaf value
+     * @param commentOutOriginalEntry Iff this changes an existing map entry, add a comment that displays the original
+     *                                map entry
+     * @param prependMap              Add the new map entries at the beginning (instead of to the end) of their maps
+     * @throws SpecMatchException     The document is not a map
+     * @throws SpecMatchException     <var>mode</var> is {@code EXISTING}, and a leaf entry does not exist
+     * @throws SpecMatchException     <var>mode</var> is {@code NON_EXISTING}, and a leaf entry does exist
+     */
+    private static Node
+    setAll(
+        Node                    root,
+        MappingNode             overlay,
+        SetMode                 mode,
+        boolean                 commentOutOriginalEntry,
+        boolean                 prependMap,
+        Stats                   stats,
+        @Nullable MergeKeyIndex mergeKeys
+    ) {
+
+        stats.countEvaluatedSpec();
+
+        Node rootMap = SpecParser.realNode(root);
+        if (!(rootMap instanceof MappingNode)) throw new SpecMatchException("Document is not a map");
+
+        YamlPatch.setAll((MappingNode) rootMap, overlay, mode, commentOutOriginalEntry, prependMap, mergeKeys);
+
+        return root;
+    }
+
+    private static void
+    setAll(
+        MappingNode             rootMap,
+        MappingNode             overlay,
+        SetMode                 mode,
+        boolean                 commentOutOriginalEntry,
+        boolean                 prependMap,
+        @Nullable MergeKeyIndex mergeKeys
+    ) {
+
+        // The pairs of document maps and overlay maps that are yet to merge.
+        ArrayDeque<MappingNode> stack = new ArrayDeque<>();
+        stack.push(overlay);
+        stack.push(rootMap);
+
+        while (!stack.isEmpty()) {
+            MappingNode map        = stack.pop();
+            MappingNode overlayMap = stack.pop();
+
+            // Index the scalar keys of the document map, so that each overlay entry is found in constant time. The
+            // positions beyond the end of the map designate the entries that are yet to add.
+            List<NodeTuple>      entries = map.getValue();
+            List<NodeTuple>      added   = new ArrayList<>();
+            Map<String, Integer> index   = new HashMap<>();
+            for (int i = 0; i < entries.size(); i++) {
+                Node key = SpecParser.realNode(entries.get(i).getKeyNode());
+                if (key instanceof ScalarNode) index.putIfAbsent(((ScalarNode) key).getValue(), i);
+            }
+
+            // Copy the inherited maps that the overlay applies to into the document map, before any entries are
+            // added.
+            if (mergeKeys != null) {
+                for (NodeTuple overlayEntry : overlayMap.getValue()) {
+                    Node key = overlayEntry.getKeyNode();
+                    Node v   = SpecParser.realNode(overlayEntry.getValueNode());
+                    if (
+                        !(v instanceof MappingNode)
+                        || ((MappingNode) v).getValue().isEmpty()
+                        || YamlPatch.indexOf(key, entries, added, index) != -1
+                    ) continue;
+
+                    // Notice that "get()" also copies an inherited scalar or sequence, which is then replaced.
+                    Node inherited = mergeKeys.get(map, key);
+                    if (inherited == null) continue;
+                    key = SpecParser.realNode(key);
+                    if (key instanceof ScalarNode) index.put(((ScalarNode) key).getValue(), entries.size() - 1);
+                }
+            }
+
+            for (NodeTuple overlayEntry : overlayMap.getValue()) {
+                Node key   = overlayEntry.getKeyNode();
+                Node value = overlayEntry.getValueNode();
+
+                int i = YamlPatch.indexOf(key, entries, added, index);
+                if (i == -1) {
+                    if (mode == SetMode.EXISTING) {
+                        throw new SpecMatchException("Entry key \"" + SpecParser.toString(key) + "\" does not exist");
+                    }
+
+                    // The overlay is shared by all documents, and the entry comments may be added to the key.
+                    key = SpecParser.copy(key);
+                    if (key instanceof ScalarNode) index.put(((ScalarNode) key).getValue(), entries.size() + added.size());
+                    added.add(new NodeTuple(key, SpecParser.copy(value)));
+                    continue;
+                }
+
+                if (i >= entries.size()) {
+
+                    // Duplicate key in the overlay.
+                    added.set(
+                        i - entries.size(),
+                        new NodeTuple(added.get(i - entries.size()).getKeyNode(), SpecParser.copy(value))
+                    );
+                    continue;
+                }
+
+                Node previous = SpecParser.realNode(entries.get(i).getValueNode());
+                Node v        = SpecParser.realNode(value);
+                if (previous instanceof MappingNode && v instanceof MappingNode && !((MappingNode) v).getValue().isEmpty()) {
+                    stack.push((MappingNode) v);
+                    stack.push((MappingNode) previous);
+                    continue;
+                }
+
+                if (mode == SetMode.NON_EXISTING) {
+                    throw new SpecMatchException("Entry key \"" + SpecParser.toString(key) + "\" already exists");
+                }
+
+                // Keep an unchanged scalar, and thus its comments.
+                if (
+                    previous instanceof ScalarNode
+                    && v instanceof ScalarNode
+                    && previous.getTag().equals(v.getTag())
+                    && ((ScalarNode) previous).getValue().equals(((ScalarNode) v).getValue())
+                ) continue;
+
+                // Keep the document's key, so that its comments are retained. The overlay is shared by all documents,
+                // so set a copy of its value.
+                YamlPatch.replace(map, i, entries.get(i).getKeyNode(), SpecParser.copy(value), commentOutOriginalEntry);
+            }
+
+            entries.addAll(prependMap ? 0 : entries.size(), added);
+        }
+    }
+
+    /**
+     * @return The position of the entry with the given <var>key</var> in the concatenation of <var>entries</var> and
+     *         <var>added</var>, or -1
+     */
+    private static int
+    indexOf(Node key, List<NodeTuple> entries, List<NodeTuple> added, Map<String, Integer> scalarKeyIndex) {
+
+        key = SpecParser.realNode(key);
+        if (key instanceof ScalarNode) {
+            Integer result = scalarKeyIndex.get(((ScalarNode) key).getValue());
+            return result == null ? -1 : result;
+        }
+
+        for (int i = 0; i < entries.size(); i++) {
+            if (SpecParser.equals(key, entries.get(i).getKeyNode())) return i;
+        }
+        for (int i = 0; i < added.size(); i++) {
+            if (SpecParser.equals(key, added.get(i).getKeyNode())) return entries.size() + i;
+        }
+        return -1;
+    }
+
+    /**
+     * Merges the <var>elements</var> into a sequence of maps somewhere in a YAML document, where elements with equal
+     * values of the entry with key <var>by</var> are considered the same (like the "strategic merge" of Kubernetes):
+     * Each element that has the same key value as an element of the sequence is {@link #setAll(Node, MappingNode,
+     * SetMode, boolean, boolean, Stats, MergeKeyIndex) applied} to that element; all other elements are appended, and iff several of them
+     * have the same key value, then the last one wins.
+     * <p>
+     *   The sequence elements are indexed by the structural hash of their key values, so the merge takes O(n + m)
+     *   instead of O(n * m) time.
+     * </p>
+     *
+     * @param spec                 Specifies the sequence within the document
+     * @throws SpecMatchException  The <var>spec</var> specifies a scalar or a map
+     * @throws SpecMatchException  See {@link SpecParser#processSpec(Node, Spec, SpecHandler)}
+     * @throws SpecSyntaxException See {@link SpecParser#processSpec(Node, Spec, SpecHandler)}
+     */
+    private static Node
+    merge(Node root, Spec spec, String by, SequenceNode elements, Stats stats, @Nullable MergeKeyIndex mergeKeys) {
+
+        stats.countEvaluatedSpec();
+
+        SpecParser.processSpec(root, spec, new SpecHandler2() {
+
+            @Override public void
+            handleScalar(ScalarNode scalar) {
+                throw new SpecMatchException("Cannot merge into scalar \"" + SpecParser.toString(scalar) + "\", only into sequences");
+            }
+
+            @Override public void
+            handleSequence(SequenceNode sequence) {
+                YamlPatch.merge(sequence, by, elements.getValue(), mergeKeys);
+            }
+
+            @Override public void
+            handleMap(MappingNode map) {
+                throw new SpecMatchException("Cannot merge into map \"" + SpecParser.toString(map) + "\", only into sequences");
+            }
+        }, mergeKeys);
+
+        return root;
+    }
+
+    private static void
+    merge(SequenceNode sequence, String by, List<Node> elements, @Nullable MergeKeyIndex mergeKeys) {
+
+        List<Node>            sequenceElements = sequence.getValue();
+        int                   size             = sequenceElements.size();
+        Map<NodeKey, Integer> index            = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            Node key = YamlPatch.keyValue(sequenceElements.get(i), by);
+            if (key != null) index.putIfAbsent(new NodeKey(key), i);
+        }
+
+        // The elements to merge are shared by all documents, so append and set copies of them.
+        for (Node element : elements) {
+            Node key = YamlPatch.keyValue(element, by);
+            if (key == null) {
+                sequenceElements.add(SpecParser.copy(element));
+                continue;
+            }
+
+            Integer i = index.putIfAbsent(new NodeKey(key), sequenceElements.size());
+            if (i == null) {
+                sequenceElements.add(SpecParser.copy(element));
+            } else
+            if (i >= size) {
+                sequenceElements.set(i, SpecParser.copy(element));
+            } else
+            {
+                YamlPatch.setAll(
+                    (MappingNode) SpecParser.realNode(sequenceElements.get(i)),
+                    (MappingNode) SpecParser.realNode(element),
+                    SetMode.ANY,
+                    false,
+                    false,
+                    mergeKeys
+                );
+            }
+        }
+    }
+
+    /**
+     * @return The value of the entry with key <var>by</var>, or {@code null} iff the <var>element</var> is not a map
+     *         or has no such entry
+     */
+    @Nullable private static Node
+    keyValue(Node element, String by) {
+
+        element = SpecParser.realNode(element);
+        if (!(element instanceof MappingNode)) return null;
+
+        for (NodeTuple nt : ((MappingNode) element).getValue()) {
+            Node key = SpecParser.realNode(nt.getKeyNode());
+            if (key instanceof ScalarNode && by.equals(((ScalarNode) key).getValue())) return nt.getValueNode();
+        }
+        return null;
+    }
+
+    /**
+     * @return The value of the entry with key <var>name</var> of the <var>operation</var>
+     * @throws SpecSyntaxException The <var>operation</var> lacks the entry
+     */
+    private static Node
+    member(MappingNode operation, String name) {
+        Node result = YamlPatch.keyValue(operation, name);
+        if (result == null) throw new SpecSyntaxException("Operation lacks member \"" + name + "\"");
+        return result;
+    }
+
+    /**
+     * @return The string value of the entry with key <var>name</var> of the <var>operation</var>
+     * @throws SpecSyntaxException The <var>operation</var> lacks the entry, or its value is not a scalar
+     */
+    private static String
+    stringMember(MappingNode operation, String name) {
+        Node result = SpecParser.realNode(YamlPatch.member(operation, name));
+        if (!(result instanceof ScalarNode)) {
+            throw new SpecSyntaxException("Member \"" + name + "\" of operation is not a scalar");
+        }
+        return ((ScalarNode) result).getValue();
+    }
+
+    /**
+     * @return The node designated by the <var>spec</var>
+     * @throws SpecMatchException See {@link SpecParser#processSpec(Node, Spec, SpecHandler3)}
+     */
+    private static Node
+    get(Node root, Spec spec, Stats stats, @Nullable MergeKeyIndex mergeKeys) {
+        Node[] result = new Node[1];
+        stats.countEvaluatedSpec();
+        SpecParser.processSpec(root, spec, (SpecHandler3) node -> { result[0] = node; }, null, mergeKeys);
+        assert result[0] != null;
+        return result[0];
+    }
+
+    /**
+     * The "{@code add}" operation of JSON Patch: Adds or replaces a map entry, or inserts a sequence element.
+     *
+     * @param spec                 Specifies the map entry or sequence element within the document; the empty spec
+     *                             replaces the entire document
+     * @throws SpecMatchException  The specified sequence index is out of range (0 ... sequenceSize)
+     * @throws SpecMatchException  See {@link SpecParser#processSpec(Node, Spec, SpecHandler)}
+     */
+    private static Node
+    jsonPatchAdd(Node root, Spec spec, Node value, Stats stats, @Nullable MergeKeyIndex mergeKeys) {
+
+        if (spec.toString().isEmpty()) return value;
+
+        stats.countEvaluatedSpec();
+
+        SpecParser.processSpec(root, spec, new SpecHandler() {
+
+            @Override public void
+            handleMapEntry(MappingNode map, Node key) {
+                YamlPatch.put(map, key, value, false, false);
+            }
+
+            @Override public void
+            handleSequenceElement(SequenceNode sequence, int index) {
+                if (index < 0 || index > sequence.getValue().size()) throw new SpecMatchException("Sequence index " + index + " is out of range");
+                sequence.getValue().add(index, value);
+            }
+        }, mergeKeys);
+
+        return root;
+    }
+
+    /**
+     * Merges the <var>patch</var> into the document as described by RFC 7386. Like {@link #setAll(Node, MappingNode,
+     * SetMode, boolean, boolean, Stats, MergeKeyIndex)}, walks the patch and the document together in one traversal, and leaves unchanged
+     * scalars (and thus their comments) alone.
+     *
+     * @return The modified document, or a copy of the <var>patch</var> iff it is not a map
+     */
+    private static Node
+    mergePatch(Node root, Node patch) {
+
+        Node patchRoot = SpecParser.realNode(patch);
+        if (!(patchRoot instanceof MappingNode)) return SpecParser.copy(patch);
+
+        Node rootMap = SpecParser.realNode(root);
+        if (!(rootMap instanceof MappingNode)) root = rootMap = new MappingNode(Tag.MAP, new ArrayList<>(), FlowStyle.AUTO);
+
+        // The pairs of document maps and patch maps that are yet to merge.
+        ArrayDeque<MappingNode> stack = new ArrayDeque<>();
+        stack.push((MappingNode) patchRoot);
+        stack.push((MappingNode) rootMap);
+
+        while (!stack.isEmpty()) {
+            MappingNode map      = stack.pop();
+            MappingNode patchMap = stack.pop();
+
+            // As in "setAll()", the positions beyond the end of the map designate the entries that are yet to add.
+            List<NodeTuple>      entries = map.getValue();
+            List<NodeTuple>      added   = new ArrayList<>();
+            Map<String, Integer> index   = new HashMap<>();
+            BitSet               removed = new BitSet();
+            for (int i = 0; i < entries.size(); i++) {
+                Node key = SpecParser.realNode(entries.get(i).getKeyNode());
+                if (key instanceof ScalarNode) index.putIfAbsent(((ScalarNode) key).getValue(), i);
+            }
+
+            for (NodeTuple patchEntry : patchMap.getValue()) {
+                Node key   = patchEntry.getKeyNode();
+                Node value = SpecParser.realNode(patchEntry.getValueNode());
+
+                int       i        = YamlPatch.indexOf(key, entries, added, index);
+                NodeTuple existing = (
+                    i == -1 || removed.get(i) ? null :
+                    i < entries.size()        ? entries.get(i) :
+                    added.get(i - entries.size())
+                );
+
+                if (value instanceof ScalarNode && value.getTag().equals(Tag.NULL)) {
+                    if (existing != null) removed.set(i);
+                    continue;
+                }
+
+                Node previous = existing == null ? null : SpecParser.realNode(existing.getValueNode());
+                Node newValue;
+                if (value instanceof MappingNode) {
+                    if (previous instanceof MappingNode) {
+                        stack.push((MappingNode) value);
+                        stack.push((MappingNode) previous);
+                        continue;
+                    }
+                    MappingNode newMap = new MappingNode(Tag.MAP, new ArrayList<>(), ((MappingNode) value).getFlowStyle());
+                    stack.push((MappingNode) value);
+                    stack.push(newMap);
+                    newValue = newMap;
+                } else
+                if (
+                    previous instanceof ScalarNode
+                    && value instanceof ScalarNode
+                    && previous.getTag().equals(value.getTag())
+                    && ((ScalarNode) previous).getValue().equals(((ScalarNode) value).getValue())
+                ) {
+                    continue;
+                } else
+                {
+
+                    // The patch is shared by all documents, so don't put its nodes into the document.
+                    newValue = SpecParser.copy(value);
+                }
+
+                if (i == -1) {
+                    key = SpecParser.copy(key);
+                    if (key instanceof ScalarNode) index.put(((ScalarNode) key).getValue(), entries.size() + added.size());
+                    added.add(new NodeTuple(key, newValue));
+                } else
+                if (i < entries.size()) {
+
+                    // Keep the document's key, so that its comments are retained.
+                    YamlPatch.replace(map, i, entries.get(i).getKeyNode(), newValue, false);
+                    removed.clear(i);
+                } else
+                {
+                    added.set(i - entries.size(), new NodeTuple(added.get(i - entries.size()).getKeyNode(), newValue));
+                    removed.clear(i);
+                }
+            }
+
+            if (removed.isEmpty()) {
+                entries.addAll(added);
+            } else {
+                List<NodeTuple> remaining = new ArrayList<>(entries.size() + added.size());
+                for (int i = 0; i < entries.size(); i++) {
+                    if (!removed.get(i)) remaining.add(entries.get(i));
+                }
+                for (int i = 0; i < added.size(); i++) {
+                    if (!removed.get(entries.size() + i)) remaining.add(added.get(i));
+                }
+                entries.clear();
+                entries.addAll(remaining);
+            }
+        }
+
+        return root;
+    }
+
     /**
      * Removes one map entry or sequence element somewhere in a YAML document.
      * 
@@ -262,11 +1109,13 @@ class YamlPatch {
      * @throws SpecMatchException     <var>mode</var> is {@code EXISTING}, and the specified map key does not exist
      * @throws SpecMatchException     The specified sequence index is out of range (-sequenceSize ... sequenceSize-1)
      * @throws SpecMatchException     <var>mode</var> is {@code EXISTING}, and the specified set member does not exist
-     * @throws SpecMatchException     See {@link #processSpec(Node, String, SpecHandler)}
-     * @throws SpecSyntaxException    See {@link #processSpec(Node, String, SpecHandler)}
+     * @throws SpecMatchException     See {@link SpecParser#processSpec(Node, Spec, SpecHandler)}
+     * @throws SpecSyntaxException    See {@link SpecParser#processSpec(Node, Spec, SpecHandler)}
      */
     private static Node
-    remove(Node root, String spec, RemoveMode mode, boolean commentOutOriginalEntry) {
+    remove(Node root, Spec spec, RemoveMode mode, boolean commentOutOriginalEntry, Stats stats, @Nullable MergeKeyIndex mergeKeys) {
+        
+        stats.countEvaluatedSpec();
         
         SpecParser.processSpec(root, spec, new SpecHandler() {
 
@@ -282,22 +1131,99 @@ class YamlPatch {
                 if (index < 0 || index >= sequence.getValue().size()) throw new SpecMatchException("Sequence index " + index + " is out of range");
                 YamlPatch.remove(sequence, index, commentOutOriginalEntry);
             }
-        });
+        }, mergeKeys);
+
+        return root;
+    }
+
+    /**
+     * Removes the duplicate elements of a sequence, or the entries with duplicate keys of a map (typically a set),
+     * somewhere in a YAML document. The first occurrence (and its comments) is kept. The elements resp. keys are
+     * indexed by their {@link NodeKey structural hash}, so this takes O(n) instead of O(n*n) time.
+     *
+     * @param spec                 Specifies the sequence or map within the document
+     * @param commentOutDuplicates Add an end comment to the sequence resp. map that displays the removed elements
+     *                             resp. entries
+     * @throws SpecMatchException  The <var>spec</var> specifies a scalar
+     * @throws SpecMatchException  See {@link SpecParser#processSpec(Node, Spec, SpecHandler)}
+     * @throws SpecSyntaxException See {@link SpecParser#processSpec(Node, Spec, SpecHandler)}
+     */
+    private static Node
+    unique(Node root, Spec spec, boolean commentOutDuplicates, Stats stats, @Nullable MergeKeyIndex mergeKeys) {
+
+        stats.countEvaluatedSpec();
+
+        SpecParser.processSpec(root, spec, new SpecHandler2() {
+
+            @Override public void
+            handleScalar(ScalarNode scalar) {
+                throw new SpecMatchException("Cannot remove duplicates from scalar \"" + SpecParser.toString(scalar) + "\", only from sequences and maps");
+            }
+
+            @Override public void
+            handleSequence(SequenceNode sequence) {
+                List<Node> duplicates = YamlPatch.unique(sequence.getValue(), element -> element);
+                if (commentOutDuplicates && !duplicates.isEmpty()) {
+
+                    List<CommentLine> ecs = sequence.getEndComments();
+                    if (ecs == null) sequence.setEndComments((ecs = new ArrayList<CommentLine>()));
+
+                    YamlPatch.addNodeAsComments(new SequenceNode(Tag.SEQ, duplicates, sequence.getFlowStyle()), ecs);
+                }
+            }
+
+            @Override public void
+            handleMap(MappingNode map) {
+                List<NodeTuple> duplicates = YamlPatch.unique(map.getValue(), NodeTuple::getKeyNode);
+                if (commentOutDuplicates && !duplicates.isEmpty()) {
+
+                    List<CommentLine> ecs = map.getEndComments();
+                    if (ecs == null) map.setEndComments((ecs = new ArrayList<CommentLine>()));
+
+                    YamlPatch.addNodeAsComments(new MappingNode(Tag.MAP, duplicates, map.getFlowStyle()), ecs);
+                }
+            }
+        }, mergeKeys);
 
         return root;
     }
 
+    /**
+     * Removes the <var>elements</var> with duplicate keys in place, keeping the first occurrence of each key.
+     *
+     * @return The removed elements
+     */
+    private static <T> List<T>
+    unique(List<T> elements, Function<T, Node> key) {
+
+        Set<NodeKey> seen       = new HashSet<>();
+        List<T>      duplicates = new ArrayList<>();
+        int          size       = 0;
+        for (T element : elements) {
+            if (seen.add(new NodeKey(key.apply(element)))) {
+                elements.set(size++, element);
+            } else {
+                duplicates.add(element);
+            }
+        }
+        elements.subList(size, elements.size()).clear();
+
+        return duplicates;
+    }
+
     /**
      * Inserts an element into, or adds at the the end of a sequence somewhere in a YAML document.
      *
      * @param spec                 Specifies the sequence element within the document
      * @throws SpecMatchException  The <var>spec</var> specified an map (and not an sequence)
      * @throws SpecMatchException  The specified sequence index is out of range (-sequenceSize ... sequenceSize)
-     * @throws SpecMatchException  See {@link #processSpec(Node, String, SpecHandler)}
-     * @throws SpecSyntaxException See {@link #processSpec(Node, String, SpecHandler)}
+     * @throws SpecMatchException  See {@link SpecParser#processSpec(Node, Spec, SpecHandler)}
+     * @throws SpecSyntaxException See {@link SpecParser#processSpec(Node, Spec, SpecHandler)}
      */
     private static Node
-    insert(Node root, String spec, Node sequenceElement) {
+    insert(Node root, Spec spec, Node sequenceElement, Stats stats, @Nullable MergeKeyIndex mergeKeys) {
+
+        stats.countEvaluatedSpec();
 
         SpecParser.processSpec(root, spec, new SpecHandler() {
 
@@ -311,7 +1237,7 @@ class YamlPatch {
                 if (index < 0 || index > sequence.getValue().size()) throw new SpecMatchException("Sequence index " + index + " is out of range");
                 sequence.getValue().add(index, sequenceElement);
             }
-        });
+        }, mergeKeys);
         return root;
     }
 
@@ -322,11 +1248,13 @@ class YamlPatch {
      * @param spec                 Specifies the set within the document and the value to add
      * @param prependSet           Add the member at the beginning of the set (instead of to the end)
      * @throws SpecMatchException  The <var>spec</var> specified a sequence (and not a set or a map)
-     * @throws SpecMatchException  See {@link #processSpec(Node, String, SpecHandler)}
-     * @throws SpecSyntaxException See {@link #processSpec(Node, String, SpecHandler)}
+     * @throws SpecMatchException  See {@link SpecParser#processSpec(Node, Spec, SpecHandler)}
+     * @throws SpecSyntaxException See {@link SpecParser#processSpec(Node, Spec, SpecHandler)}
      */
     private static Node
-    add(Node root, String spec, AddMode mode, boolean prependSet) {
+    add(Node root, Spec spec, AddMode mode, boolean prependSet, Stats stats, @Nullable MergeKeyIndex mergeKeys) {
+
+        stats.countEvaluatedSpec();
 
         SpecParser.processSpec(root, spec, new SpecHandler() {
 
@@ -352,17 +1280,36 @@ class YamlPatch {
             handleSequenceElement(SequenceNode sequence, int index) {
                 throw new SpecMatchException("Cannot add to sequence; use INSERT instead");
             }
-        });
+        }, mergeKeys);
         return root;
     }
 
     /**
-     * Sorts the elements of a sequences, or the value tuples of a mapping by key
+     * Sorts the elements of a sequences, or the value tuples of a mapping by key. The sort key of each element resp.
+     * tuple is extracted and parsed only once, before the (stable) sort; elements that lack the <var>by</var> entry
+     * come after all others.
      *
-     * @param spec Specifies the map or sequence within the document
+     * @param spec    Specifies the map or sequence within the document
+     * @param reverse Reverses the order of the numbers, of the other scalars, and of the collections; the numbers still
+     *                come first, and the missing keys still come last
+     * @param by      Specifies the sort key within each sequence element resp. map value; {@code null} means to sort
+     *                by the sequence elements resp. the map keys themselves
      */
     private static Node
-    sort(Node root, String spec, boolean reverse) {
+    sort(
+        Node                    root,
+        Spec                    spec,
+        @Nullable Spec          by,
+        SortOrder               order,
+        boolean                 reverse,
+        Stats                   stats,
+        @Nullable MergeKeyIndex mergeKeys
+    ) {
+
+        stats.countEvaluatedSpec();
+
+        // Evaluating the sort keys must not copy inherited entries.
+        @Nullable MergeKeyIndex byMergeKeys = mergeKeys == null ? null : new MergeKeyIndex();
 
         SpecParser.processSpec(root, spec, new SpecHandler2() {
 
@@ -373,19 +1320,22 @@ class YamlPatch {
 
 			@Override public void
 			handleSequence(SequenceNode sequence) {
-				YamlPatch.sort(sequence, reverse);
+				YamlPatch.sort(sequence.getValue(), element -> element, by, order, reverse, stats, byMergeKeys);
 			}
 
 			@Override public void
 			handleMap(MappingNode map) {
-				YamlPatch.sort(map, reverse);
+				YamlPatch.sort(
+					map.getValue(),
+					by == null ? NodeTuple::getKeyNode : NodeTuple::getValueNode,
+					by,
+					order,
+					reverse,
+					stats,
+					byMergeKeys
+				);
 			}
-
-			@Override public void
-			handleAnchor(AnchorNode anchor) {
-				throw new SpecSyntaxException("Cannot sort anchor \"" + SpecParser.toString(anchor) + "\", only sequences and maps");
-			}
-        });
+        }, mergeKeys);
 
         return root;
     }
@@ -403,16 +1353,7 @@ class YamlPatch {
         for (int index = 0; index < entries.size(); index++) {
             NodeTuple nt = entries.get(index);
             if (SpecParser.equals(key, nt.getKeyNode())) {
-                Node result = nt.getValueNode();
-                if (commentOutOriginalEntry) {
-
-                    List<CommentLine> bcs = key.getBlockComments();
-                    if (bcs == null) key.setBlockComments((bcs = new ArrayList<CommentLine>()));
-
-                    YamlPatch.addNodeAsComments(new MappingNode(Tag.MAP, List.of(nt), map.getFlowStyle()), bcs);
-                }
-                entries.set(index, new NodeTuple(key, value));
-                return result;
+                return YamlPatch.replace(map, index, key, value, commentOutOriginalEntry);
             }
         }
         if (prependMap) {
@@ -424,75 +1365,345 @@ class YamlPatch {
     }
 
     /**
-     * Sorts the value tuples of a {@link MappingNode} by key.
+     * Replaces the <var>index</var>th entry of the <var>map</var>.
+     *
+     * @param commentOutOriginalEntry Add a block comment to the <var>key</var> that displays the original map entry
+     * @return                        The previous value
      */
-    private static void
-    sort(MappingNode mappingNode, boolean reverse) {
-    	mappingNode.getValue().sort((a, b) -> reverse ? compare(b.getKeyNode(), a.getKeyNode()) : compare(a.getKeyNode(), b.getKeyNode()));
-    }
+    private static Node
+    replace(MappingNode map, int index, Node key, Node value, boolean commentOutOriginalEntry) {
 
-    /**
-     * Sorts the elements of a {@link SequenceNode}.
-     */
-    private static void
-    sort(SequenceNode sequenceNode, boolean reverse) {
-    	sequenceNode.getValue().sort((a, b) -> reverse ? compare(b, a) : compare(a, b));
+        List<NodeTuple> entries = map.getValue();
+        NodeTuple       nt      = entries.get(index);
+        if (commentOutOriginalEntry) {
+
+            List<CommentLine> bcs = key.getBlockComments();
+            if (bcs == null) key.setBlockComments((bcs = new ArrayList<CommentLine>()));
+
+            YamlPatch.addNodeAsComments(new MappingNode(Tag.MAP, List.of(nt), map.getFlowStyle()), bcs);
+        }
+        entries.set(index, new NodeTuple(key, value));
+        return nt.getValueNode();
     }
 
+	/**
+	 * Sorts the elements of a sequence, or the tuples of a map.
+	 *
+	 * @param sortNode Maps each element to the node that the <var>by</var> spec is applied to
+	 */
+	private static <T> void
+	sort(
+		List<T>                 elements,
+		Function<T, Node>       sortNode,
+		@Nullable Spec          by,
+		SortOrder               order,
+		boolean                 reverse,
+		Stats                   stats,
+		@Nullable MergeKeyIndex mergeKeys
+	) {
+
+		List<SortKey<T>> keys = new ArrayList<>(elements.size());
+		for (T element : elements) {
+			Node node = sortNode.apply(element);
+			if (by != null) {
+				try {
+					node = YamlPatch.get(node, by, stats, mergeKeys);
+				} catch (SpecMatchException sme) {
+					node = null;
+				}
+			}
+			keys.add(new SortKey<>(element, node, order));
+		}
+
+		keys.sort((a, b) -> a.compareTo(b, reverse));
+
+		for (int i = 0; i < elements.size(); i++) elements.set(i, keys.get(i).element);
+	}
+
+	/**
+	 * The sort key of a sequence element or map tuple: A number, a string, or (for collections) a node, which are
+	 * extracted and parsed only once, so that the comparisons during the sort are cheap.
+	 */
+	private static final
+	class SortKey<T> {
+
+		/**
+		 * Numbers (only with {@link SortOrder#NUMERIC}) come first, then the other scalars, then sequences, then maps,
+		 * then missing keys.
+		 */
+		private static final int NUMBER = 0, SCALAR = 1, SEQUENCE = 2, MAPPING = 3, MISSING = 4;
+
+		final T                  element;
+		private final int        rank;
+		private double           number;
+		@Nullable private String string;
+		@Nullable private Node   node;
+
+		SortKey(T element, @Nullable Node node, SortOrder order) {
+			this.element = element;
+
+			if (node == null) {
+				this.rank = MISSING;
+				return;
+			}
+
+			node = SpecParser.realNode(node);
+			if (!(node instanceof ScalarNode)) {
+				this.rank = node instanceof SequenceNode ? SEQUENCE : MAPPING;
+				this.node = node;
+				return;
+			}
+
+			String value = ((ScalarNode) node).getValue();
+			if (order == SortOrder.NUMERIC) {
+				double number;
+				try {
+					number = YamlPatch.parseNumber(value);
+				} catch (NumberFormatException nfe) {
+					number = Double.NaN;
+				}
+				if (!Double.isNaN(number)) {
+					this.rank   = NUMBER;
+					this.number = number;
+					return;
+				}
+			}
+
+			this.rank   = SCALAR;
+			this.string = order == SortOrder.NATURAL ? YamlPatch.naturalSortKey(value) : value;
+		}
+
+		/**
+		 * @param reverse Reverses the order of keys of the same rank only
+		 */
+		int
+		compareTo(SortKey<T> that, boolean reverse) {
+
+			if (this.rank != that.rank) return this.rank < that.rank ? -1 : 1;
+
+			int result = this.compareValues(that);
+			return reverse ? -result : result;
+		}
+
+		private int
+		compareValues(SortKey<T> that) {
+
+			if (this.rank == NUMBER) return Double.compare(this.number, that.number);
+
+			String s1 = this.string, s2 = that.string;
+			if (s1 != null && s2 != null) return s1.compareTo(s2);
+
+			Node n1 = this.node, n2 = that.node;
+			if (n1 != null && n2 != null) return YamlPatch.compare(n1, n2);
+
+			return 0;
+		}
+	}
+
+	/**
+	 * Parses the number formats of the YAML core schema: Decimal integers and floats, "{@code 0x}" and "{@code 0o}"
+	 * integers, "{@code .inf}" and "{@code .nan}".
+	 *
+	 * @throws NumberFormatException The <var>value</var> is not a number
+	 */
+	private static double
+	parseNumber(String value) {
+
+		if (DECIMAL_NUMBER.matcher(value).matches()) return Double.parseDouble(value);
+
+		switch (value.toLowerCase()) {
+		case ".inf":  case "+.inf": return Double.POSITIVE_INFINITY;
+		case "-.inf":               return Double.NEGATIVE_INFINITY;
+		case ".nan":                return Double.NaN;
+		}
+
+		if (value.startsWith("0x")) return Long.parseLong(value.substring(2), 16);
+		if (value.startsWith("0o")) return Long.parseLong(value.substring(2), 8);
+
+		throw new NumberFormatException(value);
+	}
+
+	/**
+	 * @return A string that, compared with {@link String#compareTo(String)}, orders like the <var>value</var> in
+	 *         "natural" order: Each digit sequence is replaced with "{@code 0}", the number of its significant digits,
+	 *         and the significant digits, so that shorter numbers come first, and numbers of equal length compare
+	 *         digit by digit
+	 */
+	private static String
+	naturalSortKey(String value) {
+
+		StringBuilder sb = new StringBuilder(value.length() + 8);
+		for (int i = 0, n = value.length(); i < n;) {
+			char c = value.charAt(i);
+			if (c < '0' || c > '9') {
+				sb.append(c);
+				i++;
+				continue;
+			}
+
+			while (i < n && value.charAt(i) == '0') i++;
+			int significant = i;
+			while (i < n && value.charAt(i) >= '0' && value.charAt(i) <= '9') i++;
+
+			sb.append('0').append((char) (i - significant)).append(value, significant, i);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Compares two nodes: Nodes of different types by type, scalars by value, collections element by element (and,
+	 * iff all elements are equal, by size). Anchors are transparent, and identical nodes (e.g. through an alias) are
+	 * equal.
+	 */
 	private static int
 	compare(Node a, Node b) {
 
+		// Most trees are small and shallow, and are compared recursively, without any allocation.
+		int result = YamlPatch.compareRecursively(a, b, 1, MAX_UNTRACKED_COMPARISONS);
+		return (
+			result == LESS        ? -1 :
+			result == GREATER     ? 1 :
+			result == TOO_COMPLEX ? YamlPatch.compareIteratively(a, b) :
+			0
+		);
+	}
+
+	/**
+	 * @return The remaining <var>budget</var> iff the trees are equal, {@link #LESS}, {@link #GREATER}, or {@link
+	 *         #TOO_COMPLEX} iff the comparison would recurse deeper than {@link #MAX_RECURSION_DEPTH}, or take more
+	 *         than <var>budget</var> node comparisons
+	 */
+	private static int
+	compareRecursively(Node a, Node b, int depth, int budget) {
+
+		if (depth > MAX_RECURSION_DEPTH || --budget < 0) return TOO_COMPLEX;
+
+		a = SpecParser.realNode(a);
+		b = SpecParser.realNode(b);
+
 		NodeType nodeTypeA = a.getNodeType();
 		NodeType nodeTypeB = b.getNodeType();
-		if (nodeTypeA != nodeTypeB) return nodeTypeA.ordinal() - nodeTypeB.ordinal();
-		
+		if (nodeTypeA != nodeTypeB) return nodeTypeA.ordinal() < nodeTypeB.ordinal() ? LESS : GREATER;
+
+		if (a == b) return budget;
+
+		int sizeA, sizeB;
 		switch (nodeTypeA) {
-		case SCALAR:   return compare((ScalarNode)   a, (ScalarNode)   b); 
-		case SEQUENCE: return compare((SequenceNode) a, (SequenceNode) b); 
-		case MAPPING:  return compare((MappingNode)  a, (MappingNode)  b); 
-		case ANCHOR:   return compare((AnchorNode)   a, (AnchorNode)   b); 
+		case SCALAR:
+			int result = ((ScalarNode) a).getValue().compareTo(((ScalarNode) b).getValue());
+			return result < 0 ? LESS : result > 0 ? GREATER : budget;
+		case SEQUENCE:
+			{
+				List<Node> elementsA = ((SequenceNode) a).getValue();
+				List<Node> elementsB = ((SequenceNode) b).getValue();
+				sizeA = elementsA.size();
+				sizeB = elementsB.size();
+				for (int i = 0, n = Math.min(sizeA, sizeB); i < n; i++) {
+					budget = YamlPatch.compareRecursively(elementsA.get(i), elementsB.get(i), depth + 1, budget);
+					if (budget < 0) return budget;
+				}
+			}
+			break;
+		case MAPPING:
+			{
+				List<NodeTuple> tuplesA = ((MappingNode) a).getValue();
+				List<NodeTuple> tuplesB = ((MappingNode) b).getValue();
+				sizeA = tuplesA.size();
+				sizeB = tuplesB.size();
+				for (int i = 0, n = Math.min(sizeA, sizeB); i < n; i++) {
+					NodeTuple tupleA = tuplesA.get(i), tupleB = tuplesB.get(i);
+					budget = YamlPatch.compareRecursively(tupleA.getKeyNode(), tupleB.getKeyNode(), depth + 1, budget);
+					if (budget < 0) return budget;
+					budget = YamlPatch.compareRecursively(
+						tupleA.getValueNode(), tupleB.getValueNode(), depth + 1, budget
+					);
+					if (budget < 0) return budget;
+				}
+			}
+			break;
 		default:
 			throw new AssertionError(nodeTypeA);
 		}
-	}
 
-	private static int
-	compare(ScalarNode scalarA, ScalarNode scalarB) {
-		return scalarA.getValue().compareTo(scalarB.getValue());
+		// All common elements are equal, so the shorter collection is considered "less than" the longer one.
+		return sizeA < sizeB ? LESS : sizeA > sizeB ? GREATER : budget;
 	}
 
+	/**
+	 * Compares two nodes like {@link #compare(Node, Node)}, but uses an explicit stack rather than recursion, so that
+	 * arbitrarily deeply nested nodes can be compared. Each pair of collections is compared only once per invocation, so
+	 * that shared (aliased) subtrees are not compared again and again, and recursive structures can be compared.
+	 */
 	private static int
-	compare(SequenceNode sequenceA, SequenceNode sequenceB) {
-		return compare(sequenceA.getValue(), sequenceB.getValue(), (elementA, elementB) -> compare(elementA, elementB));
-	}
+	compareIteratively(Node a, Node b) {
+
+		// The pairs of nodes that are yet to compare, and (as entries without nodes) the results of the size
+		// comparisons of the enclosing collections, which take effect iff all their elements are equal.
+		NodePairStack stack = new NodePairStack();
+
+		// The pairs of collections that were already compared, or are being compared.
+		NodePairSet visited = new NodePairSet();
+
+		for (;;) {
+			a = SpecParser.realNode(a);
+			b = SpecParser.realNode(b);
+
+			NodeType nodeTypeA = a.getNodeType();
+			NodeType nodeTypeB = b.getNodeType();
+			if (nodeTypeA != nodeTypeB) return nodeTypeA.ordinal() - nodeTypeB.ordinal();
+
+			// Identical nodes (e.g. through an alias) are equal.
+			if (a != b) switch (nodeTypeA) {
+			case SCALAR:
+				int result = ((ScalarNode) a).getValue().compareTo(((ScalarNode) b).getValue());
+				if (result != 0) return result;
+				break;
+			case SEQUENCE:
+				if (!visited.add(a, b)) break; // Compared before, or being compared (recursive structure).
+				{
+					List<Node> elementsA = ((SequenceNode) a).getValue();
+					List<Node> elementsB = ((SequenceNode) b).getValue();
+					int n = push(elementsA.size(), elementsB.size(), stack);
+					for (int i = n - 1; i >= 0; i--) stack.push(elementsA.get(i), elementsB.get(i), 0);
+				}
+				break;
+			case MAPPING:
+				if (!visited.add(a, b)) break; // Compared before, or being compared (recursive structure).
+				{
+					List<NodeTuple> tuplesA = ((MappingNode) a).getValue();
+					List<NodeTuple> tuplesB = ((MappingNode) b).getValue();
+					int n = push(tuplesA.size(), tuplesB.size(), stack);
+					for (int i = n - 1; i >= 0; i--) {
+						NodeTuple tupleA = tuplesA.get(i), tupleB = tuplesB.get(i);
+						stack.push(tupleA.getValueNode(), tupleB.getValueNode(), 0);
+						stack.push(tupleA.getKeyNode(), tupleB.getKeyNode(), 0);
+					}
+				}
+				break;
+			default:
+				throw new AssertionError(nodeTypeA);
+			}
 
-	private static int
-	compare(MappingNode mapA, MappingNode mapB) {
-		return compare(mapA.getValue(), mapB.getValue(), (tupleA, tupleB) -> {
-			int result = compare(tupleA.getKeyNode(), tupleB.getKeyNode());
-			if (result != 0) return result;
-			return compare(tupleA.getValueNode(), tupleB.getValueNode());
-		});
-	}
+			if (stack.isEmpty()) return 0;
 
-	private static int
-	compare(AnchorNode anchorA, AnchorNode anchorB) {
-		return compare(anchorA.getRealNode(), anchorB.getRealNode());
+			stack.pop();
+			Node first = stack.first(), second = stack.second();
+			if (first == null || second == null) return stack.value();
+			a = first;
+			b = second;
+		}
 	}
 
 	/**
-	 * Compares two {@link List}s element by element. Iff all elements are equal, but the lengths are not, then the
-	 * shorter list is considered "less than" the longer list.
+	 * Iff two collections have different sizes, pushes the result of their size comparison, so that it takes effect
+	 * iff all of their common elements are equal: The shorter collection is considered "less than" the longer one.
+	 *
+	 * @return The number of elements that the two collections have in common
 	 */
-	private static <T> int
-	compare(List<T> listA, List<T> listB, Comparator<T> comparator) {
-		for (Iterator<T> iteratorA = listA.iterator(), iteratorB = listB.iterator();;) {
-			if (!iteratorA.hasNext()) return iteratorB.hasNext() ? -1 : 0;
-			if (!iteratorB.hasNext()) return 1;
-			
-			int result = comparator.compare(iteratorA.next(), iteratorB.next());
-			if (result != 0) return result;
-		}
+	private static int
+	push(int sizeA, int sizeB, NodePairStack stack) {
+		if (sizeA != sizeB) stack.push(null, null, sizeA < sizeB ? -1 : 1);
+		return Math.min(sizeA, sizeB);
 	}
 
     /**
@@ -0,0 +1,188 @@
+
+/*
+ * yamltools-patch - A command-line tool for modifying YAML documents
+ *
+ * Copyright (c) 2023, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.yamlpatch.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.unkrig.yamlpatch.Main;
+import de.unkrig.yamlpatch.MainCommandLineParser;
+
+public
+class TestMain {
+
+    private File dir;
+
+    @Before public void
+    setUp() throws IOException {
+        this.dir = Files.createTempDirectory("yamlpatch").toFile();
+        TestMain.write(new File(this.dir, "in/a.yaml"), "k: 1\n");
+        TestMain.write(new File(this.dir, "in/b.yaml"), "k: 2\n");
+        TestMain.write(new File(this.dir, "in/c.txt"),  "k: 3\n");
+        new File(this.dir, "out").mkdir();
+    }
+
+    @Test public void
+    testScriptQuoting() throws Exception {
+
+        this.runScript(
+            ""
+            + "# Comment\n"
+            + "\n"
+            + "--set .s1 'single \"quoted\"' --set .s2 \"double \\\"quoted\\\" \\\\\" \\\n"
+            + "    --set .s3 un\\ quoted in/a.yaml out/a.yaml\n"
+        );
+
+        Assert.assertEquals(
+            "k: 1\ns1: single \"quoted\"\ns2: double \"quoted\" \\\ns3: un quoted\n",
+            TestMain.read(new File(this.dir, "out/a.yaml"))
+        );
+    }
+
+    @Test public void
+    testScriptWildcards() throws Exception {
+
+        this.runScript("--set .x y 'in/*.yaml' out\n");
+
+        Assert.assertEquals("k: 1\nx: y\n", TestMain.read(new File(this.dir, "out/a.yaml")));
+        Assert.assertEquals("k: 2\nx: y\n", TestMain.read(new File(this.dir, "out/b.yaml")));
+        Assert.assertFalse(new File(this.dir, "out/c.txt").exists());
+    }
+
+    @Test public void
+    testScriptFailingLine() throws Exception {
+
+        try {
+            this.runScript(
+                ""
+                + "--set .x 1 in/a.yaml out/a.yaml\n"
+                + "--set .x 2 'unterminated in/b.yaml out/b.yaml\n"
+                + "--set .x 3 in/c.txt out/c.txt\n"
+            );
+            Assert.fail();
+        } catch (IllegalArgumentException iae) {
+            Assert.assertEquals("script.txt, line 2: Unterminated single quote", iae.getMessage());
+        }
+
+        // The lines before the failing line were executed, the lines after it were not.
+        Assert.assertEquals("k: 1\nx: 1\n", TestMain.read(new File(this.dir, "out/a.yaml")));
+        Assert.assertFalse(new File(this.dir, "out/b.yaml").exists());
+        Assert.assertFalse(new File(this.dir, "out/c.txt").exists());
+    }
+
+    @Test public void
+    testScriptWithOtherOptions() throws Exception {
+
+        TestMain.write(new File(this.dir, "script.txt"), "--set .x y in/a.yaml out/a.yaml\n");
+        try {
+            Main.run(new String[] { "--keep", "--script", "script.txt" }, this.dir);
+            Assert.fail();
+        } catch (IllegalArgumentException iae) {
+            Assert.assertTrue(iae.getMessage(), iae.getMessage().contains("cannot be combined with other options"));
+        }
+        Assert.assertFalse(new File(this.dir, "out/a.yaml").exists());
+    }
+
+    @Test public void
+    testGeneratedAndReflectiveParsersAgree() throws Exception {
+
+        TestMain.write(
+            new File(this.dir, "in/d.yaml"),
+            "# Comment\nk: 1\ns: [10, 9, 10, 1]\nl: [{n: b}, {n: a}]\nm: {x: 1, y: 2}\n"
+        );
+
+        String[][] commandLines = {
+            { "--set", ".k", "2" },
+            { "--set", "--non-existing", ".z", "0", "--remove", "--existing", ".m.x" },
+            { "--sort", "--numeric", "--reverse", ".s", "--unique", ".s" },
+            { "--sort", "--by", ".n", ".l", "--indent", "4", "--width", "20" },
+            { "--strip-comments", "--out-charset", "UTF-16", "--merge-patch", "{\"m\": {\"y\": null}}" },
+            { "--json-patch", "[{\"op\": \"add\", \"path\": \"/s/-\", \"value\": 11}]", "--keep" },
+        };
+
+        for (String[] commandLine : commandLines) {
+
+            // Verify that the generated parser handles the command line at all (and does not fall back).
+            Assert.assertNotNull(String.join(" ", commandLine), MainCommandLineParser.parse(commandLine, new Main()));
+
+            Assert.assertEquals(
+                String.join(" ", commandLine),
+                this.patch(commandLine, false),
+                this.patch(commandLine, true)
+            );
+        }
+    }
+
+    /**
+     * Runs {@code yamlpatch} with the given options on "{@code in/d.yaml}".
+     *
+     * @param reflective Whether to use the reflective (instead of the generated) command line parser
+     * @return           The output
+     */
+    private String
+    patch(String[] options, boolean reflective) throws Exception {
+
+        String[] args = Arrays.copyOf(options, options.length + 2);
+        args[options.length]     = "in/d.yaml";
+        args[options.length + 1] = "out/d.yaml";
+
+        System.setProperty(Main.REFLECTIVE_PARSER, Boolean.toString(reflective));
+        try {
+            Main.run(args, this.dir);
+        } finally {
+            System.clearProperty(Main.REFLECTIVE_PARSER);
+        }
+
+        byte[] result = Files.readAllBytes(new File(this.dir, "out/d.yaml").toPath());
+        Assert.assertTrue(new File(this.dir, "out/d.yaml").delete());
+        return new String(result, StandardCharsets.ISO_8859_1);
+    }
+
+    private void
+    runScript(String script) throws Exception {
+        TestMain.write(new File(this.dir, "script.txt"), script);
+        Main.run(new String[] { "--script", "script.txt" }, this.dir);
+    }
+
+    private static void
+    write(File file, String contents) throws IOException {
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String
+    read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+}
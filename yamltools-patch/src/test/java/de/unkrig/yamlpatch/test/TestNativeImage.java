@@ -0,0 +1,123 @@
+
+/*
+ * yamltools-patch - A command-line tool for modifying YAML documents
+ *
+ * Copyright (c) 2023, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.yamlpatch.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+import org.snakeyaml.engine.v2.common.ScalarStyle;
+import org.snakeyaml.engine.v2.nodes.ScalarNode;
+import org.snakeyaml.engine.v2.nodes.Tag;
+
+import de.unkrig.yamlpatch.YamlPatch;
+import de.unkrig.yamlpatch.YamlPatch.RemoveMode;
+import de.unkrig.yamlpatch.YamlPatch.SetMode;
+
+/**
+ * Smoke test for the native executable: Runs it on the {@link TestYamlPatch#INPUT} and verifies that the output is
+ * identical with that of the JVM implementation. Executed by the "native" profile, which sets the system property
+ * "native.image"; skipped otherwise.
+ */
+public
+class TestNativeImage {
+
+    @Test public void
+    testNop() throws Exception {
+        assertNativeEqualsJava(new YamlPatch());
+    }
+
+    @Test public void
+    testRemoveSetMember() throws Exception {
+
+        YamlPatch yamlPatch = new YamlPatch();
+        yamlPatch.addRemove(".h.i.({k: l, x)x: n})", RemoveMode.EXISTING, true);
+        assertNativeEqualsJava(yamlPatch, "--remove", "--existing", "--comment", ".h.i.({k: l, x)x: n})");
+    }
+
+    @Test public void
+    testChangeMapEntry() throws Exception {
+
+        YamlPatch yamlPatch = new YamlPatch();
+        yamlPatch.addSet(".c", new ScalarNode(Tag.STR, "ddd", ScalarStyle.PLAIN), SetMode.EXISTING, true, false);
+        assertNativeEqualsJava(yamlPatch, "--set", "--existing", "--comment", ".c", "ddd");
+    }
+
+    @Test public void
+    testSortMap() throws Exception {
+
+        YamlPatch yamlPatch = new YamlPatch();
+        yamlPatch.addSort("", true);
+        assertNativeEqualsJava(yamlPatch, "--sort", "--reverse", "");
+    }
+
+    /**
+     * Runs the native executable with the given <var>args</var> on the {@link TestYamlPatch#INPUT}, and verifies that
+     * its output equals that of the given <var>yamlPatch</var>.
+     */
+    private static void
+    assertNativeEqualsJava(YamlPatch yamlPatch, String... args) throws Exception {
+
+        String nativeImage = System.getProperty("native.image");
+        Assume.assumeTrue("System property \"native.image\" not set", nativeImage != null);
+        assert nativeImage != null;
+
+        // The "Main" class enables comment dumping, so do the same here.
+        yamlPatch.getDumpSettingsBuilder().setDumpComments(true);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        yamlPatch.contentsTransformer(StandardCharsets.UTF_8, StandardCharsets.UTF_8).transform(
+            "",
+            new ByteArrayInputStream(TestYamlPatch.INPUT.getBytes(StandardCharsets.UTF_8)),
+            expected
+        );
+
+        List<String> command = new ArrayList<>();
+        command.add(new File(nativeImage).getAbsolutePath());
+        command.addAll(Arrays.asList(args));
+
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        try (OutputStream os = process.getOutputStream()) {
+            os.write(TestYamlPatch.INPUT.getBytes(StandardCharsets.UTF_8));
+        }
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        try (InputStream is = process.getInputStream()) {
+            is.transferTo(actual);
+        }
+
+        Assert.assertEquals(0, process.waitFor());
+        Assert.assertEquals(expected.toString("UTF-8"), actual.toString("UTF-8"));
+    }
+}
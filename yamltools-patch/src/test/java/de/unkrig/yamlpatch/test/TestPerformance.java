@@ -0,0 +1,291 @@
+
+/*
+ * yamltools-patch - A command-line tool for modifying YAML documents
+ *
+ * Copyright (c) 2023, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.yamlpatch.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Properties;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.snakeyaml.engine.v2.api.LoadSettings;
+import org.snakeyaml.engine.v2.api.lowlevel.Compose;
+import org.snakeyaml.engine.v2.common.ScalarStyle;
+import org.snakeyaml.engine.v2.nodes.Node;
+import org.snakeyaml.engine.v2.nodes.ScalarNode;
+import org.snakeyaml.engine.v2.nodes.Tag;
+
+import de.unkrig.commons.nullanalysis.Nullable;
+import de.unkrig.yamlpatch.YamlPatch;
+import de.unkrig.yamlpatch.YamlPatch.RemoveMode;
+import de.unkrig.yamlpatch.YamlPatch.SetMode;
+import de.unkrig.yamlutil.SpecParser;
+import de.unkrig.yamlutil.SpecParser.Spec;
+import de.unkrig.yamlutil.SpecParser.SpecHandler3;
+import de.unkrig.yamlutil.test.YamlGenerator;
+
+/**
+ * Performance regression gate: Runs a fixed set of scenarios on the hot paths of {@link SpecParser} and {@link
+ * YamlPatch}, and compares their throughput and their allocation per operation with a stored baseline. Executed by
+ * the "perf" profile, which sets the system property "perf.baseline"; skipped otherwise:
+ * <pre>
+ *   mvn -Pperf test -Dtest=TestPerformance [ -Dperf.tolerance=0.25 ] [ -Dperf.allocationTolerance=0.1 ]
+ * </pre>
+ * <p>
+ *   A scenario fails iff its throughput drops by more than {@code perf.tolerance}, or its allocation per operation
+ *   grows by more than {@code perf.allocationTolerance} (both relative to the baseline). The allocation is measured
+ *   with the per-thread allocation counter of the {@link com.sun.management.ThreadMXBean}, which, unlike the
+ *   throughput, hardly depends on the load of the machine; thus it is the reliable half of the gate on a shared CI
+ *   box.
+ * </p>
+ * <p>
+ *   Values that are missing in the baseline are not checked; a scenario without any baseline values is skipped. To
+ *   (re-)record the baseline on the machine that runs the gate, add "{@code -Dperf.record=true}".
+ * </p>
+ */
+public
+class TestPerformance {
+
+    /**
+     * 1554 map entries, 4 levels deep; every map has the keys "k0" through "k5".
+     */
+    private static final String
+    DOCUMENT = new YamlGenerator(1).setDepth(4).setFanOut(6).setKeyCardinality(6).setSequenceProbability(0).generate();
+
+    private static final long WARMUP_NANOS  = 1000000000L;
+    private static final long MEASURE_NANOS = 2000000000L;
+
+    /**
+     * Absolute tolerance for the allocation, so that a scenario with a baseline of (almost) zero bytes per operation
+     * does not fail because of a single stray allocation.
+     */
+    private static final double ALLOCATION_SLACK = 64;
+
+    private static final com.sun.management.ThreadMXBean
+    THREAD_MX_BEAN = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    @Nullable private static File baselineFile;
+    private static Properties     baseline = new Properties();
+
+    /**
+     * Keeps the JIT compiler from eliminating the scenarios' work.
+     */
+    private static volatile int sink;
+
+    private
+    interface Scenario { Object run() throws Exception; }
+
+    @BeforeClass public static void
+    setUpClass() throws IOException {
+
+        String fileName = System.getProperty("perf.baseline");
+        Assume.assumeTrue("System property \"perf.baseline\" not set", fileName != null && !fileName.isEmpty());
+        assert fileName != null;
+
+        File f = (TestPerformance.baselineFile = new File(fileName));
+        if (f.exists()) {
+            try (InputStream is = new FileInputStream(f)) {
+                TestPerformance.baseline.load(is);
+            }
+        }
+
+        Assume.assumeTrue(
+            "Allocation counting not supported by this JVM",
+            TestPerformance.THREAD_MX_BEAN.isThreadAllocatedMemorySupported()
+            && TestPerformance.THREAD_MX_BEAN.isThreadAllocatedMemoryEnabled()
+        );
+    }
+
+    @Test public void
+    testCompose() throws Exception {
+        TestPerformance.gate("compose", () -> TestPerformance.compose(TestPerformance.DOCUMENT));
+    }
+
+    @Test public void
+    testProcessSpec() throws Exception {
+
+        Node   document = TestPerformance.compose(TestPerformance.DOCUMENT);
+        Spec[] specs    = {
+            SpecParser.compile(".k1.k2.k3.k4"),
+            SpecParser.compile(".k5.(\"k0\").k1"),
+            SpecParser.compile(".k0.k5.k0.k5"),
+        };
+        Node[] result = new Node[1];
+
+        // Whether the JIT compiler eliminates a handler that is created per operation varies, so share one.
+        SpecHandler3 specHandler = new SpecHandler3() {
+            @Override public void handleNode(Node node) { result[0] = node; }
+        };
+
+        TestPerformance.gate("processSpec", () -> {
+            for (Spec spec : specs) SpecParser.processSpec(document, spec, specHandler);
+            return result[0];
+        });
+    }
+
+    @Test public void
+    testEquals() throws Exception {
+
+        Node a = TestPerformance.compose(TestPerformance.DOCUMENT);
+        Node b = TestPerformance.compose(TestPerformance.DOCUMENT);
+
+        TestPerformance.gate("equals", () -> SpecParser.equals(a, b));
+    }
+
+    @Test public void
+    testModify() throws Exception {
+
+        Node      document  = TestPerformance.compose(TestPerformance.DOCUMENT);
+        YamlPatch yamlPatch = TestPerformance.yamlPatch();
+
+        TestPerformance.gate("modify", () -> yamlPatch.modify(SpecParser.copy(document)));
+    }
+
+    @Test public void
+    testTransform() throws Exception {
+
+        YamlPatch yamlPatch = TestPerformance.yamlPatch();
+
+        TestPerformance.gate("transform", () -> {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            yamlPatch.transform(new StringReader(TestPerformance.DOCUMENT), baos, StandardCharsets.UTF_8);
+            return baos;
+        });
+    }
+
+    private static YamlPatch
+    yamlPatch() throws IOException {
+
+        YamlPatch result = new YamlPatch();
+        result.addSet(".k1.k2.k3.k4", new ScalarNode(Tag.STR, "xxx", ScalarStyle.PLAIN), SetMode.EXISTING, false, false);
+        result.addRemove(".k0.k1.k2.k3", RemoveMode.EXISTING, false);
+        result.addSort(".k2.k2", false);
+        return result;
+    }
+
+    private static Node
+    compose(String document) {
+        return new Compose(LoadSettings.builder().build()).composeString(document).get();
+    }
+
+    /**
+     * Warms up and then measures the <var>scenario</var>, and checks (or, with "{@code -Dperf.record=true}", records)
+     * its throughput and allocation against the baseline.
+     */
+    private static void
+    gate(String name, Scenario scenario) throws Exception {
+
+        TestPerformance.measure(scenario, TestPerformance.WARMUP_NANOS);
+        long[] m = TestPerformance.measure(scenario, TestPerformance.MEASURE_NANOS);
+
+        double opsPerSecond = m[0] * 1E9 / m[1];
+        double bytesPerOp   = (double) m[2] / m[0];
+
+        System.out.printf(Locale.ROOT, "%-12s %12.1f ops/s %14.1f bytes/op%n", name, opsPerSecond, bytesPerOp);
+
+        if (Boolean.getBoolean("perf.record")) {
+            TestPerformance.record(name + ".opsPerSecond", opsPerSecond);
+            TestPerformance.record(name + ".bytesPerOp",   bytesPerOp);
+            return;
+        }
+
+        String baselineOps   = TestPerformance.baseline.getProperty(name + ".opsPerSecond");
+        String baselineBytes = TestPerformance.baseline.getProperty(name + ".bytesPerOp");
+        Assume.assumeTrue("No baseline for \"" + name + "\"", baselineOps != null || baselineBytes != null);
+
+        if (baselineOps != null) {
+            double min = Double.parseDouble(baselineOps) * (1 - TestPerformance.tolerance("perf.tolerance", .25));
+            Assert.assertTrue(
+                String.format(Locale.ROOT, "%s: Throughput %.1f ops/s is below %.1f ops/s", name, opsPerSecond, min),
+                opsPerSecond >= min
+            );
+        }
+
+        if (baselineBytes != null) {
+            double tolerance = TestPerformance.tolerance("perf.allocationTolerance", .1);
+            double max       = Double.parseDouble(baselineBytes) * (1 + tolerance) + TestPerformance.ALLOCATION_SLACK;
+            Assert.assertTrue(
+                String.format(Locale.ROOT, "%s: Allocation %.1f bytes/op is above %.1f bytes/op", name, bytesPerOp, max),
+                bytesPerOp <= max
+            );
+        }
+    }
+
+    /**
+     * Runs the <var>scenario</var> repeatedly for (at least) the given time.
+     *
+     * @return The number of operations, the elapsed nanoseconds, and the number of bytes allocated by the current
+     *         thread
+     */
+    private static long[]
+    measure(Scenario scenario, long nanos) throws Exception {
+
+        long threadId = Thread.currentThread().getId();
+
+        long ops        = 0;
+        long allocated0 = TestPerformance.THREAD_MX_BEAN.getThreadAllocatedBytes(threadId);
+        long start      = System.nanoTime();
+        long elapsed;
+        do {
+            for (int i = 0; i < 10; i++) TestPerformance.sink ^= System.identityHashCode(scenario.run());
+            ops     += 10;
+            elapsed =  System.nanoTime() - start;
+        } while (elapsed < nanos);
+        long allocated = TestPerformance.THREAD_MX_BEAN.getThreadAllocatedBytes(threadId) - allocated0;
+
+        return new long[] { ops, elapsed, allocated };
+    }
+
+    private static double
+    tolerance(String propertyName, double defaultValue) {
+        String s = System.getProperty(propertyName);
+        return s == null || s.isEmpty() ? defaultValue : Double.parseDouble(s);
+    }
+
+    private static synchronized void
+    record(String key, double value) throws IOException {
+
+        File f = TestPerformance.baselineFile;
+        assert f != null;
+
+        TestPerformance.baseline.setProperty(key, String.format(Locale.ROOT, "%.1f", value));
+        try (OutputStream os = new FileOutputStream(f)) {
+            TestPerformance.baseline.store(os, " Performance baseline for \"TestPerformance\"; see there.");
+        }
+    }
+}
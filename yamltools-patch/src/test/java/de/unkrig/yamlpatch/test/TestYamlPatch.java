@@ -28,23 +28,38 @@ package de.unkrig.yamlpatch.test;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
 import java.nio.charset.StandardCharsets;
+import java.util.List;
 
 import org.junit.Assert;
 import org.junit.Test;
+import org.snakeyaml.engine.v2.api.LoadSettings;
+import org.snakeyaml.engine.v2.api.lowlevel.Compose;
+import org.snakeyaml.engine.v2.common.FlowStyle;
 import org.snakeyaml.engine.v2.common.ScalarStyle;
+import org.snakeyaml.engine.v2.nodes.Node;
 import org.snakeyaml.engine.v2.nodes.ScalarNode;
+import org.snakeyaml.engine.v2.nodes.SequenceNode;
 import org.snakeyaml.engine.v2.nodes.Tag;
 
+import de.unkrig.commons.nullanalysis.Nullable;
 import de.unkrig.yamlpatch.YamlPatch;
 import de.unkrig.yamlpatch.YamlPatch.RemoveMode;
 import de.unkrig.yamlpatch.YamlPatch.SetMode;
+import de.unkrig.yamlpatch.YamlPatch.SortOrder;
+import de.unkrig.yamlutil.DocumentLoader;
+import de.unkrig.yamlutil.SpecParser;
+import de.unkrig.yamlutil.SpecParser.SpecMatchException;
 import de.unkrig.yamlutil.SpecParser.SpecSyntaxException;
+import de.unkrig.yamlutil.Stats;
+import de.unkrig.yamlutil.test.YamlGenerator;
 
 public
 class TestYamlPatch {
 
-    private static final String INPUT = (
+    static final String INPUT = (
         ""
         + "a: b\n"
         + "c: d\n"
@@ -329,6 +344,291 @@ class TestYamlPatch {
 		), yamlPatch);
     }
     
+    @Test public void
+    testSortNumeric() throws Exception {
+        assertSort("[10, 9, x, 1.5, -2, 0x10, 1e3, 1_000]", "[-2, 1.5, 9, 10, 0x10, 1e3, 1_000, x]", null, SortOrder.NUMERIC, false);
+        assertSort("[10, 9, x, 1.5]", "[1.5, 10, 9, x]", null, SortOrder.LEXICAL, false);
+    }
+
+    @Test public void
+    testSortNumericMixed() throws Exception {
+        assertSort("[{a: 1}, y, [1], 10, x, 2]", "[2, 10, x, y, [1], {a: 1}]", null, SortOrder.NUMERIC, false);
+        assertSort("[{a: 1}, y, [1], 10, x, 2]", "[10, 2, y, x, [1], {a: 1}]", null, SortOrder.NUMERIC, true);
+    }
+
+    @Test public void
+    testSortNatural() throws Exception {
+        assertSort("[x10, x9, x09y, x1, y, x, 10]", "[10, x, x1, x9, x09y, x10, y]", null, SortOrder.NATURAL, false);
+        assertSort("[x10, x9, x1]", "[x10, x9, x1]", null, SortOrder.NATURAL, true);
+    }
+
+    @Test public void
+    testSortBy() throws Exception {
+        assertSort(
+            "[{n: c, p: 10}, {n: a}, {n: b, p: 9}, {n: d, p: 10}]",
+            "[{n: b, p: 9}, {n: c, p: 10}, {n: d, p: 10}, {n: a}]",
+            ".p",
+            SortOrder.NUMERIC,
+            false
+        );
+        assertSort("{a: {p: 2}, b: {p: 1}}", "{b: {p: 1}, a: {p: 2}}", ".p", SortOrder.LEXICAL, false);
+
+        // Elements that lack the "by" node come last, even in reverse order.
+        assertSort(
+            "[{n: c, p: 10}, {n: a}, {n: b, p: 9}, {n: d, p: 10}]",
+            "[{n: c, p: 10}, {n: d, p: 10}, {n: b, p: 9}, {n: a}]",
+            ".p",
+            SortOrder.NUMERIC,
+            true
+        );
+    }
+
+    @Test public void
+    testSetAll() throws Exception {
+
+        YamlPatch yamlPatch = new YamlPatch();
+        yamlPatch.getDumpSettingsBuilder().setDumpComments(true);
+        yamlPatch.addSetAll(TestYamlPatch.compose("{a: B, h: {x: y}, e: [F], z: 1}"), SetMode.ANY, true, false);
+        assertMain((
+            ""
+            + "# a: b\n"
+            + "a: B\n"
+            + "c: d\n"
+            + "# Hash Comment\n"
+            + "# e:\n"
+            + "# - f\n"
+            + "# - g\n"
+            + "e: [F]\n"
+            + "h:\n"
+            + "  i: !!set\n"
+            + "    j:\n"
+            + "    7:\n"
+            + "    ? k: l\n"
+            + "      \"x)x\": n\n"
+            + "    :\n"
+            + "  x: y\n"
+            + "z: 1\n"
+        ), yamlPatch);
+    }
+
+    /**
+     * Verifies that the documents get copies of the overlay values, so that a following modification of one document
+     * does not affect the next document.
+     */
+    @Test public void
+    testSetAllCopiesValues() throws Exception {
+
+        YamlPatch yamlPatch = new YamlPatch();
+        yamlPatch.addSetAll(TestYamlPatch.compose("{a: [1], b: [2]}"), SetMode.ANY, false, false);
+        yamlPatch.addInsert(".a[0]", TestYamlPatch.compose("0"));
+        yamlPatch.addInsert(".b[0]", TestYamlPatch.compose("0"));
+
+        for (int i = 0; i < 2; i++) {
+            Assert.assertEquals("{b: [0, 2], a: [0, 1]}\n", TestYamlPatch.patch(yamlPatch, "{b: []}"));
+        }
+    }
+
+    @Test(expected = SpecMatchException.class) public void
+    testSetAllExisting() throws Exception {
+        YamlPatch yamlPatch = new YamlPatch();
+        yamlPatch.addSetAll(TestYamlPatch.compose("{a: B, h: {x: y}}"), SetMode.EXISTING, false, false);
+        assertMain("", yamlPatch);
+    }
+
+    @Test public void
+    testMerge() throws Exception {
+
+        YamlPatch yamlPatch = new YamlPatch();
+        yamlPatch.addMerge(".containers", "name", TestYamlPatch.compose("[{name: b, image: b2}, {name: c}]"));
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        yamlPatch.transform(
+            new StringReader("containers:\n- name: a\n  image: a1\n- name: b  # Comment\n  image: b1\n"),
+            baos,
+            StandardCharsets.UTF_8
+        );
+        Assert.assertEquals(
+            "containers:\n- name: a\n  image: a1\n- name: b\n  image: b2\n- {name: c}\n",
+            baos.toString("UTF-8")
+        );
+    }
+
+    /**
+     * Verifies that the documents get copies of the elements to merge, so that a following modification of one
+     * document does not affect the next document.
+     */
+    @Test public void
+    testMergeCopiesElements() throws Exception {
+
+        YamlPatch yamlPatch = new YamlPatch();
+        yamlPatch.addMerge("", "name", TestYamlPatch.compose("[{name: a, l: [1]}, {name: a, l: [2]}, {l: [3]}]"));
+        yamlPatch.addInsert("[1].l[0]", TestYamlPatch.compose("0"));
+        yamlPatch.addInsert("[2].l[0]", TestYamlPatch.compose("0"));
+
+        for (int i = 0; i < 2; i++) {
+            Assert.assertEquals(
+                "[{name: x}, {name: a, l: [0, 2]}, {l: [0, 3]}]\n",
+                TestYamlPatch.patch(yamlPatch, "[{name: x}]")
+            );
+        }
+    }
+
+    /**
+     * Verifies that the merge scales to long sequences.
+     */
+    @Test public void
+    testMergeLarge() throws Exception {
+
+        int           n        = 20000;
+        StringBuilder document = new StringBuilder();
+        StringBuilder elements = new StringBuilder("[");
+        for (int i = 0; i < n; i++) {
+            document.append("- {name: n").append(i).append(", value: ").append(i).append("}\n");
+            elements.append("{name: n").append(n - 1 - i).append(", value: x},");
+            elements.append("{name: m").append(i).append("},");
+        }
+        elements.append("]");
+
+        YamlPatch yamlPatch = new YamlPatch();
+        yamlPatch.addMerge("", "name", new DocumentLoader().load(new StringReader(elements.toString())).get());
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        yamlPatch.transform(new StringReader(document.toString()), baos, StandardCharsets.UTF_8);
+
+        List<Node> result = ((SequenceNode) new DocumentLoader().load(new StringReader(baos.toString("UTF-8"))).get()).getValue();
+        Assert.assertEquals(2 * n, result.size());
+        Assert.assertEquals("{name: n7, value: x}", SpecParser.toString(result.get(7)));
+        Assert.assertEquals("{name: m7}", SpecParser.toString(result.get(n + 7)));
+    }
+
+    @Test public void
+    testUnique() throws Exception {
+
+        YamlPatch yamlPatch = new YamlPatch();
+        yamlPatch.getDumpSettingsBuilder().setDumpComments(true);
+        yamlPatch.addUnique(".a", true);
+        yamlPatch.addUnique(".s", false);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        yamlPatch.transform(
+            new StringReader("a: [x, {k: 1}, x, {k: 1}, y]\ns: !!set\n  ? r  # Red\n  ? g\n  ? r\n"),
+            baos,
+            StandardCharsets.UTF_8
+        );
+        Assert.assertEquals(
+            "a: [x, {k: 1}, y]\n# [x, {k: 1}]\ns: !!set\n  r: # Red\n  g:\n",
+            baos.toString("UTF-8")
+        );
+    }
+
+    /**
+     * Verifies that removing duplicates scales to long sequences.
+     */
+    @Test public void
+    testUniqueLarge() throws Exception {
+
+        int           n        = 20000;
+        StringBuilder document = new StringBuilder();
+        for (int i = 0; i < 2 * n; i++) document.append("- {name: n").append(i % n).append(", value: [").append(i % n).append("]}\n");
+
+        YamlPatch yamlPatch = new YamlPatch();
+        yamlPatch.addUnique("", false);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        yamlPatch.transform(new StringReader(document.toString()), baos, StandardCharsets.UTF_8);
+
+        List<Node> result = ((SequenceNode) new DocumentLoader().load(new StringReader(baos.toString("UTF-8"))).get()).getValue();
+        Assert.assertEquals(n, result.size());
+        Assert.assertEquals("{name: n7, value: [7]}", SpecParser.toString(result.get(7)));
+    }
+
+    @Test public void
+    testJsonPatch() throws Exception {
+
+        YamlPatch yamlPatch = new YamlPatch();
+        yamlPatch.getDumpSettingsBuilder().setDumpComments(true);
+        yamlPatch.addJsonPatch(TestYamlPatch.compose((
+            ""
+            + "- { op: test,    path: /e/1, value: g }\n"
+            + "- { op: add,     path: /e/-, value: {x: y} }\n"
+            + "- { op: add,     path: /h/x~1y, value: z }\n"
+            + "- { op: remove,  path: /e/0 }\n"
+            + "- { op: replace, path: /a, value: B }\n"
+            + "- { op: copy,    from: /e/1, path: /h/copy }\n"
+            + "- { op: add,     path: /h/copy/x, value: Y }\n"
+            + "- { op: move,    from: /c, path: /h/c }\n"
+        )));
+        assertMain((
+            ""
+            + "a: B\n"
+            + "# Hash Comment\n"
+            + "e:\n"
+            + "- g\n"
+            + "- {x: y}\n"
+            + "h:\n"
+            + "  i: !!set\n"
+            + "    j:\n"
+            + "    7:\n"
+            + "    ? k: l\n"
+            + "      \"x)x\": n\n"
+            + "    :\n"
+            + "  x/y: z\n"
+            + "  copy: {x: Y}\n"
+            + "  c: d\n"
+        ), yamlPatch);
+    }
+
+    @Test(expected = SpecMatchException.class) public void
+    testJsonPatchTestFails() throws Exception {
+        YamlPatch yamlPatch = new YamlPatch();
+        yamlPatch.addJsonPatch(TestYamlPatch.compose("[{op: remove, path: /a}, {op: test, path: /c, value: X}]"));
+        assertMain("", yamlPatch);
+    }
+
+    @Test public void
+    testJsonPatchMoveToItself() throws Exception {
+
+        YamlPatch yamlPatch = new YamlPatch();
+        yamlPatch.addJsonPatch(TestYamlPatch.compose("[{op: move, from: /a, path: /a}]"));
+        Assert.assertEquals("a: '1'\nb: [c]\n", TestYamlPatch.patch(yamlPatch, "a: '1'\nb: [c]\n"));
+
+        yamlPatch = new YamlPatch();
+        yamlPatch.addJsonPatch(TestYamlPatch.compose("[{op: move, from: /x, path: /x}]"));
+        try {
+            TestYamlPatch.patch(yamlPatch, "a: 1\n");
+            Assert.fail();
+        } catch (SpecMatchException sme) {
+            ;
+        }
+    }
+
+    @Test(expected = SpecSyntaxException.class) public void
+    testJsonPatchInvalidOperation() throws Exception {
+        new YamlPatch().addJsonPatch(TestYamlPatch.compose("[{op: move, from: /a, path: /a/b}]"));
+    }
+
+    @Test public void
+    testMergePatch() throws Exception {
+
+        YamlPatch yamlPatch = new YamlPatch();
+        yamlPatch.getDumpSettingsBuilder().setDumpComments(true);
+        yamlPatch.addMergePatch(TestYamlPatch.compose("{a: b, c: null, e: [F], h: {x: {y: z, n: null}}, n: null}"));
+        assertMain((
+            ""
+            + "a: b\n"
+            + "# Hash Comment\n"
+            + "e: [F]\n"
+            + "h:\n"
+            + "  i: !!set\n"
+            + "    j:\n"
+            + "    7:\n"
+            + "    ? k: l\n"
+            + "      \"x)x\": n\n"
+            + "    :\n"
+            + "  x: {y: z}\n"
+        ), yamlPatch);
+    }
+
     @Test(expected = SpecSyntaxException.class) public void
     testNonTerminalSetMember() throws Exception {
         
@@ -337,6 +637,175 @@ class TestYamlPatch {
         assertMain("", yamlPatch);
     }
 
+    @Test public void
+    testGeneratedRoundTrip() throws Exception {
+
+        for (long seed = 0; seed < 20; seed++) {
+            String input = (
+                new YamlGenerator(seed)
+                .setDepth(4)
+                .setFanOut(4)
+                .setAnchorProbability(.1)
+                .setSetProbability(.2)
+                .generate()
+            );
+
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            new YamlPatch().transform(new StringReader(input), baos, StandardCharsets.UTF_8);
+
+            Assert.assertTrue(
+                "Seed " + seed,
+                SpecParser.equals(TestYamlPatch.compose(input), TestYamlPatch.compose(baos.toString("UTF-8")))
+            );
+        }
+    }
+
+    /**
+     * Verifies that sequences of very deeply nested elements can be loaded, sorted and dumped.
+     */
+    @Test public void
+    testSortDeepElements() throws Exception {
+
+        String nested = "- " + "- ".repeat(20000);
+
+        YamlPatch yamlPatch = new YamlPatch();
+        yamlPatch.addSort("", false);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        yamlPatch.transform(new StringReader(nested + "y\n" + nested + "x\n"), baos, StandardCharsets.UTF_8);
+
+        DocumentLoader documentLoader = new DocumentLoader();
+        Assert.assertTrue(SpecParser.equals(
+            documentLoader.load(new StringReader(nested + "x\n" + nested + "y\n")).get(),
+            documentLoader.load(new StringReader(baos.toString("UTF-8"))).get()
+        ));
+    }
+
+    /**
+     * Verifies that a modification through an inherited entry modifies a copy of the entry in the merging map, and
+     * not the merged map, which other maps merge as well.
+     */
+    @Test public void
+    testMergeKeysModifyInherited() throws Exception {
+
+        YamlPatch yamlPatch = new YamlPatch();
+        yamlPatch.setResolveMergeKeys(true);
+        yamlPatch.addSet(".a.db.host", new ScalarNode(Tag.STR, "h2", ScalarStyle.PLAIN), SetMode.EXISTING, false, false);
+        yamlPatch.addInsert(".a.ports[0]", TestYamlPatch.compose("79"));
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        yamlPatch.transform(
+            new StringReader("base: &b {db: {host: h1}, ports: [80]}\na: {<<: *b}\nb: {<<: *b}\n"),
+            baos,
+            StandardCharsets.UTF_8
+        );
+        Assert.assertEquals((
+            ""
+            + "base: &id001 {db: {host: h1}, ports: [80]}\n"
+            + "a: {<<: *id001, db: {host: h2}, ports: [79, 80]}\n"
+            + "b: {<<: *id001}\n"
+        ), baos.toString("UTF-8"));
+    }
+
+    /**
+     * Verifies that "--set-all" applies an overlay map to a copy of an inherited map, and sets the leaf values in the
+     * merging map.
+     */
+    @Test public void
+    testMergeKeysSetAll() throws Exception {
+
+        YamlPatch yamlPatch = new YamlPatch();
+        yamlPatch.setResolveMergeKeys(true);
+        yamlPatch.addSetAll(TestYamlPatch.compose("a: {db: {host: h2}, port: 79}"), SetMode.EXISTING, false, false);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        yamlPatch.transform(
+            new StringReader("base: &b {db: {host: h1, user: u}, port: 80}\na: {<<: *b, port: 81}\nb: {<<: *b}\n"),
+            baos,
+            StandardCharsets.UTF_8
+        );
+        Assert.assertEquals((
+            ""
+            + "base: &id001 {db: {host: h1, user: u}, port: 80}\n"
+            + "a: {<<: *id001, port: 79, db: {host: h2, user: u}}\n"
+            + "b: {<<: *id001}\n"
+        ), baos.toString("UTF-8"));
+    }
+
+    /**
+     * Verifies that sorting terminates on recursive structures.
+     */
+    @Test public void
+    testSortRecursive() throws Exception {
+
+        YamlPatch yamlPatch = new YamlPatch();
+        yamlPatch.addSort("", false);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        yamlPatch.transform(new StringReader("- &a [*a, 2]\n- &b [*b, 1]\n"), baos, StandardCharsets.UTF_8);
+        Assert.assertEquals("- &id001 [*id001, 1]\n- &id002 [*id002, 2]\n", baos.toString("UTF-8"));
+    }
+
+    private static String
+    patch(YamlPatch yamlPatch, String document) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        yamlPatch.transform(new StringReader(document), baos, StandardCharsets.UTF_8);
+        return baos.toString("UTF-8");
+    }
+
+    private static void
+    assertSort(String input, String expected, @Nullable String by, SortOrder order, boolean reverse) throws Exception {
+
+        YamlPatch yamlPatch = new YamlPatch();
+        yamlPatch.getDumpSettingsBuilder().setDefaultFlowStyle(FlowStyle.FLOW);
+        yamlPatch.addSort("", by, order, reverse);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        yamlPatch.transform(new StringReader(input), baos, StandardCharsets.UTF_8);
+        Assert.assertEquals(expected + "\n", baos.toString("UTF-8"));
+    }
+
+    private static Node
+    compose(String document) {
+        return new Compose(LoadSettings.builder().build()).composeString(document).get();
+    }
+
+    @Test public void
+    testStatsCountEvaluatedSpecs() throws Exception {
+
+        Stats     stats     = new Stats();
+        YamlPatch yamlPatch = new YamlPatch();
+        yamlPatch.setStats(stats);
+
+        // One evaluation each for "test" and "add", three for "move" (get, remove, add).
+        yamlPatch.addJsonPatch(TestYamlPatch.compose((
+            ""
+            + "- { op: test, path: /a, value: 1 }\n"
+            + "- { op: add,  path: /b, value: 2 }\n"
+            + "- { op: move, from: /b, path: /c }\n"
+        )));
+
+        // One evaluation for the sequence, plus one per element for the "by" spec.
+        yamlPatch.addSort(".l", ".n", SortOrder.LEXICAL, false);
+
+        // One evaluation, although the overlay has no specs.
+        yamlPatch.addSetAll(TestYamlPatch.compose("d: 4"), SetMode.ANY, false, false);
+
+        yamlPatch.contentsTransformer(StandardCharsets.UTF_8, StandardCharsets.UTF_8).transform(
+            "file.yaml",
+            new ByteArrayInputStream("a: 1\nl: [{n: b}, {n: c}, {n: a}]\n".getBytes(StandardCharsets.UTF_8)),
+            new ByteArrayOutputStream()
+        );
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        stats.print(new PrintStream(baos, true, "UTF-8"));
+        String[] lines = baos.toString("UTF-8").split("\\R");
+        Assert.assertEquals(2, lines.length);
+
+        // File, read, compose, process, dump, write, total, docs, nodes, specs, ...
+        Assert.assertEquals("10", lines[1].trim().split("\\s+")[9]);
+    }
+
     private void
     assertMain(String expected, YamlPatch yamlPatch) throws Exception {
         
@@ -0,0 +1,708 @@
+
+/*
+ * yamltools-util - A library for command-line-base YAML tools
+ *
+ * Copyright (c) 2023, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.yamlutil;
+
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import org.snakeyaml.engine.v2.api.LoadSettings;
+import org.snakeyaml.engine.v2.common.Anchor;
+import org.snakeyaml.engine.v2.common.FlowStyle;
+import org.snakeyaml.engine.v2.common.ScalarStyle;
+import org.snakeyaml.engine.v2.events.AliasEvent;
+import org.snakeyaml.engine.v2.events.CollectionStartEvent;
+import org.snakeyaml.engine.v2.events.Event;
+import org.snakeyaml.engine.v2.events.NodeEvent;
+import org.snakeyaml.engine.v2.events.ScalarEvent;
+import org.snakeyaml.engine.v2.exceptions.ComposerException;
+import org.snakeyaml.engine.v2.nodes.CollectionNode;
+import org.snakeyaml.engine.v2.nodes.MappingNode;
+import org.snakeyaml.engine.v2.nodes.Node;
+import org.snakeyaml.engine.v2.nodes.NodeTuple;
+import org.snakeyaml.engine.v2.nodes.NodeType;
+import org.snakeyaml.engine.v2.nodes.ScalarNode;
+import org.snakeyaml.engine.v2.nodes.SequenceNode;
+import org.snakeyaml.engine.v2.nodes.Tag;
+import org.snakeyaml.engine.v2.parser.Parser;
+import org.snakeyaml.engine.v2.parser.ParserImpl;
+import org.snakeyaml.engine.v2.resolver.ScalarResolver;
+import org.snakeyaml.engine.v2.scanner.StreamReader;
+
+import de.unkrig.commons.lang.ExceptionUtil;
+import de.unkrig.commons.nullanalysis.Nullable;
+import de.unkrig.yamlutil.SpecParser.Explanation;
+import de.unkrig.yamlutil.SpecParser.MapEntrySegment;
+import de.unkrig.yamlutil.SpecParser.PointerSegment;
+import de.unkrig.yamlutil.SpecParser.Segment;
+import de.unkrig.yamlutil.SpecParser.SequenceIndexSegment;
+import de.unkrig.yamlutil.SpecParser.Spec;
+import de.unkrig.yamlutil.SpecParser.SpecHandler3;
+import de.unkrig.yamlutil.SpecParser.SpecMatchException;
+
+/**
+ * A read-only YAML document in a flat representation: One entry per node in a handful of primitive arrays, and the
+ * values of all scalars in one shared {@code char[]}. It is built directly from the parser events, without composing
+ * {@link Node}s, and takes several times less heap than the equivalent {@link Node} tree, which retains one object
+ * per node, tuple, string, tag and {@link org.snakeyaml.engine.v2.exceptions.Mark Mark}.
+ * <p>
+ *   The nodes are numbered in document order; node 0 is the root. Aliases are resolved transparently, i.e. they
+ *   designate the node that carries the anchor. Comments are not retained.
+ * </p>
+ * <p>
+ *   {@link #processSpec(Spec, SpecHandler3, Explanation)} locates nodes exactly like {@link
+ *   SpecParser#processSpec(Node, Spec, SpecHandler3, Explanation)} does, and {@link #toNode(int)} materializes the
+ *   located node (and its subtree) on demand, e.g. for dumping.
+ * </p>
+ */
+public final
+class CompactDocument {
+
+    // Values of "kinds[]".
+    private static final byte SCALAR   = 0;
+    private static final byte MAPPING  = 1;
+    private static final byte SEQUENCE = 2;
+    private static final byte ALIAS    = 3;
+
+    /**
+     * Set in "styles[]" iff the tag of a plain scalar may be omitted, see {@link
+     * org.snakeyaml.engine.v2.events.ImplicitTuple#canOmitTagInPlainScalar()}.
+     */
+    private static final byte IMPLICIT = (byte) 0x80;
+
+    /**
+     * Scalars up to this length are stored only once in "chars[]"; typically these are the keys of maps.
+     */
+    private static final int MAX_SHARED_SCALAR_LENGTH = 32;
+
+    private static final ScalarStyle[] SCALAR_STYLES = ScalarStyle.values();
+    private static final FlowStyle[]   FLOW_STYLES   = FlowStyle.values();
+
+    /** The kind of each node: {@link #SCALAR}, {@link #MAPPING}, {@link #SEQUENCE} or {@link #ALIAS}. */
+    private final byte[] kinds;
+
+    /** The {@link ScalarStyle} (plus {@link #IMPLICIT}) or {@link FlowStyle} ordinal of each node. */
+    private final byte[] styles;
+
+    /** The index into {@link #tagNames} of each node, or -1 iff its tag was not specified, or specified as "!". */
+    private final int[] tags;
+
+    /** The index of the parent of each node, or -1 for the root. */
+    private final int[] parents;
+
+    /**
+     * Scalars: The offset of the value in {@link #chars}; collections: The offset of the first child in {@link
+     * #children}; aliases: The index of the anchored node.
+     */
+    private final int[] offsets;
+
+    /** Scalars: The length of the value; mappings: Twice the number of entries; sequences: The number of elements. */
+    private final int[] lengths;
+
+    /** The children of all collections; for mappings the keys and values alternate. */
+    private final int[] children;
+
+    private final char[]               chars;
+    private final String[]             tagNames;
+    private final Map<Integer, String> anchors;
+    private final int                  aliases;
+    private final ScalarResolver       scalarResolver;
+
+    private
+    CompactDocument(Builder b) {
+        this.kinds          = Arrays.copyOf(b.kinds, b.count);
+        this.styles         = Arrays.copyOf(b.styles, b.count);
+        this.tags           = Arrays.copyOf(b.tags, b.count);
+        this.parents        = Arrays.copyOf(b.parents, b.count);
+        this.offsets        = Arrays.copyOf(b.offsets, b.count);
+        this.lengths        = Arrays.copyOf(b.lengths, b.count);
+        this.children       = Arrays.copyOf(b.children, b.childCount);
+        this.chars          = Arrays.copyOf(b.chars, b.charCount);
+        this.tagNames       = b.tagNames.toArray(new String[b.tagNames.size()]);
+        this.anchors        = b.anchorNames.isEmpty() ? Collections.emptyMap() : b.anchorNames;
+        this.aliases        = b.aliases;
+        this.scalarResolver = b.scalarResolver;
+    }
+
+    /**
+     * Parses the first (and only) document from the <var>in</var>. Like {@link
+     * org.snakeyaml.engine.v2.api.lowlevel.Compose#composeReader(Reader)}, this fails iff the stream contains more
+     * than one document.
+     *
+     * @return {@link Optional#empty()} iff the stream contains no document
+     */
+    public static Optional<CompactDocument>
+    load(Reader in, LoadSettings settings) {
+        return CompactDocument.load(new ParserImpl(settings, new StreamReader(settings, in)), settings);
+    }
+
+    /**
+     * Builds the first (and only) document from the events of the <var>parser</var>.
+     *
+     * @return {@link Optional#empty()} iff the stream contains no document
+     */
+    static Optional<CompactDocument>
+    load(Parser parser, LoadSettings settings) {
+
+        // Drop the STREAM-START event.
+        parser.next();
+
+        CompactDocument.skipComments(parser);
+        if (parser.checkEvent(Event.ID.StreamEnd)) return Optional.empty();
+
+        Event   documentStart = parser.next();
+        Builder b             = new Builder(settings);
+        do {
+            Event event = parser.next();
+            switch (event.getEventId()) {
+
+            case Scalar:
+                b.scalar((ScalarEvent) event);
+                break;
+
+            case MappingStart:
+                b.collectionStart((CollectionStartEvent) event, MAPPING);
+                break;
+
+            case SequenceStart:
+                b.collectionStart((CollectionStartEvent) event, SEQUENCE);
+                break;
+
+            case MappingEnd:
+            case SequenceEnd:
+                b.collectionEnd();
+                break;
+
+            case Alias:
+                b.alias((AliasEvent) event);
+                break;
+
+            case Comment:
+                break;
+
+            default:
+                throw new AssertionError(event);
+            }
+        } while (b.depth > 0 || b.count == 0);
+
+        // Drop the DOCUMENT-END event.
+        CompactDocument.skipComments(parser);
+        parser.next();
+
+        CompactDocument.skipComments(parser);
+        if (!parser.checkEvent(Event.ID.StreamEnd)) {
+            throw new ComposerException(
+                "expected a single document in the stream",
+                documentStart.getStartMark(),
+                "but found another document",
+                parser.next().getStartMark()
+            );
+        }
+
+        return Optional.of(new CompactDocument(b));
+    }
+
+    private static void
+    skipComments(Parser parser) {
+        while (parser.checkEvent(Event.ID.Comment)) parser.next();
+    }
+
+    /**
+     * @return The number of nodes of this document; nodes that are referenced more than once (through aliases) count
+     *         only once
+     */
+    public int
+    nodeCount() { return this.kinds.length - this.aliases; }
+
+    /**
+     * @param index The index of a node; 0 designates the root
+     * @return      {@link NodeType#SCALAR}, {@link NodeType#MAPPING} or {@link NodeType#SEQUENCE}
+     */
+    public NodeType
+    nodeType(int index) {
+        switch (this.kinds[this.resolve(index)]) {
+        case SCALAR:   return NodeType.SCALAR;
+        case MAPPING:  return NodeType.MAPPING;
+        case SEQUENCE: return NodeType.SEQUENCE;
+        default:       throw new AssertionError();
+        }
+    }
+
+    /**
+     * @return The index of the collection that contains the node, or -1 iff the <var>index</var> designates the root
+     */
+    public int
+    parent(int index) { return this.parents[index]; }
+
+    /**
+     * @return The value of the scalar with the given <var>index</var>
+     */
+    public String
+    scalarValue(int index) {
+        index = this.resolve(index);
+        if (this.kinds[index] != SCALAR) throw new IllegalArgumentException("Node " + index + " is not a scalar");
+        return new String(this.chars, this.offsets[index], this.lengths[index]);
+    }
+
+    /**
+     * @return The estimated number of bytes that this document retains on the heap (assuming the same memory layout
+     *         as {@link MemoryReport})
+     */
+    public long
+    estimatedSize() {
+        long result = MemoryReport.shallowSize(CompactDocument.class);
+        result += 2 * MemoryReport.arraySize(1, this.kinds.length);
+        result += 4 * MemoryReport.arraySize(4, this.kinds.length);
+        result += MemoryReport.arraySize(4, this.children.length);
+        result += MemoryReport.arraySize(2, this.chars.length);
+        for (String tagName : this.tagNames) {
+            result += MemoryReport.shallowSize(String.class) + MemoryReport.arraySize(1, tagName.length());
+        }
+        for (String anchor : this.anchors.values()) {
+
+            // The map entry (32 bytes), its key and its value.
+            result += 32 + MemoryReport.shallowSize(Integer.class);
+            result += MemoryReport.shallowSize(String.class) + MemoryReport.arraySize(1, anchor.length());
+        }
+        return result;
+    }
+
+    /**
+     * Locates the node designated by the <var>spec</var> (the empty spec designates the root), and passes it to the
+     * <var>specHandler3</var>; equivalent with {@link SpecParser#processSpec(Node, Spec, SpecHandler3,
+     * Explanation)}.
+     *
+     * @param explanation {@code null} means to record nothing
+     * @throws SpecMatchException See {@link SpecParser#processSpec(Node, Spec, SpecHandler3, Explanation)}
+     */
+    public void
+    processSpec(Spec spec, SpecHandler3 specHandler3, @Nullable Explanation explanation) {
+
+        if (explanation != null) explanation.evaluations++;
+
+        List<Segment> segments = spec.segments;
+
+        int  el = this.resolve(0);
+        long t0 = explanation == null ? 0 : System.nanoTime();
+        for (int i = 0; i < segments.size(); i++) {
+            Segment segment = segments.get(i);
+            try {
+                el = this.resolve(this.apply(segment, el, i == segments.size() - 1, explanation, i));
+            } catch (RuntimeException e) {
+                throw ExceptionUtil.wrap(
+                    "Applying spec \"" + spec + "\" at offset " + segment.offset + " on \"" + this.toString(el) + "\"",
+                    e
+                );
+            }
+            if (explanation != null) {
+                long t1 = System.nanoTime();
+                explanation.nanos[i] += t1 - t0;
+                t0 = t1;
+            }
+        }
+
+        specHandler3.handleNode(this.toNode(el));
+    }
+
+    /**
+     * @return The index of the node that the <var>segment</var> designates in the collection <var>el</var>
+     */
+    private int
+    apply(Segment segment, int el, boolean last, @Nullable Explanation explanation, int i) {
+
+        if (segment instanceof PointerSegment) segment = ((PointerSegment) segment).resolve(this.kinds[el] == SEQUENCE);
+
+        if (segment instanceof MapEntrySegment) {
+            Node key = ((MapEntrySegment) segment).key;
+
+            int start = this.offsets[el], end = start + this.lengths[el];
+            switch (this.kinds[el]) {
+
+            case MAPPING:
+                for (int j = start; j < end; j += 2) {
+                    if (explanation != null) explanation.mapEntriesScanned[i]++;
+                    if (this.equals(this.children[j], key, explanation, i, 1)) return this.children[j + 1];
+                }
+                throw new SpecMatchException(
+                    last
+                    ? "Map \"" + this.toString(el) + "\" lacks key \"" + SpecParser.toString(key) + "\""
+                    : "Map does not contain key \"" + SpecParser.toString(key) + "\""
+                );
+
+            case SEQUENCE:
+                for (int j = start; j < end; j++) {
+                    if (explanation != null) explanation.sequenceElementsVisited[i]++;
+                    if (this.equals(this.children[j], key, explanation, i, 1)) return this.children[j];
+                }
+                throw new SpecMatchException(
+                    "Sequence does not contain an element \"" + SpecParser.toString(key) + "\""
+                );
+
+            default:
+                throw new SpecMatchException("Element is not a map nor a sequence");
+            }
+        } else
+        if (segment instanceof SequenceIndexSegment) {
+
+            if (this.kinds[el] != SEQUENCE) throw new SpecMatchException("Element is not a sequence");
+            int size = this.lengths[el];
+
+            Integer i2    = ((SequenceIndexSegment) segment).index;
+            int     index = i2 == null ? size : i2;
+            if (index < 0) index += size;
+
+            if (explanation != null) explanation.sequenceElementsVisited[i]++;
+            if (index < 0 || index >= size) {
+                throw new SpecMatchException(
+                    last
+                    ? "Index " + index + " out of range"
+                    : "Index " + index + " is out of range; sequence \"" + this.toString(el) + "\" has " + size + " elements"
+                );
+            }
+            return this.children[this.offsets[el] + index];
+        } else
+        {
+            throw new AssertionError(segment);
+        }
+    }
+
+    /**
+     * Compares like {@link SpecParser#equals(Node, Node)}: Scalars by value, collections element by element, tags
+     * are ignored.
+     */
+    private boolean
+    equals(int a, Node b, @Nullable Explanation explanation, int segment, int depth) {
+
+        if (explanation != null) {
+            explanation.equalsCalls[segment]++;
+            if (depth > explanation.maxEqualsDepth[segment]) explanation.maxEqualsDepth[segment] = depth;
+        }
+
+        a = this.resolve(a);
+
+        int start = this.offsets[a], length = this.lengths[a];
+        switch (this.kinds[a]) {
+
+        case SCALAR:
+            if (!(b instanceof ScalarNode)) return false;
+            String value = ((ScalarNode) b).getValue();
+            if (value.length() != length) return false;
+            for (int i = 0; i < length; i++) {
+                if (this.chars[start + i] != value.charAt(i)) return false;
+            }
+            return true;
+
+        case MAPPING:
+            if (!(b instanceof CollectionNode)) return false;
+            if (((CollectionNode<?>) b).getValue().isEmpty()) return length == 0;
+            if (!(b instanceof MappingNode)) return false;
+
+            List<NodeTuple> tuples = ((MappingNode) b).getValue();
+            if (tuples.size() * 2 != length) return false;
+            for (int i = 0; i < tuples.size(); i++) {
+                NodeTuple nt = tuples.get(i);
+                if (!(
+                    this.equals(this.children[start + 2 * i], nt.getKeyNode(), explanation, segment, depth + 1)
+                    && this.equals(this.children[start + 2 * i + 1], nt.getValueNode(), explanation, segment, depth + 1)
+                )) return false;
+            }
+            return true;
+
+        case SEQUENCE:
+            if (!(b instanceof CollectionNode)) return false;
+            if (((CollectionNode<?>) b).getValue().isEmpty()) return length == 0;
+            if (!(b instanceof SequenceNode)) return false;
+
+            List<Node> elements = ((SequenceNode) b).getValue();
+            if (elements.size() != length) return false;
+            for (int i = 0; i < length; i++) {
+                if (!this.equals(this.children[start + i], elements.get(i), explanation, segment, depth + 1)) {
+                    return false;
+                }
+            }
+            return true;
+
+        default:
+            throw new AssertionError(a);
+        }
+    }
+
+    /**
+     * @return A {@link Node} tree that is equivalent with the subtree under the node with the given <var>index</var>
+     *         (except that it has no marks and no comments); nodes that are referenced more than once (through
+     *         aliases) are materialized only once
+     */
+    public Node
+    toNode(int index) {
+        return this.toNode(index, this.anchors.isEmpty() ? null : new HashMap<>());
+    }
+
+    private Node
+    toNode(int index, @Nullable Map<Integer, Node> memo) {
+
+        index = this.resolve(index);
+        if (memo != null) {
+            Node result = memo.get(index);
+            if (result != null) return result;
+        }
+
+        int    tag   = this.tags[index];
+        byte   style = this.styles[index];
+        int    start = this.offsets[index], length = this.lengths[index];
+        Node   result;
+        switch (this.kinds[index]) {
+
+        case SCALAR:
+            String value = new String(this.chars, start, length);
+            result = new ScalarNode(
+                tag == -1 ? this.scalarResolver.resolve(value, (style & IMPLICIT) != 0) : new Tag(this.tagNames[tag]),
+                tag == -1,
+                value,
+                SCALAR_STYLES[style & ~IMPLICIT],
+                Optional.empty(),
+                Optional.empty()
+            );
+            if (memo != null) memo.put(index, result);
+            break;
+
+        case MAPPING:
+            List<NodeTuple> tuples = new ArrayList<>(length / 2);
+            result = new MappingNode(
+                tag == -1 ? Tag.MAP : new Tag(this.tagNames[tag]),
+                tag == -1,
+                tuples,
+                FLOW_STYLES[style],
+                Optional.empty(),
+                Optional.empty()
+            );
+
+            // Memoize before descending, so that recursive aliases terminate.
+            if (memo != null) memo.put(index, result);
+            for (int i = start; i < start + length; i += 2) {
+                tuples.add(new NodeTuple(this.toNode(this.children[i], memo), this.toNode(this.children[i + 1], memo)));
+            }
+            break;
+
+        case SEQUENCE:
+            List<Node> elements = new ArrayList<>(length);
+            result = new SequenceNode(
+                tag == -1 ? Tag.SEQ : new Tag(this.tagNames[tag]),
+                tag == -1,
+                elements,
+                FLOW_STYLES[style],
+                Optional.empty(),
+                Optional.empty()
+            );
+            if (memo != null) memo.put(index, result);
+            for (int i = start; i < start + length; i++) elements.add(this.toNode(this.children[i], memo));
+            break;
+
+        default:
+            throw new AssertionError(index);
+        }
+
+        String anchor = this.anchors.get(index);
+        if (anchor != null) result.setAnchor(Optional.of(new Anchor(anchor)));
+
+        return result;
+    }
+
+    private String
+    toString(int index) { return SpecParser.toString(this.toNode(index)); }
+
+    /**
+     * @return The index of the anchored node iff <var>index</var> designates an alias, otherwise <var>index</var>
+     */
+    private int
+    resolve(int index) { return this.kinds[index] == ALIAS ? this.offsets[index] : index; }
+
+    /**
+     * Collects the nodes in growable arrays while the document is being parsed.
+     */
+    private static
+    class Builder {
+
+        final ScalarResolver scalarResolver;
+
+        byte[] kinds   = new byte[64];
+        byte[] styles  = new byte[64];
+        int[]  tags    = new int[64];
+        int[]  parents = new int[64];
+        int[]  offsets = new int[64];
+        int[]  lengths = new int[64];
+        int    count;
+        int    aliases;
+
+        int[] children = new int[64];
+        int   childCount;
+
+        char[] chars = new char[1024];
+        int    charCount;
+
+        /**
+         * The children of the currently open collections, innermost last; they are moved to {@link #children} when
+         * their collection ends, so that the children of each collection are contiguous.
+         */
+        int[] pending = new int[64];
+        int   pendingCount;
+
+        /** The index of each currently open collection, and the start of its children in {@link #pending}. */
+        int[] open      = new int[16];
+        int[] openStart = new int[16];
+        int   depth;
+
+        final List<String>         tagNames      = new ArrayList<>();
+        final Map<String, Integer> tagIndexes    = new HashMap<>();
+        final Map<String, Integer> anchorNodes   = new HashMap<>();
+        final Map<Integer, String> anchorNames   = new HashMap<>();
+        final Map<String, Integer> sharedScalars = new HashMap<>();
+
+        Builder(LoadSettings settings) {
+            this.scalarResolver = settings.getSchema().getScalarResolver();
+        }
+
+        void
+        scalar(ScalarEvent event) {
+
+            String value = event.getValue();
+
+            Integer offset = value.length() <= MAX_SHARED_SCALAR_LENGTH ? this.sharedScalars.get(value) : null;
+            if (offset == null) {
+                offset = this.charCount;
+                if (this.charCount + value.length() > this.chars.length) {
+                    this.chars = Arrays.copyOf(this.chars, Math.max(2 * this.chars.length, this.charCount + value.length()));
+                }
+                value.getChars(0, value.length(), this.chars, this.charCount);
+                this.charCount += value.length();
+                if (value.length() <= MAX_SHARED_SCALAR_LENGTH) this.sharedScalars.put(value, offset);
+            }
+
+            byte style = (byte) event.getScalarStyle().ordinal();
+            if (event.getImplicit().canOmitTagInPlainScalar()) style |= IMPLICIT;
+
+            this.node(SCALAR, style, this.tag(event.getTag()), offset, value.length(), event);
+        }
+
+        void
+        collectionStart(CollectionStartEvent event, byte kind) {
+
+            int index = this.node(kind, (byte) event.getFlowStyle().ordinal(), this.tag(event.getTag()), 0, 0, event);
+
+            if (this.depth == this.open.length) {
+                this.open      = Arrays.copyOf(this.open, 2 * this.depth);
+                this.openStart = Arrays.copyOf(this.openStart, 2 * this.depth);
+            }
+            this.open[this.depth]      = index;
+            this.openStart[this.depth] = this.pendingCount;
+            this.depth++;
+        }
+
+        void
+        collectionEnd() {
+
+            this.depth--;
+            int index = this.open[this.depth];
+            int start = this.openStart[this.depth];
+            int n     = this.pendingCount - start;
+
+            if (this.childCount + n > this.children.length) {
+                this.children = Arrays.copyOf(this.children, Math.max(2 * this.children.length, this.childCount + n));
+            }
+            System.arraycopy(this.pending, start, this.children, this.childCount, n);
+
+            this.offsets[index] = this.childCount;
+            this.lengths[index] = n;
+            this.childCount   += n;
+            this.pendingCount  = start;
+        }
+
+        void
+        alias(AliasEvent event) {
+
+            Anchor  anchor = event.getAlias();
+            Integer target = this.anchorNodes.get(anchor.getValue());
+            if (target == null) throw new ComposerException("found undefined alias " + anchor, event.getStartMark());
+
+            this.node(ALIAS, (byte) 0, -1, target, 0, event);
+            this.aliases++;
+        }
+
+        private int
+        node(byte kind, byte style, int tag, int offset, int length, NodeEvent event) {
+
+            int index = this.count;
+            if (index == this.kinds.length) {
+                int n = 2 * index;
+                this.kinds   = Arrays.copyOf(this.kinds, n);
+                this.styles  = Arrays.copyOf(this.styles, n);
+                this.tags    = Arrays.copyOf(this.tags, n);
+                this.parents = Arrays.copyOf(this.parents, n);
+                this.offsets = Arrays.copyOf(this.offsets, n);
+                this.lengths = Arrays.copyOf(this.lengths, n);
+            }
+            this.kinds[index]   = kind;
+            this.styles[index]  = style;
+            this.tags[index]    = tag;
+            this.parents[index] = this.depth == 0 ? -1 : this.open[this.depth - 1];
+            this.offsets[index] = offset;
+            this.lengths[index] = length;
+            this.count++;
+
+            if (this.depth > 0) {
+                if (this.pendingCount == this.pending.length) {
+                    this.pending = Arrays.copyOf(this.pending, 2 * this.pendingCount);
+                }
+                this.pending[this.pendingCount++] = index;
+            }
+
+            if (kind != ALIAS) {
+                event.getAnchor().ifPresent(anchor -> {
+                    this.anchorNodes.put(anchor.getValue(), index);
+                    this.anchorNames.put(index, anchor.getValue());
+                });
+            }
+
+            return index;
+        }
+
+        private int
+        tag(Optional<String> tag) {
+
+            if (!tag.isPresent() || "!".equals(tag.get())) return -1;
+
+            return this.tagIndexes.computeIfAbsent(tag.get(), t -> {
+                this.tagNames.add(t);
+                return this.tagNames.size() - 1;
+            });
+        }
+    }
+}
@@ -0,0 +1,490 @@
+/*
+ * yamltools-util - A library for command-line-base YAML tools
+ *
+ * Copyright (c) 2023, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.yamlutil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import de.unkrig.commons.nullanalysis.Nullable;
+
+/**
+ * Allows a long-running ("warm") JVM to execute command lines on behalf of short-lived clients, which saves the JVM
+ * startup and class loading for each invocation.
+ * <p>
+ *   The server listens on a TCP port of the loopback interface and executes one command line at a time (because
+ *   {@link System#in}, {@link System#out} and {@link System#err} are redirected while the command executes).
+ * </p>
+ * <p>
+ *   Because any local process can connect to a loopback port, the server writes a random token to a file that only
+ *   its owner can read (see {@link #tokenFile(int)}), and rejects clients that do not present that token. It reads
+ *   no more than the length of the token before the client is authenticated, and drops clients that do not send their
+ *   command line within two seconds, so that other processes cannot block the daemon.
+ * </p>
+ * <p>
+ *   Protocol, client to server: The token, the working directory, the number of arguments, the arguments, and then
+ *   the client's STDIN as a sequence of chunks (length, bytes), terminated by a chunk with length -1.
+ * </p>
+ * <p>
+ *   Protocol, server to client: A sequence of frames (channel, length, bytes), where the channel is {@link #STDOUT}
+ *   or {@link #STDERR}, terminated by an {@link #EXIT} frame (channel, exit status).
+ * </p>
+ */
+public final
+class Daemon {
+
+    private Daemon() {}
+
+    private static final int EXIT   = 0;
+    private static final int STDOUT = 1;
+    private static final int STDERR = 2;
+
+    private static final int MAX_STRING_LENGTH = 1 << 20;
+    private static final int MAX_ARGS          = 1 << 16;
+
+    /**
+     * How long the daemon waits for the token, the working directory and the arguments of a client, in milliseconds.
+     * (The client sends these right after connecting; only its STDIN may take longer.)
+     */
+    private static final int HANDSHAKE_TIMEOUT = 2000;
+
+    /**
+     * Whether a command is currently executing on behalf of a client; see {@link #exit(int)}.
+     */
+    private static volatile boolean executing;
+
+    /**
+     * The logic that the daemon executes for each command line, typically the tool's {@code main()} method.
+     */
+    public
+    interface Command {
+
+        /**
+         * Must not call {@link System#exit(int)}, because that would terminate the daemon; call {@link
+         * Daemon#exit(int)} instead.
+         *
+         * @param workingDirectory The working directory of the client; relative file names in the <var>args</var>
+         *                         must be resolved against it
+         */
+        void run(String[] args, File workingDirectory) throws Exception;
+    }
+
+    /**
+     * Thrown by {@link Daemon#exit(int)} to unwind a command. Is an {@link Error} (like {@link ThreadDeath}), so that
+     * the usual {@code catch (Exception e)} clauses of the command do not intercept it.
+     */
+    private static final
+    class ExitError extends Error {
+
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        ExitError(int status) {
+            super(null, null, false, false);
+            this.status = status;
+        }
+    }
+
+    /**
+     * Terminates the JVM with the given <var>status</var> (like {@link System#exit(int)}), or, iff a command is
+     * currently executing on behalf of a daemon client, terminates only that command and reports the
+     * <var>status</var> to the client.
+     */
+    public static void
+    exit(int status) {
+
+        if (Daemon.executing) throw new ExitError(status);
+
+        System.exit(status);
+    }
+
+    /**
+     * @return Whether the calling code executes on behalf of a daemon client
+     */
+    public static boolean
+    isExecuting() { return Daemon.executing; }
+
+    /**
+     * @return The file where the daemon listening on the given <var>port</var> stores its token, and where its
+     *         clients read it from
+     */
+    public static File
+    tokenFile(int port) {
+        return new File(System.getProperty("user.home"), ".yamltools-daemon-" + port);
+    }
+
+    /**
+     * Listens on the given <var>port</var> of the loopback interface, and executes the <var>command</var> for each
+     * client connection. Never returns.
+     */
+    public static void
+    serve(int port, Command command) throws IOException {
+
+        try (ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            Daemon.serve(serverSocket, Daemon.tokenFile(port), command);
+        }
+    }
+
+    /**
+     * Writes a new token to the <var>tokenFile</var>, then accepts connections on the <var>serverSocket</var>, and
+     * executes the <var>command</var> for each client that presents the token. Returns only abruptly, e.g. when the
+     * <var>serverSocket</var> is closed.
+     */
+    public static void
+    serve(ServerSocket serverSocket, File tokenFile, Command command) throws IOException {
+
+        byte[] token = Daemon.writeToken(tokenFile);
+        try {
+            for (;;) {
+                Socket socket = serverSocket.accept();
+                try (Socket s = socket) {
+                    Daemon.handle(s, token, command);
+                } catch (IOException ioe) {
+
+                    // The connection broke, so there is nobody to report to; keep serving.
+                    ;
+                }
+            }
+        } finally {
+            tokenFile.delete();
+        }
+    }
+
+    private static void
+    handle(Socket socket, byte[] token, Command command) throws IOException {
+
+        DataInputStream  dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+        PrintStream clientOut = new PrintStream(new BufferedOutputStream(Daemon.frameOutputStream(dos, STDOUT)));
+        PrintStream clientErr = new PrintStream(Daemon.frameOutputStream(dos, STDERR), true);
+
+        // Authenticate the client before reading anything else.
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+        if (!MessageDigest.isEqual(token, Daemon.readBytes(dis, token.length))) {
+            clientErr.println("Daemon: Invalid token");
+            Daemon.writeExit(dos, 1);
+            return;
+        }
+
+        File     workingDirectory = new File(Daemon.readString(dis));
+        int      argc             = dis.readInt();
+        if (argc < 0 || argc > MAX_ARGS) throw new IOException("Invalid number of arguments " + argc);
+        String[] args = new String[argc];
+        for (int i = 0; i < args.length; i++) args[i] = Daemon.readString(dis);
+
+        // The command may read the client's STDIN, which may take arbitrarily long.
+        socket.setSoTimeout(0);
+
+        InputStream in  = System.in;
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+
+        int status = 0;
+        System.setIn(Daemon.chunkInputStream(dis));
+        System.setOut(clientOut);
+        System.setErr(clientErr);
+        Daemon.executing = true;
+        try {
+            command.run(args, workingDirectory);
+        } catch (ExitError ee) {
+            status = ee.status;
+        } catch (Throwable t) {
+
+            // Report to the client, and keep the daemon alive, even for Errors.
+            for (Throwable t2 = t; t2 != null; t2 = t2.getCause()) {
+                clientErr.println(t2 == t ? t2.toString() : "Caused by: " + t2);
+            }
+            status = 1;
+        } finally {
+            Daemon.executing = false;
+            clientOut.flush();
+            clientErr.flush();
+            System.setIn(in);
+            System.setOut(out);
+            System.setErr(err);
+        }
+
+        Daemon.writeExit(dos, status);
+    }
+
+    /**
+     * The thin client: Sends the <var>args</var>, the current working directory, and STDIN to the daemon listening on
+     * the given <var>port</var>, and copies its output to STDOUT and STDERR.
+     *
+     * @return The exit status of the command
+     */
+    public static int
+    forward(int port, String[] args) throws IOException {
+        return Daemon.forward(port, Daemon.tokenFile(port), args, System.in, System.out, System.err);
+    }
+
+    /**
+     * Sends the token from the <var>tokenFile</var>, the current working directory, the <var>args</var>, and the
+     * contents of <var>in</var> to the daemon listening on the given <var>port</var>, and copies its output to
+     * <var>out</var> and <var>err</var>.
+     *
+     * @return The exit status of the command
+     */
+    public static int
+    forward(int port, File tokenFile, String[] args, InputStream in, OutputStream out, OutputStream err)
+    throws IOException {
+
+        String token = new String(Files.readAllBytes(tokenFile.toPath()), StandardCharsets.UTF_8).trim();
+
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+
+            DataInputStream  dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            Daemon.writeString(dos, token);
+            Daemon.writeString(dos, new File("").getAbsolutePath());
+            dos.writeInt(args.length);
+            for (String arg : args) Daemon.writeString(dos, arg);
+            dos.flush();
+
+            // Forward STDIN in the background; many commands do not read STDIN at all.
+            Thread stdinPump = new Thread(() -> {
+                try {
+                    byte[] buffer = new byte[8192];
+                    for (;;) {
+                        int n = in.read(buffer);
+                        if (n == -1) break;
+                        dos.writeInt(n);
+                        dos.write(buffer, 0, n);
+                        dos.flush();
+                    }
+                    dos.writeInt(-1);
+                    dos.flush();
+                } catch (IOException ioe) {
+
+                    // The command has completed and the daemon has closed the connection.
+                    ;
+                }
+            }, "stdin-pump");
+            stdinPump.setDaemon(true);
+            stdinPump.start();
+
+            byte[] buffer = new byte[8192];
+            for (;;) {
+                int channel = dis.readByte();
+                int length  = dis.readInt();
+                if (channel == EXIT) {
+                    out.flush();
+                    err.flush();
+                    return length;
+                }
+                if (length > buffer.length) buffer = new byte[length];
+                dis.readFully(buffer, 0, length);
+                (channel == STDERR ? err : out).write(buffer, 0, length);
+            }
+        }
+    }
+
+    /**
+     * Resolves the given <var>fileName</var> against the <var>workingDirectory</var>, except for "-" (which designates
+     * STDIN resp. STDOUT).
+     *
+     * @param workingDirectory {@code null} means the current working directory of this JVM
+     */
+    public static String
+    resolve(String fileName, @Nullable File workingDirectory) {
+
+        if (workingDirectory == null || "-".equals(fileName) || new File(fileName).isAbsolute()) return fileName;
+
+        return new File(workingDirectory, fileName).getPath();
+    }
+
+    /**
+     * A command line client for a running daemon.
+     * <h2>Usage</h2>
+     * <dl>
+     *   <dt>{@code java -cp} <var>classpath</var> {@code de.unkrig.yamlutil.Daemon} <var>port</var> [ <var>arg</var> ... ]</dt>
+     *   <dd>
+     *     Execute the command line on the daemon that listens on the given <var>port</var>.
+     *   </dd>
+     * </dl>
+     */
+    public static void
+    main(String[] args) throws IOException {
+
+        if (args.length == 0) {
+            System.err.println("Usage: java de.unkrig.yamlutil.Daemon <port> [ <arg> ... ]");
+            System.exit(1);
+        }
+
+        String[] commandArgs = new String[args.length - 1];
+        System.arraycopy(args, 1, commandArgs, 0, commandArgs.length);
+
+        System.exit(Daemon.forward(Integer.parseInt(args[0]), commandArgs));
+    }
+
+    /**
+     * Generates a random token, and (atomically) stores it in the <var>tokenFile</var>, which only the owner can read.
+     */
+    private static byte[]
+    writeToken(File tokenFile) throws IOException {
+
+        byte[] random = new byte[32];
+        new SecureRandom().nextBytes(random);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : random) sb.append(Character.forDigit((b >> 4) & 15, 16)).append(Character.forDigit(b & 15, 16));
+        byte[] token = sb.toString().getBytes(StandardCharsets.UTF_8);
+
+        Path dir = tokenFile.getAbsoluteFile().getParentFile().toPath();
+        Path tmp;
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            tmp = Files.createTempFile(dir, ".token", null, PosixFilePermissions.asFileAttribute(
+                PosixFilePermissions.fromString("rw-------")
+            ));
+        } else {
+            tmp = Files.createTempFile(dir, ".token", null);
+            File f = tmp.toFile();
+            f.setReadable(false, false);
+            f.setWritable(false, false);
+            f.setReadable(true, true);
+            f.setWritable(true, true);
+        }
+        try {
+            Files.write(tmp, token);
+            Files.move(tmp, tokenFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+
+        return token;
+    }
+
+    private static void
+    writeExit(DataOutputStream dos, int status) throws IOException {
+        synchronized (dos) {
+            dos.writeByte(EXIT);
+            dos.writeInt(status);
+            dos.flush();
+        }
+    }
+
+    private static OutputStream
+    frameOutputStream(DataOutputStream dos, int channel) {
+
+        return new OutputStream() {
+
+            @Override public void
+            write(int b) throws IOException { this.write(new byte[] { (byte) b }, 0, 1); }
+
+            @Override public void
+            write(byte[] b, int off, int len) throws IOException {
+                if (len == 0) return;
+                synchronized (dos) {
+                    dos.writeByte(channel);
+                    dos.writeInt(len);
+                    dos.write(b, off, len);
+                }
+            }
+
+            @Override public void
+            flush() throws IOException {
+                synchronized (dos) { dos.flush(); }
+            }
+        };
+    }
+
+    /**
+     * @return Reads the client's STDIN chunks on demand
+     */
+    private static InputStream
+    chunkInputStream(DataInputStream dis) {
+
+        return new InputStream() {
+
+            int remaining; // -1 means "end-of-input"
+
+            @Override public int
+            read() throws IOException {
+                byte[] b = new byte[1];
+                return this.read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+            }
+
+            @Override public int
+            read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) return 0;
+                while (this.remaining == 0) {
+                    try {
+                        this.remaining = dis.readInt();
+                    } catch (EOFException eofe) {
+                        this.remaining = -1;
+                    }
+                }
+                if (this.remaining == -1) return -1;
+
+                int n = dis.read(b, off, Math.min(len, this.remaining));
+                if (n == -1) throw new EOFException();
+                this.remaining -= n;
+                return n;
+            }
+        };
+    }
+
+    private static String
+    readString(DataInputStream dis) throws IOException {
+        return new String(Daemon.readBytes(dis, MAX_STRING_LENGTH), StandardCharsets.UTF_8);
+    }
+
+    private static byte[]
+    readBytes(DataInputStream dis, int maxLength) throws IOException {
+        int length = dis.readInt();
+        if (length < 0 || length > maxLength) throw new IOException("Invalid string length " + length);
+        byte[] bytes = new byte[length];
+        dis.readFully(bytes);
+        return bytes;
+    }
+
+    private static void
+    writeString(DataOutputStream dos, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        dos.writeInt(bytes.length);
+        dos.write(bytes);
+    }
+}
@@ -0,0 +1,377 @@
+
+/*
+ * yamltools-util - A library for command-line-base YAML tools
+ *
+ * Copyright (c) 2023, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package de.unkrig.yamlutil;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import org.snakeyaml.engine.v2.api.LoadSettings;
+import org.snakeyaml.engine.v2.comments.CommentEventsCollector;
+import org.snakeyaml.engine.v2.comments.CommentLine;
+import org.snakeyaml.engine.v2.comments.CommentType;
+import org.snakeyaml.engine.v2.common.Anchor;
+import org.snakeyaml.engine.v2.common.FlowStyle;
+import org.snakeyaml.engine.v2.composer.Composer;
+import org.snakeyaml.engine.v2.events.AliasEvent;
+import org.snakeyaml.engine.v2.events.Event;
+import org.snakeyaml.engine.v2.events.MappingStartEvent;
+import org.snakeyaml.engine.v2.events.NodeEvent;
+import org.snakeyaml.engine.v2.events.ScalarEvent;
+import org.snakeyaml.engine.v2.events.SequenceStartEvent;
+import org.snakeyaml.engine.v2.exceptions.ComposerException;
+import org.snakeyaml.engine.v2.exceptions.YamlEngineException;
+import org.snakeyaml.engine.v2.nodes.CollectionNode;
+import org.snakeyaml.engine.v2.nodes.MappingNode;
+import org.snakeyaml.engine.v2.nodes.Node;
+import org.snakeyaml.engine.v2.nodes.NodeTuple;
+import org.snakeyaml.engine.v2.nodes.NodeType;
+import org.snakeyaml.engine.v2.nodes.ScalarNode;
+import org.snakeyaml.engine.v2.nodes.SequenceNode;
+import org.snakeyaml.engine.v2.nodes.Tag;
+import org.snakeyaml.engine.v2.parser.Parser;
+import org.snakeyaml.engine.v2.resolver.ScalarResolver;
+
+import de.unkrig.commons.nullanalysis.Nullable;
+
+/**
+ * A drop-in replacement for {@link Composer#getSingleNode()} that produces exactly the same node tree, but consumes
+ * the parser events with an explicit stack instead of recursion, so that documents of any nesting depth can be
+ * composed without a {@link StackOverflowError}. (The {@link Parser} is not recursive.)
+ */
+public
+class DocumentComposer {
+
+    private final Parser         parser;
+    private final LoadSettings   settings;
+    private final ScalarResolver scalarResolver;
+
+    private final CommentEventsCollector blockCommentsCollector;
+    private final CommentEventsCollector inlineCommentsCollector;
+
+    private final Map<Anchor, Node> anchors        = new HashMap<>();
+    private final Set<Node>         recursiveNodes = Collections.newSetFromMap(new IdentityHashMap<>());
+    private int                     nonScalarAliasesCount;
+
+    public
+    DocumentComposer(LoadSettings settings, Parser parser) {
+        this.parser                  = parser;
+        this.settings                = settings;
+        this.scalarResolver          = settings.getSchema().getScalarResolver();
+        this.blockCommentsCollector  = new CommentEventsCollector(parser, CommentType.BLANK_LINE, CommentType.BLOCK);
+        this.inlineCommentsCollector = new CommentEventsCollector(parser, CommentType.IN_LINE);
+    }
+
+    /**
+     * Composes the first (and only) document of the stream; fails iff the stream contains more than one document.
+     *
+     * @return {@link Optional#empty()} iff the stream contains no document
+     */
+    public Optional<Node>
+    getSingleNode() {
+
+        this.parser.next(); // StreamStart
+
+        Optional<Node> document = Optional.empty();
+        if (!this.parser.checkEvent(Event.ID.StreamEnd)) document = Optional.of(this.composeDocument());
+
+        if (!this.parser.checkEvent(Event.ID.StreamEnd)) {
+            Event event = this.parser.next();
+            throw new ComposerException(
+                "expected a single document in the stream",
+                document.flatMap(Node::getStartMark),
+                "but found another document",
+                event.getStartMark()
+            );
+        }
+
+        this.parser.next(); // StreamEnd
+        return document;
+    }
+
+    private Node
+    composeDocument() {
+
+        this.blockCommentsCollector.collectEvents();
+        if (this.parser.checkEvent(Event.ID.StreamEnd)) {
+
+            // A stream that contains only comments.
+            List<CommentLine> commentLines = this.blockCommentsCollector.consume();
+            Node              node         = new MappingNode(
+                Tag.COMMENT,
+                false,
+                Collections.emptyList(),
+                FlowStyle.BLOCK,
+                commentLines.get(0).getStartMark(),
+                Optional.empty()
+            );
+            node.setBlockComments(commentLines);
+            return node;
+        }
+
+        this.parser.next(); // DocumentStart
+        Node node = this.composeNode();
+        this.blockCommentsCollector.collectEvents();
+        if (!this.blockCommentsCollector.isEmpty()) node.setEndComments(this.blockCommentsCollector.consume());
+        this.parser.next(); // DocumentEnd
+
+        this.anchors.clear();
+        this.recursiveNodes.clear();
+        return node;
+    }
+
+    /**
+     * Composes one node, and, if it is a collection, all its descendants.
+     */
+    private Node
+    composeNode() {
+
+        // The collections being composed; the innermost is on top.
+        Deque<OpenCollection> stack = new ArrayDeque<>();
+
+        for (;;) {
+
+            // Compose a scalar or an alias, or start composing a collection.
+            this.blockCommentsCollector.collectEvents();
+            @Nullable Node node;
+            if (this.parser.checkEvent(Event.ID.Alias)) {
+                node = this.composeAlias();
+            } else {
+                Optional<Anchor> anchor = ((NodeEvent) this.parser.peekEvent()).getAnchor();
+                if (this.parser.checkEvent(Event.ID.Scalar)) {
+                    node = this.composeScalarNode(anchor, this.blockCommentsCollector.consume());
+                } else
+                if (this.parser.checkEvent(Event.ID.SequenceStart)) {
+                    stack.push(this.startSequence(anchor));
+                    node = null;
+                } else
+                {
+                    stack.push(this.startMapping(anchor));
+                    node = null;
+                }
+            }
+
+            // Add the completed node to its collection, and complete the collections that end here, until the next
+            // node to compose.
+            for (;;) {
+                if (node != null) {
+                    OpenCollection parent = stack.peek();
+                    if (parent == null) return node;
+                    this.recursiveNodes.remove(parent.node);
+                    parent.add(node);
+                }
+
+                OpenCollection collection = stack.peek();
+                assert collection != null;
+                if (collection.hasMoreChildren()) {
+                    this.recursiveNodes.add(collection.node);
+                    break;
+                }
+
+                node = this.endCollection(stack.pop());
+            }
+        }
+    }
+
+    private Node
+    composeAlias() {
+
+        AliasEvent event  = (AliasEvent) this.parser.next();
+        Anchor     anchor = event.getAlias();
+        Node       node   = this.anchors.get(anchor);
+        if (node == null) throw new ComposerException("found undefined alias " + anchor, event.getStartMark());
+
+        if (node.getNodeType() != NodeType.SCALAR) {
+            if (++this.nonScalarAliasesCount > this.settings.getMaxAliasesForCollections()) {
+                throw new YamlEngineException(
+                    "Number of aliases for non-scalar nodes exceeds the specified max="
+                    + this.settings.getMaxAliasesForCollections()
+                );
+            }
+        }
+
+        // An alias of a collection that is still being composed.
+        if (this.recursiveNodes.remove(node)) node.setRecursive(true);
+
+        // Comments of aliases cannot be retained.
+        this.blockCommentsCollector.consume();
+        this.inlineCommentsCollector.collectEvents().consume();
+
+        return node;
+    }
+
+    private Node
+    composeScalarNode(Optional<Anchor> anchor, List<CommentLine> blockComments) {
+
+        ScalarEvent      event = (ScalarEvent) this.parser.next();
+        Optional<String> tag   = event.getTag();
+
+        boolean resolved = !tag.isPresent() || "!".equals(tag.get());
+        Tag     nodeTag  = (
+            resolved
+            ? this.scalarResolver.resolve(event.getValue(), event.getImplicit().canOmitTagInPlainScalar())
+            : new Tag(tag.get())
+        );
+
+        Node node = new ScalarNode(
+            nodeTag,
+            resolved,
+            event.getValue(),
+            event.getScalarStyle(),
+            event.getStartMark(),
+            event.getEndMark()
+        );
+        anchor.ifPresent(a -> this.registerAnchor(a, node));
+        node.setBlockComments(blockComments);
+        node.setInLineComments(this.inlineCommentsCollector.collectEvents().consume());
+        return node;
+    }
+
+    private OpenCollection
+    startSequence(Optional<Anchor> anchor) {
+
+        SequenceStartEvent event = (SequenceStartEvent) this.parser.next();
+        Optional<String>   tag   = event.getTag();
+
+        boolean resolved = !tag.isPresent() || "!".equals(tag.get());
+
+        List<Node>   elements = new ArrayList<>();
+        SequenceNode node     = new SequenceNode(
+            resolved ? Tag.SEQ : new Tag(tag.get()),
+            resolved,
+            elements,
+            event.getFlowStyle(),
+            event.getStartMark(),
+            Optional.empty()
+        );
+        if (event.isFlow()) node.setBlockComments(this.blockCommentsCollector.consume());
+        anchor.ifPresent(a -> this.registerAnchor(a, node));
+
+        return new OpenCollection(node, event.isFlow(), Event.ID.SequenceEnd) {
+            @Override void add(Node element) { elements.add(element); }
+        };
+    }
+
+    private OpenCollection
+    startMapping(Optional<Anchor> anchor) {
+
+        MappingStartEvent event = (MappingStartEvent) this.parser.next();
+        Optional<String>  tag   = event.getTag();
+
+        boolean resolved = !tag.isPresent() || "!".equals(tag.get());
+
+        List<NodeTuple> entries = new ArrayList<>();
+        MappingNode     node    = new MappingNode(
+            resolved ? Tag.MAP : new Tag(tag.get()),
+            resolved,
+            entries,
+            event.getFlowStyle(),
+            event.getStartMark(),
+            Optional.empty()
+        );
+        if (event.isFlow()) node.setBlockComments(this.blockCommentsCollector.consume());
+        anchor.ifPresent(a -> this.registerAnchor(a, node));
+
+        return new OpenCollection(node, event.isFlow(), Event.ID.MappingEnd) {
+
+            @Nullable private Node pendingKey;
+
+            @Override boolean
+            hasMoreChildren() { return this.pendingKey != null || super.hasMoreChildren(); }
+
+            @Override void
+            add(Node keyOrValue) {
+                Node key = this.pendingKey;
+                if (key == null) {
+                    this.pendingKey = keyOrValue;
+                } else {
+                    entries.add(new NodeTuple(key, keyOrValue));
+                    this.pendingKey = null;
+                }
+            }
+        };
+    }
+
+    private Node
+    endCollection(OpenCollection collection) {
+
+        CollectionNode<?> node = collection.node;
+
+        if (collection.flow) node.setInLineComments(this.inlineCommentsCollector.collectEvents().consume());
+
+        node.setEndMark(this.parser.next().getEndMark());
+
+        this.inlineCommentsCollector.collectEvents();
+        if (!this.inlineCommentsCollector.isEmpty()) node.setInLineComments(this.inlineCommentsCollector.consume());
+
+        return node;
+    }
+
+    private void
+    registerAnchor(Anchor anchor, Node node) {
+        this.anchors.put(anchor, node);
+        node.setAnchor(Optional.of(anchor));
+    }
+
+    /**
+     * A sequence or mapping whose children are being composed.
+     */
+    private abstract
+    class OpenCollection {
+
+        final CollectionNode<?> node;
+        final boolean           flow;
+        final Event.ID          end;
+
+        OpenCollection(CollectionNode<?> node, boolean flow, Event.ID end) {
+            this.node = node;
+            this.flow = flow;
+            this.end  = end;
+        }
+
+        /**
+         * Checks for the end of the collection, and collects the block comments that precede the next child.
+         */
+        boolean
+        hasMoreChildren() {
+            DocumentComposer composer = DocumentComposer.this;
+            if (composer.parser.checkEvent(this.end)) return false;
+            composer.blockCommentsCollector.collectEvents();
+            return !composer.parser.checkEvent(this.end);
+        }
+
+        abstract void add(Node child);
+    }
+}
@@ -0,0 +1,255 @@
+
+/*
+ * yamltools-util - A library for command-line-base YAML tools
+ *
+ * Copyright (c) 2023, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.yamlutil;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import org.snakeyaml.engine.v2.api.Dump;
+import org.snakeyaml.engine.v2.api.DumpSettings;
+import org.snakeyaml.engine.v2.api.StreamDataWriter;
+import org.snakeyaml.engine.v2.comments.CommentLine;
+import org.snakeyaml.engine.v2.common.Anchor;
+import org.snakeyaml.engine.v2.emitter.Emitter;
+import org.snakeyaml.engine.v2.events.AliasEvent;
+import org.snakeyaml.engine.v2.events.CommentEvent;
+import org.snakeyaml.engine.v2.events.DocumentEndEvent;
+import org.snakeyaml.engine.v2.events.DocumentStartEvent;
+import org.snakeyaml.engine.v2.events.ImplicitTuple;
+import org.snakeyaml.engine.v2.events.MappingEndEvent;
+import org.snakeyaml.engine.v2.events.MappingStartEvent;
+import org.snakeyaml.engine.v2.events.ScalarEvent;
+import org.snakeyaml.engine.v2.events.SequenceEndEvent;
+import org.snakeyaml.engine.v2.events.SequenceStartEvent;
+import org.snakeyaml.engine.v2.events.StreamEndEvent;
+import org.snakeyaml.engine.v2.events.StreamStartEvent;
+import org.snakeyaml.engine.v2.nodes.AnchorNode;
+import org.snakeyaml.engine.v2.nodes.MappingNode;
+import org.snakeyaml.engine.v2.nodes.Node;
+import org.snakeyaml.engine.v2.nodes.NodeTuple;
+import org.snakeyaml.engine.v2.nodes.NodeType;
+import org.snakeyaml.engine.v2.nodes.ScalarNode;
+import org.snakeyaml.engine.v2.nodes.SequenceNode;
+import org.snakeyaml.engine.v2.nodes.Tag;
+import org.snakeyaml.engine.v2.resolver.ScalarResolver;
+
+import de.unkrig.commons.nullanalysis.Nullable;
+
+/**
+ * A drop-in replacement for {@link Dump#dumpNode(Node, StreamDataWriter)} that produces exactly the same output, but
+ * walks the node tree with an explicit stack instead of recursion, so that documents of any nesting depth can be
+ * dumped without a {@link StackOverflowError}. (The {@link Emitter} is not recursive.)
+ */
+public
+class DocumentDumper {
+
+    private final DumpSettings settings;
+
+    public
+    DocumentDumper(DumpSettings settings) { this.settings = settings; }
+
+    /**
+     * Writes the <var>node</var> as a YAML stream with one document to the <var>writer</var>.
+     */
+    public void
+    dumpNode(Node node, StreamDataWriter writer) {
+
+        Emitter emitter = new Emitter(this.settings, writer);
+
+        emitter.emit(new StreamStartEvent());
+        emitter.emit(new DocumentStartEvent(
+            this.settings.isExplicitStart(),
+            this.settings.getYamlDirective(),
+            this.settings.getTagDirective()
+        ));
+
+        Map<Node, Anchor> anchors = this.anchors(node);
+        this.settings.getExplicitRootTag().ifPresent(node::setTag);
+        this.serialize(node, anchors, emitter);
+
+        emitter.emit(new DocumentEndEvent(this.settings.isExplicitEnd()));
+        emitter.emit(new StreamEndEvent());
+    }
+
+    /**
+     * @return The anchors for the nodes that are referenced more than once, or that have an anchor; the other nodes
+     *         map to {@code null}
+     */
+    private Map<Node, Anchor>
+    anchors(Node root) {
+
+        Map<Node, Anchor> result = new IdentityHashMap<>();
+
+        // Pre-order, exactly like the recursive implementation, so that the anchors are generated in the same order.
+        Deque<Node> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Node node = DocumentDumper.realNode(stack.pop());
+
+            if (result.containsKey(node)) {
+                if (result.get(node) == null) result.put(node, this.settings.getAnchorGenerator().nextAnchor(node));
+                continue;
+            }
+
+            result.put(node, node.getAnchor().isPresent() ? this.settings.getAnchorGenerator().nextAnchor(node) : null);
+
+            if (node instanceof SequenceNode) {
+                List<Node> elements = ((SequenceNode) node).getValue();
+                for (int i = elements.size() - 1; i >= 0; i--) stack.push(elements.get(i));
+            } else
+            if (node instanceof MappingNode) {
+                List<NodeTuple> tuples = ((MappingNode) node).getValue();
+                for (int i = tuples.size() - 1; i >= 0; i--) {
+                    stack.push(tuples.get(i).getValueNode());
+                    stack.push(tuples.get(i).getKeyNode());
+                }
+            }
+        }
+
+        return result;
+    }
+
+    private void
+    serialize(Node root, Map<Node, Anchor> anchors, Emitter emitter) {
+
+        ScalarResolver scalarResolver  = this.settings.getSchema().getScalarResolver();
+        Set<Node>      serializedNodes = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        // Contains the nodes yet to serialize, and the "CollectionEnd"s of the collections being serialized.
+        Deque<Object> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Object o = stack.pop();
+
+            if (o instanceof CollectionEnd) {
+                Node collection = ((CollectionEnd) o).collection;
+                emitter.emit(collection instanceof SequenceNode ? new SequenceEndEvent() : new MappingEndEvent());
+                DocumentDumper.comments(collection.getInLineComments(), emitter);
+                DocumentDumper.comments(collection.getEndComments(), emitter);
+                continue;
+            }
+
+            Node             node   = DocumentDumper.realNode((Node) o);
+            Optional<Anchor> anchor = Optional.ofNullable(anchors.get(node));
+
+            if (!serializedNodes.add(node)) {
+                emitter.emit(new AliasEvent(anchor));
+                continue;
+            }
+
+            Tag tag = node.getTag();
+            switch (node.getNodeType()) {
+
+            case SCALAR:
+                ScalarNode scalar = (ScalarNode) node;
+                DocumentDumper.comments(node.getBlockComments(), emitter);
+                emitter.emit(new ScalarEvent(
+                    anchor,
+                    Optional.of(tag.getValue()),
+                    new ImplicitTuple(
+                        tag.equals(scalarResolver.resolve(scalar.getValue(), true)),
+                        tag.equals(scalarResolver.resolve(scalar.getValue(), false))
+                    ),
+                    scalar.getValue(),
+                    scalar.getScalarStyle()
+                ));
+                DocumentDumper.comments(node.getInLineComments(), emitter);
+                DocumentDumper.comments(node.getEndComments(), emitter);
+                break;
+
+            case SEQUENCE:
+                SequenceNode sequence = (SequenceNode) node;
+                DocumentDumper.comments(node.getBlockComments(), emitter);
+                emitter.emit(new SequenceStartEvent(
+                    anchor,
+                    Optional.of(tag.getValue()),
+                    tag.equals(Tag.SEQ),
+                    sequence.getFlowStyle()
+                ));
+
+                stack.push(new CollectionEnd(node));
+                List<Node> elements = sequence.getValue();
+                for (int i = elements.size() - 1; i >= 0; i--) stack.push(elements.get(i));
+                break;
+
+            default:
+                MappingNode mapping = (MappingNode) node;
+                DocumentDumper.comments(node.getBlockComments(), emitter);
+                if (tag == Tag.COMMENT) break;
+
+                emitter.emit(new MappingStartEvent(
+                    anchor,
+                    Optional.of(tag.getValue()),
+                    tag.equals(Tag.MAP),
+                    mapping.getFlowStyle(),
+                    Optional.empty(),
+                    Optional.empty()
+                ));
+
+                stack.push(new CollectionEnd(node));
+                List<NodeTuple> tuples = mapping.getValue();
+                for (int i = tuples.size() - 1; i >= 0; i--) {
+                    stack.push(tuples.get(i).getValueNode());
+                    stack.push(tuples.get(i).getKeyNode());
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Marks the point where all elements of the <var>collection</var> have been serialized.
+     */
+    private static
+    class CollectionEnd {
+
+        final Node collection;
+
+        CollectionEnd(Node collection) { this.collection = collection; }
+    }
+
+    private static Node
+    realNode(Node node) {
+        return node.getNodeType() == NodeType.ANCHOR ? ((AnchorNode) node).getRealNode() : node;
+    }
+
+    private static void
+    comments(@Nullable List<CommentLine> comments, Emitter emitter) {
+
+        if (comments == null) return;
+
+        for (CommentLine cl : comments) {
+            emitter.emit(new CommentEvent(cl.getCommentType(), cl.getValue(), cl.getStartMark(), cl.getEndMark()));
+        }
+    }
+}
@@ -0,0 +1,377 @@
+
+/*
+ * yamltools-util - A library for command-line-base YAML tools
+ *
+ * Copyright (c) 2023, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.yamlutil;
+
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import org.snakeyaml.engine.v2.api.LoadSettings;
+import org.snakeyaml.engine.v2.events.AliasEvent;
+import org.snakeyaml.engine.v2.events.Event;
+import org.snakeyaml.engine.v2.events.NodeEvent;
+import org.snakeyaml.engine.v2.events.ScalarEvent;
+import org.snakeyaml.engine.v2.exceptions.ComposerException;
+import org.snakeyaml.engine.v2.nodes.Node;
+import org.snakeyaml.engine.v2.parser.Parser;
+import org.snakeyaml.engine.v2.parser.ParserImpl;
+import org.snakeyaml.engine.v2.scanner.StreamReader;
+
+import de.unkrig.commons.nullanalysis.Nullable;
+
+/**
+ * Composes YAML documents the way the tools need them, i.e. with duplicate keys allowed and (by default) with
+ * comments and marks, plus optional memory optimizations.
+ */
+public
+class DocumentLoader {
+
+    /**
+     * Scalar values longer than this are not deduplicated; long values rarely repeat.
+     */
+    private static final int MAX_DEDUPLICATED_LENGTH = 64;
+
+    /**
+     * The maximum number of distinct values that the deduplication table of one document holds.
+     */
+    private static final int MAX_DEDUPLICATED_VALUES = 100000;
+
+    private boolean deduplicateScalars;
+    private boolean useMarks      = true;
+    private boolean parseComments = true;
+    private int     maxCodePoints = 3 * 1024 * 1024;
+    private int     maxDepth      = Integer.MAX_VALUE;
+    private int     maxAliases    = 50;
+    private long    maxNodes      = Long.MAX_VALUE;
+
+    /**
+     * Indicates that a document exceeds one of the limits configured with {@link #setMaxDepth(int)}, {@link
+     * #setMaxAliases(int)} and {@link #setMaxNodes(long)}.
+     */
+    public static
+    class LimitExceededException extends ComposerException {
+
+        private static final long serialVersionUID = 1L;
+
+        public
+        LimitExceededException(String message, Event event) { super(message, event.getStartMark()); }
+    }
+
+    /**
+     * Whether scalar values (including the keys of maps) that occur more than once in a document are stored only
+     * once, which reduces the heap that large documents with many repeated keys retain; the default is {@code
+     * false}. The deduplication table is local to each document, and its size is bounded.
+     */
+    public DocumentLoader
+    setDeduplicateScalars(boolean value) {
+        this.deduplicateScalars = value;
+        return this;
+    }
+
+    /**
+     * Whether the composed nodes have start and end {@link org.snakeyaml.engine.v2.exceptions.Mark Mark}s; the default
+     * is {@code true}. Each mark references the code point buffer of the reader, so a document without marks takes
+     * much less heap, and is also faster to parse. However, syntax errors then lack line and column numbers.
+     */
+    public DocumentLoader
+    setUseMarks(boolean value) {
+        this.useMarks = value;
+        return this;
+    }
+
+    /**
+     * Whether the comments are parsed and attached to the composed nodes; the default is {@code true}. Turning this
+     * off saves parse work and heap when the comments are not dumped anyway.
+     */
+    public DocumentLoader
+    setParseComments(boolean value) {
+        this.parseComments = value;
+        return this;
+    }
+
+    /**
+     * The maximum number of code points that a document may have; the default is 3 MiB, as with snakeyaml-engine.
+     * Exceeding the limit causes a {@link org.snakeyaml.engine.v2.exceptions.YamlEngineException}.
+     */
+    public DocumentLoader
+    setMaxCodePoints(int value) {
+        this.maxCodePoints = value;
+        return this;
+    }
+
+    /**
+     * The maximum nesting depth of the collections of a document; the default is unlimited. Exceeding the limit
+     * causes a {@link LimitExceededException}.
+     */
+    public DocumentLoader
+    setMaxDepth(int value) {
+        this.maxDepth = value;
+        return this;
+    }
+
+    /**
+     * The maximum number of aliases that refer to collections in a document, which bounds the "billion laughs"
+     * expansion; the default is 50, as with snakeyaml-engine. Exceeding the limit causes a {@link
+     * LimitExceededException}.
+     */
+    public DocumentLoader
+    setMaxAliases(int value) {
+        this.maxAliases = value;
+        return this;
+    }
+
+    /**
+     * The maximum number of nodes (scalars and collections, not counting aliases) of a document; the default is
+     * unlimited. Exceeding the limit causes a {@link LimitExceededException}.
+     */
+    public DocumentLoader
+    setMaxNodes(long value) {
+        this.maxNodes = value;
+        return this;
+    }
+
+    /**
+     * @return The {@link LoadSettings} with which this loader parses and composes
+     */
+    public LoadSettings
+    getLoadSettings() { return this.getLoadSettings(this.parseComments); }
+
+    private LoadSettings
+    getLoadSettings(boolean parseComments) {
+        return (
+            LoadSettings.builder()
+            .setAllowDuplicateKeys(true)
+            .setParseComments(parseComments)
+            .setUseMarks(this.useMarks)
+            .setCodePointLimit(this.maxCodePoints)
+            .setMaxAliasesForCollections(this.maxAliases)
+            .build()
+        );
+    }
+
+    /**
+     * Composes the first (and only) document from the <var>in</var>; like {@link
+     * org.snakeyaml.engine.v2.api.lowlevel.Compose#composeReader(Reader)}, this fails iff the stream contains more
+     * than one document.
+     *
+     * @return {@link Optional#empty()} iff the stream contains no document
+     */
+    public Optional<Node>
+    load(Reader in) {
+
+        LoadSettings settings = this.getLoadSettings();
+
+        Parser parser = this.parser(settings, in);
+        if (this.deduplicateScalars) parser = new DeduplicatingParser(parser);
+
+        return new DocumentComposer(settings, parser).getSingleNode();
+    }
+
+    /**
+     * Parses the first (and only) document from the <var>in</var> into a {@link CompactDocument}, which never retains
+     * comments, so they are not parsed.
+     *
+     * @return {@link Optional#empty()} iff the stream contains no document
+     * @see    CompactDocument#load(Reader, LoadSettings)
+     */
+    public Optional<CompactDocument>
+    loadCompact(Reader in) {
+        LoadSettings settings = this.getLoadSettings(false);
+        return CompactDocument.load(this.parser(settings, in), settings);
+    }
+
+    /**
+     * @return A parser that enforces the configured limits
+     */
+    private Parser
+    parser(LoadSettings settings, Reader in) {
+        return new LimitingParser(
+            new ParserImpl(settings, new StreamReader(settings, in)),
+            this.maxDepth,
+            this.maxAliases,
+            this.maxNodes
+        );
+    }
+
+    /**
+     * Enforces the limits on the nesting depth, the number of aliases of collections and the number of nodes. Checking
+     * these on the event level (rather than in the {@link DocumentComposer}) fails fast, before the offending structure is
+     * composed, and works for {@link CompactDocument}s as well.
+     */
+    private static
+    class LimitingParser implements Parser {
+
+        private final Parser delegate;
+        private final int    maxDepth;
+        private final int    maxAliases;
+        private final long   maxNodes;
+
+        private int  depth;
+        private int  aliases;
+        private long nodes;
+
+        /**
+         * The anchors that currently designate collections.
+         */
+        private final Set<String> collectionAnchors = new HashSet<>();
+
+        LimitingParser(Parser delegate, int maxDepth, int maxAliases, long maxNodes) {
+            this.delegate   = delegate;
+            this.maxDepth   = maxDepth;
+            this.maxAliases = maxAliases;
+            this.maxNodes   = maxNodes;
+        }
+
+        @Override public boolean
+        checkEvent(Event.ID choice) { return this.delegate.checkEvent(choice); }
+
+        @Override public boolean
+        hasNext() { return this.delegate.hasNext(); }
+
+        @Override public Event
+        peekEvent() { return this.delegate.peekEvent(); }
+
+        @Override public Event
+        next() {
+
+            Event event = this.delegate.next();
+            switch (event.getEventId()) {
+
+            case MappingStart:
+            case SequenceStart:
+                if (++this.depth > this.maxDepth) {
+                    throw new LimitExceededException("Nesting depth exceeds the limit of " + this.maxDepth, event);
+                }
+                ((NodeEvent) event).getAnchor().ifPresent(anchor -> this.collectionAnchors.add(anchor.getValue()));
+                this.countNode(event);
+                break;
+
+            case Scalar:
+                ((NodeEvent) event).getAnchor().ifPresent(anchor -> this.collectionAnchors.remove(anchor.getValue()));
+                this.countNode(event);
+                break;
+
+            case MappingEnd:
+            case SequenceEnd:
+                this.depth--;
+                break;
+
+            case Alias:
+                if (
+                    this.collectionAnchors.contains(((AliasEvent) event).getAlias().getValue())
+                    && ++this.aliases > this.maxAliases
+                ) {
+                    throw new LimitExceededException(
+                        "Number of aliases of collections exceeds the limit of " + this.maxAliases,
+                        event
+                    );
+                }
+                break;
+
+            default:
+                ;
+            }
+
+            return event;
+        }
+
+        private void
+        countNode(Event event) {
+            if (++this.nodes > this.maxNodes) {
+                throw new LimitExceededException("Number of nodes exceeds the limit of " + this.maxNodes, event);
+            }
+        }
+    }
+
+    /**
+     * Replaces the values of the scalar events with equal strings that it has seen before.
+     */
+    private static
+    class DeduplicatingParser implements Parser {
+
+        private final Parser              delegate;
+        private final Map<String, String> values = new HashMap<>();
+
+        /**
+         * The (possibly replaced) event that {@link #peekEvent()} returned, and that {@link #next()} will return.
+         */
+        @Nullable private Event peeked;
+
+        DeduplicatingParser(Parser delegate) { this.delegate = delegate; }
+
+        @Override public boolean
+        checkEvent(Event.ID choice) { return this.delegate.checkEvent(choice); }
+
+        @Override public boolean
+        hasNext() { return this.delegate.hasNext(); }
+
+        @Override public Event
+        peekEvent() {
+            Event result = this.peeked;
+            if (result == null) result = (this.peeked = this.deduplicate(this.delegate.peekEvent()));
+            return result;
+        }
+
+        @Override public Event
+        next() {
+            Event result = this.peeked;
+            if (result == null) return this.deduplicate(this.delegate.next());
+            this.peeked = null;
+            this.delegate.next();
+            return result;
+        }
+
+        private Event
+        deduplicate(Event event) {
+
+            if (!(event instanceof ScalarEvent)) return event;
+
+            ScalarEvent scalarEvent = (ScalarEvent) event;
+            String      value       = scalarEvent.getValue();
+            if (value.length() > MAX_DEDUPLICATED_LENGTH) return event;
+
+            String existing = this.values.get(value);
+            if (existing == null) {
+                if (this.values.size() < MAX_DEDUPLICATED_VALUES) this.values.put(value, value);
+                return event;
+            }
+
+            return new ScalarEvent(
+                scalarEvent.getAnchor(),
+                scalarEvent.getTag(),
+                scalarEvent.getImplicit(),
+                existing,
+                scalarEvent.getScalarStyle(),
+                scalarEvent.getStartMark(),
+                scalarEvent.getEndMark()
+            );
+        }
+    }
+}
@@ -0,0 +1,108 @@
+
+/*
+ * yamltools-util - A library for command-line-base YAML tools
+ *
+ * Copyright (c) 2023, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.yamlutil;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Custom Java Flight Recorder events for the work that the yamltools do, so that a recording shows files,
+ * documents, operations and specs instead of anonymous lambda frames.
+ * <p>
+ *   While no recording is active (or the events are disabled), {@link Event#begin()}, {@link Event#end()} and {@link
+ *   Event#commit()} are no-ops that the JIT compiler eliminates. Anything that is expensive to compute (in particular
+ *   the node counts) must only be computed after {@link Event#shouldCommit()} returned {@code true}, e.g.
+ * </p>
+ * <pre>
+ *   ComposeEvent event = new ComposeEvent();
+ *   event.begin();
+ *   Node document = ...;
+ *   event.end();
+ *   if (event.shouldCommit()) {
+ *       event.nodes = Stats.countNodes(document);
+ *       event.commit();
+ *   }
+ * </pre>
+ */
+public final
+class Events {
+
+    private Events() {}
+
+    @Name("de.unkrig.yamltools.File")
+    @Label("File")
+    @Description("Processing of one input file")
+    @Category("YAML Tools")
+    @StackTrace(false)
+    public static
+    class FileEvent extends Event {
+
+        @Label("Path") public String path;
+    }
+
+    @Name("de.unkrig.yamltools.Compose")
+    @Label("Compose")
+    @Description("Reading and composing one document")
+    @Category("YAML Tools")
+    @StackTrace(false)
+    public static
+    class ComposeEvent extends Event {
+
+        @Label("Nodes") public long nodes;
+    }
+
+    @Name("de.unkrig.yamltools.Operation")
+    @Label("Operation")
+    @Description("Execution of one command line operation (e.g. \"--set\" or \"--dump\") on one document")
+    @Category("YAML Tools")
+    @StackTrace(false)
+    public static
+    class OperationEvent extends Event {
+
+        @Label("Operation") public String operation;
+        @Label("Spec")      public String spec;
+
+        @Label("Nodes")
+        @Description("The number of nodes of the document after the operation")
+        public long nodes;
+    }
+
+    @Name("de.unkrig.yamltools.Dump")
+    @Label("Dump")
+    @Description("Serializing and writing one node")
+    @Category("YAML Tools")
+    @StackTrace(false)
+    public static
+    class DumpEvent extends Event {
+
+        @Label("Nodes") public long nodes;
+    }
+}
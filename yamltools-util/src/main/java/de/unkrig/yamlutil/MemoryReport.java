@@ -0,0 +1,420 @@
+
+/*
+ * yamltools-util - A library for command-line-base YAML tools
+ *
+ * Copyright (c) 2023, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.yamlutil;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.snakeyaml.engine.v2.comments.CommentLine;
+import org.snakeyaml.engine.v2.common.Anchor;
+import org.snakeyaml.engine.v2.exceptions.Mark;
+import org.snakeyaml.engine.v2.nodes.AnchorNode;
+import org.snakeyaml.engine.v2.nodes.MappingNode;
+import org.snakeyaml.engine.v2.nodes.Node;
+import org.snakeyaml.engine.v2.nodes.NodeTuple;
+import org.snakeyaml.engine.v2.nodes.ScalarNode;
+import org.snakeyaml.engine.v2.nodes.SequenceNode;
+import org.snakeyaml.engine.v2.nodes.Tag;
+
+import de.unkrig.commons.nullanalysis.Nullable;
+
+/**
+ * Estimates the heap that composed document trees retain, broken down by {@link Category}, and relates it to the
+ * size of the input, so that the heap of a job ("{@code -Xmx}") can be sized from the size of its largest input.
+ * <p>
+ *   The estimate is computed from the object graph, not measured, and assumes the memory layout of a 64-bit HotSpot
+ *   JVM with compressed oops and compressed class pointers (the default for heaps smaller than 32 GB): 12 bytes
+ *   object header, 4 bytes per reference, 16 bytes array header, 8 bytes alignment. Objects that are shared (e.g.
+ *   the code point buffers of the marks, or aliased nodes) count only once. The backing arrays of lists count with
+ *   their size, not with their (unknown) capacity, so the estimate is a lower bound.
+ * </p>
+ * <p>
+ *   {@link #NONE} is a disabled instance that records nothing, so that the tools need not check for {@code null}.
+ * </p>
+ */
+public
+class MemoryReport {
+
+    /**
+     * An instance that records nothing, and also prints nothing.
+     */
+    public static final MemoryReport NONE = new MemoryReport(false);
+
+    public
+    enum Category {
+
+        /** The {@link ScalarNode}s (including the keys of maps), without their values. */
+        SCALAR_NODES("Scalar nodes"),
+
+        /** The {@link MappingNode}s, with their lists of {@link NodeTuple}s. */
+        MAPPING_NODES("Mapping nodes"),
+
+        /** The {@link SequenceNode}s, with their lists of elements. */
+        SEQUENCE_NODES("Sequence nodes"),
+
+        /** The {@link AnchorNode}s. */
+        ANCHOR_NODES("Anchor nodes"),
+
+        /** The values of the {@link ScalarNode}s. */
+        SCALAR_STRINGS("Scalar strings"),
+
+        /** The lists of {@link CommentLine}s, with their texts. */
+        COMMENTS("Comments"),
+
+        /** The start and end {@link Mark}s of the nodes and comments, with the code point buffers they reference. */
+        MARKS("Marks"),
+
+        /** Tags and anchors. */
+        OTHER("Other"),
+
+        /** The {@link CompactDocument}s, which are not broken down any further. */
+        COMPACT_DOCUMENTS("Compact docs"),
+        ;
+
+        private final String label;
+
+        Category(String label) { this.label = label; }
+    }
+
+    private static final Category[] CATEGORIES = Category.values();
+
+    private static final int OBJECT_HEADER = 12;
+    private static final int ARRAY_HEADER  = 16;
+    private static final int REFERENCE     = 4;
+
+    private static final Map<Class<?>, Integer> SHALLOW_SIZES = new ConcurrentHashMap<>();
+
+    private final boolean enabled;
+    private final long[]  bytes = new long[Category.values().length];
+    private final long[]  nodes = new long[Category.values().length];
+    private long          documents;
+    private long          inputBytes;
+
+    /**
+     * The objects of the current document that were already counted. (Shared constants, e.g. {@link Tag#STR}, thus
+     * count once per document, which is negligible.)
+     */
+    private final Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    public
+    MemoryReport() { this(true); }
+
+    private
+    MemoryReport(boolean enabled) { this.enabled = enabled; }
+
+    /**
+     * Adds the estimated footprint of the given <var>document</var> to this report.
+     */
+    public void
+    add(Node document) {
+        if (!this.enabled) return;
+
+        this.documents++;
+
+        List<Node> stack = new ArrayList<>();
+        stack.add(document);
+        try {
+            while (!stack.isEmpty()) {
+                Node node = stack.remove(stack.size() - 1);
+                if (!this.seen.add(node)) continue;
+
+                this.node(node, stack);
+            }
+        } finally {
+
+            // Don't keep the document reachable.
+            this.seen.clear();
+        }
+    }
+
+    /**
+     * Adds the estimated footprint of the given compact <var>document</var> to this report.
+     */
+    public void
+    add(CompactDocument document) {
+        if (!this.enabled) return;
+
+        this.documents++;
+        this.nodes[Category.COMPACT_DOCUMENTS.ordinal()] += document.nodeCount();
+        this.bytes[Category.COMPACT_DOCUMENTS.ordinal()] += document.estimatedSize();
+    }
+
+    /**
+     * @return An input stream that counts the bytes read from the <var>delegate</var> as input bytes
+     */
+    public InputStream
+    inputStream(InputStream delegate) {
+        if (!this.enabled) return delegate;
+
+        return new FilterInputStream(delegate) {
+
+            @Override public int
+            read() throws IOException {
+                int result = super.read();
+                if (result != -1) MemoryReport.this.inputBytes++;
+                return result;
+            }
+
+            @Override public int
+            read(byte[] b, int off, int len) throws IOException {
+                int result = super.read(b, off, len);
+                if (result > 0) MemoryReport.this.inputBytes += result;
+                return result;
+            }
+        };
+    }
+
+    /**
+     * @return The estimated number of bytes of all the documents added so far
+     */
+    public long
+    getTotalBytes() {
+        long result = 0;
+        for (long b : this.bytes) result += b;
+        return result;
+    }
+
+    /**
+     * @return The estimated number of bytes of the given <var>category</var>, of all the documents added so far
+     */
+    public long
+    getBytes(Category category) { return this.bytes[category.ordinal()]; }
+
+    /**
+     * Prints the estimated footprint by category, and, iff any input bytes were counted, per MB of input.
+     */
+    public void
+    print(PrintStream ps) {
+        if (!this.enabled) return;
+
+        long   total  = this.getTotalBytes();
+        double inMb   = this.inputBytes / (1024. * 1024.);
+
+        ps.printf(
+            Locale.ROOT,
+            "Estimated retained heap of %d document(s) from %d bytes of input:%n",
+            this.documents,
+            this.inputBytes
+        );
+        ps.printf(Locale.ROOT, "%-16s %8s %14s %7s %14s%n", "Category", "nodes", "bytes", "%", "bytes/input MB");
+        for (Category c : MemoryReport.CATEGORIES) {
+            MemoryReport.printLine(ps, c.label, this.nodes[c.ordinal()], this.bytes[c.ordinal()], total, inMb);
+        }
+        long totalNodes = 0;
+        for (long n : this.nodes) totalNodes += n;
+        MemoryReport.printLine(ps, "Total", totalNodes, total, total, inMb);
+    }
+
+    private static void
+    printLine(PrintStream ps, String label, long nodes, long bytes, long total, double inMb) {
+        ps.printf(
+            Locale.ROOT,
+            "%-16s %8s %14d %6.1f%% %14s%n",
+            label,
+            nodes == 0 ? "" : Long.toString(nodes),
+            bytes,
+            total == 0 ? 0. : 100. * bytes / total,
+            inMb == 0 ? "n/a" : String.format(Locale.ROOT, "%.0f", bytes / inMb)
+        );
+    }
+
+    private void
+    node(Node node, List<Node> stack) {
+
+        Category category;
+        if (node instanceof ScalarNode) {
+            category = Category.SCALAR_NODES;
+            this.string(((ScalarNode) node).getValue(), Category.SCALAR_STRINGS);
+        } else
+        if (node instanceof MappingNode) {
+            category = Category.MAPPING_NODES;
+            List<NodeTuple> tuples = ((MappingNode) node).getValue();
+            this.list(tuples, category);
+            for (NodeTuple nt : tuples) {
+                this.object(nt, category);
+                stack.add(nt.getKeyNode());
+                stack.add(nt.getValueNode());
+            }
+        } else
+        if (node instanceof SequenceNode) {
+            category = Category.SEQUENCE_NODES;
+            List<Node> elements = ((SequenceNode) node).getValue();
+            this.list(elements, category);
+            stack.addAll(elements);
+        } else
+        if (node instanceof AnchorNode) {
+            category = Category.ANCHOR_NODES;
+            stack.add(((AnchorNode) node).getRealNode());
+        } else
+        {
+            category = Category.OTHER;
+        }
+        this.nodes[category.ordinal()]++;
+        this.bytes[category.ordinal()] += MemoryReport.shallowSize(node.getClass());
+
+        this.mark(node.getStartMark());
+        this.mark(node.getEndMark());
+
+        Tag tag = node.getTag();
+        if (this.object(tag, Category.OTHER)) this.string(tag.getValue(), Category.OTHER);
+
+        Optional<Anchor> anchor = node.getAnchor();
+        if (this.object(anchor, Category.OTHER) && anchor.isPresent()) {
+            if (this.object(anchor.get(), Category.OTHER)) this.string(anchor.get().getValue(), Category.OTHER);
+        }
+
+        this.comments(node.getBlockComments());
+        this.comments(node.getInLineComments());
+        this.comments(node.getEndComments());
+    }
+
+    private void
+    comments(@Nullable List<CommentLine> comments) {
+
+        if (comments == null || !this.list(comments, Category.COMMENTS)) return;
+
+        for (CommentLine cl : comments) {
+            if (!this.object(cl, Category.COMMENTS)) continue;
+            this.string(cl.getValue(), Category.COMMENTS);
+            this.mark(cl.getStartMark());
+            this.mark(cl.getEndMark());
+        }
+    }
+
+    private void
+    mark(@Nullable Optional<Mark> mark) {
+
+        if (mark == null || !this.object(mark, Category.MARKS) || !mark.isPresent()) return;
+
+        Mark m = mark.get();
+        if (!this.object(m, Category.MARKS)) return;
+
+        this.string(m.getName(), Category.MARKS);
+        int[] buffer = m.getBuffer();
+        if (buffer != null && this.seen.add(buffer)) {
+            this.bytes[Category.MARKS.ordinal()] += MemoryReport.arraySize(4, buffer.length);
+        }
+    }
+
+    /**
+     * Counts the given <var>list</var> as an {@link java.util.ArrayList} with an exactly fitting backing array.
+     *
+     * @return Whether the list was not counted before
+     */
+    private boolean
+    list(List<?> list, Category category) {
+
+        if (!this.object(list, category)) return false;
+
+        if (!list.isEmpty()) this.bytes[category.ordinal()] += MemoryReport.arraySize(REFERENCE, list.size());
+        return true;
+    }
+
+    private void
+    string(@Nullable String s, Category category) {
+
+        if (s == null || !this.object(s, category)) return;
+
+        // With "compact strings" (the default since Java 9), a string that contains only LATIN-1 characters stores
+        // one byte per character.
+        boolean latin1 = true;
+        for (int i = 0, n = s.length(); i < n; i++) {
+            if (s.charAt(i) > 0xff) {
+                latin1 = false;
+                break;
+            }
+        }
+        this.bytes[category.ordinal()] += MemoryReport.arraySize(latin1 ? 1 : 2, s.length());
+    }
+
+    /**
+     * Counts the shallow size of the given <var>object</var>.
+     *
+     * @return Whether the object was not counted before
+     */
+    private boolean
+    object(@Nullable Object object, Category category) {
+
+        if (object == null || !this.seen.add(object)) return false;
+
+        this.bytes[category.ordinal()] += MemoryReport.shallowSize(object.getClass());
+        return true;
+    }
+
+    /**
+     * @return The estimated size of an instance of the given <var>clazz</var>, computed from its instance fields
+     */
+    public static int
+    shallowSize(Class<?> clazz) {
+
+        Integer result = MemoryReport.SHALLOW_SIZES.get(clazz);
+        if (result == null) {
+            int size = MemoryReport.OBJECT_HEADER;
+            for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+                for (Field f : c.getDeclaredFields()) {
+                    if (Modifier.isStatic(f.getModifiers())) continue;
+
+                    Class<?> t = f.getType();
+                    size += (
+                        t == long.class || t == double.class ? 8 :
+                        t == int.class || t == float.class   ? 4 :
+                        t == short.class || t == char.class  ? 2 :
+                        t == byte.class || t == boolean.class ? 1 :
+                        MemoryReport.REFERENCE
+                    );
+                }
+            }
+            MemoryReport.SHALLOW_SIZES.put(clazz, (result = MemoryReport.align(size)));
+        }
+
+        return result;
+    }
+
+    static long
+    arraySize(int elementSize, int length) {
+        return MemoryReport.align(MemoryReport.ARRAY_HEADER + (long) elementSize * length);
+    }
+
+    private static int
+    align(int size) { return (size + 7) & ~7; }
+
+    private static long
+    align(long size) { return (size + 7) & ~7L; }
+}
@@ -0,0 +1,244 @@
+
+/*
+ * yamltools-util - A library for command-line-base YAML tools
+ *
+ * Copyright (c) 2023, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.yamlutil;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.snakeyaml.engine.v2.common.ScalarStyle;
+import org.snakeyaml.engine.v2.nodes.MappingNode;
+import org.snakeyaml.engine.v2.nodes.Node;
+import org.snakeyaml.engine.v2.nodes.NodeTuple;
+import org.snakeyaml.engine.v2.nodes.NodeType;
+import org.snakeyaml.engine.v2.nodes.ScalarNode;
+import org.snakeyaml.engine.v2.nodes.SequenceNode;
+import org.snakeyaml.engine.v2.nodes.Tag;
+
+import de.unkrig.commons.nullanalysis.Nullable;
+import de.unkrig.yamlutil.SpecParser.Explanation;
+import de.unkrig.yamlutil.SpecParser.SpecMatchException;
+
+/**
+ * Resolves YAML merge keys, as in "{@code <<: *defaults}" or "{@code <<: [*defaults, *overrides]}": The entries of
+ * the merged maps are visible in the merging map, unless the merging map (or a map earlier in the merge sequence)
+ * has an entry with an equal key.
+ * <p>
+ *   For each map that is looked up, the flattened entries and a hash index of its scalar keys are built lazily and
+ *   cached, so that repeated lookups do not walk the merge chain again. Because the cache is not invalidated when
+ *   the document is modified, an instance should be used only as long as the document is not modified.
+ * </p>
+ * <p>
+ *   A merged map is typically shared by several merging maps, so modifying it through an inherited entry would
+ *   modify all of them; see {@link #setCopyInheritedEntries(boolean)}.
+ * </p>
+ */
+public
+class MergeKeyIndex {
+
+    private static final Tag MERGE = new Tag(Tag.PREFIX + "merge");
+
+    private boolean copyInheritedEntries;
+
+    /**
+     * The flattened entries of each map that was looked up so far; created on the first lookup.
+     */
+    @Nullable private Map<MappingNode, Entries> cache;
+
+    /**
+     * The maps whose entries are currently being flattened; used to ignore recursive merges. Created on the first
+     * lookup.
+     */
+    @Nullable private Set<MappingNode> flattening;
+
+    private static
+    class Entries {
+
+        /** The effective entries of the map, without the merge keys, in order. */
+        final List<NodeTuple> tuples = new ArrayList<>();
+
+        /** The effective entries with scalar keys, by key. */
+        final Map<String, NodeTuple> scalarKeys = new HashMap<>();
+
+        /**
+         * Adds the <var>tuple</var> unless this object already contains an equal key.
+         */
+        void
+        add(NodeTuple tuple) {
+            Node key = SpecParser.realNode(tuple.getKeyNode());
+            if (key instanceof ScalarNode) {
+                if (this.scalarKeys.putIfAbsent(((ScalarNode) key).getValue(), tuple) != null) return;
+            } else
+            {
+                for (NodeTuple t : this.tuples) {
+                    if (SpecParser.equals(t.getKeyNode(), key)) return;
+                }
+            }
+            this.tuples.add(tuple);
+        }
+    }
+
+    /**
+     * @return Whether the <var>key</var> is a merge key, i.e. a plain "{@code <<}" or a "{@code !!merge}"-tagged scalar
+     */
+    public static boolean
+    isMergeKey(Node key) {
+        if (!(key instanceof ScalarNode)) return false;
+        ScalarNode scalar = (ScalarNode) key;
+        return (
+            MERGE.equals(scalar.getTag())
+            || ("<<".equals(scalar.getValue()) && scalar.getScalarStyle() == ScalarStyle.PLAIN)
+        );
+    }
+
+    /**
+     * Whether {@link #get(MappingNode, Node)} copies an entry that the map inherits into the map, as an entry of its
+     * own, before returning its value; the default is {@code false}. Set this when the value is going to be
+     * modified, so that the modification does not affect the merged map, nor the other maps that merge it.
+     */
+    public MergeKeyIndex
+    setCopyInheritedEntries(boolean value) {
+        this.copyInheritedEntries = value;
+        return this;
+    }
+
+    /**
+     * @return The value of the effective entry of the <var>map</var> with the given <var>key</var>, or {@code null}
+     * @see    #setCopyInheritedEntries(boolean)
+     */
+    @Nullable public Node
+    get(MappingNode map, Node key) { return this.get(map, key, null, 0); }
+
+    /**
+     * @param explanation Iff not {@code null}, then the lookup is recorded for the given <var>segment</var>
+     */
+    @Nullable Node
+    get(MappingNode map, Node key, @Nullable Explanation explanation, int segment) {
+
+        NodeTuple tuple = this.find(map, key, explanation, segment);
+        if (tuple == null) return null;
+
+        if (this.copyInheritedEntries && !MergeKeyIndex.isOwnEntry(map, tuple)) {
+            tuple = new NodeTuple(SpecParser.copy(tuple.getKeyNode()), SpecParser.copy(tuple.getValueNode()));
+            map.getValue().add(tuple);
+
+            // The map, and the maps that merge it, now have different effective entries.
+            this.cache = null;
+        }
+
+        return tuple.getValueNode();
+    }
+
+    @Nullable private NodeTuple
+    find(MappingNode map, Node key, @Nullable Explanation explanation, int segment) {
+
+        Entries entries = this.entries2(map);
+
+        key = SpecParser.realNode(key);
+        if (key instanceof ScalarNode) {
+            if (explanation != null) explanation.mapEntriesScanned[segment]++;
+            return entries.scalarKeys.get(((ScalarNode) key).getValue());
+        }
+
+        for (NodeTuple tuple : entries.tuples) {
+            if (explanation != null) explanation.mapEntriesScanned[segment]++;
+            if (SpecParser.equals(tuple.getKeyNode(), key, explanation, segment, 1)) return tuple;
+        }
+        return null;
+    }
+
+    private static boolean
+    isOwnEntry(MappingNode map, NodeTuple tuple) {
+        for (NodeTuple t : map.getValue()) {
+            if (t == tuple) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return The effective entries of the <var>map</var>: Its own entries (except the merge keys), followed by the
+     *         entries of the merged maps that are not overridden
+     */
+    public List<NodeTuple>
+    entries(MappingNode map) { return Collections.unmodifiableList(this.entries2(map).tuples); }
+
+    private Entries
+    entries2(MappingNode map) {
+
+        Map<MappingNode, Entries> cache = this.cache;
+        if (cache == null) {
+            cache = (this.cache = new IdentityHashMap<>());
+        } else
+        {
+            Entries result = cache.get(map);
+            if (result != null) return result;
+        }
+
+        Set<MappingNode> flattening = this.flattening;
+        if (flattening == null) flattening = (this.flattening = Collections.newSetFromMap(new IdentityHashMap<>()));
+
+        Entries result = new Entries();
+        flattening.add(map);
+        try {
+            List<Node> merged = new ArrayList<>();
+            for (NodeTuple tuple : map.getValue()) {
+                if (!MergeKeyIndex.isMergeKey(SpecParser.realNode(tuple.getKeyNode()))) {
+                    result.add(tuple);
+                    continue;
+                }
+
+                Node value = SpecParser.realNode(tuple.getValueNode());
+                if (value.getNodeType() == NodeType.SEQUENCE) {
+                    merged.addAll(((SequenceNode) value).getValue());
+                } else
+                {
+                    merged.add(value);
+                }
+            }
+
+            for (Node m : merged) {
+                m = SpecParser.realNode(m);
+                if (!(m instanceof MappingNode)) {
+                    throw new SpecMatchException(
+                        "Merge key value \"" + SpecParser.toString(m) + "\" is not a map nor a sequence of maps"
+                    );
+                }
+                if (flattening.contains(m)) continue;
+                for (NodeTuple tuple : this.entries2((MappingNode) m).tuples) result.add(tuple);
+            }
+        } finally {
+            flattening.remove(map);
+        }
+
+        cache.put(map, result);
+        return result;
+    }
+}
@@ -0,0 +1,62 @@
+
+/*
+ * yamltools-util - A library for command-line-base YAML tools
+ *
+ * Copyright (c) 2023, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.yamlutil;
+
+import org.snakeyaml.engine.v2.nodes.Node;
+
+import de.unkrig.commons.nullanalysis.Nullable;
+
+/**
+ * Wraps a {@link Node} such that it can serve as a {@link java.util.HashMap} key: Two keys are equal iff their nodes
+ * are {@link SpecParser#equals(Node, Node) structurally equal}. The hash code is computed only once.
+ */
+public final
+class NodeKey {
+
+    private final Node node;
+    private final int  hashCode;
+
+    public
+    NodeKey(Node node) {
+        this.node     = node;
+        this.hashCode = SpecParser.hashCode(node);
+    }
+
+    public Node
+    getNode() { return this.node; }
+
+    @Override public int
+    hashCode() { return this.hashCode; }
+
+    @Override public boolean
+    equals(@Nullable Object obj) {
+        if (obj == this) return true;
+        if (!(obj instanceof NodeKey)) return false;
+        NodeKey that = (NodeKey) obj;
+        return this.hashCode == that.hashCode && SpecParser.equals(this.node, that.node);
+    }
+}
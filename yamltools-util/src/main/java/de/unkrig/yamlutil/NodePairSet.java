@@ -0,0 +1,70 @@
+
+/*
+ * yamltools-util - A library for command-line-base YAML tools
+ *
+ * Copyright (c) 2023, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.yamlutil;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.snakeyaml.engine.v2.nodes.Node;
+
+/**
+ * A set of pairs of {@link Node}s, which compares the nodes by identity. Useful for tree comparisons, which must
+ * compare shared (aliased) subtrees only once, and must terminate on recursive structures.
+ */
+public
+class NodePairSet {
+
+    /**
+     * Maps the first node of each pair to the second node, or, iff there is more than one pair with that first node,
+     * to the {@link Set} of second nodes.
+     */
+    private final Map<Node, Object> pairs = new IdentityHashMap<>();
+
+    /**
+     * @return Whether the set did not already contain the pair
+     */
+    public boolean
+    add(Node a, Node b) {
+
+        Object seconds = this.pairs.putIfAbsent(a, b);
+        if (seconds == null) return true;
+        if (seconds == b) return false;
+
+        if (seconds instanceof Node) {
+            Set<Node> set = Collections.newSetFromMap(new IdentityHashMap<>());
+            set.add((Node) seconds);
+            set.add(b);
+            this.pairs.put(a, set);
+            return true;
+        }
+
+        @SuppressWarnings("unchecked") Set<Node> set = (Set<Node>) seconds;
+        return set.add(b);
+    }
+}
@@ -0,0 +1,81 @@
+
+/*
+ * yamltools-util - A library for command-line-base YAML tools
+ *
+ * Copyright (c) 2023, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.yamlutil;
+
+import java.util.Arrays;
+
+import org.snakeyaml.engine.v2.nodes.Node;
+
+import de.unkrig.commons.nullanalysis.Nullable;
+
+/**
+ * A stack of pairs of {@link Node}s, each with an {@code int} value. Useful for tree comparisons that must not recurse,
+ * because, unlike an {@link java.util.ArrayDeque ArrayDeque&lt;Object>}, it allocates only when it grows, and the
+ * values are not boxed.
+ */
+public
+class NodePairStack {
+
+    private @Nullable Node[] nodes  = new Node[32];
+    private int[]            values = new int[16];
+    private int              size;
+
+    public boolean
+    isEmpty() { return this.size == 0; }
+
+    public void
+    push(@Nullable Node first, @Nullable Node second, int value) {
+
+        if (this.size == this.values.length) {
+            this.nodes  = Arrays.copyOf(this.nodes, 4 * this.size);
+            this.values = Arrays.copyOf(this.values, 2 * this.size);
+        }
+
+        this.nodes[2 * this.size]     = first;
+        this.nodes[2 * this.size + 1] = second;
+        this.values[this.size++]      = value;
+    }
+
+    /**
+     * Removes the topmost entry, so that {@link #first()}, {@link #second()} and {@link #value()} return its
+     * components.
+     */
+    public void
+    pop() {
+        assert this.size > 0;
+        this.size--;
+    }
+
+    @Nullable public Node
+    first() { return this.nodes[2 * this.size]; }
+
+    @Nullable public Node
+    second() { return this.nodes[2 * this.size + 1]; }
+
+    public int
+    value() { return this.values[this.size]; }
+}
@@ -26,13 +26,19 @@
 
 package de.unkrig.yamlutil;
 
+import java.io.PrintStream;
 import java.io.Reader;
 import java.io.StringWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import org.snakeyaml.engine.v2.api.Dump;
 import org.snakeyaml.engine.v2.api.DumpSettings;
 import org.snakeyaml.engine.v2.api.LoadSettings;
 import org.snakeyaml.engine.v2.api.StreamDataWriter;
@@ -52,6 +58,7 @@ import org.snakeyaml.engine.v2.parser.ParserImpl;
 import org.snakeyaml.engine.v2.scanner.StreamReader;
 
 import de.unkrig.commons.lang.ExceptionUtil;
+import de.unkrig.commons.nullanalysis.Nullable;
 
 public
 class SpecParser {
@@ -61,6 +68,28 @@ class SpecParser {
     private static final Pattern MAP_ENTRY_SPEC1       = Pattern.compile("\\.([A-Za-z0-9_\\-]+)");
     private static final Pattern MAP_ENTRY_SPEC2       = Pattern.compile("\\.\\((.*)");
     private static final Pattern SEQUENCE_ELEMENT_SPEC = Pattern.compile("\\[(-?\\d*)]");
+    private static final Pattern ARRAY_INDEX           = Pattern.compile("0|[1-9]\\d{0,8}");
+
+    /**
+     * The number of nodes that contribute to a {@link #hashCode(Node)}.
+     */
+    private static final int MAX_HASHED_NODES = 100;
+
+    /**
+     * The nesting depth up to which {@link #equals(Node, Node)} recurses; deeper trees are compared with an explicit
+     * stack.
+     */
+    private static final int MAX_RECURSION_DEPTH = 100;
+
+    /**
+     * The number of node comparisons after which {@link #equals(Node, Node)} starts over, keeping track of the pairs of
+     * collections that it compared, so that shared (aliased) subtrees are compared only once within that comparison.
+     * Notice that nothing is remembered across comparisons, e.g. between the elements of a sequence.
+     */
+    private static final int MAX_UNTRACKED_COMPARISONS = 10000;
+
+    // Results of "equalsRecursively()" other than the remaining budget.
+    private static final int UNEQUAL = -1, TOO_COMPLEX = -2;
 
     public static
     class SpecMatchException extends RuntimeException {
@@ -112,9 +141,12 @@ class SpecParser {
     	void handleMap(MappingNode map);
 
     	/**
-    	 * Designated node is an anchor.
+    	 * Is no longer invoked, because anchors are transparent when a spec is processed.
+    	 *
+    	 * @deprecated The designated node is never an anchor; see {@link SpecParser#realNode(Node)}
     	 */
-    	void handleAnchor(AnchorNode anchor);
+    	@Deprecated default void
+    	handleAnchor(AnchorNode anchor) {}
     }
 
     public
@@ -122,62 +154,406 @@ class SpecParser {
     	void handleNode(Node node);
     }
 
+    /**
+     * A parsed spec, which can efficiently be applied to any number of documents.
+     *
+     * @see SpecParser#compile(String)
+     */
+    public static final
+    class Spec {
+
+        private final String text;
+        final List<Segment>  segments;
+
+        Spec(String text, List<Segment> segments) {
+            this.text     = text;
+            this.segments = segments;
+        }
+
+        @Override public String
+        toString() { return this.text; }
+    }
+
+    /**
+     * Collects, for each segment of a {@link Spec}, how much work its evaluations took, in order to make expensive
+     * segments (e.g. "{@code .(}<var>yaml-document</var>{@code )}" lookups in large maps) visible.
+     *
+     * @see SpecParser#processSpec(Node, Spec, SpecHandler3, Explanation)
+     */
+    public static final
+    class Explanation {
+
+        private final Spec spec;
+        long               evaluations;
+        final long[]       mapEntriesScanned;
+        final long[]       equalsCalls;
+        final int[]        maxEqualsDepth;
+        final long[]       sequenceElementsVisited;
+        final long[]       nanos;
+
+        public
+        Explanation(Spec spec) {
+            this.spec = spec;
+
+            int n = spec.segments.size();
+            this.mapEntriesScanned       = new long[n];
+            this.equalsCalls             = new long[n];
+            this.maxEqualsDepth          = new int[n];
+            this.sequenceElementsVisited = new long[n];
+            this.nanos                   = new long[n];
+        }
+
+        /**
+         * Prints one line per segment of the spec.
+         */
+        public void
+        print(PrintStream ps) {
+
+            ps.printf(Locale.ROOT, "Spec \"%s\", evaluated %d time(s):%n", this.spec.text, this.evaluations);
+            if (this.spec.segments.isEmpty()) return;
+
+            int width = 7;
+            for (int i = 0; i < this.spec.segments.size(); i++) width = Math.max(width, this.segmentText(i).length());
+
+            ps.printf(
+                Locale.ROOT,
+                "  %-" + width + "s %12s %12s %9s %12s %10s%n",
+                "Segment", "map entries", "equals calls", "max depth", "seq elements", "time ms"
+            );
+            for (int i = 0; i < this.spec.segments.size(); i++) {
+                ps.printf(
+                    Locale.ROOT,
+                    "  %-" + width + "s %12d %12d %9d %12d %10.3f%n",
+                    this.segmentText(i),
+                    this.mapEntriesScanned[i],
+                    this.equalsCalls[i],
+                    this.maxEqualsDepth[i],
+                    this.sequenceElementsVisited[i],
+                    this.nanos[i] / 1E6
+                );
+            }
+        }
+
+        private String
+        segmentText(int index) {
+            List<Segment> segments = this.spec.segments;
+            return this.spec.text.substring(
+                segments.get(index).offset,
+                index == segments.size() - 1 ? this.spec.text.length() : segments.get(index + 1).offset
+            );
+        }
+    }
+
+    /**
+     * One ".<var>identifier</var>", ".(<var>yaml-document</var>)", "[<var>index</var>]" or "[]" part of a spec.
+     */
+    abstract static
+    class Segment {
+
+        /**
+         * The position of this segment within the spec text; useful for error messages.
+         */
+        final int offset;
+
+        Segment(int offset) { this.offset = offset; }
+    }
+
+    /**
+     * ".<var>identifier</var>" or ".(<var>yaml-document</var>)": A map entry, sequence element or set member.
+     */
+    static
+    class MapEntrySegment extends Segment {
+
+        final Node key;
+
+        MapEntrySegment(int offset, Node key) {
+            super(offset);
+            this.key = key;
+        }
+    }
+
+    /**
+     * "[<var>index</var>]" or "[]": A sequence element by index.
+     */
+    static
+    class SequenceIndexSegment extends Segment {
+
+        /**
+         * {@code null} for "[]", i.e. the element after the last existing.
+         */
+        @Nullable final Integer index;
+
+        SequenceIndexSegment(int offset, @Nullable Integer index) {
+            super(offset);
+            this.index = index;
+        }
+    }
+
+    /**
+     * A reference token of a JSON Pointer (RFC 6901): A map entry when applied to a map, and a sequence element by
+     * index (or "{@code -}", i.e. the element after the last existing) when applied to a sequence.
+     *
+     * @see SpecParser#compileJsonPointer(String)
+     */
+    static
+    class PointerSegment extends Segment {
+
+        private final String                         token;
+        private final MapEntrySegment                mapEntry;
+        @Nullable private final SequenceIndexSegment sequenceIndex;
+
+        PointerSegment(int offset, String token) {
+            super(offset);
+            this.token    = token;
+            this.mapEntry = new MapEntrySegment(offset, new ScalarNode(Tag.STR, token, ScalarStyle.PLAIN));
+
+            this.sequenceIndex = (
+                "-".equals(token)                    ? new SequenceIndexSegment(offset, null) :
+                ARRAY_INDEX.matcher(token).matches() ? new SequenceIndexSegment(offset, Integer.parseInt(token)) :
+                null
+            );
+        }
+
+        /**
+         * @return The {@link MapEntrySegment} or the {@link SequenceIndexSegment} that this token stands for when
+         *         applied to a node of the given type
+         */
+        Segment
+        resolve(boolean sequence) {
+
+            if (!sequence) return this.mapEntry;
+
+            if (this.sequenceIndex == null) throw new SpecMatchException("\"" + this.token + "\" is not a sequence index");
+            return this.sequenceIndex;
+        }
+    }
+
+    /**
+     * Compiled specs by spec text; shared by all documents and all operations in this JVM, which pays off
+     * particularly for "{@code .(}<var>yaml-document</var>{@code )}" segments, which require a YAML parser.
+     */
+    private static final Map<String, Spec> COMPILED_SPECS = Collections.synchronizedMap(
+        new LinkedHashMap<String, Spec>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override protected boolean
+            removeEldestEntry(Map.Entry<String, Spec> eldest) { return this.size() > 1000; }
+        }
+    );
+
+    /**
+     * Parses the <var>spec</var> (or gets it from the cache).
+     *
+     * @throws SpecSyntaxException
+     */
+    public static Spec
+    compile(String spec) {
+
+        Spec result = SpecParser.COMPILED_SPECS.get(spec);
+        if (result == null) {
+            result = SpecParser.compile2(spec);
+            SpecParser.COMPILED_SPECS.put(spec, result);
+        }
+
+        return result;
+    }
+
+    private static Spec
+    compile2(String spec) {
+
+        List<Segment> segments = new ArrayList<>();
+
+        Matcher m;
+        for (StringBuilder s = new StringBuilder(spec); s.length() > 0;) {
+            int offset = spec.length() - s.length();
+            try {
+
+                if ((m = MAP_ENTRY_SPEC1.matcher(s)).lookingAt()) {       // .<identifier>
+                    segments.add(new MapEntrySegment(offset, new ScalarNode(Tag.STR, m.group(1), ScalarStyle.PLAIN)));
+                    s.delete(0, m.end());
+                } else
+                if ((m = MAP_ENTRY_SPEC2.matcher(s)).lookingAt()) {       // .(<yaml-document>)
+                    s.delete(0, 2);
+                    Node key = SpecParser.loadFirst(s);
+                    if (s.length() == 0 || s.charAt(0) != ')') throw new SpecSyntaxException("Closing parenthesis missing after map key \"" + toString(key) + "\"");
+                    s.delete(0, 1);
+                    segments.add(new MapEntrySegment(offset, key));
+                } else
+                if ((m = SEQUENCE_ELEMENT_SPEC.matcher(s)).lookingAt()) { // [<integer>], []
+                    segments.add(new SequenceIndexSegment(
+                        offset,
+                        m.group(1).isEmpty() ? null : Integer.parseInt(m.group(1))
+                    ));
+                    s.delete(0, m.end());
+                } else
+                {
+                    throw new SpecSyntaxException("Invalid spec \"" + s + "\"");
+                }
+            } catch (RuntimeException e) {
+                throw ExceptionUtil.wrap("Parsing spec \"" + spec + "\" at offset " + offset, e);
+            }
+        }
+
+        return new Spec(spec, segments);
+    }
+
+    /**
+     * Parses a JSON Pointer (RFC 6901), e.g. "{@code /spec/containers/0/image}", into a {@link Spec}. Each reference
+     * token designates a map entry (with a string key) or, when applied to a sequence, a sequence element by index;
+     * "{@code -}" designates the element after the last existing. "{@code ~1}" and "{@code ~0}" are the escape
+     * sequences for "{@code /}" and "{@code ~}". The empty pointer designates the entire document.
+     *
+     * @throws SpecSyntaxException
+     */
+    public static Spec
+    compileJsonPointer(String pointer) {
+
+        List<Segment> segments = new ArrayList<>();
+        if (pointer.isEmpty()) return new Spec(pointer, segments);
+
+        if (pointer.charAt(0) != '/') throw new SpecSyntaxException("JSON pointer \"" + pointer + "\" does not start with \"/\"");
+
+        for (int offset = 1;;) {
+            int end = pointer.indexOf('/', offset);
+            if (end == -1) end = pointer.length();
+
+            StringBuilder token = new StringBuilder(end - offset);
+            for (int i = offset; i < end; i++) {
+                char c = pointer.charAt(i);
+                if (c == '~') {
+                    char c2 = ++i < end ? pointer.charAt(i) : 0;
+                    if (c2 != '0' && c2 != '1') {
+                        throw new SpecSyntaxException("Invalid escape sequence in JSON pointer \"" + pointer + "\" at offset " + (i - 1));
+                    }
+                    c = c2 == '0' ? '~' : '/';
+                }
+                token.append(c);
+            }
+            segments.add(new PointerSegment(offset, token.toString()));
+
+            if (end == pointer.length()) return new Spec(pointer, segments);
+            offset = end + 1;
+        }
+    }
+
     /**
      * Parses the <var>spec</var>, locates the relevant node in the <var>root</var> document, and invokes one of the
      * methods of the <var>specHandler</var>.
-     * 
-     * @throws SpecMatchException A map entry spec was applied to a non-map element
-     * @throws SpecMatchException A map entry spec designates a non-existing key
-     * @throws SpecMatchException A sequence element spec was applied to a non-sequence element
-     * @throws SpecMatchException A sequence index was out-of-range (except for the last segment of the <var>spec</var>)
-     * @throws SpecMatchException A set member spec was applied to a non-set element
+     *
+     * @throws SpecMatchException  See {@link #processSpec(Node, Spec, SpecHandler)}
      * @throws SpecSyntaxException
      */
     public static void
     processSpec(Node root, String spec, SpecHandler specHandler) {
+        SpecParser.processSpec(root, SpecParser.compile(spec), specHandler);
+    }
+
+    /**
+     * Locates the node designated by the <var>spec</var> in the <var>root</var> document, and invokes one of the
+     * methods of the <var>specHandler</var>.
+     *
+     * @throws SpecMatchException  A map entry spec was applied to a non-map element
+     * @throws SpecMatchException  A map entry spec designates a non-existing key
+     * @throws SpecMatchException  A sequence element spec was applied to a non-sequence element
+     * @throws SpecMatchException  A sequence index was out-of-range (except for the last segment of the <var>spec</var>)
+     * @throws SpecMatchException  A set member spec was applied to a non-set element
+     * @throws SpecSyntaxException The <var>spec</var> is empty
+     */
+    public static void
+    processSpec(Node root, Spec spec, SpecHandler specHandler) {
+        SpecParser.processSpec(root, spec, specHandler, null, null);
+    }
+
+    /**
+     * Equivalent with {@link #processSpec(Node, Spec, SpecHandler)}, but looks up map entries through the
+     * <var>mergeKeys</var>, so that entries inherited through merge keys ("{@code <<: *defaults}") are found.
+     * The last segment of the <var>spec</var>, however, designates an entry of the map itself.
+     *
+     * @param mergeKeys {@code null} means to not resolve merge keys
+     */
+    public static void
+    processSpec(Node root, Spec spec, SpecHandler specHandler, @Nullable MergeKeyIndex mergeKeys) {
+        SpecParser.processSpec(root, spec, specHandler, null, mergeKeys);
+    }
+
+    /**
+     * @param specHandler {@code null} means to locate the node that the last segment designates (like the node of
+     *                    any other segment), instead of invoking a handler for it
+     * @param explanation Iff not {@code null}, then the work of each segment is recorded there
+     * @param mergeKeys   Iff not {@code null}, then map entries are looked up through it
+     * @return            The located node, or {@code null} iff a <var>specHandler</var> was given
+     */
+    @Nullable private static Node
+    processSpec(
+        Node                    root,
+        Spec                    spec,
+        @Nullable SpecHandler   specHandler,
+        @Nullable Explanation   explanation,
+        @Nullable MergeKeyIndex mergeKeys
+    ) {
+
+        List<Segment> segments = spec.segments;
+        if (segments.isEmpty()) throw new SpecSyntaxException("Invalid spec \"\"");
+
+        if (explanation != null) explanation.evaluations++;
 
         Node el = root;
-        Matcher m;
-        SPEC: for (StringBuilder s = new StringBuilder(spec);;) {
+        long t0 = explanation == null ? 0 : System.nanoTime();
+        SEGMENTS: for (int i = 0;; i++) {
+            if (explanation != null) {
+                long t1 = System.nanoTime();
+                if (i > 0) explanation.nanos[i - 1] += t1 - t0;
+                t0 = t1;
+            }
+            if (i == segments.size()) return el;
+
+            Segment segment = segments.get(i);
+            boolean last    = i == segments.size() - 1;
             try {
+                el = SpecParser.realNode(el);
 
-                if (
-                    (m = MAP_ENTRY_SPEC1.matcher(s)).lookingAt()     // .<identifier>
-                    || (m = MAP_ENTRY_SPEC2.matcher(s)).lookingAt()  // .(<yaml-document>)
-                ) {
+                if (segment instanceof PointerSegment) {
+                    segment = ((PointerSegment) segment).resolve(el.getNodeType() == NodeType.SEQUENCE);
+                }
+
+                if (segment instanceof MapEntrySegment) {
+                    Node key = ((MapEntrySegment) segment).key;
 
-                    Node key;
-                    if (m.pattern() == MAP_ENTRY_SPEC1) {
-                        key = new ScalarNode(Tag.STR, m.group(1), ScalarStyle.PLAIN);
-                        s.delete(0, m.end());
-                    } else
-                    if (m.pattern() == MAP_ENTRY_SPEC2) {
-                        s.delete(0, 2);
-                        key = SpecParser.loadFirst(s);
-                        if (s.length() == 0 || s.charAt(0) != ')') throw new SpecSyntaxException("Closing parenthesis missing after map key \"" + toString(key) + "\"");
-                        s.delete(0, 1);
-                    } else
-                    {
-                        throw new AssertionError(m.pattern());
-                    }
-                    
                     switch (el.getNodeType()) {
 
                     case MAPPING:
                         MappingNode yamlMap = (MappingNode) el;
-                        
-                        if (s.length() == 0) {
-                            specHandler.handleMapEntry(yamlMap, key);
-                            return;
+
+                        if (last && specHandler != null) {
+                            if (explanation != null) explanation.nanos[i] += System.nanoTime() - t0;
+
+                            // The compiled spec is shared, and the handler may put the key into the document.
+                            specHandler.handleMapEntry(yamlMap, SpecParser.copy(key));
+                            return null;
                         }
-                        
-                        for (NodeTuple nt : yamlMap.getValue()) {
-                            if (equals(nt.getKeyNode(), key)) {
-                                el = nt.getValueNode();
-                                continue SPEC;
+
+                        if (mergeKeys != null) {
+                            Node value = mergeKeys.get(yamlMap, key, explanation, i);
+                            if (value != null) {
+                                el = value;
+                                continue SEGMENTS;
+                            }
+                        } else
+                        {
+                            for (NodeTuple nt : yamlMap.getValue()) {
+                                if (explanation != null) explanation.mapEntriesScanned[i]++;
+                                if (equals(nt.getKeyNode(), key, explanation, i, 1)) {
+                                    el = nt.getValueNode();
+                                    continue SEGMENTS;
+                                }
                             }
                         }
-                        throw new SpecMatchException("Map does not contain key \"" + toString(key) + "\"");
+                        throw new SpecMatchException(
+                            last
+                            ? "Map \"" + toString(yamlMap) + "\" lacks key \"" + toString(key) + "\""
+                            : "Map does not contain key \"" + toString(key) + "\""
+                        );
 
                     case SEQUENCE:
                         SequenceNode yamlSequence = (SequenceNode) el;
@@ -185,14 +561,16 @@ class SpecParser {
                         List<Node> elements = yamlSequence.getValue();
                         for (int index = 0; index < elements.size(); index++) {
                             Node sequenceElement = elements.get(index);
-                            if (equals(sequenceElement, key)) {
-                                if (s.length() == 0) {
+                            if (explanation != null) explanation.sequenceElementsVisited[i]++;
+                            if (equals(sequenceElement, key, explanation, i, 1)) {
+                                if (last && specHandler != null) {
+                                    if (explanation != null) explanation.nanos[i] += System.nanoTime() - t0;
                                     specHandler.handleSequenceElement(yamlSequence, index);
-                                    return;
+                                    return null;
                                 }
-                                
+
                                 el = sequenceElement;
-                                continue SPEC;
+                                continue SEGMENTS;
                             }
                         }
                         throw new SpecMatchException("Sequence does not contain an element \"" + toString(key) + "\"");
@@ -201,31 +579,39 @@ class SpecParser {
                     	throw new SpecMatchException("Element is not a map nor a sequence");
                     }
                 } else
-                if ((m = SEQUENCE_ELEMENT_SPEC.matcher(s)).lookingAt()) {  // [<integer>], []
+                if (segment instanceof SequenceIndexSegment) {
 
                     if (el.getNodeType() != NodeType.SEQUENCE) throw new SpecMatchException("Element is not a sequence");
                     SequenceNode yamlSequence = (SequenceNode) el;
                     List<Node> value = yamlSequence.getValue();
 
-                    int index = m.group(1).isEmpty() ? value.size() : Integer.parseInt(m.group(1));
+                    Integer i2    = ((SequenceIndexSegment) segment).index;
+                    int     index = i2 == null ? value.size() : i2;
                     if (index < 0) index += value.size();
 
-                    if (m.end() == s.length()) {
+                    if (last && specHandler != null) {
+                        if (explanation != null) explanation.nanos[i] += System.nanoTime() - t0;
                         specHandler.handleSequenceElement(yamlSequence, index);
-                        return;
+                        return null;
                     }
 
-                    if (index < 0 || index >= value.size()) throw new SpecMatchException("Index " + index + " is out of range; sequence \"" + SpecParser.toString(yamlSequence) + "\" has " + value.size() + " elements");
+                    if (explanation != null) explanation.sequenceElementsVisited[i]++;
+                    if (index < 0 || index >= value.size()) {
+                        throw new SpecMatchException(
+                            last
+                            ? "Index " + index + " out of range"
+                            : "Index " + index + " is out of range; sequence \"" + SpecParser.toString(yamlSequence) + "\" has " + value.size() + " elements"
+                        );
+                    }
                     el = value.get(index);
                     assert el != null;
-                    s.delete(0, m.end());
                 } else
                 {
-                    throw new SpecSyntaxException("Invalid spec \"" + s + "\"");
+                    throw new AssertionError(segment);
                 }
             } catch (RuntimeException e) {
                 throw ExceptionUtil.wrap(
-                    "Applying spec \"" + spec + "\" at offset " + (spec.length() - s.length()) + " on \"" + toString(el) + "\"",
+                    "Applying spec \"" + spec + "\" at offset " + segment.offset + " on \"" + toString(el) + "\"",
                     e
                 );
             }
@@ -234,32 +620,56 @@ class SpecParser {
 
     public static void
 	processSpec(Node root, String spec, SpecHandler3 specHandler3) {
+    	SpecParser.processSpec(root, SpecParser.compile(spec), specHandler3);
+    }
+
+    /**
+     * Locates the node designated by the <var>spec</var> in the <var>root</var> document (the empty spec designates
+     * the <var>root</var> itself), and passes it to the <var>specHandler3</var>.
+     */
+    public static void
+    processSpec(Node root, Spec spec, SpecHandler3 specHandler3) {
+        SpecParser.processSpec(root, spec, specHandler3, null);
+    }
+
+    /**
+     * Equivalent with {@link #processSpec(Node, Spec, SpecHandler3)}, but records the work of each segment in the
+     * <var>explanation</var>: The number of map entries scanned, the number of {@link #equals(Node, Node)} calls and
+     * their maximum recursion depth, the number of sequence elements visited, and the time spent.
+     *
+     * @param explanation {@code null} means to record nothing
+     */
+    public static void
+    processSpec(Node root, Spec spec, SpecHandler3 specHandler3, @Nullable Explanation explanation) {
+        SpecParser.processSpec(root, spec, specHandler3, explanation, null);
+    }
+
+    /**
+     * Equivalent with {@link #processSpec(Node, Spec, SpecHandler3, Explanation)}, but looks up map entries through
+     * the <var>mergeKeys</var>, so that entries inherited through merge keys ("{@code <<: *defaults}") are found.
+     *
+     * @param explanation {@code null} means to record nothing
+     * @param mergeKeys   {@code null} means to not resolve merge keys
+     */
+    public static void
+    processSpec(
+        Node                    root,
+        Spec                    spec,
+        SpecHandler3            specHandler3,
+        @Nullable Explanation   explanation,
+        @Nullable MergeKeyIndex mergeKeys
+    ) {
 
-    	if ("".equals(spec)) {
+    	if (spec.segments.isEmpty()) {
+    		if (explanation != null) explanation.evaluations++;
     		specHandler3.handleNode(root);
     		return;
     	}
 
-    	SpecParser.processSpec(root, spec, new SpecHandler() {
-
-            @Override public void
-            handleMapEntry(MappingNode map, Node key) {
-            	for (NodeTuple mapElement : map.getValue()) {
-            		if (SpecParser.equals(mapElement.getKeyNode(), key)) {
-            			specHandler3.handleNode(mapElement.getValueNode());
-            			return;
-            		}
-            	}
-            	throw new SpecMatchException("Map \"" + SpecParser.toString(map) + "\" lacks key \"" + SpecParser.toString(key) + "\"");
-            }
-
-            @Override public void
-            handleSequenceElement(SequenceNode sequence, int index) {
-            	List<Node> sequenceElements = sequence.getValue();
-            	if (index < 0 || index >= sequenceElements.size()) throw new SpecMatchException("Index " + index + " out of range");
-            	specHandler3.handleNode(sequenceElements.get(index));
-            }
-        });
+    	// Locate the node without a handler, which saves allocating one.
+    	Node node = SpecParser.processSpec(root, spec, (SpecHandler) null, explanation, mergeKeys);
+    	assert node != null;
+    	specHandler3.handleNode(node);
     }
 
     /**
@@ -295,10 +705,33 @@ class SpecParser {
      */
     public static void
     processSpec(Node root, String spec, SpecHandler2 specHandler2) {
-    	processSpec(root, spec, new SpecHandler3() {
+    	SpecParser.processSpec(root, SpecParser.compile(spec), specHandler2);
+    }
+
+    /**
+     * Locates the node designated by the <var>spec</var> in the <var>root</var> document, and invokes one of the
+     * methods of the <var>specHandler2</var>.
+     *
+     * @see #processSpec(Node, String, SpecHandler2)
+     */
+    public static void
+    processSpec(Node root, Spec spec, SpecHandler2 specHandler2) {
+    	SpecParser.processSpec(root, spec, specHandler2, null);
+    }
+
+    /**
+     * Equivalent with {@link #processSpec(Node, Spec, SpecHandler2)}, but looks up map entries through the
+     * <var>mergeKeys</var>, so that entries inherited through merge keys ("{@code <<: *defaults}") are found.
+     *
+     * @param mergeKeys {@code null} means to not resolve merge keys
+     */
+    public static void
+    processSpec(Node root, Spec spec, SpecHandler2 specHandler2, @Nullable MergeKeyIndex mergeKeys) {
+    	SpecParser.processSpec(root, spec, new SpecHandler3() {
 
 			@Override public void
 			handleNode(Node node) {
+				node = SpecParser.realNode(node);
 				switch (node.getNodeType()) {
 				
 				case SCALAR:
@@ -312,13 +745,12 @@ class SpecParser {
 				case MAPPING:
 					specHandler2.handleMap((MappingNode) node);
 					break;
-					
-				case ANCHOR:
-					specHandler2.handleAnchor((AnchorNode) node);
-					break;
+
+				default:
+					throw new AssertionError(node);
 				}
 			}
-		});
+		}, null, mergeKeys);
     }
 
     /**
@@ -352,48 +784,245 @@ class SpecParser {
     toString(Node node, DumpSettings dumpSettings) {
     	class StreamToStringWriter extends StringWriter implements StreamDataWriter {}
         StreamToStringWriter stsw = new StreamToStringWriter();
-        new Dump(dumpSettings).dumpNode(node, stsw);
+        new DocumentDumper(dumpSettings).dumpNode(node, stsw);
         return stsw.toString();
     }
 
+    /**
+     * @return A deep copy of the given <var>node</var>, without marks
+     */
+    public static Node
+    copy(Node node) {
+
+        Node result;
+        switch (node.getNodeType()) {
+
+        case SCALAR:
+            ScalarNode scalar = (ScalarNode) node;
+            result = new ScalarNode(scalar.getTag(), scalar.getValue(), scalar.getScalarStyle());
+            break;
+
+        case SEQUENCE:
+            SequenceNode sequence = (SequenceNode) node;
+            List<Node>   elements = new ArrayList<>(sequence.getValue().size());
+            for (Node element : sequence.getValue()) elements.add(SpecParser.copy(element));
+            result = new SequenceNode(sequence.getTag(), elements, sequence.getFlowStyle());
+            break;
+
+        case MAPPING:
+            MappingNode     map    = (MappingNode) node;
+            List<NodeTuple> tuples = new ArrayList<>(map.getValue().size());
+            for (NodeTuple nt : map.getValue()) {
+                tuples.add(new NodeTuple(SpecParser.copy(nt.getKeyNode()), SpecParser.copy(nt.getValueNode())));
+            }
+            result = new MappingNode(map.getTag(), tuples, map.getFlowStyle());
+            break;
+
+        case ANCHOR:
+            result = new AnchorNode(SpecParser.copy(((AnchorNode) node).getRealNode()));
+            break;
+
+        default:
+            throw new AssertionError(node.getNodeType());
+        }
+
+        if (node.getBlockComments()  != null) result.setBlockComments(new ArrayList<>(node.getBlockComments()));
+        if (node.getInLineComments() != null) result.setInLineComments(new ArrayList<>(node.getInLineComments()));
+        if (node.getEndComments()    != null) result.setEndComments(new ArrayList<>(node.getEndComments()));
+
+        return result;
+    }
+
+    /**
+     * @return The node that the <var>node</var> refers to iff it is an {@link AnchorNode}, otherwise the
+     *         <var>node</var> itself
+     */
+    public static Node
+    realNode(Node node) {
+        while (node.getNodeType() == NodeType.ANCHOR) node = ((AnchorNode) node).getRealNode();
+        return node;
+    }
+
     public static boolean
     equals(Node a, Node b) {
+        return SpecParser.equals(a, b, null, 0, 1);
+    }
+
+    /**
+     * @return A hash code that is consistent with {@link #equals(Node, Node)}: Scalars hash by value, collections by
+     *         size and elements, tags are ignored, and anchors are transparent. Only the first {@value
+     *         #MAX_HASHED_NODES} nodes (in preorder) contribute, which bounds the cost for large trees, and makes
+     *         recursive structures hashable
+     */
+    public static int
+    hashCode(Node node) {
+
+        int              result = 1;
+        ArrayDeque<Node> stack  = null;
+        for (int n = 0;; n++) {
+            node = SpecParser.realNode(node);
+            if (node instanceof ScalarNode) {
+                result = 31 * result + ((ScalarNode) node).getValue().hashCode();
+            } else
+            if (node instanceof CollectionNode) {
+                List<?> elements = ((CollectionNode<?>) node).getValue();
+                result = 31 * result + elements.size();
+                if (stack == null) stack = new ArrayDeque<>();
+
+                // Elements beyond this limit would not contribute anyway.
+                for (int i = Math.min(elements.size(), MAX_HASHED_NODES - n) - 1; i >= 0; i--) {
+                    Object element = elements.get(i);
+                    if (element instanceof NodeTuple) {
+                        stack.push(((NodeTuple) element).getValueNode());
+                        stack.push(((NodeTuple) element).getKeyNode());
+                    } else
+                    {
+                        stack.push((Node) element);
+                    }
+                }
+            }
 
-        if (a == b) return true;
+            if (n == MAX_HASHED_NODES || stack == null || stack.isEmpty()) return result;
+            node = stack.pop();
+        }
+    }
+
+    /**
+     * Anchors are transparent, and identical nodes (e.g. through an alias) are equal.
+     *
+     * @param explanation Iff not {@code null}, then each node comparison and its nesting <var>depth</var> are
+     *                    recorded for the given <var>segment</var>
+     */
+    static boolean
+    equals(Node a, Node b, @Nullable Explanation explanation, int segment, int depth) {
+
+        // Most trees are small and shallow, and are compared recursively, without any allocation.
+        int result = SpecParser.equalsRecursively(a, b, explanation, segment, depth, MAX_UNTRACKED_COMPARISONS);
+        if (result != TOO_COMPLEX) return result != UNEQUAL;
+
+        return SpecParser.equalsIteratively(a, b, explanation, segment, depth);
+    }
+
+    /**
+     * @return The remaining <var>budget</var> iff the trees are equal, {@link #UNEQUAL}, or {@link #TOO_COMPLEX} iff
+     *         the comparison would recurse deeper than {@link #MAX_RECURSION_DEPTH}, or take more than
+     *         <var>budget</var> node comparisons
+     */
+    private static int
+    equalsRecursively(Node a, Node b, @Nullable Explanation explanation, int segment, int depth, int budget) {
+
+        if (explanation != null) {
+            explanation.equalsCalls[segment]++;
+            if (depth > explanation.maxEqualsDepth[segment]) explanation.maxEqualsDepth[segment] = depth;
+        }
+
+        if (depth > MAX_RECURSION_DEPTH || --budget < 0) return TOO_COMPLEX;
+
+        a = SpecParser.realNode(a);
+        b = SpecParser.realNode(b);
+        if (a == b) return budget;
 
         if (a instanceof CollectionNode && b instanceof CollectionNode) {
             List<?> aValue = ((CollectionNode<?>) a).getValue();
             List<?> bValue = ((CollectionNode<?>) b).getValue();
             int size = aValue.size();
-            if (size != bValue.size()) return false;
+            if (size != bValue.size()) return UNEQUAL;
             for (int i = 0; i < size; i++) {
                 Object av = aValue.get(i);
                 Object bv = bValue.get(i);
                 if (av instanceof NodeTuple && bv instanceof NodeTuple) {
-                    Node aElementKey   = ((NodeTuple) av).getKeyNode();
-                    Node aElementValue = ((NodeTuple) av).getValueNode();
-                    Node bElementKey   = ((NodeTuple) bv).getKeyNode();
-                    Node bElementValue = ((NodeTuple) bv).getValueNode();
-                    
-                    if (!(
-                        equals(aElementKey, bElementKey)
-                        && equals(aElementValue, bElementValue)
-                    )) return false;
+                    NodeTuple at = (NodeTuple) av, bt = (NodeTuple) bv;
+                    budget = SpecParser.equalsRecursively(
+                        at.getKeyNode(), bt.getKeyNode(), explanation, segment, depth + 1, budget
+                    );
+                    if (budget < 0) return budget;
+                    budget = SpecParser.equalsRecursively(
+                        at.getValueNode(), bt.getValueNode(), explanation, segment, depth + 1, budget
+                    );
                 } else
                 if (av instanceof Node && bv instanceof Node) {
-                    if (!equals((Node) av, (Node) bv)) return false;
+                    budget = SpecParser.equalsRecursively(
+                        (Node) av, (Node) bv, explanation, segment, depth + 1, budget
+                    );
                 } else
                 {
-                    return false;
+                    return UNEQUAL;
                 }
+                if (budget < 0) return budget;
             }
-            return true;
+            return budget;
         } else
         if (a instanceof ScalarNode && b instanceof ScalarNode) {
-            return ((ScalarNode) a).getValue().equals(((ScalarNode) b).getValue());
+            return ((ScalarNode) a).getValue().equals(((ScalarNode) b).getValue()) ? budget : UNEQUAL;
         } else
         {
-            return false;
+            return UNEQUAL;
+        }
+    }
+
+    /**
+     * Compares the trees with an explicit stack instead of recursion, so that trees of any depth can be compared.
+     * Each pair of collections is compared only once per invocation, so that shared (aliased) subtrees are not compared
+     * again and again, and recursive structures can be compared.
+     */
+    private static boolean
+    equalsIteratively(Node a, Node b, @Nullable Explanation explanation, int segment, int depth) {
+
+        // The pairs of nodes yet to compare, with their depths, in reverse order.
+        NodePairStack stack = new NodePairStack();
+
+        // The pairs of collections that were already compared, or are being compared.
+        NodePairSet visited = new NodePairSet();
+
+        for (;;) {
+            a = SpecParser.realNode(a);
+            b = SpecParser.realNode(b);
+
+            if (explanation != null) {
+                explanation.equalsCalls[segment]++;
+                if (depth > explanation.maxEqualsDepth[segment]) explanation.maxEqualsDepth[segment] = depth;
+            }
+
+            if (a == b) {
+
+                // Identical nodes (e.g. through an alias) are equal.
+            } else
+            if (a instanceof CollectionNode && b instanceof CollectionNode) {
+                List<?> aValue = ((CollectionNode<?>) a).getValue();
+                List<?> bValue = ((CollectionNode<?>) b).getValue();
+                int size = aValue.size();
+                if (size != bValue.size()) return false;
+                if (!visited.add(a, b)) size = 0; // Compared before, or being compared (recursive structure).
+                for (int i = size - 1; i >= 0; i--) {
+                    Object av = aValue.get(i);
+                    Object bv = bValue.get(i);
+                    if (av instanceof NodeTuple && bv instanceof NodeTuple) {
+                        NodeTuple at = (NodeTuple) av, bt = (NodeTuple) bv;
+                        stack.push(at.getValueNode(), bt.getValueNode(), depth + 1);
+                        stack.push(at.getKeyNode(), bt.getKeyNode(), depth + 1);
+                    } else
+                    if (av instanceof Node && bv instanceof Node) {
+                        stack.push((Node) av, (Node) bv, depth + 1);
+                    } else
+                    {
+                        return false;
+                    }
+                }
+            } else
+            if (a instanceof ScalarNode && b instanceof ScalarNode) {
+                if (!((ScalarNode) a).getValue().equals(((ScalarNode) b).getValue())) return false;
+            } else
+            {
+                return false;
+            }
+
+            if (stack.isEmpty()) return true;
+
+            stack.pop();
+            a     = stack.first();
+            b     = stack.second();
+            depth = stack.value();
+            assert a != null && b != null;
         }
     }
 }
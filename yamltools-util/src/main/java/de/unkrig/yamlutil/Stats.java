@@ -0,0 +1,389 @@
+
+/*
+ * yamltools-util - A library for command-line-base YAML tools
+ *
+ * Copyright (c) 2023, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.yamlutil;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import org.snakeyaml.engine.v2.nodes.CollectionNode;
+import org.snakeyaml.engine.v2.nodes.Node;
+import org.snakeyaml.engine.v2.nodes.NodeTuple;
+
+import de.unkrig.commons.nullanalysis.Nullable;
+
+/**
+ * Collects per-file and total timings for the {@link Phase}s of a tool run, plus the numbers of documents, nodes,
+ * spec evaluations and bytes in and out, and prints them as a table (see {@link #print(PrintStream)}).
+ * <p>
+ *   The phases are <em>exclusive</em>: While e.g. the composer is reading from the {@link #inputStream(InputStream)
+ *   input stream}, the time counts for {@link Phase#READ}, and not for {@link Phase#COMPOSE}.
+ * </p>
+ * <p>
+ *   {@link #NONE} is a disabled instance that records nothing, so that the tools need not check for {@code null}.
+ * </p>
+ */
+public
+class Stats {
+
+    /**
+     * An instance that records nothing, and also prints nothing.
+     */
+    public static final Stats NONE = new Stats(false);
+
+    public
+    enum Phase {
+
+        /** Reading bytes from the input file. */
+        READ,
+
+        /** Decoding characters and composing the document tree. */
+        COMPOSE,
+
+        /** Evaluating the specs, and modifying (yamlpatch) resp. analyzing (yamlfind) the document. */
+        PROCESS,
+
+        /** Serializing nodes and encoding characters. */
+        DUMP,
+
+        /** Writing bytes to the output file. */
+        WRITE,
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private final boolean       enabled;
+    private final List<Record>  files = new ArrayList<>();
+    @Nullable private Record    currentFile;
+    @Nullable private Phase     currentPhase;
+    private long                lastSwitch;
+
+    private static
+    class Record {
+
+        final String name;
+        final long[] nanos = new long[Stats.PHASES.length];
+        long         documents, nodes, evaluatedSpecs, bytesIn, bytesOut;
+
+        Record(String name) { this.name = name; }
+
+        void
+        add(Record that) {
+            for (int i = 0; i < this.nanos.length; i++) this.nanos[i] += that.nanos[i];
+            this.documents       += that.documents;
+            this.nodes           += that.nodes;
+            this.evaluatedSpecs  += that.evaluatedSpecs;
+            this.bytesIn         += that.bytesIn;
+            this.bytesOut        += that.bytesOut;
+        }
+    }
+
+    public
+    Stats() { this(true); }
+
+    private
+    Stats(boolean enabled) { this.enabled = enabled; }
+
+    /**
+     * Starts recording for the file with the given <var>name</var>; any file that is currently being recorded is
+     * ended first.
+     */
+    public void
+    beginFile(String name) {
+        if (!this.enabled) return;
+
+        this.endFile();
+        this.currentFile  = new Record(name);
+        this.currentPhase = null;
+        this.lastSwitch   = System.nanoTime();
+    }
+
+    /**
+     * Ends recording for the current file; a no-op if no file is currently being recorded.
+     */
+    public void
+    endFile() {
+
+        Record cf = this.currentFile;
+        if (cf == null) return;
+
+        this.enter(null);
+        this.files.add(cf);
+        this.currentFile = null;
+    }
+
+    /**
+     * Attributes the time since the last phase switch to the current phase, and makes the given <var>phase</var> the
+     * current phase. Typical usage:
+     * <pre>
+     *   Phase previous = stats.enter(Phase.DUMP);
+     *   try {
+     *       ...
+     *   } finally {
+     *       stats.enter(previous);
+     *   }
+     * </pre>
+     *
+     * @param phase {@code null} means "no phase", i.e. the time until the next switch is not recorded
+     * @return      The previous phase
+     */
+    @Nullable public Phase
+    enter(@Nullable Phase phase) {
+
+        Record cf = this.currentFile;
+        if (cf == null) return null;
+
+        long  now      = System.nanoTime();
+        Phase previous = this.currentPhase;
+        if (previous != null) cf.nanos[previous.ordinal()] += now - this.lastSwitch;
+        this.currentPhase = phase;
+        this.lastSwitch   = now;
+
+        return previous;
+    }
+
+    /**
+     * Counts one document and its nodes. Nodes that are referenced more than once (through aliases) count only once.
+     */
+    public void
+    countDocument(Node document) {
+        if (this.currentFile != null) this.countDocument(Stats.countNodes(document));
+    }
+
+    /**
+     * Counts one document with the given number of <var>nodes</var>.
+     */
+    public void
+    countDocument(long nodes) {
+
+        Record cf = this.currentFile;
+        if (cf == null) return;
+
+        cf.documents++;
+        cf.nodes += nodes;
+    }
+
+    /**
+     * @return The number of nodes in the tree under (and including) the <var>root</var>; nodes that are referenced
+     *         more than once (through aliases) count only once
+     */
+    public static long
+    countNodes(Node root) {
+
+        long        result = 0;
+        Set<Node>   seen   = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Node> stack  = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Node node = stack.pop();
+            if (!seen.add(node)) continue;
+
+            result++;
+
+            if (node instanceof CollectionNode) {
+                for (Object o : ((CollectionNode<?>) node).getValue()) {
+                    if (o instanceof NodeTuple) {
+                        stack.push(((NodeTuple) o).getKeyNode());
+                        stack.push(((NodeTuple) o).getValueNode());
+                    } else
+                    {
+                        stack.push((Node) o);
+                    }
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Counts one evaluation of a spec against a document (or a node within it). Tools invoke this wherever they
+     * evaluate a spec, so that e.g. a JSON patch with five operations, or a sort by a key spec, counts more than once.
+     */
+    public void
+    countEvaluatedSpec() {
+        Record cf = this.currentFile;
+        if (cf != null) cf.evaluatedSpecs++;
+    }
+
+    /**
+     * @return An input stream that counts the bytes read from the <var>delegate</var>, and attributes the time spent
+     *         in it to {@link Phase#READ}
+     */
+    public InputStream
+    inputStream(InputStream delegate) {
+        if (!this.enabled) return delegate;
+
+        return new FilterInputStream(delegate) {
+
+            @Override public int
+            read() throws IOException {
+                Phase previous = Stats.this.enter(Phase.READ);
+                try {
+                    int result = super.read();
+                    if (result != -1) Stats.this.countBytesIn(1);
+                    return result;
+                } finally {
+                    Stats.this.enter(previous);
+                }
+            }
+
+            @Override public int
+            read(byte[] b, int off, int len) throws IOException {
+                Phase previous = Stats.this.enter(Phase.READ);
+                try {
+                    int result = super.read(b, off, len);
+                    if (result > 0) Stats.this.countBytesIn(result);
+                    return result;
+                } finally {
+                    Stats.this.enter(previous);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return An output stream that counts the bytes written to the <var>delegate</var>, and attributes the time
+     *         spent in it to {@link Phase#WRITE}
+     */
+    public OutputStream
+    outputStream(OutputStream delegate) {
+        if (!this.enabled) return delegate;
+
+        return new FilterOutputStream(delegate) {
+
+            @Override public void
+            write(int b) throws IOException {
+                Phase previous = Stats.this.enter(Phase.WRITE);
+                try {
+                    this.out.write(b);
+                    Stats.this.countBytesOut(1);
+                } finally {
+                    Stats.this.enter(previous);
+                }
+            }
+
+            @Override public void
+            write(byte[] b, int off, int len) throws IOException {
+                Phase previous = Stats.this.enter(Phase.WRITE);
+                try {
+                    this.out.write(b, off, len);
+                    Stats.this.countBytesOut(len);
+                } finally {
+                    Stats.this.enter(previous);
+                }
+            }
+
+            @Override public void
+            flush() throws IOException {
+                Phase previous = Stats.this.enter(Phase.WRITE);
+                try {
+                    this.out.flush();
+                } finally {
+                    Stats.this.enter(previous);
+                }
+            }
+
+            // Closing is the business of the caller that owns the delegate.
+            @Override public void
+            close() throws IOException { this.flush(); }
+        };
+    }
+
+    private void
+    countBytesIn(int n) {
+        Record cf = this.currentFile;
+        if (cf != null) cf.bytesIn += n;
+    }
+
+    private void
+    countBytesOut(int n) {
+        Record cf = this.currentFile;
+        if (cf != null) cf.bytesOut += n;
+    }
+
+    /**
+     * Prints one line per recorded file, and a line with the totals. Times are in milliseconds.
+     */
+    public void
+    print(PrintStream ps) {
+        if (!this.enabled) return;
+
+        this.endFile();
+
+        Record total = new Record("Total");
+        for (Record r : this.files) total.add(r);
+
+        int nameWidth = total.name.length();
+        for (Record r : this.files) nameWidth = Math.max(nameWidth, r.name.length());
+
+        ps.printf(
+            Locale.ROOT,
+            "%-" + nameWidth + "s %10s %10s %10s %10s %10s %10s %8s %10s %7s %12s %12s%n",
+            "File",
+            "read", "compose", "process", "dump", "write", "total",
+            "docs", "nodes", "specs", "bytes in", "bytes out"
+        );
+        for (Record r : this.files) Stats.print(r, nameWidth, ps);
+        if (this.files.size() != 1) Stats.print(total, nameWidth, ps);
+    }
+
+    private static void
+    print(Record r, int nameWidth, PrintStream ps) {
+
+        long totalNanos = 0;
+        for (long n : r.nanos) totalNanos += n;
+
+        ps.printf(
+            Locale.ROOT,
+            "%-" + nameWidth + "s %10.3f %10.3f %10.3f %10.3f %10.3f %10.3f %8d %10d %7d %12d %12d%n",
+            r.name,
+            r.nanos[Phase.READ.ordinal()]    / 1E6,
+            r.nanos[Phase.COMPOSE.ordinal()] / 1E6,
+            r.nanos[Phase.PROCESS.ordinal()] / 1E6,
+            r.nanos[Phase.DUMP.ordinal()]    / 1E6,
+            r.nanos[Phase.WRITE.ordinal()]   / 1E6,
+            totalNanos                       / 1E6,
+            r.documents,
+            r.nodes,
+            r.evaluatedSpecs,
+            r.bytesIn,
+            r.bytesOut
+        );
+    }
+}
@@ -0,0 +1,178 @@
+
+/*
+ * yamltools-util - A library for command-line-base YAML tools
+ *
+ * Copyright (c) 2023, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.yamlutil.test;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.snakeyaml.engine.v2.api.DumpSettings;
+import org.snakeyaml.engine.v2.api.LoadSettings;
+import org.snakeyaml.engine.v2.api.lowlevel.Compose;
+import org.snakeyaml.engine.v2.nodes.MappingNode;
+import org.snakeyaml.engine.v2.nodes.Node;
+import org.snakeyaml.engine.v2.nodes.NodeTuple;
+import org.snakeyaml.engine.v2.nodes.ScalarNode;
+import org.snakeyaml.engine.v2.nodes.SequenceNode;
+
+import de.unkrig.yamlutil.CompactDocument;
+import de.unkrig.yamlutil.SpecParser;
+import de.unkrig.yamlutil.SpecParser.Spec;
+import de.unkrig.yamlutil.Stats;
+
+public
+class TestCompactDocument {
+
+    private static final LoadSettings SETTINGS = LoadSettings.builder().setAllowDuplicateKeys(true).build();
+
+    /**
+     * Verifies that, for generated documents, the compact representation materializes to the same YAML as the
+     * composed document, and that every spec designates the same node in both.
+     */
+    @Test public void
+    testGeneratedDocuments() {
+        for (long seed = 0; seed < 20; seed++) {
+            String yaml = (
+                new YamlGenerator(seed)
+                .setDepth(4)
+                .setFanOut(4)
+                .setKeyCardinality(10)
+                .setCommentProbability(.2)
+                .setAnchorProbability(.2)
+                .setSetProbability(.2)
+                .generate()
+            );
+
+            Node            root    = new Compose(SETTINGS).composeString(yaml).get();
+            CompactDocument compact = CompactDocument.load(new StringReader(yaml), SETTINGS).get();
+
+            Assert.assertEquals(yaml, TestCompactDocument.dump(root), TestCompactDocument.dump(compact.toNode(0)));
+            Assert.assertEquals(yaml, Stats.countNodes(root), compact.nodeCount());
+
+            List<String> specs = new ArrayList<>();
+            TestCompactDocument.specs(root, "", specs);
+            for (String spec : specs) {
+                Assert.assertEquals(
+                    spec,
+                    TestCompactDocument.dump(TestCompactDocument.find(root, spec)),
+                    TestCompactDocument.dump(TestCompactDocument.find(compact, spec))
+                );
+            }
+        }
+    }
+
+    @Test public void
+    testAliases() {
+        CompactDocument compact = TestCompactDocument.load("a: &x [1, *x]\nb: *x\n");
+
+        Node a = TestCompactDocument.find(compact, ".a");
+        Assert.assertSame(a, ((SequenceNode) a).getValue().get(1));
+
+        MappingNode root = (MappingNode) compact.toNode(0);
+        Assert.assertSame(root.getValue().get(0).getValueNode(), root.getValue().get(1).getValueNode());
+
+        Assert.assertEquals("1", ((ScalarNode) TestCompactDocument.find(compact, ".b[1][1][0]")).getValue());
+        Assert.assertEquals(5, compact.nodeCount());
+    }
+
+    @Test public void
+    testErrors() {
+        String yaml = "a: {b: [1, 2]}\n";
+        Node   root = new Compose(SETTINGS).composeString(yaml).get();
+        for (String spec : new String[] { ".c", ".a.c", ".a.b[2]", ".a.b[2].c", ".a.b.(3)", ".a.b.c.d", ".a[0]" }) {
+            String expected = null;
+            try {
+                TestCompactDocument.find(root, spec);
+                Assert.fail(spec);
+            } catch (RuntimeException e) {
+                expected = e.toString();
+            }
+            try {
+                TestCompactDocument.find(TestCompactDocument.load(yaml), spec);
+                Assert.fail(spec);
+            } catch (RuntimeException e) {
+                Assert.assertEquals(spec, expected, e.toString());
+            }
+        }
+    }
+
+    @Test public void
+    testEmptyStream() {
+        Assert.assertFalse(CompactDocument.load(new StringReader("# Just a comment\n"), SETTINGS).isPresent());
+    }
+
+    @Test(expected = RuntimeException.class) public void
+    testMultipleDocuments() {
+        TestCompactDocument.load("a: 1\n---\nb: 2\n");
+    }
+
+    /**
+     * Adds a spec for each node under the <var>node</var> to the <var>result</var>.
+     */
+    private static void
+    specs(Node node, String prefix, List<String> result) {
+        result.add(prefix);
+        if (node instanceof MappingNode) {
+            for (NodeTuple nt : ((MappingNode) node).getValue()) {
+                if (!(nt.getKeyNode() instanceof ScalarNode)) continue;
+                String key = ((ScalarNode) nt.getKeyNode()).getValue();
+                if (!key.matches("[A-Za-z0-9_\\-]+")) continue;
+                String spec = prefix + "." + key;
+                if (!result.contains(spec)) TestCompactDocument.specs(nt.getValueNode(), spec, result);
+            }
+        } else
+        if (node instanceof SequenceNode) {
+            List<Node> elements = ((SequenceNode) node).getValue();
+            for (int i = 0; i < elements.size(); i++) {
+                TestCompactDocument.specs(elements.get(i), prefix + "[" + i + "]", result);
+            }
+        }
+    }
+
+    private static Node
+    find(Node root, String spec) {
+        Node[] result = new Node[1];
+        SpecParser.processSpec(root, SpecParser.compile(spec), node -> { result[0] = node; }, null);
+        return result[0];
+    }
+
+    private static Node
+    find(CompactDocument document, String spec) {
+        Spec   compiledSpec = SpecParser.compile(spec);
+        Node[] result       = new Node[1];
+        document.processSpec(compiledSpec, node -> { result[0] = node; }, null);
+        return result[0];
+    }
+
+    private static CompactDocument
+    load(String yaml) { return CompactDocument.load(new StringReader(yaml), SETTINGS).get(); }
+
+    private static String
+    dump(Node node) { return SpecParser.toString(node, DumpSettings.builder().build()); }
+}
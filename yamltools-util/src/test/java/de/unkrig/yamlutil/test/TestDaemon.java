@@ -0,0 +1,212 @@
+
+/*
+ * yamltools-util - A library for command-line-base YAML tools
+ *
+ * Copyright (c) 2023, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.yamlutil.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.unkrig.yamlutil.Daemon;
+
+public
+class TestDaemon {
+
+    private File         tokenFile;
+    private ServerSocket serverSocket;
+
+    @Before public void
+    setUp() throws Exception {
+
+        this.tokenFile    = new File(Files.createTempDirectory("daemon").toFile(), "token");
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+
+        Thread server = new Thread(() -> {
+            try {
+                Daemon.serve(this.serverSocket, this.tokenFile, TestDaemon::command);
+            } catch (IOException ioe) {
+
+                // The server socket was closed by "tearDown()".
+                ;
+            }
+        }, "daemon");
+        server.setDaemon(true);
+        server.start();
+
+        while (!this.tokenFile.exists()) Thread.sleep(10);
+    }
+
+    @After public void
+    tearDown() throws Exception {
+        this.serverSocket.close();
+        this.tokenFile.getParentFile().deleteOnExit();
+    }
+
+    @Test public void
+    testStdinStdoutStderr() throws Exception {
+        this.assertForward(0, "IN\n" + new File("").getAbsolutePath() + "\n", "a|b\n", "IN\n", "cat", "a", "b");
+    }
+
+    @Test public void
+    testExit() throws Exception {
+        this.assertForward(3, "", "", "", "exit", "3");
+        this.assertForward(0, "", "", "", "exit", "0");
+    }
+
+    @Test public void
+    testErrorKeepsDaemonAlive() throws Exception {
+        this.assertForward(1, "", "java.lang.OutOfMemoryError: Boom\n", "", "error", "Boom");
+        this.assertForward(1, "", "java.lang.RuntimeException: Outer\nCaused by: java.io.IOException: Inner\n", "", "exception");
+        this.assertForward(0, "IN" + new File("").getAbsolutePath() + "\n", "\n", "IN", "cat");
+    }
+
+    @Test public void
+    testInvalidToken() throws Exception {
+
+        File other = new File(this.tokenFile.getParentFile(), "other");
+        Files.write(other.toPath(), "0123".getBytes(StandardCharsets.UTF_8));
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(), err = new ByteArrayOutputStream();
+            Assert.assertEquals(1, Daemon.forward(
+                this.serverSocket.getLocalPort(),
+                other,
+                new String[] { "exit", "0" },
+                new ByteArrayInputStream(new byte[0]),
+                out,
+                err
+            ));
+            Assert.assertEquals("", TestDaemon.string(out));
+            Assert.assertEquals("Daemon: Invalid token\n", TestDaemon.string(err));
+        } finally {
+            other.delete();
+        }
+    }
+
+    /**
+     * Verifies that a client that sends nothing, or announces a very long token, does not block other clients.
+     */
+    @Test(timeout = 30000) public void
+    testMisbehavingClients() throws Exception {
+
+        try (
+            Socket silent = new Socket(InetAddress.getLoopbackAddress(), this.serverSocket.getLocalPort());
+            Socket greedy = new Socket(InetAddress.getLoopbackAddress(), this.serverSocket.getLocalPort());
+        ) {
+            DataOutputStream dos = new DataOutputStream(greedy.getOutputStream());
+            dos.writeInt(Integer.MAX_VALUE);
+            dos.flush();
+
+            this.assertForward(3, "", "", "", "exit", "3");
+
+            // The daemon has closed both connections.
+            silent.setSoTimeout(10000);
+            greedy.setSoTimeout(10000);
+            Assert.assertEquals(-1, silent.getInputStream().read());
+            Assert.assertEquals(-1, greedy.getInputStream().read());
+        }
+    }
+
+    @Test public void
+    testTokenFilePermissions() throws Exception {
+
+        if (!FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) return;
+
+        Assert.assertEquals(
+            "rw-------",
+            PosixFilePermissions.toString(Files.getPosixFilePermissions(this.tokenFile.toPath()))
+        );
+    }
+
+    private void
+    assertForward(int expectedStatus, String expectedOut, String expectedErr, String in, String... args)
+    throws IOException {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(), err = new ByteArrayOutputStream();
+
+        Assert.assertEquals(expectedStatus, Daemon.forward(
+            this.serverSocket.getLocalPort(),
+            this.tokenFile,
+            args,
+            new ByteArrayInputStream(in.getBytes(StandardCharsets.UTF_8)),
+            out,
+            err
+        ));
+        Assert.assertEquals(expectedOut, TestDaemon.string(out).replace(System.lineSeparator(), "\n"));
+        Assert.assertEquals(expectedErr, TestDaemon.string(err).replace(System.lineSeparator(), "\n"));
+    }
+
+    /**
+     * "cat arg...": Copies STDIN to STDOUT, prints the working directory to STDOUT, and the arguments to STDERR.
+     * "exit status": Calls {@link Daemon#exit(int)}.
+     * "error message": Throws an {@link Error}.
+     * "exception": Throws an exception with a cause.
+     */
+    private static void
+    command(String[] args, File workingDirectory) throws Exception {
+
+        switch (args[0]) {
+
+        case "cat":
+            InputStream in = System.in;
+            for (int b = in.read(); b != -1; b = in.read()) System.out.write(b);
+            System.out.println(workingDirectory.getPath());
+            System.err.println(String.join("|", Arrays.copyOfRange(args, 1, args.length)));
+            break;
+
+        case "exit":
+            Daemon.exit(Integer.parseInt(args[1]));
+            throw new AssertionError();
+
+        case "error":
+            throw new OutOfMemoryError(args[1]);
+
+        case "exception":
+            throw new RuntimeException("Outer", new IOException("Inner"));
+
+        default:
+            throw new AssertionError(args[0]);
+        }
+    }
+
+    private static String
+    string(ByteArrayOutputStream baos) { return new String(baos.toByteArray(), StandardCharsets.UTF_8); }
+}
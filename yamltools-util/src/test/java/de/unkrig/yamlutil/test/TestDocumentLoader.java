@@ -0,0 +1,236 @@
+
+/*
+ * yamltools-util - A library for command-line-base YAML tools
+ *
+ * Copyright (c) 2023, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.yamlutil.test;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.snakeyaml.engine.v2.api.DumpSettings;
+import org.snakeyaml.engine.v2.api.LoadSettings;
+import org.snakeyaml.engine.v2.composer.Composer;
+import org.snakeyaml.engine.v2.exceptions.YamlEngineException;
+import org.snakeyaml.engine.v2.nodes.MappingNode;
+import org.snakeyaml.engine.v2.nodes.Node;
+import org.snakeyaml.engine.v2.nodes.NodeTuple;
+import org.snakeyaml.engine.v2.nodes.ScalarNode;
+import org.snakeyaml.engine.v2.nodes.SequenceNode;
+import org.snakeyaml.engine.v2.parser.Parser;
+import org.snakeyaml.engine.v2.parser.ParserImpl;
+import org.snakeyaml.engine.v2.scanner.StreamReader;
+
+import de.unkrig.yamlutil.DocumentComposer;
+import de.unkrig.yamlutil.DocumentLoader;
+import de.unkrig.yamlutil.DocumentLoader.LimitExceededException;
+import de.unkrig.yamlutil.SpecParser;
+
+public
+class TestDocumentLoader {
+
+    private static final String       YAML = "# Comment\na: {name: x, value: 1}\nb: {name: y, value: 1}\n";
+    private static final DumpSettings DUMP = DumpSettings.builder().setDumpComments(true).build();
+
+    @Test public void
+    testDeduplicateScalars() {
+
+        List<NodeTuple> entries = TestDocumentLoader.entries(new DocumentLoader().setDeduplicateScalars(true));
+
+        Assert.assertSame(TestDocumentLoader.key(entries, 0, 0), TestDocumentLoader.key(entries, 1, 0));
+        Assert.assertSame(TestDocumentLoader.key(entries, 0, 1), TestDocumentLoader.key(entries, 1, 1));
+    }
+
+    @Test public void
+    testNoDeduplication() {
+
+        List<NodeTuple> entries = TestDocumentLoader.entries(new DocumentLoader());
+
+        Assert.assertNotSame(TestDocumentLoader.key(entries, 0, 0), TestDocumentLoader.key(entries, 1, 0));
+    }
+
+    @Test public void
+    testMarksAndComments() {
+
+        Node root = new DocumentLoader().load(new StringReader(TestDocumentLoader.YAML)).get();
+        Assert.assertTrue(root.getStartMark().isPresent());
+        Assert.assertEquals(1, ((MappingNode) root).getValue().get(0).getKeyNode().getBlockComments().size());
+
+        DocumentLoader documentLoader = new DocumentLoader().setUseMarks(false).setParseComments(false);
+        root = documentLoader.load(new StringReader(TestDocumentLoader.YAML)).get();
+        Assert.assertFalse(root.getStartMark().isPresent());
+        Assert.assertFalse(((MappingNode) root).getValue().get(1).getKeyNode().getEndMark().isPresent());
+        Assert.assertTrue(((MappingNode) root).getValue().get(0).getKeyNode().getBlockComments().isEmpty());
+    }
+
+    /**
+     * Verifies that deduplication does not change the document.
+     */
+    @Test public void
+    testSameDocument() {
+        for (long seed = 0; seed < 10; seed++) {
+            String yaml = new YamlGenerator(seed).setAnchorProbability(.2).setCommentProbability(.2).generate();
+            Assert.assertEquals(
+                yaml,
+                TestDocumentLoader.dump(new DocumentLoader(), yaml),
+                TestDocumentLoader.dump(new DocumentLoader().setDeduplicateScalars(true), yaml)
+            );
+        }
+    }
+
+    @Test public void
+    testLimits() {
+
+        String yaml = "a: &x [1, {b: 2}]\nc: [*x, *x, *x]\n";
+
+        TestDocumentLoader.assertLimitExceeded(new DocumentLoader().setMaxDepth(2), yaml);
+        TestDocumentLoader.assertLimitExceeded(new DocumentLoader().setMaxAliases(2), yaml);
+        TestDocumentLoader.assertLimitExceeded(new DocumentLoader().setMaxNodes(8), yaml);
+        try {
+            new DocumentLoader().setMaxCodePoints(10).load(new StringReader(yaml));
+            Assert.fail();
+        } catch (YamlEngineException yee) {
+            ;
+        }
+
+        DocumentLoader documentLoader = new DocumentLoader().setMaxDepth(3).setMaxAliases(3).setMaxNodes(9);
+        Assert.assertTrue(documentLoader.load(new StringReader(yaml)).isPresent());
+        Assert.assertTrue(documentLoader.loadCompact(new StringReader(yaml)).isPresent());
+    }
+
+    /**
+     * Verifies that documents that are nested much deeper than the JVM stack would permit with recursive processing
+     * can be loaded, compared and dumped.
+     */
+    @Test public void
+    testDeepNesting() {
+        int    depth = 20000;
+        String yaml  = "- ".repeat(depth) + "x\n";
+
+        Node root = new DocumentLoader().load(new StringReader(yaml)).get();
+        Assert.assertTrue(SpecParser.equals(root, new DocumentLoader().load(new StringReader(yaml)).get()));
+
+        String dumped = SpecParser.toString(root, TestDocumentLoader.DUMP);
+        Assert.assertTrue(SpecParser.equals(root, new DocumentLoader().load(new StringReader(dumped)).get()));
+        Assert.assertFalse(SpecParser.equals(root, new DocumentLoader().load(new StringReader(yaml.replace('x', 'y'))).get()));
+    }
+
+    /**
+     * Verifies that the composer has no depth limit of its own.
+     */
+    @Test public void
+    testComposeVeryDeepNesting() {
+        int  depth = 200000;
+        Node node  = new DocumentLoader().load(new StringReader("- ".repeat(depth) + "x\n")).get();
+        for (int i = 0; i < depth; i++) node = ((SequenceNode) node).getValue().get(0);
+        Assert.assertEquals("x", ((ScalarNode) node).getValue());
+    }
+
+    /**
+     * Verifies that the {@link DocumentComposer} composes the same documents as snakeyaml-engine's {@link Composer}.
+     */
+    @Test public void
+    testSameAsComposer() {
+
+        List<String> yamls = new ArrayList<>();
+        for (long seed = 0; seed < 10; seed++) {
+            yamls.add(new YamlGenerator(seed).setAnchorProbability(.2).setCommentProbability(.2).generate());
+        }
+        yamls.add((
+            ""
+            + "# Head\n"
+            + "a: &a [1, {b: *a}, [*a]]  # Recursive\n"
+            + "c: !t {d: [e, !!str 7], f: *a}  # Tagged\n"
+            + "g:\n"
+            + "  # Block comment\n"
+            + "  - h\n"
+            + "  - ? i\n"
+            + "    : j\n"
+            + "# Tail\n"
+        ));
+        yamls.add("# Only a comment\n");
+
+        LoadSettings settings = new DocumentLoader().getLoadSettings();
+        for (String yaml : yamls) {
+            Node expected = new Composer(settings, TestDocumentLoader.parser(settings, yaml)).getSingleNode().get();
+            Node actual   = new DocumentComposer(settings, TestDocumentLoader.parser(settings, yaml)).getSingleNode().get();
+            Assert.assertEquals(yaml, TestDocumentLoader.toString(expected), TestDocumentLoader.toString(actual));
+        }
+    }
+
+    private static Parser
+    parser(LoadSettings settings, String yaml) {
+        return new ParserImpl(settings, new StreamReader(settings, new StringReader(yaml)));
+    }
+
+    /**
+     * @return The dumped document, with the generated anchor names (which are not deterministic) removed
+     */
+    private static String
+    dump(DocumentLoader documentLoader, String yaml) {
+        return TestDocumentLoader.toString(documentLoader.load(new StringReader(yaml)).get());
+    }
+
+    /**
+     * @return The dumped <var>node</var>, with the generated anchor names (which are not deterministic) removed
+     */
+    private static String
+    toString(Node node) {
+        return SpecParser.toString(node, TestDocumentLoader.DUMP).replaceAll("([&*])id\\d+", "$1");
+    }
+
+    private static void
+    assertLimitExceeded(DocumentLoader documentLoader, String yaml) {
+        try {
+            documentLoader.load(new StringReader(yaml));
+            Assert.fail();
+        } catch (LimitExceededException lee) {
+            ;
+        }
+        try {
+            documentLoader.loadCompact(new StringReader(yaml));
+            Assert.fail();
+        } catch (LimitExceededException lee) {
+            ;
+        }
+    }
+
+    private static List<NodeTuple>
+    entries(DocumentLoader documentLoader) {
+        Node root = documentLoader.load(new StringReader(TestDocumentLoader.YAML)).get();
+        return ((MappingNode) root).getValue();
+    }
+
+    /**
+     * @return The value of the <var>j</var>th key of the map that is the value of the <var>i</var>th entry
+     */
+    private static String
+    key(List<NodeTuple> entries, int i, int j) {
+        MappingNode map = (MappingNode) entries.get(i).getValueNode();
+        return ((ScalarNode) map.getValue().get(j).getKeyNode()).getValue();
+    }
+}
@@ -0,0 +1,125 @@
+
+/*
+ * yamltools-util - A library for command-line-base YAML tools
+ *
+ * Copyright (c) 2023, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.yamlutil.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.snakeyaml.engine.v2.nodes.Node;
+
+import de.unkrig.yamlutil.DocumentLoader;
+import de.unkrig.yamlutil.MemoryReport;
+import de.unkrig.yamlutil.MemoryReport.Category;
+
+public
+class TestMemoryReport {
+
+    private static final String YAML = "# Comment\na: &x {name: x, value: 1}\nb: *x\nc: [1, 2, 3]\n";
+
+    @Test public void
+    testReport() throws Exception {
+
+        MemoryReport memoryReport = new MemoryReport();
+
+        byte[]      bytes = YAML.getBytes(StandardCharsets.UTF_8);
+        InputStream in    = memoryReport.inputStream(new ByteArrayInputStream(bytes));
+        memoryReport.add(new DocumentLoader().load(new InputStreamReader(in, StandardCharsets.UTF_8)).get());
+        memoryReport.add(new DocumentLoader().loadCompact(new StringReader(YAML)).get());
+
+        for (Category c : new Category[] {
+            Category.SCALAR_NODES,
+            Category.MAPPING_NODES,
+            Category.SEQUENCE_NODES,
+            Category.SCALAR_STRINGS,
+            Category.COMMENTS,
+            Category.MARKS,
+            Category.COMPACT_DOCUMENTS,
+        }) Assert.assertTrue(c.toString(), memoryReport.getBytes(c) > 0);
+
+        long total = 0;
+        for (Category c : Category.values()) total += memoryReport.getBytes(c);
+        Assert.assertEquals(total, memoryReport.getTotalBytes());
+
+        String report = TestMemoryReport.print(memoryReport);
+        Assert.assertTrue(
+            report,
+            report.startsWith(
+                "Estimated retained heap of 2 document(s) from " + bytes.length + " bytes of input:\n"
+                + "Category            nodes          bytes       % bytes/input MB\n"
+            )
+        );
+        Assert.assertTrue(report, report.contains("\nScalar nodes "));
+        Assert.assertTrue(report, report.contains("\nCompact docs "));
+        Assert.assertTrue(report, report.matches("(?s).*\nTotal\\s+\\d+\\s+" + total + "\\s+100\\.0%\\s+\\d+\n"));
+    }
+
+    /**
+     * Verifies that an aliased map counts only once.
+     */
+    @Test public void
+    testAliases() {
+
+        MemoryReport aliased = new MemoryReport();
+        MemoryReport copied  = new MemoryReport();
+        MemoryReport scalar  = new MemoryReport();
+        aliased.add(TestMemoryReport.load("a: &x {name: x, value: 1}\nb: *x\n"));
+        copied.add(TestMemoryReport.load("a: {name: x, value: 1}\nb: {name: x, value: 1}\n"));
+        scalar.add(TestMemoryReport.load("a: {name: x, value: 1}\nb: c\n"));
+
+        Assert.assertEquals(scalar.getBytes(Category.MAPPING_NODES), aliased.getBytes(Category.MAPPING_NODES));
+        Assert.assertTrue(copied.getBytes(Category.MAPPING_NODES) > aliased.getBytes(Category.MAPPING_NODES));
+    }
+
+    @Test public void
+    testNone() throws Exception {
+
+        InputStream in = new ByteArrayInputStream(YAML.getBytes(StandardCharsets.UTF_8));
+        Assert.assertSame(in, MemoryReport.NONE.inputStream(in));
+
+        MemoryReport.NONE.add(TestMemoryReport.load(YAML));
+
+        Assert.assertEquals(0, MemoryReport.NONE.getTotalBytes());
+        Assert.assertEquals("", TestMemoryReport.print(MemoryReport.NONE));
+    }
+
+    private static Node
+    load(String yaml) { return new DocumentLoader().load(new StringReader(yaml)).get(); }
+
+    private static String
+    print(MemoryReport memoryReport) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        memoryReport.print(new PrintStream(baos, true, "UTF-8"));
+        return baos.toString("UTF-8").replace(System.lineSeparator(), "\n");
+    }
+}
@@ -0,0 +1,256 @@
+
+/*
+ * yamltools-util - A library for command-line-base YAML tools
+ *
+ * Copyright (c) 2023, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.yamlutil.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.snakeyaml.engine.v2.api.DumpSettings;
+import org.snakeyaml.engine.v2.common.FlowStyle;
+import org.snakeyaml.engine.v2.nodes.AnchorNode;
+import org.snakeyaml.engine.v2.nodes.MappingNode;
+import org.snakeyaml.engine.v2.nodes.Node;
+import org.snakeyaml.engine.v2.nodes.NodeTuple;
+import org.snakeyaml.engine.v2.nodes.ScalarNode;
+import org.snakeyaml.engine.v2.nodes.SequenceNode;
+import org.snakeyaml.engine.v2.nodes.Tag;
+
+import de.unkrig.commons.nullanalysis.Nullable;
+import de.unkrig.yamlutil.DocumentLoader;
+import de.unkrig.yamlutil.MergeKeyIndex;
+import de.unkrig.yamlutil.NodeKey;
+import de.unkrig.yamlutil.SpecParser;
+import de.unkrig.yamlutil.SpecParser.Explanation;
+import de.unkrig.yamlutil.SpecParser.Spec;
+import de.unkrig.yamlutil.SpecParser.SpecHandler2;
+import de.unkrig.yamlutil.SpecParser.SpecMatchException;
+import de.unkrig.yamlutil.SpecParser.SpecSyntaxException;
+
+public
+class TestSpecParser {
+
+    @Test public void
+    testNavigateThroughAnchor() {
+
+        MappingNode     root    = (MappingNode) TestSpecParser.load("a: {b: [c, d]}");
+        List<NodeTuple> entries = root.getValue();
+        NodeTuple       entry   = entries.get(0);
+        entries.set(0, new NodeTuple(entry.getKeyNode(), new AnchorNode(entry.getValueNode())));
+
+        List<String> result = new ArrayList<>();
+        SpecParser.processSpec(root, ".a.b[1]", new SpecHandler2() {
+            @Override public void handleScalar(ScalarNode scalar)       { result.add(scalar.getValue()); }
+            @Override public void handleSequence(SequenceNode sequence) { result.add("sequence"); }
+            @Override public void handleMap(MappingNode map)            { result.add("map"); }
+        });
+        Assert.assertEquals(List.of("d"), result);
+
+        Assert.assertTrue(SpecParser.equals(root, TestSpecParser.load("a: {b: [c, d]}")));
+    }
+
+    @Test public void
+    testRecursiveEquals() {
+        Node a = TestSpecParser.load("&a [*a, x]");
+        Assert.assertTrue(SpecParser.equals(a, TestSpecParser.load("&b [*b, x]")));
+        Assert.assertFalse(SpecParser.equals(a, TestSpecParser.load("&b [*b, y]")));
+        Assert.assertFalse(SpecParser.equals(a, TestSpecParser.load("&b [*b, x, x]")));
+    }
+
+    /**
+     * Verifies that a structure that is referenced many times (through aliases) is compared only once, which
+     * otherwise would take 2^25 comparisons.
+     */
+    @Test public void
+    testSharedSubtrees() {
+        StringBuilder sb = new StringBuilder("- &a0 x\n");
+        for (int i = 1; i <= 25; i++) sb.append("- &a").append(i).append(" [*a").append(i - 1).append(", *a").append(i - 1).append("]\n");
+        String yaml = sb.toString();
+
+        Assert.assertTrue(SpecParser.equals(TestSpecParser.load(yaml), TestSpecParser.load(yaml)));
+    }
+
+    @Test public void
+    testHashCode() {
+        for (long seed = 0; seed < 10; seed++) {
+            String yaml = new YamlGenerator(seed).setAnchorProbability(.2).generate();
+            Assert.assertEquals(
+                SpecParser.hashCode(TestSpecParser.load(yaml)),
+                SpecParser.hashCode(TestSpecParser.load(yaml.replace(" &", " !!str &")))
+            );
+        }
+        Assert.assertEquals(
+            SpecParser.hashCode(TestSpecParser.load("&a [*a, x]")),
+            SpecParser.hashCode(TestSpecParser.load("&b [*b, x]"))
+        );
+        Assert.assertEquals(
+            new NodeKey(TestSpecParser.load("[{a: b}, c]")),
+            new NodeKey(TestSpecParser.load("- a: b\n- !!str c\n"))
+        );
+    }
+
+    @Test public void
+    testMergeKeys() {
+
+        Node root = TestSpecParser.load((
+            ""
+            + "defaults: &defaults {timeout: 1, retries: 2}\n"
+            + "base: &base {<<: *defaults, retries: 3, host: h}\n"
+            + "service: {<<: [*base, {port: 80, timeout: 4}], timeout: 5}\n"
+        ));
+        MergeKeyIndex mergeKeys = new MergeKeyIndex();
+
+        Assert.assertEquals("5", TestSpecParser.find(root, ".service.timeout", mergeKeys));
+        Assert.assertEquals("3", TestSpecParser.find(root, ".service.retries", mergeKeys));
+        Assert.assertEquals("h", TestSpecParser.find(root, ".service.host", mergeKeys));
+        Assert.assertEquals("80", TestSpecParser.find(root, ".service.port", mergeKeys));
+        Assert.assertEquals("1", TestSpecParser.find(root, ".base.timeout", mergeKeys));
+        Assert.assertEquals(
+            "{timeout: 5, retries: 3, host: h, port: 80}",
+            SpecParser.toString(
+                new MappingNode(Tag.MAP, mergeKeys.entries((MappingNode) TestSpecParser.find(root, ".service")), FlowStyle.FLOW),
+                DumpSettings.builder().build()
+            ).trim()
+        );
+
+        try {
+            TestSpecParser.find(root, ".service.host", null);
+            Assert.fail();
+        } catch (SpecMatchException sme) {
+            ;
+        }
+    }
+
+    @Test public void
+    testExplanation() throws Exception {
+
+        Node        root        = TestSpecParser.load("a: {b: [x, y, {c: 1}]}\n? {k: [v, w]}\n: 2\n");
+        Spec        spec1       = SpecParser.compile(".a.b[2].c");
+        Spec        spec2       = SpecParser.compile(".({k: [v, w]})");
+        Explanation explanation1 = new Explanation(spec1);
+        Explanation explanation2 = new Explanation(spec2);
+
+        for (int i = 0; i < 2; i++) {
+            Assert.assertEquals("1", SpecParser.toString(TestSpecParser.explain(root, spec1, explanation1)));
+        }
+        Assert.assertEquals("2", SpecParser.toString(TestSpecParser.explain(root, spec2, explanation2)));
+
+        Assert.assertEquals((
+            ""
+            + "Spec \".a.b[2].c\", evaluated 2 time(s):\n"
+            + "  Segment  map entries equals calls max depth seq elements    time ms\n"
+            + "  .a                 2            2         1            0      #.###\n"
+            + "  .b                 2            2         1            0      #.###\n"
+            + "  [2]                0            0         0            2      #.###\n"
+            + "  .c                 2            2         1            0      #.###\n"
+        ), TestSpecParser.print(explanation1));
+
+        // The second map key is compared recursively.
+        Assert.assertEquals((
+            ""
+            + "Spec \".({k: [v, w]})\", evaluated 1 time(s):\n"
+            + "  Segment         map entries equals calls max depth seq elements    time ms\n"
+            + "  .({k: [v, w]})            2            6         3            0      #.###\n"
+        ), TestSpecParser.print(explanation2));
+    }
+
+    @Test public void
+    testJsonPointer() {
+
+        Node root = TestSpecParser.load("{a/b: [x, {c~d: y, 0: z}], 7: {-: w}}");
+
+        Assert.assertEquals("x", TestSpecParser.find(root, SpecParser.compileJsonPointer("/a~1b/0"), null));
+        Assert.assertEquals("y", TestSpecParser.find(root, SpecParser.compileJsonPointer("/a~1b/1/c~0d"), null));
+        Assert.assertEquals("z", TestSpecParser.find(root, SpecParser.compileJsonPointer("/a~1b/1/0"), null));
+        Assert.assertEquals("w", TestSpecParser.find(root, SpecParser.compileJsonPointer("/7/-"), null));
+        Assert.assertSame(root, TestSpecParser.find(root, SpecParser.compileJsonPointer(""), null));
+
+        for (String pointer : new String[] { "/a~1b/01", "/a~1b/c", "/a~1b/2", "/a~1b/-" }) {
+            try {
+                TestSpecParser.find(root, SpecParser.compileJsonPointer(pointer), null);
+                Assert.fail(pointer);
+            } catch (SpecMatchException sme) {
+                ;
+            }
+        }
+
+        for (String pointer : new String[] { "a", "/a~2", "/a~" }) {
+            try {
+                SpecParser.compileJsonPointer(pointer);
+                Assert.fail(pointer);
+            } catch (SpecSyntaxException sse) {
+                ;
+            }
+        }
+    }
+
+    /**
+     * @return The node designated by the <var>spec</var>, or its value iff it is a scalar
+     */
+    private static Object
+    find(Node root, String spec, @Nullable MergeKeyIndex mergeKeys) {
+        return TestSpecParser.find(root, SpecParser.compile(spec), mergeKeys);
+    }
+
+    private static Object
+    find(Node root, Spec spec, @Nullable MergeKeyIndex mergeKeys) {
+        Object[] result = new Object[1];
+        SpecParser.processSpec(root, spec, node -> {
+            result[0] = node instanceof ScalarNode ? ((ScalarNode) node).getValue() : node;
+        }, null, mergeKeys);
+        return result[0];
+    }
+
+    private static Node
+    find(Node root, String spec) { return (Node) TestSpecParser.find(root, spec, null); }
+
+    private static Node
+    explain(Node root, Spec spec, Explanation explanation) {
+        Node[] result = new Node[1];
+        SpecParser.processSpec(root, spec, node -> { result[0] = node; }, explanation);
+        return result[0];
+    }
+
+    /**
+     * @return The printed <var>explanation</var>, with the times replaced with "#.###"
+     */
+    private static String
+    print(Explanation explanation) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        explanation.print(new PrintStream(baos, true, "UTF-8"));
+        return baos.toString("UTF-8").replace(System.lineSeparator(), "\n").replaceAll("\\d+\\.\\d{3}\n", "#.###\n");
+    }
+
+    private static Node
+    load(String yaml) {
+        return new DocumentLoader().load(new StringReader(yaml)).get();
+    }
+}
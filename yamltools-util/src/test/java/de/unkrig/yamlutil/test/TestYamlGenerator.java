@@ -0,0 +1,124 @@
+
+/*
+ * yamltools-util - A library for command-line-base YAML tools
+ *
+ * Copyright (c) 2023, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.yamlutil.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.snakeyaml.engine.v2.api.LoadSettings;
+import org.snakeyaml.engine.v2.api.lowlevel.Compose;
+import org.snakeyaml.engine.v2.nodes.MappingNode;
+import org.snakeyaml.engine.v2.nodes.Node;
+import org.snakeyaml.engine.v2.nodes.NodeTuple;
+import org.snakeyaml.engine.v2.nodes.SequenceNode;
+import org.snakeyaml.engine.v2.nodes.Tag;
+
+public
+class TestYamlGenerator {
+
+    @Test public void
+    testDeterministic() {
+        Assert.assertEquals(TestYamlGenerator.generator(1).generate(), TestYamlGenerator.generator(1).generate());
+        Assert.assertNotEquals(TestYamlGenerator.generator(1).generate(), TestYamlGenerator.generator(2).generate());
+    }
+
+    @Test public void
+    testShape() {
+
+        List<Node> documents = TestYamlGenerator.composeAll(
+            new YamlGenerator(3).setDepth(4).setFanOut(3).setSequenceProbability(0).setDocumentCount(2).generate()
+        );
+        Assert.assertEquals(2, documents.size());
+
+        // With maps only, every path from the root to a leaf has exactly "depth" maps with "fanOut" entries each.
+        for (Node document : documents) {
+            Node node = document;
+            for (int i = 0; i < 4; i++) {
+                Assert.assertTrue(node instanceof MappingNode);
+                List<NodeTuple> entries = ((MappingNode) node).getValue();
+                Assert.assertEquals(3, entries.size());
+                node = entries.get(0).getValueNode();
+            }
+            Assert.assertEquals(Tag.STR, node.getTag());
+        }
+    }
+
+    @Test public void
+    testSequences() {
+        Node document = TestYamlGenerator.composeAll(
+            new YamlGenerator(4).setDepth(2).setFanOut(7).setSequenceProbability(1).generate()
+        ).get(0);
+        Assert.assertTrue(document instanceof SequenceNode);
+        Assert.assertEquals(7, ((SequenceNode) document).getValue().size());
+    }
+
+    @Test public void
+    testSets() {
+        Node document = TestYamlGenerator.composeAll(
+            new YamlGenerator(5).setDepth(1).setSetProbability(1).generate()
+        ).get(0);
+        Assert.assertEquals(Tag.SET, document.getTag());
+    }
+
+    /**
+     * Verifies that comments, anchors, aliases, sets and multiple documents are well-formed YAML.
+     */
+    @Test public void
+    testAllFeatures() {
+        String yaml = TestYamlGenerator.generator(6).generate();
+        Assert.assertTrue(yaml.contains("# Comment"));
+        Assert.assertTrue(yaml.contains("&a"));
+        Assert.assertTrue(yaml.contains("*a"));
+        Assert.assertTrue(yaml.contains("!!set"));
+        Assert.assertEquals(5, TestYamlGenerator.composeAll(yaml).size());
+    }
+
+    private static YamlGenerator
+    generator(long seed) {
+        return (
+            new YamlGenerator(seed)
+            .setDepth(5)
+            .setFanOut(4)
+            .setKeyCardinality(20)
+            .setDocumentCount(5)
+            .setCommentProbability(.2)
+            .setAnchorProbability(.2)
+            .setSetProbability(.2)
+        );
+    }
+
+    private static List<Node>
+    composeAll(String yaml) {
+        LoadSettings settings = LoadSettings.builder().setAllowDuplicateKeys(true).setParseComments(true).build();
+
+        List<Node> result = new ArrayList<>();
+        new Compose(settings).composeAllFromString(yaml).forEach(result::add);
+        return result;
+    }
+}
@@ -0,0 +1,254 @@
+
+/*
+ * yamltools-util - A library for command-line-base YAML tools
+ *
+ * Copyright (c) 2023, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.yamlutil.test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Generates synthetic YAML documents with controllable shape, for performance and stress tests. The output is
+ * deterministic: The same settings and the same seed always produce the same text.
+ * <p>
+ *   Example:
+ * </p>
+ * <pre>
+ *   String yaml = new YamlGenerator(42).setDepth(6).setFanOut(8).setCommentProbability(.1).generate();
+ * </pre>
+ */
+public
+class YamlGenerator {
+
+    private final Random random;
+
+    private int    depth          = 3;
+    private int    fanOut         = 5;
+    private int    keyCardinality = 1000;
+    private int    scalarLength   = 10;
+    private int    documentCount  = 1;
+    private double commentProbability;
+    private double anchorProbability;
+    private double setProbability;
+    private double sequenceProbability = .3;
+
+    /**
+     * The anchors defined so far in the current document.
+     */
+    private final List<String> anchors = new ArrayList<>();
+
+    public
+    YamlGenerator(long seed) { this.random = new Random(seed); }
+
+    /**
+     * The number of nesting levels of collections; 0 means that each document is a single scalar (default 3).
+     */
+    public YamlGenerator
+    setDepth(int depth) { this.depth = depth; return this; }
+
+    /**
+     * The number of entries in each map, sequence and set (default 5).
+     */
+    public YamlGenerator
+    setFanOut(int fanOut) { this.fanOut = fanOut; return this; }
+
+    /**
+     * The number of distinct keys, "{@code k0}", "{@code k1}", ...; within each map, the keys are unique, so a map
+     * has at most this many entries (default 1000).
+     */
+    public YamlGenerator
+    setKeyCardinality(int keyCardinality) { this.keyCardinality = keyCardinality; return this; }
+
+    /**
+     * The length of each scalar value (default 10).
+     */
+    public YamlGenerator
+    setScalarLength(int scalarLength) { this.scalarLength = scalarLength; return this; }
+
+    /**
+     * The number of documents in the stream; iff greater than 1, then each document starts with "{@code ---}"
+     * (default 1).
+     */
+    public YamlGenerator
+    setDocumentCount(int documentCount) { this.documentCount = documentCount; return this; }
+
+    /**
+     * The probability that a map entry or sequence element is preceded by a comment line, and that a scalar value is
+     * followed by an end-of-line comment (default 0).
+     */
+    public YamlGenerator
+    setCommentProbability(double p) { this.commentProbability = p; return this; }
+
+    /**
+     * The probability that a scalar value is defined with an anchor ("{@code &a7 value}"), and also the probability
+     * that a scalar value is replaced with an alias ("{@code *a7}") to an anchor defined before in the same document
+     * (default 0).
+     */
+    public YamlGenerator
+    setAnchorProbability(double p) { this.anchorProbability = p; return this; }
+
+    /**
+     * The probability that a collection is a "{@code !!set}" (default 0).
+     */
+    public YamlGenerator
+    setSetProbability(double p) { this.setProbability = p; return this; }
+
+    /**
+     * The probability that a collection (that is not a set) is a sequence rather than a map (default .3).
+     */
+    public YamlGenerator
+    setSequenceProbability(double p) { this.sequenceProbability = p; return this; }
+
+    /**
+     * @return The YAML stream
+     */
+    public String
+    generate() {
+        StringBuilder sb = new StringBuilder();
+        this.generate(sb);
+        return sb.toString();
+    }
+
+    /**
+     * Appends the YAML stream to the given {@link StringBuilder}.
+     */
+    public void
+    generate(StringBuilder sb) {
+
+        for (int i = 0; i < this.documentCount; i++) {
+            if (this.documentCount > 1) sb.append("---\n");
+            this.anchors.clear();
+
+            if (this.depth == 0) {
+                this.scalar(sb);
+                sb.append('\n');
+            } else {
+                this.collection(this.depth, "", false, sb);
+            }
+        }
+    }
+
+    /**
+     * Appends a block collection; each line is indented with the given <var>indentation</var>.
+     *
+     * @param nested Whether the collection is the value of a "{@code key:}" or "{@code -}"; if so, the rest of that
+     *               line (a "{@code !!set}" tag, or nothing) is appended first
+     */
+    private void
+    collection(int depth, String indentation, boolean nested, StringBuilder sb) {
+
+        if (this.random.nextDouble() < this.setProbability) {
+            sb.append(nested ? " !!set\n" : "!!set\n");
+            boolean first = true;
+            for (String key : this.keys()) {
+
+                // A comment between the tag and the first member confuses the parser.
+                if (!first) this.comment(indentation, sb);
+                first = false;
+
+                sb.append(indentation).append("? ").append(key).append('\n');
+            }
+            return;
+        }
+
+        if (nested) sb.append('\n');
+        if (this.random.nextDouble() < this.sequenceProbability) {
+            for (int i = 0; i < this.fanOut; i++) {
+                this.comment(indentation, sb);
+                sb.append(indentation).append('-');
+                this.value(depth - 1, indentation + "  ", sb);
+            }
+        } else
+        {
+            for (String key : this.keys()) {
+                this.comment(indentation, sb);
+                sb.append(indentation).append(key).append(':');
+                this.value(depth - 1, indentation + "  ", sb);
+            }
+        }
+    }
+
+    /**
+     * Appends a value that follows a "{@code key:}" or "{@code -}", including the line break.
+     */
+    private void
+    value(int depth, String indentation, StringBuilder sb) {
+
+        if (depth == 0 || this.fanOut == 0) {
+            sb.append(' ');
+            this.scalar(sb);
+            if (this.random.nextDouble() < this.commentProbability) sb.append("  # Comment");
+            sb.append('\n');
+        } else {
+            this.collection(depth, indentation, true, sb);
+        }
+    }
+
+    /**
+     * Appends a scalar value, maybe with an anchor, or an alias instead.
+     */
+    private void
+    scalar(StringBuilder sb) {
+
+        if (!this.anchors.isEmpty() && this.random.nextDouble() < this.anchorProbability) {
+            sb.append('*').append(this.anchors.get(this.random.nextInt(this.anchors.size())));
+            return;
+        }
+
+        if (this.random.nextDouble() < this.anchorProbability) {
+            String anchor = "a" + this.anchors.size();
+            this.anchors.add(anchor);
+            sb.append('&').append(anchor).append(' ');
+        }
+
+        // Start with a letter, so that the scalar is always a string.
+        sb.append((char) ('a' + this.random.nextInt(26)));
+        for (int i = 1; i < this.scalarLength; i++) {
+            int r = this.random.nextInt(36);
+            sb.append((char) (r < 26 ? 'a' + r : '0' + r - 26));
+        }
+    }
+
+    private void
+    comment(String indentation, StringBuilder sb) {
+        if (this.random.nextDouble() < this.commentProbability) {
+            sb.append(indentation).append("# Comment\n");
+        }
+    }
+
+    /**
+     * @return {@link #fanOut} (or {@link #keyCardinality}, whichever is smaller) distinct keys
+     */
+    private Set<String>
+    keys() {
+        int         n      = Math.min(this.fanOut, this.keyCardinality);
+        Set<String> result = new LinkedHashSet<>();
+        while (result.size() < n) result.add("k" + this.random.nextInt(this.keyCardinality));
+        return result;
+    }
+}